@@ -0,0 +1,366 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Map backing the {@link Metadata}. The keys are kept sorted in an array, with their values in a
+ * parallel array, which takes a lot less memory than a HashMap for the small number of entries
+ * metadata usually have. The keys are interned so that they are shared between instances. A copy
+ * shares the arrays of the original until one of them is modified. The first value of an entry can
+ * be read as a number, the result is cached until the entry changes. The parsed number and its
+ * state are published together as a single immutable object so that a reader never sees one without
+ * the other.
+ */
+final class CompactMetadataMap extends AbstractMap<String, String[]> {
+
+    private static final int MAX_INTERNED_KEYS = 10000;
+
+    private static final Map<String, String> INTERNED_KEYS = new ConcurrentHashMap<>();
+
+    /** cached for values which can't be parsed, null means that the value hasn't been parsed yet */
+    private static final Object NOT_A_NUMBER = new Object();
+
+    private static final String[] NO_KEYS = new String[0];
+    private static final String[][] NO_VALUES = new String[0][];
+    private static final Object[] NO_NUMBERS = new Object[0];
+
+    private String[] keys;
+    private String[][] values;
+    /** Long, NOT_A_NUMBER or null for each entry */
+    private Object[] numbers;
+
+    private int size;
+
+    /** true if the arrays are also used by another instance and must be copied before writing */
+    private boolean shared;
+
+    private Set<Entry<String, String[]>> entrySet;
+
+    CompactMetadataMap() {
+        keys = NO_KEYS;
+        values = NO_VALUES;
+        numbers = NO_NUMBERS;
+    }
+
+    CompactMetadataMap(int capacity) {
+        keys = new String[capacity];
+        values = new String[capacity][];
+        numbers = new Object[capacity];
+    }
+
+    /** Returns a copy sharing the content of this instance until either of them is modified */
+    CompactMetadataMap copy() {
+        CompactMetadataMap copy = new CompactMetadataMap();
+        copy.shareWith(this);
+        return copy;
+    }
+
+    private void shareWith(CompactMetadataMap other) {
+        keys = other.keys;
+        values = other.values;
+        numbers = other.numbers;
+        size = other.size;
+        shared = true;
+        other.shared = true;
+    }
+
+    private static String intern(String key) {
+        String interned = INTERNED_KEYS.get(key);
+        if (interned != null) {
+            return interned;
+        }
+        if (INTERNED_KEYS.size() >= MAX_INTERNED_KEYS) {
+            return key;
+        }
+        interned = INTERNED_KEYS.putIfAbsent(key, key);
+        return interned != null ? interned : key;
+    }
+
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            String k = keys[mid];
+            // interned keys are often the same instance
+            if (k == key) {
+                return mid;
+            }
+            int comp = k.compareTo((String) key);
+            if (comp < 0) {
+                low = mid + 1;
+            } else if (comp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /** Makes sure that the arrays can be modified and hold at least minCapacity entries */
+    private void ensureWritable(int minCapacity) {
+        if (!shared && keys.length >= minCapacity) {
+            return;
+        }
+        int capacity = keys.length;
+        if (capacity < minCapacity) {
+            capacity = Math.max(minCapacity, Math.max(4, capacity + (capacity >> 1)));
+        }
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+        numbers = Arrays.copyOf(numbers, capacity);
+        shared = false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public String[] get(Object key) {
+        int i = indexOf(key);
+        return i >= 0 ? values[i] : null;
+    }
+
+    @Override
+    public String[] put(String key, String[] value) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+        int i = indexOf(key);
+        if (i >= 0) {
+            ensureWritable(size);
+            String[] previous = values[i];
+            values[i] = value;
+            numbers[i] = null;
+            return previous;
+        }
+        i = -(i + 1);
+        ensureWritable(size + 1);
+        int moved = size - i;
+        if (moved > 0) {
+            System.arraycopy(keys, i, keys, i + 1, moved);
+            System.arraycopy(values, i, values, i + 1, moved);
+            System.arraycopy(numbers, i, numbers, i + 1, moved);
+        }
+        keys[i] = intern(key);
+        values[i] = value;
+        numbers[i] = null;
+        size++;
+        return null;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends String[]> m) {
+        // nothing to merge with, share the content
+        if (size == 0 && m instanceof CompactMetadataMap) {
+            shareWith((CompactMetadataMap) m);
+            return;
+        }
+        super.putAll(m);
+    }
+
+    @Override
+    public String[] remove(Object key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        String[] previous = values[i];
+        removeAt(i);
+        return previous;
+    }
+
+    private void removeAt(int i) {
+        ensureWritable(size);
+        int moved = size - i - 1;
+        if (moved > 0) {
+            System.arraycopy(keys, i + 1, keys, i, moved);
+            System.arraycopy(values, i + 1, values, i, moved);
+            System.arraycopy(numbers, i + 1, numbers, i, moved);
+        }
+        size--;
+        keys[size] = null;
+        values[size] = null;
+        numbers[size] = null;
+    }
+
+    @Override
+    public void clear() {
+        if (shared) {
+            keys = NO_KEYS;
+            values = NO_VALUES;
+            numbers = NO_NUMBERS;
+            shared = false;
+        } else {
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+            Arrays.fill(numbers, 0, size, null);
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns the first value of the key as a number or the default value if there is none or if it
+     * can't be parsed.
+     */
+    long getLong(String key, long defaultValue) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return defaultValue;
+        }
+        Object cached = numbers[i];
+        if (cached instanceof Long) {
+            return (Long) cached;
+        }
+        if (cached == NOT_A_NUMBER) {
+            return defaultValue;
+        }
+        String[] vals = values[i];
+        Object parsed = NOT_A_NUMBER;
+        if (vals != null && vals.length > 0 && vals[0] != null) {
+            try {
+                parsed = Long.valueOf(vals[0].trim());
+            } catch (NumberFormatException e) {
+                // not a number
+            }
+        }
+        // don't write to arrays used by another instance
+        if (!shared) {
+            numbers[i] = parsed;
+        }
+        return parsed instanceof Long ? (Long) parsed : defaultValue;
+    }
+
+    /** Sets a number as the only value of the key */
+    void setLong(String key, long value) {
+        put(key, new String[] {Long.toString(value)});
+        int i = indexOf(key);
+        numbers[i] = value;
+    }
+
+    @Override
+    public Set<Entry<String, String[]>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<String, String[]>> {
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            CompactMetadataMap.this.clear();
+        }
+
+        @Override
+        public Iterator<Entry<String, String[]>> iterator() {
+            return new Iterator<Entry<String, String[]>>() {
+
+                private int next = 0;
+                private int last = -1;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size;
+                }
+
+                @Override
+                public Entry<String, String[]> next() {
+                    if (next >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    last = next++;
+                    return new MapEntry(keys[last]);
+                }
+
+                @Override
+                public void remove() {
+                    if (last < 0) {
+                        throw new IllegalStateException();
+                    }
+                    removeAt(last);
+                    next = last;
+                    last = -1;
+                }
+            };
+        }
+    }
+
+    /** Entry reading the current value of its key */
+    private final class MapEntry implements Entry<String, String[]> {
+
+        private final String key;
+
+        private MapEntry(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String[] getValue() {
+            return get(key);
+        }
+
+        @Override
+        public String[] setValue(String[] value) {
+            return put(key, value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return key.equals(e.getKey()) && Objects.equals(getValue(), e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ Objects.hashCode(getValue());
+        }
+    }
+}
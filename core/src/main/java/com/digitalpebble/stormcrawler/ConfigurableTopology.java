@@ -16,6 +16,7 @@ package com.digitalpebble.stormcrawler;
 
 import com.digitalpebble.stormcrawler.persistence.Status;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.ContentHandle;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -59,8 +60,9 @@ public abstract class ConfigurableTopology {
     protected int submit(String name, Config conf, TopologyBuilder builder) {
 
         // register for serialization with Kryo
-        Config.registerSerialization(conf, Metadata.class);
+        Config.registerSerialization(conf, Metadata.class, MetadataSerializer.class);
         Config.registerSerialization(conf, Status.class);
+        Config.registerSerialization(conf, ContentHandle.class);
 
         try {
             StormSubmitter.submitTopology(name, conf, builder.createTopology());
@@ -44,6 +44,15 @@ public class Constants {
 
     public static final String fetchErrorCountParamName = "fetch.error.count";
 
+    /** Digest of the persisted fields of a status, see AbstractStatusUpdaterBolt */
+    public static final String STATUS_DIGEST_KEY = "status.digest";
+
+    /**
+     * ID of the document of a URL in the status storage, specific to the URL and never transferred
+     * to its outlinks
+     */
+    public static final String DOCUMENT_ID_KEY = "es.doc.id";
+
     /** Maximum array size, safe value on any JVM */
     public static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
 
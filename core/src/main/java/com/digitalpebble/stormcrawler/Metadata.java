@@ -14,9 +14,7 @@
  */
 package com.digitalpebble.stormcrawler;
 
-import com.esotericsoftware.kryo.serializers.DefaultArraySerializers.StringArraySerializer;
-import com.esotericsoftware.kryo.serializers.DefaultSerializers.StringSerializer;
-import com.esotericsoftware.kryo.serializers.MapSerializer.BindMap;
+import com.esotericsoftware.kryo.DefaultSerializer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -28,22 +26,21 @@ import java.util.Map.Entry;
 import java.util.Set;
 import org.apache.commons.lang.StringUtils;
 
-/** Wrapper around Map &lt;String,String[]&gt; * */
+/**
+ * Wrapper around Map &lt;String,String[]&gt;. Backed by a compact map with sorted keys unless
+ * created from an existing map. Numeric values can be read and written with {@link #getLong} and
+ * {@link #setLong}, which avoid parsing the same value repeatedly. Serialized with the {@link
+ * MetadataSerializer}.
+ */
+@DefaultSerializer(MetadataSerializer.class)
 public class Metadata {
 
-    // customize the behaviour of Kryo via annotations
-    @BindMap(
-            valueSerializer = StringArraySerializer.class,
-            keySerializer = StringSerializer.class,
-            valueClass = String[].class,
-            keyClass = String.class,
-            keysCanBeNull = false)
     private Map<String, String[]> md;
 
     public static final Metadata empty = new Metadata(Collections.<String, String[]>emptyMap());
 
     public Metadata() {
-        md = new HashMap<>();
+        md = new CompactMetadataMap();
     }
 
     private transient boolean locked = false;
@@ -54,6 +51,17 @@ public class Metadata {
         md = metadata;
     }
 
+    /**
+     * Returns a copy of the metadata. The content is shared with the original until either of them
+     * is modified.
+     */
+    public Metadata copy() {
+        if (md instanceof CompactMetadataMap) {
+            return new Metadata(((CompactMetadataMap) md).copy());
+        }
+        return new Metadata(new HashMap<>(md));
+    }
+
     /** Puts all the metadata into the current instance * */
     public void putAll(Metadata m) {
         checkLockException();
@@ -112,6 +120,44 @@ public class Metadata {
         return values;
     }
 
+    /**
+     * @return the first value for the key as a number or the default value if it does not exist or
+     *     is not a number
+     */
+    public long getLong(String key, long defaultValue) {
+        if (md instanceof CompactMetadataMap) {
+            return ((CompactMetadataMap) md).getLong(key, defaultValue);
+        }
+        String value = getFirstValue(key);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the first value for the key as an int or the default value if it does not exist or is
+     *     not an int
+     */
+    public int getInt(String key, int defaultValue) {
+        long value = getLong(key, defaultValue);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) return defaultValue;
+        return (int) value;
+    }
+
+    /** Sets a number as the value for a given key. */
+    public void setLong(String key, long value) {
+        checkLockException();
+
+        if (md instanceof CompactMetadataMap) {
+            ((CompactMetadataMap) md).setLong(key, value);
+        } else {
+            md.put(key, new String[] {Long.toString(value)});
+        }
+    }
+
     public boolean containsKey(String key) {
         return md.containsKey(key);
     }
@@ -0,0 +1,292 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler;
+
+import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Kryo serializer for {@link Metadata}. Keys found in a dictionary are written as a varint ID and
+ * the ones starting with a known prefix such as "protocol." are written without it. Entries with a
+ * single value don't need their number of values to be written. Values longer than {@value
+ * #COMPRESSION_THRESHOLD_PARAM} chars can be compressed.
+ *
+ * <p>The dictionary is made of well known keys and of the ones listed in {@value #KEYS_PARAM}. It
+ * must be the same for all the workers of a topology, which is the case as long as it is built from
+ * the topology configuration. The configuration is only available if the serializer is registered
+ * explicitly, as done by {@link ConfigurableTopology}; with Flux use
+ *
+ * <pre>
+ * topology.kryo.register:
+ *   - com.digitalpebble.stormcrawler.Metadata: com.digitalpebble.stormcrawler.MetadataSerializer
+ * </pre>
+ *
+ * otherwise only the well known keys are used and the values are not compressed.
+ *
+ * @since 2.5
+ */
+public class MetadataSerializer extends Serializer<Metadata> {
+
+    /** Additional keys to write as an ID, the list must be the same for the whole topology. */
+    public static final String KEYS_PARAM = "metadata.serializer.keys";
+
+    /** Min number of chars of a value for it to be compressed, disabled if lower than 1. */
+    public static final String COMPRESSION_THRESHOLD_PARAM =
+            "metadata.serializer.compression.threshold";
+
+    /** Keys set by the components of StormCrawler */
+    static final String[] DEFAULT_KEYS = {
+        "_redirTo",
+        "depth",
+        "discoveryDate",
+        "error.cause",
+        "error.message",
+        "error.source",
+        "fetch.byteLength",
+        "fetch.error.count",
+        "fetch.exception",
+        "fetch.loadingTime",
+        "fetch.statusCode",
+        "fetch.timeInQueues",
+        "fetchInterval",
+        "hostname",
+        "isFeed",
+        "isSitemap",
+        "last-modified",
+        "lastProcessedDate",
+        "max.depth",
+        "parse.Content-Encoding",
+        "parse.Content-Type",
+        "parse.description",
+        "parse.keywords",
+        "parse.title",
+        "parsed.by",
+        "protocol._request.headers_",
+        "protocol._response.headers_",
+        "protocol._response.ip_",
+        "protocol.content-length",
+        "protocol.content-type",
+        "protocol.date",
+        "protocol.etag",
+        "protocol.last-modified",
+        "protocol.server",
+        "signature",
+        "signatureChangeDate",
+        "signatureOld",
+        "url.path",
+    };
+
+    static final String[] DEFAULT_PREFIXES = {"protocol.", "parse.", "fetch.", "feed."};
+
+    private static final int SINGLE_VALUE = 1;
+    private static final int COMPRESSED = 2;
+
+    private final String[] keys;
+    private final Map<String, Integer> keyIds;
+    private final String[] prefixes;
+    private final int compressionThreshold;
+
+    private Deflater deflater;
+    private Inflater inflater;
+
+    public MetadataSerializer() {
+        this(Collections.emptyMap());
+    }
+
+    /** Constructor used by Storm when the serializer is registered with the topology */
+    public MetadataSerializer(Kryo kryo, Class<?> type, Map<String, Object> conf) {
+        this(conf);
+    }
+
+    public MetadataSerializer(Map<String, Object> conf) {
+        List<String> allKeys = new ArrayList<>();
+        Collections.addAll(allKeys, DEFAULT_KEYS);
+        for (String key : ConfUtils.loadListFromConf(KEYS_PARAM, conf)) {
+            if (!allKeys.contains(key)) {
+                allKeys.add(key);
+            }
+        }
+        keys = allKeys.toArray(new String[0]);
+        keyIds = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            keyIds.put(keys[i], i);
+        }
+
+        List<String> allPrefixes = new ArrayList<>();
+        Collections.addAll(allPrefixes, DEFAULT_PREFIXES);
+        String protocolPrefix = ConfUtils.getString(conf, "protocol.md.prefix");
+        if (StringUtils.isNotBlank(protocolPrefix) && !allPrefixes.contains(protocolPrefix)) {
+            allPrefixes.add(protocolPrefix);
+        }
+        prefixes = allPrefixes.toArray(new String[0]);
+
+        compressionThreshold = ConfUtils.getInt(conf, COMPRESSION_THRESHOLD_PARAM, -1);
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, Metadata metadata) {
+        Map<String, String[]> md = metadata.asMap();
+        output.writeInt(md.size(), true);
+        for (Entry<String, String[]> entry : md.entrySet()) {
+            String key = entry.getKey();
+            String[] values = entry.getValue();
+
+            // 0 for a literal key, then the IDs of the keys then the prefixes
+            int ref = 0;
+            String literal = key;
+            Integer id = keyIds.get(key);
+            if (id != null) {
+                ref = id + 1;
+                literal = null;
+            } else {
+                for (int p = 0; p < prefixes.length; p++) {
+                    if (key.startsWith(prefixes[p])) {
+                        ref = keys.length + 1 + p;
+                        literal = key.substring(prefixes[p].length());
+                        break;
+                    }
+                }
+            }
+
+            boolean single = values.length == 1;
+            boolean compress = shouldCompress(values);
+            int flags = (single ? SINGLE_VALUE : 0) | (compress ? COMPRESSED : 0);
+            output.writeInt((ref << 2) | flags, true);
+            if (literal != null) {
+                output.writeString(literal);
+            }
+            if (!single) {
+                output.writeInt(values.length, true);
+            }
+            for (String value : values) {
+                if (compress) {
+                    writeCompressed(output, value);
+                } else {
+                    output.writeString(value);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Metadata read(Kryo kryo, Input input, Class<Metadata> type) {
+        int size = input.readInt(true);
+        Map<String, String[]> md = new CompactMetadataMap(size);
+        for (int i = 0; i < size; i++) {
+            int code = input.readInt(true);
+            int ref = code >>> 2;
+            String key;
+            if (ref == 0) {
+                key = input.readString();
+            } else if (ref <= keys.length) {
+                key = keys[ref - 1];
+            } else if (ref <= keys.length + prefixes.length) {
+                key = prefixes[ref - keys.length - 1] + input.readString();
+            } else {
+                throw new KryoException("Unknown metadata key ID " + ref + ", check " + KEYS_PARAM);
+            }
+
+            int numValues = (code & SINGLE_VALUE) != 0 ? 1 : input.readInt(true);
+            boolean compressed = (code & COMPRESSED) != 0;
+            String[] values = new String[numValues];
+            for (int j = 0; j < numValues; j++) {
+                values[j] = compressed ? readCompressed(input) : input.readString();
+            }
+            md.put(key, values);
+        }
+        return new Metadata(md);
+    }
+
+    private boolean shouldCompress(String[] values) {
+        if (compressionThreshold < 1) {
+            return false;
+        }
+        for (String value : values) {
+            if (value != null && value.length() >= compressionThreshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeCompressed(Output output, String value) {
+        if (value == null) {
+            output.writeInt(0, true);
+            return;
+        }
+        byte[] raw = value.getBytes(StandardCharsets.UTF_8);
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] compressed = new byte[raw.length + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte[] larger = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, larger, 0, length);
+                compressed = larger;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        output.writeInt(length + 1, true);
+        output.writeInt(raw.length, true);
+        output.writeBytes(compressed, 0, length);
+    }
+
+    private String readCompressed(Input input) {
+        int length = input.readInt(true) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] raw = new byte[input.readInt(true)];
+        byte[] compressed = input.readBytes(length);
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int read = 0;
+            while (read < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, read, raw.length - read);
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                read += n;
+            }
+        } catch (DataFormatException e) {
+            throw new KryoException("Can't decompress metadata value", e);
+        }
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+}
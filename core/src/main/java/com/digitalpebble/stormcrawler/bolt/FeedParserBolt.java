@@ -26,6 +26,7 @@ import com.digitalpebble.stormcrawler.persistence.Status;
 import com.digitalpebble.stormcrawler.protocol.HttpHeaders;
 import com.digitalpebble.stormcrawler.protocol.ProtocolResponse;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import com.google.common.primitives.Bytes;
 import com.rometools.rome.feed.synd.SyndContent;
 import com.rometools.rome.feed.synd.SyndEntry;
@@ -65,10 +66,24 @@ public class FeedParserBolt extends StatusEmitterBolt {
 
     @Override
     public void execute(Tuple tuple) {
+        try {
+            parse(tuple);
+        } finally {
+            ContentStore.release(tuple);
+        }
+    }
+
+    private void parse(Tuple tuple) {
         Metadata metadata = (Metadata) tuple.getValueByField("metadata");
-        byte[] content = tuple.getBinaryByField("content");
+        byte[] content = ContentStore.getContent(tuple);
         String url = tuple.getStringByField("url");
 
+        if (content == null) {
+            LOG.error("Content of {} no longer available", url);
+            collector.fail(tuple);
+            return;
+        }
+
         LOG.debug("Processing {}", url);
 
         boolean isfeed = Boolean.parseBoolean(metadata.getFirstValue(isFeedKey));
@@ -101,7 +116,9 @@ public class FeedParserBolt extends StatusEmitterBolt {
         if (!isfeed) {
             LOG.debug("Not a feed {}", url);
             // just pass it on
-            this.collector.emit(tuple, tuple.getValues());
+            ContentStore.emit(
+                    tuple.getValueByField("content"),
+                    () -> this.collector.emit(tuple, tuple.getValues()));
             this.collector.ack(tuple);
             return;
         } else {
@@ -170,6 +187,8 @@ public class FeedParserBolt extends StatusEmitterBolt {
 
         URL sURL = new URL(url);
 
+        Metadata outlinksMD = getMetaForOutlinks(sURL, parentMetadata);
+
         List<SyndEntry> entries = feed.getEntries();
         for (SyndEntry entry : entries) {
             String targetURL = entry.getLink();
@@ -181,7 +200,7 @@ public class FeedParserBolt extends StatusEmitterBolt {
                     continue;
                 }
             }
-            Outlink newLink = filterOutlink(sURL, targetURL, parentMetadata);
+            Outlink newLink = filterOutlink(sURL, targetURL, parentMetadata, outlinksMD);
             if (newLink == null) continue;
 
             String title = entry.getTitle();
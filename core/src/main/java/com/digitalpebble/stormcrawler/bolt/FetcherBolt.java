@@ -23,6 +23,7 @@ import com.digitalpebble.stormcrawler.protocol.ProtocolFactory;
 import com.digitalpebble.stormcrawler.protocol.ProtocolResponse;
 import com.digitalpebble.stormcrawler.protocol.RobotRules;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import com.digitalpebble.stormcrawler.util.PerSecondReducer;
 import crawlercommons.domains.PaidLevelDomain;
 import crawlercommons.robots.BaseRobotRules;
@@ -85,6 +86,8 @@ public class FetcherBolt extends StatusEmitterBolt {
     private FetchItemQueues fetchQueues;
 
     private MultiCountMetric eventCounter;
+
+    private ContentStore contentStore;
     private MultiReducedMetric averagedMetrics;
 
     private ProtocolFactory protocolFactory;
@@ -654,14 +657,13 @@ public class FetcherBolt extends StatusEmitterBolt {
                     // metadata persisted or transferred from previous fetches
                     mergedMD.putAll(response.getMetadata(), protocolMDprefix);
 
-                    mergedMD.setValue(
-                            "fetch.statusCode", Integer.toString(response.getStatusCode()));
+                    mergedMD.setLong("fetch.statusCode", response.getStatusCode());
 
-                    mergedMD.setValue("fetch.byteLength", Integer.toString(byteLength));
+                    mergedMD.setLong("fetch.byteLength", byteLength);
 
-                    mergedMD.setValue("fetch.loadingTime", Long.toString(timeFetching));
+                    mergedMD.setLong("fetch.loadingTime", timeFetching);
 
-                    mergedMD.setValue("fetch.timeInQueues", Long.toString(timeInQueues));
+                    mergedMD.setLong("fetch.timeInQueues", timeInQueues);
 
                     // determine the status based on the status code
                     final Status status = Status.fromHTTPCode(response.getStatusCode());
@@ -679,10 +681,15 @@ public class FetcherBolt extends StatusEmitterBolt {
                             collector.emit(Constants.StatusStreamName, fit.t, tupleToSend);
                         } else {
                             // send content for parsing
-                            collector.emit(
-                                    Utils.DEFAULT_STREAM_ID,
-                                    fit.t,
-                                    new Values(fit.url, response.getContent(), mergedMD));
+                            Object content = contentStore.wrap(response.getContent());
+                            ContentStore.emit(
+                                    content,
+                                    () ->
+                                            collector.emit(
+                                                    Utils.DEFAULT_STREAM_ID,
+                                                    fit.t,
+                                                    new Values(fit.url, content, mergedMD)));
+                            ContentStore.release(content);
                         }
                     } else if (status.equals(Status.REDIRECTION)) {
 
@@ -780,6 +787,8 @@ public class FetcherBolt extends StatusEmitterBolt {
 
         checkConfiguration(conf);
 
+        contentStore = ContentStore.getInstance(stormConf);
+
         LOG.info("[Fetcher #{}] : starting at {}", taskID, Instant.now());
 
         int metricsTimeBucketSecs = ConfUtils.getInt(conf, "fetcher.metrics.time.bucket.secs", 10);
@@ -32,6 +32,7 @@ import com.digitalpebble.stormcrawler.protocol.HttpHeaders;
 import com.digitalpebble.stormcrawler.protocol.ProtocolResponse;
 import com.digitalpebble.stormcrawler.util.CharsetIdentification;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import com.digitalpebble.stormcrawler.util.RefreshTag;
 import com.digitalpebble.stormcrawler.util.RobotsTags;
 import java.io.ByteArrayInputStream;
@@ -162,11 +163,26 @@ public class JSoupParserBolt extends StatusEmitterBolt {
 
     @Override
     public void execute(Tuple tuple) {
+        try {
+            parse(tuple);
+        } finally {
+            ContentStore.release(tuple);
+        }
+    }
+
+    private void parse(Tuple tuple) {
 
-        byte[] content = tuple.getBinaryByField("content");
+        byte[] content = ContentStore.getContent(tuple);
         String url = tuple.getStringByField("url");
         Metadata metadata = (Metadata) tuple.getValueByField("metadata");
 
+        if (content == null) {
+            LOG.error("Content of {} no longer available", url);
+            eventCounter.scope("content_expired").incr();
+            collector.fail(tuple);
+            return;
+        }
+
         LOG.info("Parsing : starting {}", url);
 
         // check that its content type is HTML
@@ -204,7 +220,9 @@ public class JSoupParserBolt extends StatusEmitterBolt {
                 handleException(url, e, metadata, tuple, "content-type checking", errorMessage);
             } else {
                 LOG.info("Unsupported mimetype {} - passing on : {}", mimeType, url);
-                collector.emit(tuple, new Values(url, content, metadata, ""));
+                Object value = ContentStore.valueOf(tuple, content);
+                ContentStore.emit(
+                        value, () -> collector.emit(tuple, new Values(url, value, metadata, "")));
                 collector.ack(tuple);
             }
             return;
@@ -409,13 +427,21 @@ public class JSoupParserBolt extends StatusEmitterBolt {
 
         for (Map.Entry<String, ParseData> doc : parse) {
             ParseData parseDoc = doc.getValue();
-            collector.emit(
-                    tuple,
-                    new Values(
-                            doc.getKey(),
-                            parseDoc.getContent(),
-                            parseDoc.getMetadata(),
-                            parseDoc.getText()));
+            // pass the handle on if the content is unchanged
+            Object value =
+                    parseDoc.getContent() == content
+                            ? ContentStore.valueOf(tuple, content)
+                            : parseDoc.getContent();
+            ContentStore.emit(
+                    value,
+                    () ->
+                            collector.emit(
+                                    tuple,
+                                    new Values(
+                                            doc.getKey(),
+                                            value,
+                                            parseDoc.getMetadata(),
+                                            parseDoc.getText())));
         }
 
         LOG.info("Total for {} - {} msec", url, System.currentTimeMillis() - start);
@@ -490,10 +516,12 @@ public class JSoupParserBolt extends StatusEmitterBolt {
             return new LinkedList<>();
         }
 
+        Metadata outlinksMD = getMetaForOutlinks(sourceUrl, metadata);
+
         for (Map.Entry<String, List<String>> linkEntry : slinks.entrySet()) {
             String targetURL = linkEntry.getKey();
 
-            Outlink ol = filterOutlink(sourceUrl, targetURL, metadata);
+            Outlink ol = filterOutlink(sourceUrl, targetURL, metadata, outlinksMD);
             if (ol == null) {
                 eventCounter.scope("outlink_filtered").incr();
                 continue;
@@ -23,6 +23,7 @@ import com.digitalpebble.stormcrawler.protocol.ProtocolFactory;
 import com.digitalpebble.stormcrawler.protocol.ProtocolResponse;
 import com.digitalpebble.stormcrawler.protocol.RobotRules;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import com.digitalpebble.stormcrawler.util.PerSecondReducer;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
@@ -76,6 +77,8 @@ public class SimpleFetcherBolt extends StatusEmitterBolt {
     private Config conf;
 
     private MultiCountMetric eventCounter;
+
+    private ContentStore contentStore;
     private MultiReducedMetric averagedMetrics;
     private MultiReducedMetric perSecMetrics;
 
@@ -222,6 +225,8 @@ public class SimpleFetcherBolt extends StatusEmitterBolt {
         this.protocolMDprefix =
                 ConfUtils.getString(
                         conf, ProtocolResponse.PROTOCOL_MD_PREFIX_PARAM, protocolMDprefix);
+
+        contentStore = ContentStore.getInstance(stormConf);
     }
 
     @Override
@@ -459,11 +464,11 @@ public class SimpleFetcherBolt extends StatusEmitterBolt {
             // persisted or transferred from previous fetches
             mergedMD.putAll(response.getMetadata(), protocolMDprefix);
 
-            mergedMD.setValue("fetch.statusCode", Integer.toString(response.getStatusCode()));
+            mergedMD.setLong("fetch.statusCode", response.getStatusCode());
 
-            mergedMD.setValue("fetch.loadingTime", Long.toString(timeFetching));
+            mergedMD.setLong("fetch.loadingTime", timeFetching);
 
-            mergedMD.setValue("fetch.byteLength", Integer.toString(byteLength));
+            mergedMD.setLong("fetch.byteLength", byteLength);
 
             // determine the status based on the status code
             final Status status = Status.fromHTTPCode(response.getStatusCode());
@@ -484,10 +489,15 @@ public class SimpleFetcherBolt extends StatusEmitterBolt {
                             input,
                             values4status);
                 } else {
-                    collector.emit(
-                            Utils.DEFAULT_STREAM_ID,
-                            input,
-                            new Values(urlString, response.getContent(), mergedMD));
+                    Object content = contentStore.wrap(response.getContent());
+                    ContentStore.emit(
+                            content,
+                            () ->
+                                    collector.emit(
+                                            Utils.DEFAULT_STREAM_ID,
+                                            input,
+                                            new Values(urlString, content, mergedMD)));
+                    ContentStore.release(content);
                 }
             } else if (status.equals(Status.REDIRECTION)) {
 
@@ -26,6 +26,7 @@ import com.digitalpebble.stormcrawler.persistence.DefaultScheduler;
 import com.digitalpebble.stormcrawler.persistence.Status;
 import com.digitalpebble.stormcrawler.protocol.HttpHeaders;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import com.google.common.primitives.Bytes;
 import crawlercommons.sitemaps.AbstractSiteMap;
 import crawlercommons.sitemaps.Namespace;
@@ -89,10 +90,24 @@ public class SiteMapParserBolt extends StatusEmitterBolt {
 
     @Override
     public void execute(Tuple tuple) {
+        try {
+            parse(tuple);
+        } finally {
+            ContentStore.release(tuple);
+        }
+    }
+
+    private void parse(Tuple tuple) {
         Metadata metadata = (Metadata) tuple.getValueByField("metadata");
-        byte[] content = tuple.getBinaryByField("content");
+        byte[] content = ContentStore.getContent(tuple);
         String url = tuple.getStringByField("url");
 
+        if (content == null) {
+            LOG.error("Content of {} no longer available", url);
+            collector.fail(tuple);
+            return;
+        }
+
         String ct = metadata.getFirstValue(HttpHeaders.CONTENT_TYPE);
 
         LOG.debug("Processing {}", url);
@@ -118,7 +133,9 @@ public class SiteMapParserBolt extends StatusEmitterBolt {
             LOG.debug("Not a sitemap {}", url);
             // just pass it on
             metadata.setValue(isSitemapKey, "false");
-            this.collector.emit(tuple, tuple.getValues());
+            ContentStore.emit(
+                    tuple.getValueByField("content"),
+                    () -> this.collector.emit(tuple, tuple.getValues()));
             this.collector.ack(tuple);
             return;
         }
@@ -192,6 +209,8 @@ public class SiteMapParserBolt extends StatusEmitterBolt {
 
         List<Outlink> links = new ArrayList<>();
 
+        Metadata outlinksMD = getMetaForOutlinks(sURL, parentMetadata);
+
         if (siteMap.isIndex()) {
             SiteMapIndex smi = (SiteMapIndex) siteMap;
             Collection<AbstractSiteMap> subsitemaps = smi.getSitemaps();
@@ -230,6 +249,7 @@ public class SiteMapParserBolt extends StatusEmitterBolt {
                                 sURL,
                                 target,
                                 parentMetadata,
+                                outlinksMD,
                                 isSitemapKey,
                                 "true",
                                 "sitemap.lastModified",
@@ -291,6 +311,7 @@ public class SiteMapParserBolt extends StatusEmitterBolt {
                                 sURL,
                                 target,
                                 parentMetadata,
+                                outlinksMD,
                                 isSitemapKey,
                                 "false",
                                 "sitemap.lastModified",
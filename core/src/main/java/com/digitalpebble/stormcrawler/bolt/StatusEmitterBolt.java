@@ -84,6 +84,29 @@ public abstract class StatusEmitterBolt extends BaseRichBolt {
 
     protected Outlink filterOutlink(
             URL sURL, String newUrl, Metadata sourceMetadata, String... customKeyVals) {
+        return filterOutlink(sURL, newUrl, sourceMetadata, null, customKeyVals);
+    }
+
+    /**
+     * Returns the metadata for all the outlinks of a document, to be passed to {@link
+     * #filterOutlink(URL, String, Metadata, Metadata, String...)} so that they share the same
+     * content until modified.
+     */
+    protected Metadata getMetaForOutlinks(URL sURL, Metadata sourceMetadata) {
+        return metadataTransfer.getMetaForOutlinks(sURL.toExternalForm(), sourceMetadata);
+    }
+
+    /**
+     * @param outlinksMetadata metadata returned by {@link #getMetaForOutlinks(URL, Metadata)} for
+     *     the source document, the outlink gets a copy of them. Computed from the source metadata
+     *     if null.
+     */
+    protected Outlink filterOutlink(
+            URL sURL,
+            String newUrl,
+            Metadata sourceMetadata,
+            Metadata outlinksMetadata,
+            String... customKeyVals) {
         // build an absolute URL
         try {
             URL tmpURL = URLUtil.resolveURL(sURL, newUrl);
@@ -100,8 +123,14 @@ public abstract class StatusEmitterBolt extends BaseRichBolt {
             return null;
         }
 
-        Metadata metadata =
-                metadataTransfer.getMetaForOutlink(newUrl, sURL.toExternalForm(), sourceMetadata);
+        Metadata metadata;
+        if (outlinksMetadata != null) {
+            metadata = outlinksMetadata.copy();
+        } else {
+            metadata =
+                    metadataTransfer.getMetaForOutlink(
+                            newUrl, sURL.toExternalForm(), sourceMetadata);
+        }
 
         for (int i = 0; i < customKeyVals.length; i = i + 2) {
             metadata.addValue(customKeyVals[i], customKeyVals[i + 1]);
@@ -20,7 +20,6 @@ import com.digitalpebble.stormcrawler.util.MetadataTransfer;
 import com.fasterxml.jackson.databind.JsonNode;
 import java.net.URL;
 import java.util.Map;
-import org.apache.commons.lang.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
@@ -76,11 +75,6 @@ public class MaxDepthFilter implements URLFilter {
         if (sourceMetadata == null) {
             return -1;
         }
-        String depth = sourceMetadata.getFirstValue(key);
-        if (StringUtils.isNumeric(depth)) {
-            return Integer.parseInt(depth);
-        } else {
-            return -1;
-        }
+        return sourceMetadata.getInt(key, -1);
     }
 }
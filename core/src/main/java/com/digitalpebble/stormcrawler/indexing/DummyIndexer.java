@@ -16,6 +16,7 @@ package com.digitalpebble.stormcrawler.indexing;
 
 import com.digitalpebble.stormcrawler.Metadata;
 import com.digitalpebble.stormcrawler.persistence.Status;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import java.util.Map;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
@@ -39,6 +40,9 @@ public class DummyIndexer extends AbstractIndexerBolt {
 
     @Override
     public void execute(Tuple tuple) {
+        // the binary content is not indexed
+        ContentStore.release(tuple);
+
         String url = tuple.getStringByField("url");
         Metadata metadata = (Metadata) tuple.getValueByField("metadata");
 
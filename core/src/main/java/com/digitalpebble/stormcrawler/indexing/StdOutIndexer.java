@@ -18,6 +18,7 @@ import static com.digitalpebble.stormcrawler.Constants.StatusStreamName;
 
 import com.digitalpebble.stormcrawler.Metadata;
 import com.digitalpebble.stormcrawler.persistence.Status;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import java.util.Iterator;
 import java.util.Map;
 import org.apache.commons.lang.StringUtils;
@@ -42,6 +43,9 @@ public class StdOutIndexer extends AbstractIndexerBolt {
 
     @Override
     public void execute(Tuple tuple) {
+        // the binary content is not indexed
+        ContentStore.release(tuple);
+
         String url = tuple.getStringByField("url");
 
         // Distinguish the value used for indexing
@@ -78,6 +78,9 @@ public class LinkParseFilter extends XPathFilter {
             return;
         }
 
+        // the same for all the outlinks
+        Metadata outlinksMD = metadataTransfer.getMetaForOutlinks(URL, metadata);
+
         // applies the XPATH expression in the order in which they are produced
         for (List<LabelledExpression> leList : expressions.values()) {
             for (LabelledExpression le : leList) {
@@ -105,8 +108,7 @@ public class LinkParseFilter extends XPathFilter {
                         Outlink ol = new Outlink(target);
 
                         // get the metadata for the outlink from the parent one
-                        Metadata metadataOL =
-                                metadataTransfer.getMetaForOutlink(target, URL, metadata);
+                        Metadata metadataOL = outlinksMD.copy();
 
                         ol.setMetadata(metadataOL);
                         dedup.put(ol.getTargetURL(), ol);
@@ -17,6 +17,8 @@ package com.digitalpebble.stormcrawler.persistence;
 import com.digitalpebble.stormcrawler.persistence.urlbuffer.URLBuffer;
 import com.digitalpebble.stormcrawler.util.CollectionMetric;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.LongHashSet;
+import com.digitalpebble.stormcrawler.util.URLFingerprint;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import java.time.Instant;
@@ -52,6 +54,13 @@ public abstract class AbstractQueryingSpout extends BaseRichSpout {
      * 30 secs.
      */
     protected static final String StatusTTLPurgatory = "spout.ttl.purgatory";
+
+    /**
+     * Whether the URLs being processed and in purgatory should be tracked with 64-bit fingerprints
+     * instead of Strings, which uses a fraction of the memory. Default false.
+     */
+    protected static final String StatusInProcessFingerprintsParamName =
+            "spout.inprocess.fingerprints";
     /**
      * Min time to allow between 2 successive queries to the backend. Value in msecs, default 2000.
      */
@@ -74,6 +83,24 @@ public abstract class AbstractQueryingSpout extends BaseRichSpout {
 
     protected int resetFetchDateAfterNSecs = 120;
 
+    /**
+     * Number of URLs in the buffer under which a new query is sent to the backend, without waiting
+     * for the buffer to be empty. The min delay between queries still applies. Default -1, i.e. the
+     * backend is queried when the buffer is empty.
+     */
+    protected static final String StatusPrefetchLowWatermarkParamName =
+            "spout.prefetch.low.watermark";
+
+    protected int prefetchLowWatermark = -1;
+
+    /**
+     * Max number of tuples emitted per call to nextTuple, default 1. Storm checks
+     * topology.max.spout.pending before calling nextTuple so it can be exceeded by this value.
+     */
+    protected static final String StatusEmitBatchSizeParamName = "spout.emit.batch.size";
+
+    protected int emitBatchSize = 1;
+
     protected Instant lastTimeResetToNOW;
 
     private long timeLastQuerySent = 0;
@@ -105,7 +132,11 @@ public abstract class AbstractQueryingSpout extends BaseRichSpout {
         maxDelayBetweenQueries =
                 ConfUtils.getLong(stormConf, StatusMaxDelayParamName, maxDelayBetweenQueries);
 
-        beingProcessed = new InProcessMap<>(ttlPurgatory, TimeUnit.SECONDS);
+        if (ConfUtils.getBoolean(stormConf, StatusInProcessFingerprintsParamName, false)) {
+            beingProcessed = new FingerprintInProcessMap(ttlPurgatory, TimeUnit.SECONDS);
+        } else {
+            beingProcessed = new InProcessMap<>(ttlPurgatory, TimeUnit.SECONDS);
+        }
 
         eventCounter = context.registerMetric("counters", new MultiCountMetric(), 10);
 
@@ -123,6 +154,12 @@ public abstract class AbstractQueryingSpout extends BaseRichSpout {
         resetFetchDateAfterNSecs =
                 ConfUtils.getInt(stormConf, resetFetchDateParamName, resetFetchDateAfterNSecs);
 
+        prefetchLowWatermark =
+                ConfUtils.getInt(
+                        stormConf, StatusPrefetchLowWatermarkParamName, prefetchLowWatermark);
+
+        emitBatchSize = Math.max(1, ConfUtils.getInt(stormConf, StatusEmitBatchSizeParamName, 1));
+
         _collector = collector;
     }
 
@@ -143,7 +180,7 @@ public abstract class AbstractQueryingSpout extends BaseRichSpout {
     private boolean active;
 
     /** Map which holds elements some additional time after the removal. */
-    public class InProcessMap<K, V> extends HashMap<K, V> {
+    public static class InProcessMap<K, V> extends HashMap<K, V> {
 
         private final Cache<K, Optional<V>> deletionCache;
 
@@ -151,10 +188,15 @@ public abstract class AbstractQueryingSpout extends BaseRichSpout {
             deletionCache = Caffeine.newBuilder().expireAfterWrite(maxDuration, timeUnit).build();
         }
 
+        /** Used by subclasses which handle the removed elements themselves * */
+        protected InProcessMap() {
+            deletionCache = null;
+        }
+
         @Override
         public boolean containsKey(Object key) {
             boolean inCache = super.containsKey(key);
-            if (!inCache) {
+            if (!inCache && deletionCache != null) {
                 inCache = deletionCache.getIfPresent((K) key) != null;
             }
             return inCache;
@@ -162,26 +204,150 @@ public abstract class AbstractQueryingSpout extends BaseRichSpout {
 
         @Override
         public V remove(Object key) {
-            deletionCache.put((K) key, Optional.empty());
+            if (deletionCache != null) {
+                deletionCache.put((K) key, Optional.empty());
+            }
             return super.remove(key);
         }
 
         public long inCache() {
+            if (deletionCache == null) {
+                return 0;
+            }
             return deletionCache.estimatedSize();
         }
     }
 
+    /**
+     * Tracks the URLs with their 64-bit fingerprints in a primitive set. The removed URLs are kept
+     * in a ring of time buckets which get recycled once they are older than the purgatory TTL. Only
+     * non-null values are stored as key values in the map itself e.g. for spouts which need to
+     * retrieve the tuples when they fail.
+     */
+    public static class FingerprintInProcessMap extends InProcessMap<String, Object> {
+
+        private static final int NUM_PURGATORY_BUCKETS = 10;
+
+        private final LongHashSet inProcess = new LongHashSet(1024);
+
+        private final LongHashSet[] purgatory;
+        private final long[] purgatoryEpochs;
+        private final long bucketMillis;
+
+        public FingerprintInProcessMap(long maxDuration, TimeUnit timeUnit) {
+            long ttlMillis = timeUnit.toMillis(maxDuration);
+            if (ttlMillis > 0) {
+                purgatory = new LongHashSet[NUM_PURGATORY_BUCKETS];
+                purgatoryEpochs = new long[NUM_PURGATORY_BUCKETS];
+                for (int i = 0; i < NUM_PURGATORY_BUCKETS; i++) {
+                    purgatory[i] = new LongHashSet();
+                    purgatoryEpochs[i] = -1;
+                }
+                // the oldest bucket is recycled so that the entries are kept for
+                // at least the TTL
+                bucketMillis =
+                        (ttlMillis + NUM_PURGATORY_BUCKETS - 2) / (NUM_PURGATORY_BUCKETS - 1);
+            } else {
+                purgatory = new LongHashSet[0];
+                purgatoryEpochs = new long[0];
+                bucketMillis = 1;
+            }
+        }
+
+        @Override
+        public synchronized Object put(String key, Object value) {
+            inProcess.add(URLFingerprint.hash64(key));
+            if (value != null) {
+                return super.put(key, value);
+            }
+            return null;
+        }
+
+        @Override
+        public synchronized boolean containsKey(Object key) {
+            long fingerprint = URLFingerprint.hash64(key.toString());
+            if (inProcess.contains(fingerprint)) {
+                return true;
+            }
+            long epoch = System.currentTimeMillis() / bucketMillis;
+            for (int i = 0; i < purgatory.length; i++) {
+                if (purgatoryEpochs[i] > epoch - purgatory.length
+                        && purgatory[i].contains(fingerprint)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public synchronized Object remove(Object key) {
+            long fingerprint = URLFingerprint.hash64(key.toString());
+            if (purgatory.length > 0) {
+                long epoch = System.currentTimeMillis() / bucketMillis;
+                int i = (int) (epoch % purgatory.length);
+                if (purgatoryEpochs[i] != epoch) {
+                    purgatory[i].clear();
+                    purgatoryEpochs[i] = epoch;
+                }
+                purgatory[i].add(fingerprint);
+            }
+            inProcess.remove(fingerprint);
+            return super.remove(key);
+        }
+
+        @Override
+        public synchronized int size() {
+            return inProcess.size();
+        }
+
+        @Override
+        public synchronized boolean isEmpty() {
+            return inProcess.isEmpty();
+        }
+
+        @Override
+        public synchronized void clear() {
+            inProcess.clear();
+            super.clear();
+        }
+
+        @Override
+        public synchronized long inCache() {
+            long epoch = System.currentTimeMillis() / bucketMillis;
+            long total = 0;
+            for (int i = 0; i < purgatory.length; i++) {
+                if (purgatoryEpochs[i] > epoch - purgatory.length) {
+                    total += purgatory[i].size();
+                }
+            }
+            return total;
+        }
+    }
+
     @Override
     public void nextTuple() {
         if (!active) return;
 
         // force the refresh of the buffer even if the buffer is not empty
-        if (!isInQuery.get() && triggerQueries()) {
+        if (!isInQuery.get() && (triggerQueries() || prefetchQueries())) {
             populateBuffer();
             timeLastQuerySent = System.currentTimeMillis();
         }
 
-        if (buffer.hasNext()) {
+        int emitted = 0;
+        while (emitted < emitBatchSize && buffer.hasNext()) {
+            List<Object> fields = buffer.next();
+            // some buffers might not be ready to release a URL
+            if (fields == null) {
+                break;
+            }
+            String url = fields.get(0).toString();
+            this._collector.emit(fields, url);
+            beingProcessed.put(url, null);
+            emitted++;
+        }
+
+        if (emitted > 0) {
             // track how long the buffer had been empty for
             if (timestampEmptyBuffer != -1) {
                 eventCounter
@@ -189,17 +355,16 @@ public abstract class AbstractQueryingSpout extends BaseRichSpout {
                         .incrBy(System.currentTimeMillis() - timestampEmptyBuffer);
                 timestampEmptyBuffer = -1;
             }
-            List<Object> fields = buffer.next();
-            String url = fields.get(0).toString();
-            this._collector.emit(fields, url);
-            beingProcessed.put(url, null);
-            eventCounter.scope("emitted").incrBy(1);
+            eventCounter.scope("emitted").incrBy(emitted);
             return;
-        } else if (timestampEmptyBuffer == -1) {
+        }
+
+        boolean bufferEmpty = !buffer.hasNext();
+        if (bufferEmpty && timestampEmptyBuffer == -1) {
             timestampEmptyBuffer = System.currentTimeMillis();
         }
 
-        if (isInQuery.get() || throttleQueries() > 0) {
+        if (!bufferEmpty || isInQuery.get() || throttleQueries() > 0) {
             // sleep for a bit but not too much in order to give ack/fail a
             // chance
             LOG.trace("isInQuery {}", isInQuery);
@@ -213,6 +378,21 @@ public abstract class AbstractQueryingSpout extends BaseRichSpout {
         timeLastQuerySent = System.currentTimeMillis();
     }
 
+    /**
+     * Indicates whether the buffer is running low and a query can be sent without waiting for it to
+     * be empty.
+     */
+    private boolean prefetchQueries() {
+        if (prefetchLowWatermark <= 0 || !buffer.hasNext()) {
+            return false;
+        }
+        if (buffer.size() > prefetchLowWatermark || throttleQueries() > 0) {
+            return false;
+        }
+        eventCounter.scope("prefetch").incrBy(1);
+        return true;
+    }
+
     /**
      * Returns the amount of time to wait if the backend was queried too recently and needs
      * throttling or -1 if the backend can be queried straight away.
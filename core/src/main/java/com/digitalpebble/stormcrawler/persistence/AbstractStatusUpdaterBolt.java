@@ -16,19 +16,30 @@ package com.digitalpebble.stormcrawler.persistence;
 
 import com.digitalpebble.stormcrawler.Constants;
 import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.persistence.seen.SeenURLFilter;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
 import com.digitalpebble.stormcrawler.util.MetadataTransfer;
+import com.digitalpebble.stormcrawler.util.URLFingerprint;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.lang.time.DateUtils;
+import org.apache.storm.Config;
 import org.apache.storm.metric.api.IMetric;
+import org.apache.storm.task.IOutputCollector;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
@@ -36,6 +47,7 @@ import org.apache.storm.topology.base.BaseRichBolt;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.TupleUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -76,6 +88,28 @@ public abstract class AbstractStatusUpdaterBolt extends BaseRichBolt {
     public static final String AS_IS_NEXTFETCHDATE_METADATA =
             "status.store.as.is.with.nextfetchdate";
 
+    /**
+     * Max number of URLs to accumulate before passing them to {@link #storeBatch(List)}. The
+     * updates are stored one by one if lower than 2, which is the default. The batches are flushed
+     * on tick tuples once {@value #batchMaxDelayParamName} has elapsed, which requires a tick
+     * frequency to be set for the bolt, otherwise only when new tuples arrive.
+     */
+    public static final String batchSizeParamName = "status.updater.batch.size";
+
+    /** Max time in msec to accumulate updates before passing them to storeBatch, default 1000. */
+    public static final String batchMaxDelayParamName = "status.updater.batch.max.delay.msec";
+
+    /**
+     * Whether to keep a digest of the persisted fields in the metadata so that the updates which do
+     * not change anything apart from the nextFetchDate and the volatile metadata are passed to
+     * {@link #storeUnchanged(String, Status, Metadata, Optional, boolean, Tuple)}. False by
+     * default.
+     */
+    public static final String digestParamName = "status.updater.digest";
+
+    /** Metadata keys ignored by the digest, lastProcessedDate by default. */
+    public static final String digestVolatileKeysParamName = "status.updater.digest.volatile.keys";
+
     protected OutputCollector _collector;
 
     private Scheduler scheduler;
@@ -89,8 +123,30 @@ public abstract class AbstractStatusUpdaterBolt extends BaseRichBolt {
     private long cacheHits = 0;
     private long cacheMisses = 0;
 
+    /** optional filter used in addition to the cache for DISCOVERED URLs * */
+    private SeenURLFilter seenFilter;
+
+    private long seenFilterHits = 0;
+    private long seenFilterMisses = 0;
+
     private int roundDateUnit = Calendar.SECOND;
 
+    private int batchSize = 1;
+    private long batchMaxDelay = 1000;
+    private long batchStart = -1;
+
+    private boolean useDigest = false;
+    private Set<String> volatileKeys = Collections.emptySet();
+
+    /** updates waiting to be stored, indexed by URL */
+    private final Map<String, StatusUpdate> batch = new LinkedHashMap<>();
+
+    /**
+     * tuples superseded by a later one for the same URL in a batch, acked or failed with the tuple
+     * passed to store
+     */
+    private final Map<Tuple, List<Tuple>> superseded = new ConcurrentHashMap<>();
+
     @Override
     public void prepare(
             Map<String, Object> stormConf, TopologyContext context, OutputCollector collector) {
@@ -123,6 +179,29 @@ public abstract class AbstractStatusUpdaterBolt extends BaseRichBolt {
                     30);
         }
 
+        seenFilter =
+                SeenURLFilter.createInstance(
+                        stormConf, context.getThisComponentId() + "-" + context.getThisTaskIndex());
+
+        if (seenFilter != null) {
+            context.registerMetric(
+                    "seen_filter",
+                    new IMetric() {
+                        @Override
+                        public Object getValueAndReset() {
+                            Map<String, Object> statsMap = new HashMap<>();
+                            statsMap.put("hits", seenFilterHits);
+                            statsMap.put("misses", seenFilterMisses);
+                            statsMap.put("size", seenFilter.size());
+                            statsMap.put("saturation", seenFilter.saturation());
+                            seenFilterHits = 0;
+                            seenFilterMisses = 0;
+                            return statsMap;
+                        }
+                    },
+                    30);
+        }
+
         maxFetchErrors = ConfUtils.getInt(stormConf, maxFetchErrorsParamName, 3);
 
         String tmpdateround = ConfUtils.getString(stormConf, roundDateParamName, "SECOND");
@@ -131,11 +210,40 @@ public abstract class AbstractStatusUpdaterBolt extends BaseRichBolt {
         } else if (tmpdateround.equalsIgnoreCase("HOUR")) {
             roundDateUnit = Calendar.HOUR;
         }
+
+        batchSize = ConfUtils.getInt(stormConf, batchSizeParamName, 1);
+        batchMaxDelay = ConfUtils.getLong(stormConf, batchMaxDelayParamName, 1000L);
+        if (batchSize > 1) {
+            _collector = new SupersedingCollector(collector);
+            if (ConfUtils.getInt(stormConf, Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, 0) <= 0) {
+                LOG.warn(
+                        "No tick tuples for {}, incomplete batches will be stored when new tuples"
+                                + " arrive only",
+                        context.getThisComponentId());
+            }
+        }
+
+        useDigest = ConfUtils.getBoolean(stormConf, digestParamName, false);
+        if (useDigest) {
+            List<String> keys = ConfUtils.loadListFromConf(digestVolatileKeysParamName, stormConf);
+            if (keys.isEmpty()) {
+                keys = Collections.singletonList("lastProcessedDate");
+            }
+            volatileKeys = new HashSet<>(keys);
+        }
     }
 
     @Override
     public void execute(Tuple tuple) {
 
+        if (TupleUtils.isTick(tuple)) {
+            if (!batch.isEmpty() && System.currentTimeMillis() - batchStart >= batchMaxDelay) {
+                flushBatch();
+            }
+            _collector.ack(tuple);
+            return;
+        }
+
         String url = tuple.getStringByField("url");
         Status status = (Status) tuple.getValueByField("status");
 
@@ -158,6 +266,18 @@ public abstract class AbstractStatusUpdaterBolt extends BaseRichBolt {
             }
         }
 
+        // same with the seen filter, which can hold a lot more URLs
+        // than the cache at the expense of some false positives
+        if (potentiallyNew && seenFilter != null) {
+            if (seenFilter.mightContain(url)) {
+                LOG.debug("URL {} already in seen filter", url);
+                seenFilterHits++;
+                _collector.ack(tuple);
+                return;
+            }
+            seenFilterMisses++;
+        }
+
         Metadata metadata = (Metadata) tuple.getValueByField("metadata");
 
         // store directly with the date specified in the metadata without
@@ -165,14 +285,8 @@ public abstract class AbstractStatusUpdaterBolt extends BaseRichBolt {
         String dateInMetadata = metadata.getFirstValue(AS_IS_NEXTFETCHDATE_METADATA);
         if (dateInMetadata != null) {
             Date nextFetch = Date.from(Instant.parse(dateInMetadata));
-            try {
-                store(url, status, mdTransfer.filter(metadata), Optional.of(nextFetch), tuple);
-                return;
-            } catch (Exception e) {
-                LOG.error("Exception caught when storing", e);
-                _collector.fail(tuple);
-                return;
-            }
+            storeOrBatch(url, status, mdTransfer.filter(metadata), Optional.of(nextFetch), tuple);
+            return;
         }
 
         // store last processed or discovery date in UTC
@@ -185,18 +299,13 @@ public abstract class AbstractStatusUpdaterBolt extends BaseRichBolt {
 
         // too many fetch errors?
         if (status.equals(Status.FETCH_ERROR)) {
-            String errorCount = metadata.getFirstValue(Constants.fetchErrorCountParamName);
-            int count = 0;
-            try {
-                count = Integer.parseInt(errorCount);
-            } catch (NumberFormatException e) {
-            }
+            int count = metadata.getInt(Constants.fetchErrorCountParamName, 0);
             count++;
             if (count >= maxFetchErrors) {
                 status = Status.ERROR;
                 metadata.setValue(Constants.STATUS_ERROR_CAUSE, "maxFetchErrors");
             } else {
-                metadata.setValue(Constants.fetchErrorCountParamName, Integer.toString(count));
+                metadata.setLong(Constants.fetchErrorCountParamName, count);
             }
         }
 
@@ -218,7 +327,7 @@ public abstract class AbstractStatusUpdaterBolt extends BaseRichBolt {
         }
 
         // determine the value of the next fetch based on the status
-        Optional<Date> nextFetch = scheduler.schedule(status, metadata);
+        Optional<Date> nextFetch = scheduler.schedule(url, status, metadata);
 
         // filter metadata just before storing it, so that non-persisted
         // metadata is available to fetch schedulers
@@ -229,13 +338,99 @@ public abstract class AbstractStatusUpdaterBolt extends BaseRichBolt {
             nextFetch = Optional.of(DateUtils.round(nextFetch.get(), this.roundDateUnit));
         }
 
+        if (useDigest && !status.equals(Status.DISCOVERED)) {
+            String previous = metadata.getFirstValue(Constants.STATUS_DIGEST_KEY);
+            String content = contentDigest(status, metadata);
+            String current =
+                    content
+                            + ":"
+                            + nextFetch.map(d -> Long.toHexString(d.getTime())).orElse("never");
+            metadata.setValue(Constants.STATUS_DIGEST_KEY, current);
+            // same content as what was stored before, unless an update
+            // for the URL is already in the batch
+            if (previous != null && previous.startsWith(content + ":") && !batch.containsKey(url)) {
+                LOG.debug("Status of {} unchanged", url);
+                try {
+                    storeUnchanged(
+                            url, status, metadata, nextFetch, !previous.equals(current), tuple);
+                } catch (Exception e) {
+                    LOG.error("Exception caught when storing", e);
+                    _collector.fail(tuple);
+                }
+                return;
+            }
+        }
+
+        storeOrBatch(url, status, metadata, nextFetch, tuple);
+    }
+
+    /**
+     * Returns a digest of the status and the persisted metadata, excluding the volatile keys and
+     * the digest itself.
+     */
+    private String contentDigest(Status status, Metadata metadata) {
+        List<String> keys = new ArrayList<>(metadata.keySet());
+        Collections.sort(keys);
+        StringBuilder sb = new StringBuilder(status.name());
+        for (String key : keys) {
+            if (volatileKeys.contains(key) || key.equals(Constants.STATUS_DIGEST_KEY)) {
+                continue;
+            }
+            sb.append('\n').append(key);
+            for (String value : metadata.getValues(key)) {
+                sb.append('\t').append(value);
+            }
+        }
+        return Long.toHexString(URLFingerprint.hash64(sb));
+    }
+
+    /** Metadata keys which are ignored by the digest */
+    protected Set<String> getVolatileKeys() {
+        return volatileKeys;
+    }
+
+    private void storeOrBatch(
+            String url, Status status, Metadata metadata, Optional<Date> nextFetch, Tuple tuple) {
         // extensions of this class will handle the storage
         // on a per document basis
+        if (batchSize < 2) {
+            try {
+                store(url, status, metadata, nextFetch, tuple);
+            } catch (Exception e) {
+                LOG.error("Exception caught when storing", e);
+                _collector.fail(tuple);
+            }
+            return;
+        }
+
+        if (batch.isEmpty()) {
+            batchStart = System.currentTimeMillis();
+        }
+        StatusUpdate update = new StatusUpdate(url, status, metadata, nextFetch, tuple);
+        StatusUpdate existing = batch.putIfAbsent(url, update);
+        if (existing != null) {
+            LOG.debug("Merging update for {} in batch", url);
+            existing.merge(update);
+        }
+        if (batch.size() >= batchSize || System.currentTimeMillis() - batchStart >= batchMaxDelay) {
+            flushBatch();
+        }
+    }
+
+    private void flushBatch() {
+        List<StatusUpdate> updates = new ArrayList<>(batch.values());
+        batch.clear();
         try {
-            store(url, status, metadata, nextFetch, tuple);
+            storeBatch(updates);
         } catch (Exception e) {
-            LOG.error("Exception caught when storing", e);
-            _collector.fail(tuple);
+            LOG.error("Exception caught when storing batch", e);
+            for (StatusUpdate u : updates) {
+                List<Tuple> tuples = u.getTuples();
+                superseded.remove(tuples.get(tuples.size() - 1));
+                for (Tuple t : tuples) {
+                    _collector.fail(t);
+                }
+            }
         }
     }
 
@@ -245,14 +440,103 @@ public abstract class AbstractStatusUpdaterBolt extends BaseRichBolt {
         if (useCache) {
             cache.put(url, "");
         }
+        if (seenFilter != null) {
+            seenFilter.put(url);
+        }
 
         _collector.ack(t);
     }
 
+    /** Acks all the tuples of an update, to be called by implementations of storeBatch */
+    protected final void ack(StatusUpdate update) {
+        for (Tuple t : update.getTuples()) {
+            ack(t, update.getUrl());
+        }
+    }
+
     protected abstract void store(
             String url, Status status, Metadata metadata, Optional<Date> nextFetch, Tuple t)
             throws Exception;
 
+    /**
+     * Called instead of {@link #store(String, Status, Metadata, Optional, Tuple)} when {@value
+     * #digestParamName} is set and the digest shows that the status and metadata are the same as
+     * what is already stored, apart from the volatile keys. Implementations can update only the
+     * nextFetchDate and the digest or skip the write entirely if the nextFetchDate has not changed
+     * either. The default implementation calls store.
+     *
+     * @param nextFetchChanged whether the nextFetchDate differs from the stored one
+     */
+    protected void storeUnchanged(
+            String url,
+            Status status,
+            Metadata metadata,
+            Optional<Date> nextFetch,
+            boolean nextFetchChanged,
+            Tuple t)
+            throws Exception {
+        store(url, status, metadata, nextFetch, t);
+    }
+
+    /**
+     * Stores a batch of updates, called instead of {@link #store(String, Status, Metadata,
+     * Optional, Tuple)} when {@value #batchSizeParamName} is greater than 1. There is at most one
+     * update per URL in a batch. Implementations must ack or fail all the tuples of the updates;
+     * the whole batch is failed if an exception is thrown.
+     *
+     * <p>The default implementation calls store for each update with the last tuple received for
+     * its URL. The previous ones, which have been superseded, are acked or failed with it. Only the
+     * tuples of an update are failed if store throws an exception.
+     */
+    protected void storeBatch(List<StatusUpdate> updates) throws Exception {
+        for (StatusUpdate u : updates) {
+            List<Tuple> tuples = u.getTuples();
+            Tuple last = tuples.get(tuples.size() - 1);
+            if (tuples.size() > 1) {
+                superseded.put(last, new ArrayList<>(tuples.subList(0, tuples.size() - 1)));
+            }
+            try {
+                store(u.getUrl(), u.getStatus(), u.getMetadata(), u.getNextFetch(), last);
+            } catch (Exception e) {
+                LOG.error("Exception caught when storing {}", u.getUrl(), e);
+                _collector.fail(last);
+            }
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        if (seenFilter != null) {
+            seenFilter.close();
+        }
+    }
+
+    /** Acks or fails the tuples superseded by the one passed to store together with it */
+    private class SupersedingCollector extends OutputCollector {
+
+        private SupersedingCollector(IOutputCollector delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void ack(Tuple input) {
+            super.ack(input);
+            List<Tuple> previous = superseded.remove(input);
+            if (previous != null) {
+                previous.forEach(super::ack);
+            }
+        }
+
+        @Override
+        public void fail(Tuple input) {
+            super.fail(input);
+            List<Tuple> previous = superseded.remove(input);
+            if (previous != null) {
+                previous.forEach(super::fail);
+            }
+        }
+    }
+
     @Override
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
         declarer.declareStream(Constants.DELETION_STREAM_NAME, new Fields("url", "metadata"));
@@ -19,6 +19,10 @@ import com.digitalpebble.stormcrawler.Metadata;
 import com.digitalpebble.stormcrawler.parse.filter.MD5SignatureParseFilter;
 import com.digitalpebble.stormcrawler.protocol.HttpHeaders;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.time.Duration;
 import java.util.Calendar;
 import java.util.Date;
@@ -107,6 +111,25 @@ import org.slf4j.LoggerFactory;
  *   }
  * </pre>
  *       The order is mandatory: first copy the old signature, than generate the current one.
+ *       <h2>Learning per host</h2>
+ *       <p>If <code>scheduler.adaptive.host.learning</code> is true, the scheduler also keeps for
+ *       each host an estimate of how often its pages change, updated with every signature
+ *       comparison. Once enough pages of a host have been compared, the estimate is used as the
+ *       initial fetch interval of its new pages and the interval of each page is kept within <code>
+ *       scheduler.adaptive.host.boundFactor</code> of it. The estimates are kept in memory and not
+ *       persisted.
+ *       <pre>
+ * scheduler.adaptive.host.learning: true
+ * # max. number of hosts to keep an estimate for
+ * scheduler.adaptive.host.maxEntries: 100000
+ * # weight of a new comparison in the estimate (0.0 &lt; decay &lt;= 1.0)
+ * scheduler.adaptive.host.decay: .05
+ * # min. number of comparisons before the estimate is used
+ * scheduler.adaptive.host.minSamples: 5
+ * # the interval of a page stays between estimate / factor and estimate * factor,
+ * # not bounded if lower than or equal to 1
+ * scheduler.adaptive.host.boundFactor: 4
+ * </pre>
  */
 public class AdaptiveScheduler extends DefaultScheduler {
 
@@ -162,6 +185,27 @@ public class AdaptiveScheduler extends DefaultScheduler {
      */
     public static final String SIGNATURE_MODIFIED_KEY = "signatureChangeDate";
 
+    /** Configuration property (boolean) whether to learn the rate of change per host. */
+    public static final String HOST_LEARNING = "scheduler.adaptive.host.learning";
+
+    /** Configuration property (int) max. number of hosts to keep an estimate for. */
+    public static final String HOST_MAX_ENTRIES = "scheduler.adaptive.host.maxEntries";
+
+    /** Configuration property (float) weight of a new signature comparison in the estimate. */
+    public static final String HOST_DECAY = "scheduler.adaptive.host.decay";
+
+    /**
+     * Configuration property (int) min. number of signature comparisons for a host before its
+     * estimate is used.
+     */
+    public static final String HOST_MIN_SAMPLES = "scheduler.adaptive.host.minSamples";
+
+    /**
+     * Configuration property (float) factor by which the fetch interval of a page can differ from
+     * the estimate of its host.
+     */
+    public static final String HOST_BOUND_FACTOR = "scheduler.adaptive.host.boundFactor";
+
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(AdaptiveScheduler.class);
 
     protected int defaultfetchInterval;
@@ -173,6 +217,13 @@ public class AdaptiveScheduler extends DefaultScheduler {
     protected boolean setLastModified = false;
     protected boolean overwriteLastModified = false;
 
+    /** estimates of the rate of change per host, null if not learning per host */
+    protected Cache<String, HostChangeRate> hostChangeRates;
+
+    protected float hostDecay = .05f;
+    protected int hostMinSamples = 5;
+    protected float hostBoundFactor = 4f;
+
     @Override
     public void init(Map<String, Object> stormConf) {
         defaultfetchInterval =
@@ -184,11 +235,38 @@ public class AdaptiveScheduler extends DefaultScheduler {
                 ConfUtils.getFloat(stormConf, INTERVAL_DEC_RATE, fetchIntervalDecRate);
         fetchIntervalIncRate =
                 ConfUtils.getFloat(stormConf, INTERVAL_INC_RATE, fetchIntervalIncRate);
+        if (ConfUtils.getBoolean(stormConf, HOST_LEARNING, false)) {
+            hostChangeRates =
+                    Caffeine.newBuilder()
+                            .maximumSize(ConfUtils.getInt(stormConf, HOST_MAX_ENTRIES, 100000))
+                            .build();
+            hostDecay = ConfUtils.getFloat(stormConf, HOST_DECAY, hostDecay);
+            hostMinSamples = ConfUtils.getInt(stormConf, HOST_MIN_SAMPLES, hostMinSamples);
+            hostBoundFactor = ConfUtils.getFloat(stormConf, HOST_BOUND_FACTOR, hostBoundFactor);
+        }
         super.init(stormConf);
     }
 
+    @Override
+    public Optional<Date> schedule(String url, Status status, Metadata metadata) {
+        HostChangeRate hostRate = null;
+        if (hostChangeRates != null && status == Status.FETCHED) {
+            try {
+                String host = new URL(url).getHost();
+                hostRate = hostChangeRates.get(host, h -> new HostChangeRate());
+            } catch (MalformedURLException e) {
+                LOG.debug("Can't get host for {}", url);
+            }
+        }
+        return schedule(status, metadata, hostRate);
+    }
+
     @Override
     public Optional<Date> schedule(Status status, Metadata metadata) {
+        return schedule(status, metadata, null);
+    }
+
+    private Optional<Date> schedule(Status status, Metadata metadata, HostChangeRate hostRate) {
         LOG.debug("Scheduling status: {}, metadata: {}", status, metadata);
 
         String signature = metadata.getFirstValue(SIGNATURE_KEY);
@@ -223,7 +301,7 @@ public class AdaptiveScheduler extends DefaultScheduler {
 
         final String modifiedTimeString = now.toInstant().toString();
 
-        if (metadata.getFirstValue("fetch.statusCode").equals("304")) {
+        if (metadata.getInt("fetch.statusCode", -1) == 304) {
             // HTTP 304 Not Modified
             // - no new signature calculated because no content fetched
             // - do not compare persisted signatures
@@ -239,11 +317,21 @@ public class AdaptiveScheduler extends DefaultScheduler {
                 // set last-modified time for first fetch
                 metadata.setValue(HttpHeaders.LAST_MODIFIED, modifiedTimeString);
             }
-            Optional<Date> nextFetch = super.schedule(status, metadata);
+            Optional<Integer> hostInterval = getHostInterval(hostRate);
+            Optional<Date> nextFetch;
+            if (hostInterval.isPresent()
+                    && !super.checkCustomInterval(metadata, status).isPresent()) {
+                // use the estimate for the host rather than the default interval
+                Calendar next = (Calendar) now.clone();
+                next.add(Calendar.MINUTE, hostInterval.get());
+                nextFetch = Optional.of(next.getTime());
+            } else {
+                nextFetch = super.schedule(status, metadata);
+            }
             if (nextFetch.isPresent()) {
                 long fetchIntervalMinutes =
                         Duration.between(now.toInstant(), nextFetch.get().toInstant()).toMinutes();
-                metadata.setValue(FETCH_INTERVAL_KEY, Long.toString(fetchIntervalMinutes));
+                metadata.setLong(FETCH_INTERVAL_KEY, fetchIntervalMinutes);
             }
             return nextFetch;
         } else if (signature.equals(oldSignature)) {
@@ -257,21 +345,22 @@ public class AdaptiveScheduler extends DefaultScheduler {
             }
         }
 
-        String fetchInterval = metadata.getFirstValue(FETCH_INTERVAL_KEY);
-        int interval;
-        if (fetchInterval != null) {
-            interval = Integer.parseInt(fetchInterval);
-        } else {
+        int interval = metadata.getInt(FETCH_INTERVAL_KEY, -1);
+        if (interval < 0) {
             // initialize from DefaultScheduler
             Optional<Integer> customInterval = super.checkCustomInterval(metadata, status);
+            Optional<Integer> hostInterval = getHostInterval(hostRate);
             if (customInterval.isPresent()) {
                 interval = customInterval.get();
+            } else if (hostInterval.isPresent()) {
+                interval = hostInterval.get();
             } else {
                 interval = defaultfetchInterval;
             }
-            fetchInterval = Integer.toString(interval);
         }
 
+        final int previousInterval = interval;
+
         if (changed) {
             // shrink fetch interval (slow down decrementing if already close to
             // the minimum interval)
@@ -281,7 +370,7 @@ public class AdaptiveScheduler extends DefaultScheduler {
                                     + fetchIntervalDecRate * minFetchInterval);
             LOG.debug(
                     "Signature has changed, fetchInterval decreased from {} to {}",
-                    fetchInterval,
+                    previousInterval,
                     interval);
 
         } else {
@@ -290,7 +379,8 @@ public class AdaptiveScheduler extends DefaultScheduler {
             if (interval > maxFetchInterval) {
                 interval = maxFetchInterval;
             }
-            LOG.debug("Unchanged, fetchInterval increased from {} to {}", fetchInterval, interval);
+            LOG.debug(
+                    "Unchanged, fetchInterval increased from {} to {}", previousInterval, interval);
             // remove old signature (do not keep same signature twice)
             metadata.remove(SIGNATURE_OLD_KEY);
             if (signatureModified == null) {
@@ -298,11 +388,67 @@ public class AdaptiveScheduler extends DefaultScheduler {
             }
         }
 
-        metadata.setValue(FETCH_INTERVAL_KEY, Integer.toString(interval));
+        if (hostRate != null) {
+            // the page could have changed at any time since the previous fetch
+            hostRate.update(changed, previousInterval, hostDecay);
+            Optional<Integer> hostInterval = getHostInterval(hostRate);
+            if (hostInterval.isPresent() && hostBoundFactor > 1) {
+                int lower =
+                        Math.max(minFetchInterval, (int) (hostInterval.get() / hostBoundFactor));
+                int upper =
+                        Math.min(maxFetchInterval, (int) (hostInterval.get() * hostBoundFactor));
+                interval = Math.max(lower, Math.min(upper, interval));
+            }
+        }
+
+        metadata.setLong(FETCH_INTERVAL_KEY, interval);
         metadata.setValue(SIGNATURE_MODIFIED_KEY, signatureModified);
 
         now.add(Calendar.MINUTE, interval);
 
         return Optional.of(now.getTime());
     }
+
+    /**
+     * Returns the fetch interval estimated for a host, empty if not enough of its pages have been
+     * compared yet.
+     */
+    private Optional<Integer> getHostInterval(HostChangeRate hostRate) {
+        if (hostRate == null) {
+            return Optional.empty();
+        }
+        return hostRate.estimateInterval(hostMinSamples, minFetchInterval, maxFetchInterval);
+    }
+
+    /**
+     * Rate of change of the pages of a host, as the ratio of the exponentially weighted averages of
+     * the number of changes detected and of the time elapsed between fetches.
+     */
+    protected static final class HostChangeRate {
+
+        private float changes;
+        private float minutes;
+        private int samples;
+
+        synchronized void update(boolean changed, int interval, float decay) {
+            float weight = samples == 0 ? 1f : decay;
+            changes += weight * ((changed ? 1f : 0f) - changes);
+            minutes += weight * (interval - minutes);
+            if (samples < Integer.MAX_VALUE) {
+                samples++;
+            }
+        }
+
+        /** Average time between changes in minutes, bounded by min and max */
+        synchronized Optional<Integer> estimateInterval(int minSamples, int min, int max) {
+            if (samples < minSamples) {
+                return Optional.empty();
+            }
+            if (changes <= 0f) {
+                return Optional.of(max);
+            }
+            float interval = minutes / changes;
+            return Optional.of((int) Math.max(min, Math.min(max, interval)));
+        }
+    }
 }
@@ -0,0 +1,203 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence;
+
+import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.InitialisationUtil;
+import com.digitalpebble.stormcrawler.util.URLFingerprint;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Date;
+import java.util.Map;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decorates another scheduler and delays the next fetch dates it returns by a value derived from
+ * the hash of the URL, so that URLs discovered or fetched at the same time do not all become due at
+ * the same time. The delay is at most a fraction of the fetch interval, see {@value
+ * #JITTER_RATIO_PARAM}, and is bounded by {@value #JITTER_MAX_PARAM}.
+ *
+ * <p>If {@value #HISTOGRAM_PARAM} is true, the scheduler also counts for each host how many URLs it
+ * has scheduled in each slot of time and picks the least used slot within the possible delay. This
+ * works best if the URLs of a host are always sent to the same instance of the status updater. Note
+ * that the dates are rounded by the status updater afterwards, see status.updater.unit.round.date.
+ *
+ * <pre>
+ * scheduler.class: "com.digitalpebble.stormcrawler.persistence.LoadLevelingScheduler"
+ * scheduler.leveling.delegate.class: "com.digitalpebble.stormcrawler.persistence.DefaultScheduler"
+ * scheduler.leveling.jitter.ratio: 0.1
+ * scheduler.leveling.jitter.max.mins: 120
+ * scheduler.leveling.histogram: false
+ * scheduler.leveling.slot.mins: 30
+ * scheduler.leveling.horizon.mins: 2880
+ * scheduler.leveling.max.hosts: 10000
+ * </pre>
+ */
+public class LoadLevelingScheduler extends Scheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadLevelingScheduler.class);
+
+    /** Class of the scheduler to decorate, defaults to the DefaultScheduler */
+    public static final String DELEGATE_PARAM = "scheduler.leveling.delegate.class";
+
+    /** Max delay as a ratio of the fetch interval, default 0.1 */
+    public static final String JITTER_RATIO_PARAM = "scheduler.leveling.jitter.ratio";
+
+    /** Max delay in minutes, default 120 */
+    public static final String JITTER_MAX_PARAM = "scheduler.leveling.jitter.max.mins";
+
+    /** Whether to pick the least used slot of time per host, default false */
+    public static final String HISTOGRAM_PARAM = "scheduler.leveling.histogram";
+
+    /** Duration of a slot of time in minutes, default 30 */
+    public static final String SLOT_PARAM = "scheduler.leveling.slot.mins";
+
+    /** How far in the future slots are tracked in minutes, default 2880 */
+    public static final String HORIZON_PARAM = "scheduler.leveling.horizon.mins";
+
+    /** Max number of hosts to track the slots for, default 10000 */
+    public static final String MAX_HOSTS_PARAM = "scheduler.leveling.max.hosts";
+
+    private Scheduler delegate;
+
+    private float jitterRatio;
+    private long maxJitterMsec;
+
+    private long slotMsec;
+    private int numSlots;
+
+    private Cache<String, SlotHistogram> histograms;
+
+    @Override
+    protected void init(Map<String, Object> stormConf) {
+        String className =
+                ConfUtils.getString(stormConf, DELEGATE_PARAM, DefaultScheduler.class.getName());
+        try {
+            delegate = InitialisationUtil.initializeFromQualifiedName(className, Scheduler.class);
+        } catch (Exception e) {
+            throw new RuntimeException("Can't instanciate " + className, e);
+        }
+        delegate.init(stormConf);
+
+        jitterRatio = ConfUtils.getFloat(stormConf, JITTER_RATIO_PARAM, 0.1f);
+        maxJitterMsec = ConfUtils.getLong(stormConf, JITTER_MAX_PARAM, 120) * 60_000L;
+
+        if (ConfUtils.getBoolean(stormConf, HISTOGRAM_PARAM, false)) {
+            slotMsec = ConfUtils.getInt(stormConf, SLOT_PARAM, 30) * 60_000L;
+            long horizon = ConfUtils.getInt(stormConf, HORIZON_PARAM, 2880) * 60_000L;
+            numSlots = (int) Math.max(1, (horizon + slotMsec - 1) / slotMsec);
+            histograms =
+                    Caffeine.newBuilder()
+                            .maximumSize(ConfUtils.getInt(stormConf, MAX_HOSTS_PARAM, 10000))
+                            .build();
+        }
+    }
+
+    @Override
+    public Optional<Date> schedule(Status status, Metadata metadata) {
+        // nothing to derive the delay from
+        return delegate.schedule(status, metadata);
+    }
+
+    @Override
+    public Optional<Date> schedule(String url, Status status, Metadata metadata) {
+        Optional<Date> nextFetch = delegate.schedule(url, status, metadata);
+        if (!nextFetch.isPresent()) {
+            return nextFetch;
+        }
+        long now = System.currentTimeMillis();
+        long next = nextFetch.get().getTime();
+        long window = Math.min((long) ((next - now) * jitterRatio), maxJitterMsec);
+        if (window <= 0) {
+            return nextFetch;
+        }
+
+        long hash = URLFingerprint.hash64(url);
+        // uniformly distributed in [0,1)
+        double fraction = (hash >>> 11) * 0x1.0p-53;
+
+        if (histograms != null) {
+            SlotHistogram histogram = null;
+            try {
+                String host = new URL(url).getHost();
+                histogram = histograms.get(host, h -> new SlotHistogram(numSlots));
+            } catch (MalformedURLException e) {
+                LOG.debug("Can't get host for {}", url);
+            }
+            if (histogram != null) {
+                long leveled = histogram.place(now, next, window, hash, fraction, slotMsec);
+                if (leveled >= 0) {
+                    return Optional.of(new Date(leveled));
+                }
+            }
+        }
+
+        return Optional.of(new Date(next + (long) (fraction * window)));
+    }
+
+    /** Number of URLs scheduled per slot of time, for the slots up to the horizon */
+    static final class SlotHistogram {
+
+        private final long[] slotIds;
+        private final int[] counts;
+
+        SlotHistogram(int numSlots) {
+            slotIds = new long[numSlots];
+            counts = new int[numSlots];
+        }
+
+        /**
+         * Returns a date within the least used slot between next and next + window, -1 if the slots
+         * are beyond the horizon.
+         */
+        synchronized long place(
+                long now, long next, long window, long hash, double fraction, long slotMsec) {
+            long first = next / slotMsec;
+            long last = (next + window) / slotMsec;
+            if (last - now / slotMsec >= slotIds.length) {
+                return -1;
+            }
+            int candidates = (int) (last - first + 1);
+            // start from a slot derived from the hash so that ties are spread
+            int start = (int) Long.remainderUnsigned(URLFingerprint.rehash(hash), candidates);
+            long best = -1;
+            int bestCount = Integer.MAX_VALUE;
+            for (int i = 0; i < candidates; i++) {
+                long slot = first + (start + i) % candidates;
+                int count = count(slot);
+                if (count < bestCount) {
+                    best = slot;
+                    bestCount = count;
+                }
+            }
+            int pos = (int) (best % slotIds.length);
+            slotIds[pos] = best;
+            counts[pos] = bestCount + 1;
+            long date = best * slotMsec + (long) (fraction * slotMsec);
+            return Math.max(next, Math.min(next + window, date));
+        }
+
+        private int count(long slot) {
+            int pos = (int) (slot % slotIds.length);
+            // the position was used for a slot which has passed
+            return slotIds[pos] == slot ? counts[pos] : 0;
+        }
+    }
+}
@@ -38,6 +38,14 @@ public abstract class Scheduler {
      */
     public abstract Optional<Date> schedule(Status status, Metadata metadata);
 
+    /**
+     * Same as {@link #schedule(Status, Metadata)} for schedulers which also need the URL, e.g. to
+     * learn from the other URLs of the same host. Delegates to it by default.
+     */
+    public Optional<Date> schedule(String url, Status status, Metadata metadata) {
+        return schedule(status, metadata);
+    }
+
     /** Returns a Scheduler instance based on the configuration * */
     public static Scheduler getInstance(Map<String, Object> stormConf) {
         Scheduler scheduler;
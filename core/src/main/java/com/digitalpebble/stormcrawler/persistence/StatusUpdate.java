@@ -0,0 +1,79 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence;
+
+import com.digitalpebble.stormcrawler.Metadata;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import org.apache.storm.tuple.Tuple;
+
+/**
+ * Update of the status of a URL as passed to {@link AbstractStatusUpdaterBolt#storeBatch(List)}.
+ * Holds all the tuples which were received for the URL while the batch was being built, only the
+ * values of the last one are kept.
+ */
+public class StatusUpdate {
+
+    private final String url;
+    private Status status;
+    private Metadata metadata;
+    private Optional<Date> nextFetch;
+    private final List<Tuple> tuples = new ArrayList<>(1);
+
+    public StatusUpdate(
+            String url, Status status, Metadata metadata, Optional<Date> nextFetch, Tuple t) {
+        this.url = url;
+        this.status = status;
+        this.metadata = metadata;
+        this.nextFetch = nextFetch;
+        this.tuples.add(t);
+    }
+
+    /**
+     * Merges a more recent update for the same URL into this one. A DISCOVERED status does not
+     * override a previous one as the URL is already known.
+     */
+    void merge(StatusUpdate newer) {
+        if (newer.status != Status.DISCOVERED || status == Status.DISCOVERED) {
+            status = newer.status;
+            metadata = newer.metadata;
+            nextFetch = newer.nextFetch;
+        }
+        tuples.addAll(newer.tuples);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Metadata getMetadata() {
+        return metadata;
+    }
+
+    public Optional<Date> getNextFetch() {
+        return nextFetch;
+    }
+
+    /** Tuples to ack or fail once the update has been stored, in the order they were received */
+    public List<Tuple> getTuples() {
+        return tuples;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence.embedded;
+
+import com.digitalpebble.stormcrawler.persistence.AbstractQueryingSpout;
+import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.PartitionHashing;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import org.apache.storm.spout.SpoutOutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spout reading the URLs due for fetching from the {@link EmbeddedStatusStore}. If there is more
+ * than one instance of the spout, each of them is in charge of a subset of the partitions. Must run
+ * in the same worker as the {@link EmbeddedStatusUpdaterBolt}.
+ */
+public class EmbeddedSpout extends AbstractQueryingSpout {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedSpout.class);
+
+    /** Max number of partitions to get URLs from in a query, default 10. */
+    public static final String MAX_BUCKETS_PARAM = "embedded.status.max.buckets";
+
+    /** Max number of URLs per partition returned by a query, default 10. */
+    public static final String MAX_URLS_PER_BUCKET_PARAM = "embedded.status.max.urls.per.bucket";
+
+    private EmbeddedStatusStore store;
+
+    private int maxBuckets;
+    private int maxURLsPerBucket;
+
+    private int taskIndex = 0;
+    private int totalTasks = 1;
+    private PartitionHashing hashing;
+
+    @Override
+    public void open(
+            Map<String, Object> conf, TopologyContext context, SpoutOutputCollector collector) {
+        super.open(conf, context, collector);
+        maxBuckets = ConfUtils.getInt(conf, MAX_BUCKETS_PARAM, 10);
+        maxURLsPerBucket = ConfUtils.getInt(conf, MAX_URLS_PER_BUCKET_PARAM, 10);
+        taskIndex = context.getThisTaskIndex();
+        totalTasks = context.getComponentTasks(context.getThisComponentId()).size();
+        hashing = PartitionHashing.fromConf(conf);
+        store = EmbeddedStatusStore.acquire(conf);
+    }
+
+    @Override
+    protected void populateBuffer() {
+        long start = System.currentTimeMillis();
+        int alreadyprocessed = 0;
+        List<EmbeddedStatusStore.DueURL> results;
+        try {
+            results =
+                    store.query(
+                            start,
+                            maxBuckets,
+                            maxURLsPerBucket,
+                            p -> totalTasks == 1 || hashing.partition(p, totalTasks) == taskIndex,
+                            beingProcessed::containsKey);
+        } catch (IOException e) {
+            LOG.error("Exception while querying the status store", e);
+            markQueryReceivedNow();
+            return;
+        }
+        long timeTaken = System.currentTimeMillis() - start;
+        queryTimes.addMeasurement(timeTaken);
+
+        for (EmbeddedStatusStore.DueURL due : results) {
+            if (!buffer.add(due.url, due.metadata, due.partition)) {
+                alreadyprocessed++;
+            }
+        }
+
+        eventCounter.scope("already_being_processed").incrBy(alreadyprocessed);
+        eventCounter.scope("queries").incrBy(1);
+        eventCounter.scope("docs").incrBy(results.size());
+
+        LOG.info(
+                "Status store query returned {} hits in {} msec with {} already being processed",
+                results.size(),
+                timeTaken,
+                alreadyprocessed);
+
+        markQueryReceivedNow();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (store != null) {
+            store.release();
+        }
+    }
+}
@@ -0,0 +1,718 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence.embedded;
+
+import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.persistence.Status;
+import com.digitalpebble.stormcrawler.util.ConfUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent status store on the local disk, used by the EmbeddedSpout and
+ * EmbeddedStatusUpdaterBolt to run a crawl on a single worker without an external service.
+ *
+ * <p>The status updates are appended to a log file by a background thread which writes them in
+ * groups and syncs the file before acknowledging them (group commit). An in-memory index keeps for
+ * each URL its status, next fetch date, partition and the position of its latest record in the log;
+ * the URLs are also sorted by next fetch date within each partition and the partitions by the
+ * earliest date of their URLs so that the due URLs of a host can be read without scanning. The
+ * metadata stay on disk and are read when a URL is returned by a query.
+ *
+ * <p>The log is replayed when the store is opened. It is rewritten with the live records only if it
+ * contains too many obsolete ones, when opening the store and by the writer thread while it is
+ * running. There is one instance per directory and per JVM, shared by the components which use it.
+ *
+ * <p>The index is held on the heap and takes roughly 150 bytes plus the size of the URL for each
+ * entry, which limits the store to a few million URLs per GB of heap allocated to the worker.
+ *
+ * @since 2.5
+ */
+public class EmbeddedStatusStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedStatusStore.class);
+
+    /** Directory where the status log is stored. Required. */
+    public static final String DIR_PARAM = "embedded.status.dir";
+
+    /** Max time in msec to wait for more updates before writing a group, default 100. */
+    public static final String COMMIT_INTERVAL_PARAM = "embedded.status.commit.interval.msec";
+
+    /** Max number of updates written in a group, default 1000. */
+    public static final String COMMIT_MAX_RECORDS_PARAM = "embedded.status.commit.max.records";
+
+    /** Whether the log file is synced to the disk after each group, default true. */
+    public static final String FSYNC_PARAM = "embedded.status.fsync";
+
+    /** Ratio of obsolete records in the log above which it gets compacted, default 0.5. */
+    public static final String COMPACTION_RATIO_PARAM = "embedded.status.compaction.ratio";
+
+    /**
+     * Min number of obsolete bytes in the log before it gets compacted while the store is open,
+     * default 67108864.
+     */
+    public static final String COMPACTION_MIN_BYTES_PARAM = "embedded.status.compaction.min.bytes";
+
+    private static final String LOG_FILE = "status.log";
+    private static final byte OP_PUT = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final Map<Path, EmbeddedStatusStore> INSTANCES = new HashMap<>();
+
+    private final Path logFile;
+    private FileChannel channel;
+
+    private final int commitIntervalMsec;
+    private final int commitMaxRecords;
+    private final boolean fsync;
+    private final float compactionRatio;
+    private final long compactionMinBytes;
+
+    /**
+     * held for writing while the log is replaced by a compacted one, for reading by the queries
+     * which read the metadata at the positions found in the index
+     */
+    private final ReadWriteLock compactionLock = new ReentrantReadWriteLock();
+
+    private final Map<String, IndexEntry> index = new HashMap<>();
+    private final Map<String, Partition> partitions = new HashMap<>();
+    private final TreeSet<Partition> partitionsByDate = new TreeSet<>();
+
+    private long totalBytes = 0;
+    private long liveBytes = 0;
+
+    private final BlockingQueue<PendingUpdate> pending = new LinkedBlockingQueue<>();
+    private Thread writer;
+    private volatile boolean running = true;
+
+    private int references = 0;
+
+    /**
+     * Returns the store for the directory set in the configuration, opening it if needed. Must be
+     * matched by a call to {@link #release()}.
+     */
+    public static EmbeddedStatusStore acquire(Map<String, Object> stormConf) {
+        String dir = ConfUtils.getString(stormConf, DIR_PARAM);
+        if (StringUtils.isBlank(dir)) {
+            throw new RuntimeException("Missing value for config " + DIR_PARAM);
+        }
+        Path path = Paths.get(dir).toAbsolutePath().normalize();
+        synchronized (INSTANCES) {
+            EmbeddedStatusStore store = INSTANCES.get(path);
+            if (store == null) {
+                try {
+                    store = new EmbeddedStatusStore(path, stormConf);
+                } catch (IOException e) {
+                    throw new RuntimeException("Can't open status store in " + path, e);
+                }
+                INSTANCES.put(path, store);
+            }
+            store.references++;
+            return store;
+        }
+    }
+
+    /** Closes the store once all the components using it have released it */
+    public void release() {
+        synchronized (INSTANCES) {
+            if (--references > 0) {
+                return;
+            }
+            INSTANCES.remove(logFile.getParent());
+        }
+        close();
+    }
+
+    EmbeddedStatusStore(Path dir, Map<String, Object> stormConf) throws IOException {
+        commitIntervalMsec = ConfUtils.getInt(stormConf, COMMIT_INTERVAL_PARAM, 100);
+        commitMaxRecords = ConfUtils.getInt(stormConf, COMMIT_MAX_RECORDS_PARAM, 1000);
+        fsync = ConfUtils.getBoolean(stormConf, FSYNC_PARAM, true);
+        compactionRatio = ConfUtils.getFloat(stormConf, COMPACTION_RATIO_PARAM, 0.5f);
+        compactionMinBytes =
+                ConfUtils.getLong(stormConf, COMPACTION_MIN_BYTES_PARAM, 64L * 1024 * 1024);
+
+        Files.createDirectories(dir);
+        logFile = dir.resolve(LOG_FILE);
+
+        channel =
+                FileChannel.open(
+                        logFile,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+
+        long start = System.currentTimeMillis();
+        replay();
+        LOG.info(
+                "Loaded {} URLs from {} in {} msec",
+                index.size(),
+                logFile,
+                System.currentTimeMillis() - start);
+
+        if (needsCompaction(0)) {
+            compact();
+        }
+
+        channel.position(channel.size());
+
+        writer = new Thread(this::writeLoop, "embedded-status-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues an update, the callback is called once it has been written to the log. A DISCOVERED
+     * status for a URL which is already known is ignored.
+     */
+    public void put(
+            String url,
+            Status status,
+            Metadata metadata,
+            Optional<Date> nextFetch,
+            String partition,
+            Consumer<Exception> callback) {
+        if (status == Status.DISCOVERED) {
+            synchronized (this) {
+                if (index.containsKey(url)) {
+                    callback.accept(null);
+                    return;
+                }
+            }
+        }
+        long next = nextFetch.map(Date::getTime).orElse(-1L);
+        if (partition == null) {
+            partition = "_DEFAULT_";
+        }
+        pending.add(new PendingUpdate(url, status, metadata, next, partition, callback));
+    }
+
+    /**
+     * Returns URLs which are due for fetching, grouped by partition.
+     *
+     * @param maxPartitions max number of partitions to return URLs for
+     * @param maxPerPartition max number of URLs per partition
+     * @param partitionFilter restricts the partitions to consider e.g. to the ones a spout instance
+     *     is in charge of
+     * @param skip URLs to ignore e.g. the ones already being processed
+     */
+    public List<DueURL> query(
+            long now,
+            int maxPartitions,
+            int maxPerPartition,
+            Predicate<String> partitionFilter,
+            Predicate<String> skip)
+            throws IOException {
+        List<DueURL> results = new ArrayList<>();
+        // the positions must stay valid until the metadata have been read
+        compactionLock.readLock().lock();
+        try {
+            return query(results, now, maxPartitions, maxPerPartition, partitionFilter, skip);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+    }
+
+    private List<DueURL> query(
+            List<DueURL> results,
+            long now,
+            int maxPartitions,
+            int maxPerPartition,
+            Predicate<String> partitionFilter,
+            Predicate<String> skip)
+            throws IOException {
+        synchronized (this) {
+            int numPartitions = 0;
+            for (Partition p : partitionsByDate) {
+                if (numPartitions >= maxPartitions || p.earliest() > now) {
+                    break;
+                }
+                if (!partitionFilter.test(p.name)) {
+                    continue;
+                }
+                int found = 0;
+                for (IndexEntry e : p.entries) {
+                    if (found >= maxPerPartition || e.nextFetch > now) {
+                        break;
+                    }
+                    if (skip.test(e.url)) {
+                        continue;
+                    }
+                    results.add(new DueURL(e.url, null, p.name, e.offset));
+                    found++;
+                }
+                if (found > 0) {
+                    numPartitions++;
+                }
+            }
+        }
+        // read the metadata outside of the lock
+        for (DueURL due : results) {
+            due.metadata = readMetadata(due.offset);
+        }
+        return results;
+    }
+
+    /** Number of URLs in the store */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /** Number of updates waiting to be written */
+    public int pendingUpdates() {
+        return pending.size();
+    }
+
+    private void writeLoop() {
+        List<PendingUpdate> batch = new ArrayList<>(commitMaxRecords);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        while (running || !pending.isEmpty()) {
+            try {
+                PendingUpdate first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // wait a bit for more updates to come
+                long deadline = System.currentTimeMillis() + commitIntervalMsec;
+                while (batch.size() < commitMaxRecords) {
+                    long wait = deadline - System.currentTimeMillis();
+                    PendingUpdate next =
+                            wait > 0 ? pending.poll(wait, TimeUnit.MILLISECONDS) : pending.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                writeBatch(batch, bytes);
+                batch.clear();
+                if (needsCompaction(compactionMinBytes)) {
+                    compact();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOG.error("Exception while writing to {}", logFile, e);
+                for (PendingUpdate u : batch) {
+                    u.callback.accept(e);
+                }
+            } finally {
+                batch.clear();
+                bytes.reset();
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingUpdate> batch, ByteArrayOutputStream bytes)
+            throws IOException {
+        long startOffset = channel.position();
+        long[] offsets = new long[batch.size()];
+        int[] lengths = new int[batch.size()];
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < batch.size(); i++) {
+            offsets[i] = startOffset + bytes.size();
+            lengths[i] = writeRecord(batch.get(i), out);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (fsync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            // remove what was written of the batch, otherwise the next batches would be appended
+            // after an incomplete record and be lost when replaying the log
+            try {
+                channel.truncate(startOffset);
+                channel.position(startOffset);
+            } catch (IOException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            for (int i = 0; i < batch.size(); i++) {
+                PendingUpdate u = batch.get(i);
+                apply(u.url, u.status, u.nextFetch, u.partition, offsets[i], lengths[i]);
+            }
+        }
+        for (PendingUpdate u : batch) {
+            u.callback.accept(null);
+        }
+    }
+
+    private static int writeRecord(PendingUpdate u, DataOutputStream out) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(256);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeByte(OP_PUT);
+        writeString(payload, u.url);
+        writeString(payload, u.status.name());
+        payload.writeLong(u.nextFetch);
+        writeString(payload, u.partition);
+        Map<String, String[]> md = u.metadata.asMap();
+        payload.writeInt(md.size());
+        for (Map.Entry<String, String[]> e : md.entrySet()) {
+            writeString(payload, e.getKey());
+            payload.writeInt(e.getValue().length);
+            for (String v : e.getValue()) {
+                writeString(payload, v);
+            }
+        }
+        byte[] data = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        out.writeInt(data.length);
+        out.writeInt((int) crc.getValue());
+        out.write(data);
+        return HEADER_SIZE + data.length;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /** Updates the index with a record, must be called while holding the lock */
+    private void apply(
+            String url, Status status, long nextFetch, String partitionName, long offset, int len) {
+        totalBytes += len;
+        IndexEntry existing = index.get(url);
+        if (existing != null) {
+            if (status == Status.DISCOVERED) {
+                return;
+            }
+            liveBytes -= existing.length;
+            removeFromPartition(existing);
+        }
+        IndexEntry entry = new IndexEntry(url, status, nextFetch, offset, len);
+        index.put(url, entry);
+        liveBytes += len;
+        // never to be refetched
+        if (nextFetch < 0) {
+            return;
+        }
+        Partition p = partitions.get(partitionName);
+        if (p == null) {
+            p = new Partition(partitionName);
+            partitions.put(partitionName, p);
+        } else {
+            partitionsByDate.remove(p);
+        }
+        entry.partition = p;
+        p.entries.add(entry);
+        partitionsByDate.add(p);
+    }
+
+    private void removeFromPartition(IndexEntry entry) {
+        Partition p = entry.partition;
+        if (p == null) {
+            return;
+        }
+        partitionsByDate.remove(p);
+        p.entries.remove(entry);
+        if (p.entries.isEmpty()) {
+            partitions.remove(p.name);
+        } else {
+            partitionsByDate.add(p);
+        }
+    }
+
+    private Metadata readMetadata(long offset) throws IOException {
+        DataInputStream in = readRecord(offset);
+        in.readByte();
+        readString(in); // url
+        readString(in); // status
+        in.readLong(); // next fetch
+        readString(in); // partition
+        int numKeys = in.readInt();
+        Metadata md = new Metadata();
+        for (int i = 0; i < numKeys; i++) {
+            String key = readString(in);
+            String[] values = new String[in.readInt()];
+            for (int j = 0; j < values.length; j++) {
+                values[j] = readString(in);
+            }
+            md.setValues(key, values);
+        }
+        return md;
+    }
+
+    private DataInputStream readRecord(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, offset);
+        header.flip();
+        int length = header.getInt();
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(data, offset + HEADER_SIZE);
+        return new DataInputStream(new ByteArrayInputStream(data.array()));
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    /** Rebuilds the index from the log, truncating any incomplete record at the end */
+    private void replay() throws IOException {
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (offset + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, offset);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length <= 0 || offset + HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer data = ByteBuffer.allocate(length);
+            readFully(data, offset + HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(data.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data.array()));
+            in.readByte();
+            String url = readString(in);
+            Status status = Status.valueOf(readString(in));
+            long nextFetch = in.readLong();
+            String partition = readString(in);
+            apply(url, status, nextFetch, partition, offset, HEADER_SIZE + length);
+            offset += HEADER_SIZE + length;
+        }
+        if (offset < size) {
+            LOG.warn(
+                    "Truncating {} at {}, {} bytes were corrupted", logFile, offset, size - offset);
+            channel.truncate(offset);
+        }
+    }
+
+    /** Whether the ratio of obsolete records in the log is above the threshold */
+    private boolean needsCompaction(long minObsoleteBytes) {
+        long obsolete = totalBytes - liveBytes;
+        return totalBytes > 0
+                && obsolete >= minObsoleteBytes
+                && (double) obsolete / totalBytes > compactionRatio;
+    }
+
+    /**
+     * Rewrites the log with the live records only. Must be called by the thread which modifies the
+     * index, i.e. the writer thread once the store is open, so that the index does not change while
+     * the records are copied.
+     */
+    private void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        long before = totalBytes;
+        Path tmp = logFile.resolveSibling(LOG_FILE + ".compact");
+        long position = 0;
+        try (FileChannel out =
+                FileChannel.open(
+                        tmp,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE)) {
+            // the queries keep reading from the current log in the meantime
+            for (IndexEntry e : index.values()) {
+                ByteBuffer record = ByteBuffer.allocate(e.length);
+                readFully(record, e.offset);
+                record.flip();
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+                position += e.length;
+            }
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        compactionLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                channel.close();
+                Files.move(
+                        tmp,
+                        logFile,
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                channel =
+                        FileChannel.open(
+                                logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+                // same order as when copying as the index has not changed
+                long offset = 0;
+                for (IndexEntry e : index.values()) {
+                    e.offset = offset;
+                    offset += e.length;
+                }
+                totalBytes = position;
+                liveBytes = position;
+            }
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+        LOG.info(
+                "Compacted {} from {} to {} bytes in {} msec",
+                logFile,
+                before,
+                totalBytes,
+                System.currentTimeMillis() - start);
+    }
+
+    private void close() {
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.force(true);
+            channel.close();
+        } catch (IOException e) {
+            LOG.error("Exception while closing {}", logFile, e);
+        }
+    }
+
+    /** A URL returned by a query with its metadata and partition */
+    public static final class DueURL {
+        public final String url;
+        public Metadata metadata;
+        public final String partition;
+        private final long offset;
+
+        private DueURL(String url, Metadata metadata, String partition, long offset) {
+            this.url = url;
+            this.metadata = metadata;
+            this.partition = partition;
+            this.offset = offset;
+        }
+    }
+
+    private static final class PendingUpdate {
+        private final String url;
+        private final Status status;
+        private final Metadata metadata;
+        private final long nextFetch;
+        private final String partition;
+        private final Consumer<Exception> callback;
+
+        private PendingUpdate(
+                String url,
+                Status status,
+                Metadata metadata,
+                long nextFetch,
+                String partition,
+                Consumer<Exception> callback) {
+            this.url = url;
+            this.status = status;
+            this.metadata = metadata;
+            this.nextFetch = nextFetch;
+            this.partition = partition;
+            this.callback = callback;
+        }
+    }
+
+    private static final class IndexEntry implements Comparable<IndexEntry> {
+        private final String url;
+        private final Status status;
+        private final long nextFetch;
+        private long offset;
+        private final int length;
+        private Partition partition;
+
+        private IndexEntry(String url, Status status, long nextFetch, long offset, int length) {
+            this.url = url;
+            this.status = status;
+            this.nextFetch = nextFetch;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(IndexEntry o) {
+            int comp = Long.compare(nextFetch, o.nextFetch);
+            if (comp != 0) return comp;
+            return url.compareTo(o.url);
+        }
+    }
+
+    /** URLs of a partition sorted by next fetch date */
+    private static final class Partition implements Comparable<Partition> {
+        private final String name;
+        private final TreeSet<IndexEntry> entries = new TreeSet<>();
+
+        private Partition(String name) {
+            this.name = name;
+        }
+
+        private long earliest() {
+            return entries.first().nextFetch;
+        }
+
+        @Override
+        public int compareTo(Partition o) {
+            int comp = Long.compare(earliest(), o.earliest());
+            if (comp != 0) return comp;
+            return name.compareTo(o.name);
+        }
+    }
+}
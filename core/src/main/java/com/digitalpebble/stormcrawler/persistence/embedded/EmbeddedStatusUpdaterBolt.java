@@ -0,0 +1,81 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence.embedded;
+
+import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.persistence.AbstractStatusUpdaterBolt;
+import com.digitalpebble.stormcrawler.persistence.Status;
+import com.digitalpebble.stormcrawler.util.URLPartitioner;
+import java.util.Date;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.tuple.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Status updater writing to the {@link EmbeddedStatusStore}. The tuples are acked once their update
+ * has been written to the log. Must run in the same worker as the {@link EmbeddedSpout}.
+ */
+public class EmbeddedStatusUpdaterBolt extends AbstractStatusUpdaterBolt {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedStatusUpdaterBolt.class);
+
+    private EmbeddedStatusStore store;
+
+    private URLPartitioner partitioner;
+
+    @Override
+    public void prepare(
+            Map<String, Object> stormConf, TopologyContext context, OutputCollector collector) {
+        super.prepare(stormConf, context, collector);
+        partitioner = new URLPartitioner();
+        partitioner.configure(stormConf);
+        store = EmbeddedStatusStore.acquire(stormConf);
+    }
+
+    @Override
+    protected void store(
+            String url, Status status, Metadata metadata, Optional<Date> nextFetch, Tuple t)
+            throws Exception {
+        String partition = partitioner.getPartition(url, metadata);
+        store.put(
+                url,
+                status,
+                metadata,
+                nextFetch,
+                partition,
+                e -> {
+                    synchronized (_collector) {
+                        if (e == null) {
+                            ack(t, url);
+                        } else {
+                            LOG.error("Could not store {}", url, e);
+                            _collector.fail(t);
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void cleanup() {
+        super.cleanup();
+        if (store != null) {
+            store.release();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence.seen;
+
+import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.URLFingerprint;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scalable Bloom filter over 64-bit URL fingerprints, as described in "Scalable Bloom Filters" by
+ * Almeida et al. A new stage with twice the capacity and half the false positive rate of the
+ * previous one is added whenever the current one is full, so that the overall rate of false
+ * positives stays below the configured value regardless of the number of URLs. A false positive
+ * means that a newly discovered URL is not sent to the backend.
+ *
+ * <p>The content of the filter can optionally be saved to a local directory at regular intervals
+ * and when the bolt is cleaned up, it is then reloaded when the topology is restarted.
+ *
+ * @since 2.5
+ */
+public class ScalableBloomFilter implements SeenURLFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScalableBloomFilter.class);
+
+    /** Target rate of false positives for the whole filter, default 0.001 */
+    public static final String FPP_PARAM = "seen.filter.fpp";
+
+    /** Number of URLs held by the first stage of the filter, default 1000000 */
+    public static final String INITIAL_CAPACITY_PARAM = "seen.filter.initial.capacity";
+
+    /** Local directory where the filter is saved, not saved if not set */
+    public static final String SNAPSHOT_DIR_PARAM = "seen.filter.snapshot.dir";
+
+    /** Interval in seconds between two snapshots of the filter, default 300 */
+    public static final String SNAPSHOT_INTERVAL_PARAM = "seen.filter.snapshot.interval.sec";
+
+    private static final int SNAPSHOT_MAGIC = 0x53424c46;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    // growth of the capacity and tightening of the fpp between stages
+    private static final int GROWTH = 2;
+    private static final double TIGHTENING = 0.5;
+
+    private double fpp = 0.001;
+    private long initialCapacity = 1_000_000;
+
+    private final List<Stage> stages = new ArrayList<>();
+
+    private long size = 0;
+
+    private Path snapshotFile;
+    private boolean dirty = false;
+    private ScheduledExecutorService snapshotExecutor;
+
+    @Override
+    public void configure(Map<String, Object> stormConf, String instanceId) {
+        fpp = ConfUtils.getFloat(stormConf, FPP_PARAM, (float) fpp);
+        if (fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException(FPP_PARAM + " must be in ]0,1[");
+        }
+        initialCapacity = ConfUtils.getLong(stormConf, INITIAL_CAPACITY_PARAM, initialCapacity);
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException(INITIAL_CAPACITY_PARAM + " must be positive");
+        }
+
+        String dir = ConfUtils.getString(stormConf, SNAPSHOT_DIR_PARAM);
+        if (StringUtils.isNotBlank(dir)) {
+            snapshotFile = Paths.get(dir, instanceId + ".bloom");
+            load();
+            int interval = ConfUtils.getInt(stormConf, SNAPSHOT_INTERVAL_PARAM, 300);
+            if (interval > 0) {
+                snapshotExecutor =
+                        Executors.newSingleThreadScheduledExecutor(
+                                r -> {
+                                    Thread t = new Thread(r, "seen-filter-snapshot");
+                                    t.setDaemon(true);
+                                    return t;
+                                });
+                snapshotExecutor.scheduleWithFixedDelay(
+                        this::snapshot, interval, interval, TimeUnit.SECONDS);
+            }
+        }
+
+        if (stages.isEmpty()) {
+            stages.add(new Stage(initialCapacity, fpp * (1 - TIGHTENING)));
+        }
+    }
+
+    @Override
+    public synchronized boolean mightContain(String url) {
+        return mightContain(URLFingerprint.hash64(url));
+    }
+
+    private boolean mightContain(long fingerprint) {
+        long h2 = URLFingerprint.rehash(fingerprint);
+        // most recent stages are the largest
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            if (stages.get(i).mightContain(fingerprint, h2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void put(String url) {
+        long fingerprint = URLFingerprint.hash64(url);
+        if (mightContain(fingerprint)) {
+            return;
+        }
+        Stage current = stages.get(stages.size() - 1);
+        if (current.count >= current.capacity) {
+            current = new Stage(current.capacity * GROWTH, current.fpp * TIGHTENING);
+            stages.add(current);
+            LOG.info("Added stage {} to seen filter, capacity {}", stages.size(), current.capacity);
+        }
+        current.put(fingerprint, URLFingerprint.rehash(fingerprint));
+        size++;
+        dirty = true;
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized double saturation() {
+        Stage current = stages.get(stages.size() - 1);
+        return (double) current.count / current.capacity;
+    }
+
+    /** Number of stages in the filter */
+    public synchronized int numStages() {
+        return stages.size();
+    }
+
+    @Override
+    public void close() {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+        }
+        snapshot();
+    }
+
+    /** Writes the content of the filter to the snapshot file, if one is configured */
+    synchronized void snapshot() {
+        if (snapshotFile == null || !dirty) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(snapshotFile.getParent());
+            try (DataOutputStream out =
+                    new DataOutputStream(
+                            new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeDouble(fpp);
+                out.writeLong(initialCapacity);
+                out.writeLong(size);
+                out.writeInt(stages.size());
+                for (Stage s : stages) {
+                    s.write(out);
+                }
+            }
+            Files.move(
+                    tmp,
+                    snapshotFile,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+            LOG.info(
+                    "Seen filter saved to {} in {} msec",
+                    snapshotFile,
+                    System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            LOG.error("Could not save seen filter to {}", snapshotFile, e);
+        }
+    }
+
+    private synchronized void load() {
+        if (!Files.exists(snapshotFile)) {
+            return;
+        }
+        try (DataInputStream in =
+                new DataInputStream(
+                        new BufferedInputStream(Files.newInputStream(snapshotFile), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                LOG.warn("Ignoring seen filter snapshot {}: unknown format", snapshotFile);
+                return;
+            }
+            double savedFpp = in.readDouble();
+            long savedCapacity = in.readLong();
+            if (savedFpp != fpp || savedCapacity != initialCapacity) {
+                LOG.warn(
+                        "Ignoring seen filter snapshot {}: configuration has changed",
+                        snapshotFile);
+                return;
+            }
+            long savedSize = in.readLong();
+            int numStages = in.readInt();
+            List<Stage> loaded = new ArrayList<>(numStages);
+            for (int i = 0; i < numStages; i++) {
+                loaded.add(Stage.read(in));
+            }
+            stages.clear();
+            stages.addAll(loaded);
+            size = savedSize;
+            LOG.info("Loaded seen filter from {} with {} URLs", snapshotFile, size);
+        } catch (IOException e) {
+            LOG.error("Could not load seen filter from {}", snapshotFile, e);
+        }
+    }
+
+    /** Single Bloom filter sized for a given capacity and false positive rate */
+    private static final class Stage {
+        private final long capacity;
+        private final double fpp;
+        private final int numHashes;
+        private final long numBits;
+        private final long[] words;
+        private long count;
+
+        private Stage(long capacity, double fpp) {
+            this(capacity, fpp, optimalNumBits(capacity, fpp), 0);
+        }
+
+        private Stage(long capacity, double fpp, long numBits, long count) {
+            this.capacity = capacity;
+            this.fpp = fpp;
+            this.numBits = numBits;
+            this.numHashes =
+                    Math.max(1, (int) Math.round((double) numBits / capacity * Math.log(2)));
+            this.words = new long[(int) ((numBits + 63) >>> 6)];
+            this.count = count;
+        }
+
+        private static long optimalNumBits(long capacity, double fpp) {
+            long bits = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            // round up to a multiple of 64
+            return Math.max(64, (bits + 63) & ~63L);
+        }
+
+        boolean mightContain(long h1, long h2) {
+            long combined = h1;
+            for (int i = 0; i < numHashes; i++) {
+                long bit = (combined & Long.MAX_VALUE) % numBits;
+                if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+                combined += h2;
+            }
+            return true;
+        }
+
+        void put(long h1, long h2) {
+            long combined = h1;
+            for (int i = 0; i < numHashes; i++) {
+                long bit = (combined & Long.MAX_VALUE) % numBits;
+                words[(int) (bit >>> 6)] |= 1L << bit;
+                combined += h2;
+            }
+            count++;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(capacity);
+            out.writeDouble(fpp);
+            out.writeLong(numBits);
+            out.writeLong(count);
+            for (long w : words) {
+                out.writeLong(w);
+            }
+        }
+
+        static Stage read(DataInputStream in) throws IOException {
+            long capacity = in.readLong();
+            double fpp = in.readDouble();
+            long numBits = in.readLong();
+            long count = in.readLong();
+            Stage s = new Stage(capacity, fpp, numBits, count);
+            for (int i = 0; i < s.words.length; i++) {
+                s.words[i] = in.readLong();
+            }
+            return s;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence.seen;
+
+import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.InitialisationUtil;
+import java.util.Map;
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Set of URLs known to have been stored already, used by the AbstractStatusUpdaterBolt to avoid
+ * sending DISCOVERED URLs to the backend more than once. Implementations can be probabilistic i.e.
+ * return false positives but must never return false negatives for URLs which have been added.
+ *
+ * @since 2.5
+ */
+public interface SeenURLFilter {
+
+    /**
+     * Implementation to use for SeenURLFilter. Must implement the interface SeenURLFilter. No
+     * filter is used if not set.
+     */
+    String seenFilterClassParamName = "status.updater.seen.filter.class";
+
+    /**
+     * Returns a SeenURLFilter instance based on the configuration or null if none has been
+     * configured.
+     *
+     * @param instanceId identifies the component instance using the filter e.g. to name the files
+     *     it might persist
+     */
+    static @Nullable SeenURLFilter createInstance(
+            @NotNull Map<String, Object> stormConf, @NotNull String instanceId) {
+
+        String className = ConfUtils.getString(stormConf, seenFilterClassParamName);
+        if (StringUtils.isBlank(className)) {
+            return null;
+        }
+
+        SeenURLFilter filter;
+        try {
+            filter = InitialisationUtil.initializeFromQualifiedName(className, SeenURLFilter.class);
+            filter.configure(stormConf, instanceId);
+        } catch (Exception e) {
+            throw new RuntimeException("Can't instanciate " + className, e);
+        }
+
+        return filter;
+    }
+
+    void configure(Map<String, Object> stormConf, String instanceId);
+
+    /** Returns true if the URL has probably been added before, false if it definitely hasn't */
+    boolean mightContain(String url);
+
+    /** Marks the URL as seen. Can be called from several threads. */
+    void put(String url);
+
+    /** Number of URLs added to the filter */
+    long size();
+
+    /**
+     * Ratio between 0 and 1 indicating how full the filter is, values close to 1 indicate that the
+     * rate of false positives is about to exceed the configured one.
+     */
+    double saturation();
+
+    /** Releases resources and persists the content of the filter if configured to do so */
+    default void close() {}
+}
@@ -79,11 +79,19 @@ public abstract class AbstractURLBuffer implements URLBuffer {
 
         // create the queue if it does not exist
         // and add the url
-        queues.computeIfAbsent(key, k -> new LinkedList<URLMetadata>())
-                .add(new URLMetadata(URL, m));
+        Queue<URLMetadata> queue = queues.get(key);
+        if (queue == null) {
+            queue = new LinkedList<>();
+            queues.put(key, queue);
+            queueCreated(key);
+        }
+        queue.add(new URLMetadata(URL, m));
         return in_buffer.add(URL);
     }
 
+    /** Called when a queue is created for a key, which was either new or had been emptied. */
+    protected void queueCreated(String key) {}
+
     /**
      * Stores the URL and its Metadata using the hostname as key.
      *
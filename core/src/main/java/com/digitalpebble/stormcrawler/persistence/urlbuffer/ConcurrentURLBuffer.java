@@ -0,0 +1,231 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence.urlbuffer;
+
+import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.persistence.EmptyQueueListener;
+import com.digitalpebble.stormcrawler.util.LongHashSet;
+import com.digitalpebble.stormcrawler.util.URLFingerprint;
+import com.digitalpebble.stormcrawler.util.URLPartitioner;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.storm.tuple.Values;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * URLBuffer which does not rely on a global lock, so that the asynchronous callbacks of the spouts
+ * can add URLs while nextTuple is pulling them. The URLs are held per queue in array-backed ring
+ * buffers, the membership test is done on 64-bit fingerprints of the URLs in a striped set and the
+ * queues to pull from are rotated via a concurrent queue of their keys. Releases the URLs in the
+ * same round-robin order as the SimpleURLBuffer.
+ *
+ * @since 2.5
+ */
+public class ConcurrentURLBuffer implements URLBuffer {
+
+    static final Logger LOG = LoggerFactory.getLogger(ConcurrentURLBuffer.class);
+
+    private static final int NUM_STRIPES = 16;
+
+    private final URLPartitioner partitioner = new URLPartitioner();
+
+    private final Map<String, RingQueue> queues = new ConcurrentHashMap<>();
+
+    /** keys of the non-empty queues in the order in which they should be pulled from * */
+    private final Queue<String> cursor = new ConcurrentLinkedQueue<>();
+
+    private final LongHashSet[] inBuffer = new LongHashSet[NUM_STRIPES];
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private volatile EmptyQueueListener listener = null;
+
+    public ConcurrentURLBuffer() {
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            inBuffer[i] = new LongHashSet();
+        }
+    }
+
+    @Override
+    public void configure(Map<String, Object> stormConf) {
+        partitioner.configure(stormConf);
+    }
+
+    private LongHashSet stripe(long fingerprint) {
+        return inBuffer[(int) (fingerprint >>> 60) & (NUM_STRIPES - 1)];
+    }
+
+    @Override
+    public boolean add(String URL, Metadata m, String key) {
+
+        LOG.debug("Adding {}", URL);
+
+        long fingerprint = URLFingerprint.hash64(URL);
+        LongHashSet stripe = stripe(fingerprint);
+        synchronized (stripe) {
+            if (!stripe.add(fingerprint)) {
+                LOG.debug("already in buffer {}", URL);
+                return false;
+            }
+        }
+
+        if (key == null) {
+            key = partitioner.getPartition(URL, m);
+            if (key == null) {
+                key = "_DEFAULT_";
+            }
+        }
+
+        while (true) {
+            RingQueue queue = queues.computeIfAbsent(key, k -> new RingQueue());
+            synchronized (queue) {
+                // removed by next() in the meantime
+                if (queue.discarded) {
+                    continue;
+                }
+                queue.add(URL, m);
+                size.incrementAndGet();
+                if (!queue.scheduled) {
+                    queue.scheduled = true;
+                    cursor.offer(key);
+                }
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public Values next() {
+        String key;
+        while ((key = cursor.poll()) != null) {
+            RingQueue queue = queues.get(key);
+            if (queue == null) {
+                continue;
+            }
+            String url;
+            Metadata metadata;
+            boolean emptied = false;
+            synchronized (queue) {
+                if (queue.count == 0) {
+                    continue;
+                }
+                url = queue.peekURL();
+                metadata = queue.peekMetadata();
+                queue.removeFirst();
+                size.decrementAndGet();
+                if (queue.count > 0) {
+                    // back of the queue
+                    cursor.offer(key);
+                } else {
+                    queue.scheduled = false;
+                    queue.discarded = true;
+                    queues.remove(key, queue);
+                    emptied = true;
+                }
+            }
+
+            long fingerprint = URLFingerprint.hash64(url);
+            LongHashSet stripe = stripe(fingerprint);
+            synchronized (stripe) {
+                stripe.remove(fingerprint);
+            }
+
+            EmptyQueueListener l = listener;
+            if (emptied && l != null) {
+                l.emptyQueue(key);
+            }
+
+            LOG.debug("Item {}", url);
+            return new Values(url, metadata);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return size.get() > 0;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public int numQueues() {
+        return queues.size();
+    }
+
+    @Override
+    public void setEmptyQueueListener(EmptyQueueListener l) {
+        listener = l;
+    }
+
+    /** FIFO queue backed by arrays used as a ring buffer. Must be synchronized on. */
+    private static final class RingQueue {
+        private String[] urls = new String[4];
+        private Metadata[] metadata = new Metadata[4];
+        private int head = 0;
+        private int count = 0;
+
+        // whether the key is in the cursor
+        private boolean scheduled = false;
+        // whether the queue has been removed from the map of queues
+        private boolean discarded = false;
+
+        void add(String url, Metadata md) {
+            if (count == urls.length) {
+                grow();
+            }
+            int tail = (head + count) & (urls.length - 1);
+            urls[tail] = url;
+            metadata[tail] = md;
+            count++;
+        }
+
+        String peekURL() {
+            return urls[head];
+        }
+
+        Metadata peekMetadata() {
+            return metadata[head];
+        }
+
+        void removeFirst() {
+            urls[head] = null;
+            metadata[head] = null;
+            head = (head + 1) & (urls.length - 1);
+            count--;
+        }
+
+        private void grow() {
+            int capacity = urls.length << 1;
+            String[] newURLs = new String[capacity];
+            Metadata[] newMetadata = new Metadata[capacity];
+            for (int i = 0; i < count; i++) {
+                int pos = (head + i) & (urls.length - 1);
+                newURLs[i] = urls[pos];
+                newMetadata[i] = metadata[pos];
+            }
+            urls = newURLs;
+            metadata = newMetadata;
+            head = 0;
+        }
+    }
+}
@@ -19,11 +19,9 @@ import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.github.benmanes.caffeine.cache.RemovalListener;
-import com.google.common.collect.EvictingQueue;
 import java.time.Instant;
-import java.util.Iterator;
+import java.util.ArrayDeque;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.concurrent.TimeUnit;
 import org.apache.storm.tuple.Values;
@@ -32,7 +30,12 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/** Checks how long the last N URLs took to work out whether a queue should release a URL. */
+/**
+ * Checks how long the URLs of a queue took to be acked to work out whether the queue should release
+ * a URL. Keeps an exponentially weighted moving average of the ack latency per queue; the queues
+ * which are not ready to release are held in a timing wheel keyed by the time at which they will
+ * be, so that finding the next URL does not require scanning all the queues.
+ */
 public class SchedulingURLBuffer extends AbstractURLBuffer
         implements RemovalListener<String, Object[]> {
 
@@ -40,117 +43,135 @@ public class SchedulingURLBuffer extends AbstractURLBuffer
 
     public static final String MAXTIMEPARAM = "priority.buffer.max.time.msec";
 
+    /**
+     * Number of acks needed before a queue gets throttled, also determines the weight of the most
+     * recent timings in the moving average. Default 5.
+     */
+    public static final String HISTORYSIZEPARAM = "priority.buffer.history.size";
+
+    private static final long WHEEL_TICK_MSEC = 10;
+    private static final int WHEEL_SIZE = 64;
+
     private int maxTimeMSec = 30000;
 
-    // TODO make it configurable
     private int historySize = 5;
 
+    // weight given to a new timing in the moving average
+    private double alpha = 2d / (historySize + 1);
+
     // keeps track of the URL having been sent
     private Cache<String, Object[]> unacked;
 
-    private Cache<String, Queue<Long>> timings;
+    private Cache<String, QueueTiming> timings;
+
+    // queues which can release a URL straight away
+    private final ArrayDeque<String> ready = new ArrayDeque<>();
+
+    // queues waiting for their next release time
+    private TimingWheel<String> waiting;
+
+    public SchedulingURLBuffer() {
+        timings = Caffeine.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).build();
+        waiting = new TimingWheel<>(WHEEL_TICK_MSEC, WHEEL_SIZE, System.currentTimeMillis());
+        unacked = buildUnackedCache();
+    }
 
-    private Cache<String, Instant> lastReleased;
+    private Cache<String, Object[]> buildUnackedCache() {
+        return Caffeine.newBuilder()
+                .expireAfterWrite(maxTimeMSec, TimeUnit.MILLISECONDS)
+                .removalListener(this)
+                .build();
+    }
 
     public void configure(Map<String, Object> stormConf) {
         super.configure(stormConf);
         maxTimeMSec = ConfUtils.getInt(stormConf, MAXTIMEPARAM, maxTimeMSec);
-        unacked =
-                Caffeine.newBuilder()
-                        .expireAfterWrite(maxTimeMSec, TimeUnit.MILLISECONDS)
-                        .removalListener(this)
-                        .build();
-        timings = Caffeine.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).build();
-        lastReleased = Caffeine.newBuilder().expireAfterAccess(10, TimeUnit.MINUTES).build();
+        historySize = Math.max(1, ConfUtils.getInt(stormConf, HISTORYSIZEPARAM, historySize));
+        alpha = 2d / (historySize + 1);
+        unacked = buildUnackedCache();
+    }
+
+    @Override
+    protected void queueCreated(String key) {
+        schedule(key, System.currentTimeMillis());
+    }
+
+    // puts the queue in the ready list or the wheel depending on when it
+    // can next release a URL
+    private void schedule(String queueName, long now) {
+        if (!waiting.add(queueName, releaseTime(queueName, now))) {
+            ready.addLast(queueName);
+        }
+    }
+
+    private long releaseTime(String queueName, long now) {
+        QueueTiming timing = timings.getIfPresent(queueName);
+        // not enough history yet? release straight away
+        if (timing == null || timing.samples < historySize) {
+            return now;
+        }
+        return timing.lastRelease + (long) timing.average;
     }
 
     /**
-     * Retrieves the next available URL, guarantees that the URLs are always perfectly shuffled
+     * Retrieves the next available URL from the queues which are ready to release one.
      *
      * @return null if no entries are available
      */
     public synchronized Values next() {
 
-        do {
-            Iterator<Entry<String, Queue<URLMetadata>>> i = queues.entrySet().iterator();
-
-            if (!i.hasNext()) {
-                LOG.trace("Empty iterator");
-                return null;
-            }
+        long now = System.currentTimeMillis();
+        waiting.advance(now, ready::addLast);
 
-            Map.Entry<String, Queue<URLMetadata>> nextEntry = i.next();
+        String queueName;
+        while ((queueName = ready.poll()) != null) {
 
-            Queue<URLMetadata> queue = nextEntry.getValue();
-            String queueName = nextEntry.getKey();
+            Queue<URLMetadata> queue = queues.get(queueName);
+            if (queue == null) {
+                continue;
+            }
 
-            // remove the entry, gets added back later
-            i.remove();
+            // the timings might have changed since it was scheduled
+            if (waiting.add(queueName, releaseTime(queueName, now))) {
+                LOG.trace("Queue {} not ready to release yet", queueName);
+                continue;
+            }
 
             LOG.trace("Next queue {}", queueName);
 
-            URLMetadata item = null;
+            URLMetadata item = queue.poll();
 
-            // is this queue ready to be processed?
-            if (canRelease(queueName)) {
-                // try the first element
-                item = queue.poll();
-                LOG.trace("Item {}", item.url);
-            } else {
-                LOG.trace("Queue {} not ready to release yet", queueName);
+            if (item == null) {
+                queues.remove(queueName);
+                continue;
             }
 
-            // any left? add to the end of the iterator
+            LOG.trace("Item {}", item.url);
+
+            QueueTiming timing = timings.get(queueName, k -> new QueueTiming());
+            timing.lastRelease = now;
+
+            // any left? schedule the next release
             if (!queue.isEmpty()) {
-                LOG.debug("Adding to the back of the queue {}", queueName);
-                queues.put(queueName, queue);
+                LOG.debug("Scheduling queue {}", queueName);
+                schedule(queueName, now);
             }
             // notify that the queue is empty
             else {
+                queues.remove(queueName);
                 if (listener != null) {
                     listener.emptyQueue(queueName);
                 }
             }
 
-            if (item != null) {
-                lastReleased.put(queueName, Instant.now());
-                unacked.put(item.url, new Object[] {Instant.now(), queueName});
-                // remove it from the list of URLs in the queue
-                in_buffer.remove(item.url);
-                return new Values(item.url, item.metadata);
-            }
-        } while (!queues.isEmpty());
-        return null;
-    }
-
-    private boolean canRelease(String queueName) {
-        // return true if enough time has expired since the previous release
-        // given the past performance of the last N urls
-
-        Queue<Long> times = timings.getIfPresent(queueName);
-        if (times == null) return true;
-
-        // not enough history yet? just say yes
-        if (times.size() < historySize) return true;
-
-        // get the average duration over the recent history
-        long totalMsec = 0l;
-        for (Long t : times) {
-            totalMsec += t;
-        }
-        long average = totalMsec / historySize;
-
-        LOG.trace("Average for {}: {} msec", queueName, average);
-
-        Instant lastRelease = lastReleased.getIfPresent(queueName);
-        if (lastRelease == null) {
-            // removed? bit unlikely but nevermind
-            return true;
+            unacked.put(item.url, new Object[] {Instant.now(), queueName});
+            // remove it from the list of URLs in the queue
+            in_buffer.remove(item.url);
+            return new Values(item.url, item.metadata);
         }
 
-        // check that enough time has elapsed
-        // since the previous release from this queue
-        return lastRelease.plusMillis(average).isBefore(Instant.now());
+        LOG.trace("No queue ready to release");
+        return null;
     }
 
     public void acked(String url) {
@@ -161,6 +182,7 @@ public class SchedulingURLBuffer extends AbstractURLBuffer
         if (cached == null) {
             return;
         }
+        unacked.invalidate(url);
 
         Instant t = (Instant) cached[0];
         String key = (String) cached[1];
@@ -173,14 +195,32 @@ public class SchedulingURLBuffer extends AbstractURLBuffer
         addTiming(tookmsec, key);
     }
 
-    void addTiming(long t, String queueName) {
-        Queue<Long> times = timings.get(queueName, k -> EvictingQueue.create(historySize));
-        times.add(t);
+    synchronized void addTiming(long t, String queueName) {
+        QueueTiming timing = timings.get(queueName, k -> new QueueTiming());
+        if (timing.samples == 0) {
+            timing.average = t;
+        } else {
+            timing.average += alpha * (t - timing.average);
+        }
+        if (timing.samples < historySize) {
+            timing.samples++;
+        }
+        LOG.trace("Average for {}: {} msec", queueName, timing.average);
     }
 
     @Override
     public void onRemoval(
             @Nullable String key, Object @Nullable [] value, @NotNull RemovalCause cause) {
-        addTiming(maxTimeMSec, key);
+        if (value == null || !cause.wasEvicted()) {
+            return;
+        }
+        addTiming(maxTimeMSec, (String) value[1]);
+    }
+
+    /** Moving average of the time taken by the URLs of a queue to be acked * */
+    private static final class QueueTiming {
+        private double average = 0;
+        private int samples = 0;
+        private long lastRelease = 0;
     }
 }
@@ -0,0 +1,133 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence.urlbuffer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel, as used e.g. by Kafka for its delayed operations. Items are placed in
+ * the bucket corresponding to their expiration time; the ones too far in the future go to an
+ * overflow wheel with coarser buckets and get moved down as the time advances. Adding an item and
+ * advancing by one tick are O(1). Items can be released up to one tick before their expiration. Not
+ * thread safe.
+ *
+ * @since 2.5
+ */
+class TimingWheel<T> {
+
+    private final long tickMs;
+    private final int wheelSize;
+    private final long interval;
+    private final ArrayDeque<Entry<T>>[] buckets;
+
+    private long currentTime;
+    private int size = 0;
+
+    private TimingWheel<T> overflowWheel;
+
+    TimingWheel(long tickMs, int wheelSize, long startMs) {
+        this.tickMs = tickMs;
+        this.wheelSize = wheelSize;
+        this.interval = tickMs * wheelSize;
+        this.currentTime = startMs - (startMs % tickMs);
+        this.buckets = new ArrayDeque[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Schedules the item for the given time
+     *
+     * @return false if the item is already due, in which case it is not added
+     */
+    boolean add(T item, long expirationMs) {
+        return add(new Entry<>(item, expirationMs));
+    }
+
+    private boolean add(Entry<T> entry) {
+        if (entry.expiration < currentTime + tickMs) {
+            return false;
+        }
+        if (entry.expiration < currentTime + interval) {
+            buckets[(int) ((entry.expiration / tickMs) % wheelSize)].add(entry);
+            size++;
+        } else {
+            if (overflowWheel == null) {
+                overflowWheel = new TimingWheel<>(interval, wheelSize, currentTime);
+            }
+            overflowWheel.add(entry);
+        }
+        return true;
+    }
+
+    /** Moves the clock to the time specified and passes the items which are due to the consumer */
+    void advance(long nowMs, Consumer<T> due) {
+        advanceEntries(nowMs, e -> due.accept(e.item));
+    }
+
+    private void advanceEntries(long nowMs, Consumer<Entry<T>> sink) {
+        long target = nowMs - (nowMs % tickMs);
+        if (target > currentTime) {
+            // no need to go round more than once
+            long steps = Math.min((target - currentTime) / tickMs, wheelSize);
+            long firstTick = currentTime / tickMs + 1;
+            currentTime = target;
+            if (size > 0) {
+                List<Entry<T>> expired = new ArrayList<>();
+                for (long i = 0; i < steps; i++) {
+                    ArrayDeque<Entry<T>> bucket = buckets[(int) ((firstTick + i) % wheelSize)];
+                    size -= bucket.size();
+                    expired.addAll(bucket);
+                    bucket.clear();
+                }
+                for (Entry<T> e : expired) {
+                    if (!add(e)) {
+                        sink.accept(e);
+                    }
+                }
+            }
+        }
+        if (overflowWheel != null) {
+            // entries coming from the overflow go to this wheel
+            // unless they are already due
+            overflowWheel.advanceEntries(
+                    nowMs,
+                    e -> {
+                        if (!add(e)) {
+                            sink.accept(e);
+                        }
+                    });
+        }
+    }
+
+    /** Number of items in this wheel and its overflow */
+    int size() {
+        return size + (overflowWheel != null ? overflowWheel.size() : 0);
+    }
+
+    private static final class Entry<T> {
+        private final T item;
+        private final long expiration;
+
+        private Entry(T item, long expiration) {
+            this.item = item;
+            this.expiration = expiration;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.storm.generated.GlobalStreamId;
+import org.apache.storm.task.WorkerTopologyContext;
+
+/**
+ * URLStreamGrouping which spreads the load between the target tasks when some partition keys are a
+ * lot more frequent than others. Each key has two candidate tasks and is sent to the one which has
+ * received fewer tuples recently (power of two choices). The choice is kept as long as the key
+ * keeps being seen within a configurable time, so that all the URLs of a host are handled by the
+ * same task while it has some in its queues.
+ *
+ * <p>Each instance of the grouping tracks the tuples it sends, the choice is consistent only if the
+ * URLs for a given key are emitted by a single upstream task. The grouping fails to prepare if the
+ * source component has more than one task, unless {@value #PARTITIONED_SOURCES_PARAM} is set to
+ * true to indicate that the URLs are partitioned the same way between the upstream tasks, e.g. by a
+ * fields grouping on the key or with spouts reading a status index routed by host in Elasticsearch.
+ *
+ * <p>Use as follows with Flux :
+ *
+ * <pre>{@code
+ * streams:
+ *  - from: "spout"
+ *    to: "fetcher"
+ *    grouping:
+ *      type: CUSTOM
+ *      customClass:
+ *        className: "com.digitalpebble.stormcrawler.util.BalancedURLStreamGrouping"
+ *        constructorArgs:
+ *          - "byHost"
+ * }</pre>
+ *
+ * @since 2.5
+ */
+public class BalancedURLStreamGrouping extends URLStreamGrouping {
+
+    /** Number of seconds without tuples after which the task of a key is chosen again */
+    public static final String PIN_PARAM = "partition.balanced.pin.secs";
+
+    /** Max number of keys for which the choice of task is kept */
+    public static final String MAX_KEYS_PARAM = "partition.balanced.max.keys";
+
+    /**
+     * Whether the URLs of a key are always emitted by the same task of the source component, which
+     * is required if it has more than one task. False by default.
+     */
+    public static final String PARTITIONED_SOURCES_PARAM = "partition.balanced.partitioned.sources";
+
+    private transient Cache<String, Integer> pinned;
+
+    /** Number of tuples sent to each task, halved every pin period */
+    private transient long[] load;
+
+    private transient long decayPeriodMsec;
+
+    private transient long lastDecay;
+
+    public BalancedURLStreamGrouping() {
+        super();
+    }
+
+    public BalancedURLStreamGrouping(String mode) {
+        super(mode);
+    }
+
+    @Override
+    public void prepare(
+            WorkerTopologyContext context, GlobalStreamId stream, List<Integer> targetTasks) {
+        super.prepare(context, stream, targetTasks);
+        Map<String, Object> conf = context.getConf();
+        List<Integer> sources = context.getComponentTasks(stream.get_componentId());
+        if (sources != null
+                && sources.size() > 1
+                && !ConfUtils.getBoolean(conf, PARTITIONED_SOURCES_PARAM, false)) {
+            throw new IllegalArgumentException(
+                    "BalancedURLStreamGrouping from "
+                            + stream.get_componentId()
+                            + " which has "
+                            + sources.size()
+                            + " tasks, set "
+                            + PARTITIONED_SOURCES_PARAM
+                            + " to true if they emit distinct keys");
+        }
+        int pinSecs = ConfUtils.getInt(conf, PIN_PARAM, 600);
+        int maxKeys = ConfUtils.getInt(conf, MAX_KEYS_PARAM, 100000);
+        pinned =
+                Caffeine.newBuilder()
+                        .expireAfterAccess(pinSecs, TimeUnit.SECONDS)
+                        .maximumSize(maxKeys)
+                        .build();
+        load = new long[targetTasks.size()];
+        decayPeriodMsec = pinSecs * 1000L;
+        lastDecay = System.currentTimeMillis();
+    }
+
+    @Override
+    protected int choosePartition(String partitionKey, int numTasks) {
+        decay();
+        int partition = pinned.get(partitionKey, k -> leastLoaded(k, numTasks));
+        load[partition]++;
+        return partition;
+    }
+
+    private int leastLoaded(String partitionKey, int numTasks) {
+        // consistent hashing so that keys keep their candidates when rescaling
+        long hash = URLFingerprint.hash64(partitionKey);
+        int first = PartitionHashing.jump(hash, numTasks);
+        int second = PartitionHashing.jump(URLFingerprint.rehash(hash), numTasks);
+        if (second == first) {
+            second = (first + 1) % numTasks;
+        }
+        return load[second] < load[first] ? second : first;
+    }
+
+    /** Gives more weight to the recent tuples */
+    private void decay() {
+        long now = System.currentTimeMillis();
+        if (now - lastDecay < decayPeriodMsec) {
+            return;
+        }
+        lastDecay = now;
+        for (int i = 0; i < load.length; i++) {
+            load[i] = load[i] / 2;
+        }
+    }
+}
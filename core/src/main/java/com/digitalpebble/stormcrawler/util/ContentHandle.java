@@ -0,0 +1,86 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.util;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Reference to some content held in the {@link ContentStore} of the worker, used as the value of
+ * the "content" field of the tuples instead of the bytes. When a tuple is sent to another worker,
+ * the bytes are serialized and put into the store of the receiving worker.
+ *
+ * @since 2.5
+ */
+@DefaultSerializer(ContentHandle.HandleSerializer.class)
+public final class ContentHandle {
+
+    final long id;
+    final int length;
+
+    ContentHandle(long id, int length) {
+        this.id = id;
+        this.length = length;
+    }
+
+    /** Number of bytes of the content */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns the content or null if it has expired from the store. The array is shared with the
+     * other tasks of the worker and must not be modified.
+     */
+    public byte[] getBytes() {
+        return ContentStore.getInstance().get(this);
+    }
+
+    @Override
+    public String toString() {
+        return "ContentHandle[" + id + ", " + length + " bytes]";
+    }
+
+    /**
+     * Writes the bytes of the content, which is then dropped from the local store if no other task
+     * of the worker uses it. A null array is read if the content had expired.
+     */
+    public static class HandleSerializer extends Serializer<ContentHandle> {
+
+        @Override
+        public void write(Kryo kryo, Output output, ContentHandle handle) {
+            ContentStore store = ContentStore.getInstance();
+            byte[] bytes = store.get(handle);
+            if (bytes == null) {
+                output.writeInt(0, true);
+                return;
+            }
+            output.writeInt(bytes.length + 1, true);
+            output.writeBytes(bytes);
+            // the remote task takes over the reference
+            store.release(handle);
+        }
+
+        @Override
+        public ContentHandle read(Kryo kryo, Input input, Class<ContentHandle> type) {
+            int length = input.readInt(true) - 1;
+            byte[] bytes = length < 0 ? null : input.readBytes(length);
+            return ContentStore.getInstance().put(bytes);
+        }
+    }
+}
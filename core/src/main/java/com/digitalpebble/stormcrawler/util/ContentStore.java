@@ -0,0 +1,255 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.util;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.apache.storm.tuple.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the content of the fetched pages so that the bolts of a worker can pass a {@link
+ * ContentHandle} to each other instead of the bytes. The array fetched is shared by all the tasks
+ * of the worker, it is copied only when a tuple is serialized for another worker, and must not be
+ * modified. The content is kept as long as some tasks still have to process it: each task receiving
+ * a handle holds a reference to it, which it passes on when emitting it again and releases when
+ * done with it. The content is also dropped after a configurable time in case a bolt doesn't
+ * release it, which is checked by a background thread.
+ *
+ * <p>Emitting bolts call {@link #wrap(byte[])}, then emit the tuple with {@link #emit(Object,
+ * Supplier)} and finally {@link #release(Object)}. Receiving bolts get the bytes with {@link
+ * #getContent(Tuple)} and call {@link #release(Tuple)} once done.
+ *
+ * <p>There is one store per worker, disabled by default, in which case the bytes are passed as
+ * before.
+ *
+ * @since 2.5
+ */
+public final class ContentStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContentStore.class);
+
+    /** Whether the content is passed as a handle between the bolts, default false. */
+    public static final String ENABLED_PARAM = "content.store.enabled";
+
+    /**
+     * Max number of bytes held in the store, content is passed as bytes if above, default
+     * 268435456.
+     */
+    public static final String MAX_BYTES_PARAM = "content.store.max.bytes";
+
+    /** Time in seconds after which content is dropped even if still referenced, default 600. */
+    public static final String TTL_PARAM = "content.store.ttl.sec";
+
+    private static final long SWEEP_INTERVAL_MSEC = 10000;
+
+    private static final ContentStore INSTANCE = new ContentStore();
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong bytesHeld = new AtomicLong();
+
+    private volatile boolean enabled = false;
+    private volatile long maxBytes = 256L * 1024 * 1024;
+    private volatile long ttlMsec = 600_000L;
+
+    private ScheduledExecutorService sweeper;
+
+    private ContentStore() {}
+
+    /** Returns the store of the worker, configured with the given configuration */
+    public static ContentStore getInstance(Map<String, Object> conf) {
+        INSTANCE.enabled = ConfUtils.getBoolean(conf, ENABLED_PARAM, false);
+        INSTANCE.maxBytes = ConfUtils.getLong(conf, MAX_BYTES_PARAM, INSTANCE.maxBytes);
+        INSTANCE.ttlMsec = ConfUtils.getLong(conf, TTL_PARAM, 600) * 1000L;
+        if (INSTANCE.enabled) {
+            INSTANCE.startSweeper();
+        }
+        return INSTANCE;
+    }
+
+    static ContentStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a handle to the content if the store is enabled and not full, the content itself
+     * otherwise. The caller holds a reference to the handle.
+     */
+    public Object wrap(byte[] content) {
+        if (!enabled || content == null || bytesHeld.get() + content.length > maxBytes) {
+            return content;
+        }
+        return put(content);
+    }
+
+    ContentHandle put(byte[] content) {
+        long id = ids.incrementAndGet();
+        int length = content == null ? -1 : content.length;
+        if (content != null) {
+            bytesHeld.addAndGet(content.length);
+        }
+        entries.put(id, new Entry(content));
+        return new ContentHandle(id, length);
+    }
+
+    /** Returns the content held for the handle, not a copy, or null if it has been dropped */
+    byte[] get(ContentHandle handle) {
+        Entry entry = entries.get(handle.id);
+        return entry == null ? null : entry.content;
+    }
+
+    private void release(ContentHandle handle) {
+        Entry entry = entries.get(handle.id);
+        if (entry != null && entry.references.decrementAndGet() <= 0) {
+            remove(handle.id);
+        }
+    }
+
+    private void remove(long id) {
+        Entry entry = entries.remove(id);
+        if (entry != null && entry.content != null) {
+            bytesHeld.addAndGet(-entry.content.length);
+        }
+    }
+
+    private synchronized void startSweeper() {
+        if (sweeper != null) {
+            return;
+        }
+        sweeper =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread t = new Thread(r, "content-store-sweeper");
+                            t.setDaemon(true);
+                            return t;
+                        });
+        sweeper.scheduleWithFixedDelay(
+                this::sweep, SWEEP_INTERVAL_MSEC, SWEEP_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+    }
+
+    /** Drops the content which has been held for longer than the TTL */
+    void sweep() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        Iterator<Map.Entry<Long, Entry>> iter = entries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, Entry> e = iter.next();
+            if (now - e.getValue().created > ttlMsec) {
+                remove(e.getKey());
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            LOG.warn("Dropped {} contents still referenced after {} msec", expired, ttlMsec);
+        }
+    }
+
+    /** Number of contents held */
+    public int size() {
+        return entries.size();
+    }
+
+    /** Number of bytes held */
+    public long bytesHeld() {
+        return bytesHeld.get();
+    }
+
+    /**
+     * Emits a tuple containing the content and adds a reference to it for each task it was sent to.
+     * The content is held while emitting so that it can't be dropped by a task releasing it before
+     * the references have been added, e.g. a local task processing the tuple straight away or the
+     * serialization of the tuple for a remote task.
+     *
+     * @param emitter emits the tuple and returns the tasks it was sent to
+     * @return the tasks the tuple was sent to
+     */
+    public static List<Integer> emit(Object content, Supplier<List<Integer>> emitter) {
+        Entry entry = null;
+        if (content instanceof ContentHandle) {
+            entry = INSTANCE.entries.get(((ContentHandle) content).id);
+        }
+        if (entry == null) {
+            return emitter.get();
+        }
+        entry.references.incrementAndGet();
+        try {
+            List<Integer> tasks = emitter.get();
+            if (tasks != null) {
+                entry.references.addAndGet(tasks.size());
+            }
+            return tasks;
+        } finally {
+            INSTANCE.release((ContentHandle) content);
+        }
+    }
+
+    /** Releases a reference to the content if it is a handle */
+    public static void release(Object content) {
+        if (content instanceof ContentHandle) {
+            INSTANCE.release((ContentHandle) content);
+        }
+    }
+
+    /** Releases the reference held to the content of the tuple if any */
+    public static void release(Tuple tuple) {
+        if (tuple.contains("content")) {
+            release(tuple.getValueByField("content"));
+        }
+    }
+
+    /**
+     * Returns the bytes from the "content" field of a tuple, whether it contains the bytes or a
+     * handle. Returns null if the content has expired. The array is shared with the other tasks and
+     * must not be modified.
+     */
+    public static byte[] getContent(Tuple tuple) {
+        Object content = tuple.getValueByField("content");
+        if (content instanceof ContentHandle) {
+            return ((ContentHandle) content).getBytes();
+        }
+        return tuple.getBinaryByField("content");
+    }
+
+    /**
+     * Returns the value to emit for some content obtained with {@link #getContent(Tuple)}: the
+     * handle of the tuple if it had one, the bytes otherwise.
+     */
+    public static Object valueOf(Tuple tuple, byte[] content) {
+        Object value = tuple.getValueByField("content");
+        return value instanceof ContentHandle ? value : content;
+    }
+
+    private static final class Entry {
+        private final byte[] content;
+        private final long created = System.currentTimeMillis();
+        // held by the task which created the entry
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Entry(byte[] content) {
+            this.content = content;
+        }
+    }
+}
@@ -113,15 +113,30 @@ public class MetadataTransfer {
         mdToPersistOnly.addAll(ConfUtils.loadListFromConf(metadataPersistParamName, conf));
         // always add the fetch error count
         mdToPersistOnly.add(Constants.fetchErrorCountParamName);
+        // and the digest of the status, if any
+        mdToPersistOnly.add(Constants.STATUS_DIGEST_KEY);
     }
 
     /**
      * Determine which metadata should be transfered to an outlink. Adds additional metadata like
-     * the URL path.
+     * the URL path. The ID of the document of the source URL is never transferred.
      */
     public Metadata getMetaForOutlink(String targetURL, String sourceURL, Metadata parentMD) {
+        return getMetaForOutlinks(sourceURL, parentMD);
+    }
+
+    /**
+     * Same as {@link #getMetaForOutlink(String, String, Metadata)} for all the outlinks of a
+     * document, as the metadata do not depend on the target URL. The instance returned is meant to
+     * be given to each outlink with {@link Metadata#copy()}, which only duplicates the content of
+     * the copies which get modified.
+     */
+    public Metadata getMetaForOutlinks(String sourceURL, Metadata parentMD) {
         Metadata md = _filter(parentMD, mdToTransfer);
 
+        // identifies the source document only
+        md.remove(Constants.DOCUMENT_ID_KEY);
+
         // keep the path?
         if (trackPath) {
             md.addValue(urlPathKeyName, sourceURL);
@@ -129,14 +144,8 @@ public class MetadataTransfer {
 
         // track depth
         if (trackDepth) {
-            String existingDepth = md.getFirstValue(depthKeyName);
-            int depth;
-            try {
-                depth = Integer.parseInt(existingDepth);
-            } catch (Exception e) {
-                depth = 0;
-            }
-            md.setValue(depthKeyName, Integer.toString(++depth));
+            int depth = md.getInt(depthKeyName, 0);
+            md.setLong(depthKeyName, ++depth);
         }
 
         return md;
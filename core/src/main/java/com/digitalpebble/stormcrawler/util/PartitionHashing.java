@@ -0,0 +1,86 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.util;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Methods for mapping a partition key e.g. a hostname to one of a number of buckets or tasks. With
+ * MODULO, the default, nearly all the keys move to a different bucket when the number of buckets
+ * changes. JUMP (jump consistent hash) and RENDEZVOUS (highest random weight) only move about 1/N
+ * of the keys when going from N to N+1 buckets, which preserves the per-task state like the robots
+ * or DNS caches when a topology is rescaled. JUMP is faster, RENDEZVOUS is O(N) but does not depend
+ * on the order of the buckets.
+ *
+ * @since 2.5
+ */
+public enum PartitionHashing {
+    MODULO {
+        @Override
+        public int partition(String key, int buckets) {
+            return Math.abs(key.hashCode() % buckets);
+        }
+    },
+    JUMP {
+        @Override
+        public int partition(String key, int buckets) {
+            return jump(URLFingerprint.hash64(key), buckets);
+        }
+    },
+    RENDEZVOUS {
+        @Override
+        public int partition(String key, int buckets) {
+            long hash = URLFingerprint.hash64(key);
+            int best = 0;
+            long bestWeight = Long.MIN_VALUE;
+            for (int i = 0; i < buckets; i++) {
+                long weight = URLFingerprint.rehash(hash + i * 0x9e3779b97f4a7c15L);
+                if (weight > bestWeight) {
+                    bestWeight = weight;
+                    best = i;
+                }
+            }
+            return best;
+        }
+    };
+
+    /** Name of the method used for the partitioning, default "modulo" */
+    public static final String PARAM_NAME = "partition.hashing";
+
+    /** Returns a bucket between 0 and buckets - 1 for the key */
+    public abstract int partition(String key, int buckets);
+
+    /** Returns the method set in the configuration */
+    public static PartitionHashing fromConf(Map<String, Object> conf) {
+        String name = ConfUtils.getString(conf, PARAM_NAME, MODULO.name());
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Jump consistent hash from Lamping and Veach, "A Fast, Minimal Memory, Consistent Hash
+     * Algorithm"
+     */
+    static int jump(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+}
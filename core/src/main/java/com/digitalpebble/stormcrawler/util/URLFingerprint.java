@@ -0,0 +1,75 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.util;
+
+/**
+ * Computes 64-bit fingerprints of URLs. Based on the mixing functions of MurmurHash3 but works
+ * directly on the characters of the String so that no intermediate byte array is created. The
+ * values are stable across JVMs and can be persisted.
+ */
+public final class URLFingerprint {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final long SEED = 0x9747b28c3b1a5f21L;
+
+    private URLFingerprint() {}
+
+    /** Returns a 64-bit hash of the sequence of characters */
+    public static long hash64(CharSequence s) {
+        final int length = s.length();
+        long h = SEED;
+        int i = 0;
+        // process blocks of 4 chars i.e. 64 bits
+        for (; i + 4 <= length; i += 4) {
+            long k =
+                    s.charAt(i)
+                            | ((long) s.charAt(i + 1) << 16)
+                            | ((long) s.charAt(i + 2) << 32)
+                            | ((long) s.charAt(i + 3) << 48);
+            h ^= mixK(k);
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        // remaining chars
+        long k = 0;
+        for (int shift = 0; i < length; i++, shift += 16) {
+            k |= (long) s.charAt(i) << shift;
+        }
+        h ^= mixK(k);
+        h ^= length;
+        return fmix64(h);
+    }
+
+    /** Secondary hash derived from a fingerprint, used e.g. for double hashing. */
+    public static long rehash(long fingerprint) {
+        return fmix64(fingerprint ^ C2);
+    }
+
+    private static long mixK(long k) {
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        k *= C2;
+        return k;
+    }
+
+    private static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -25,12 +25,14 @@ import org.apache.storm.generated.GlobalStreamId;
 import org.apache.storm.grouping.CustomStreamGrouping;
 import org.apache.storm.shade.org.apache.commons.lang.StringUtils;
 import org.apache.storm.task.WorkerTopologyContext;
+import org.apache.storm.tuple.Fields;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Directs tuples to a specific bolt instance based on the URLPartitioner, e.g. byIP, byDomain or
- * byHost.
+ * byHost. The value of the field 'key' is used as partition key if the tuples have one, e.g. when
+ * coming from the URLPartitionerBolt.
  *
  * <p>Use as follows with Flux :
  *
@@ -56,6 +58,14 @@ public class URLStreamGrouping implements CustomStreamGrouping, Serializable {
 
     private String partitionMode;
 
+    private PartitionHashing hashing;
+
+    /** position of the 'key' field in the tuples or -1 if there isn't one */
+    private int keyIndex = -1;
+
+    /** position of the metadata in the tuples */
+    private int metadataIndex = 1;
+
     /** Groups URLs based on the hostname * */
     public URLStreamGrouping() {}
 
@@ -67,6 +77,14 @@ public class URLStreamGrouping implements CustomStreamGrouping, Serializable {
     public void prepare(
             WorkerTopologyContext context, GlobalStreamId stream, List<Integer> targetTasks) {
         this.targetTask = targetTasks;
+        Fields fields = context.getComponentOutputFields(stream);
+        if (fields != null && fields.contains("key")) {
+            keyIndex = fields.fieldIndex("key");
+        }
+        if (fields != null && fields.contains("metadata")) {
+            metadataIndex = fields.fieldIndex("metadata");
+        }
+        hashing = PartitionHashing.fromConf(context.getConf());
         partitioner = new URLPartitioner();
         if (StringUtils.isNotBlank(partitionMode)) {
             Map<String, String> conf = new HashMap<>();
@@ -91,18 +109,29 @@ public class URLStreamGrouping implements CustomStreamGrouping, Serializable {
         }
 
         // the first value is always the URL
-        // and the second the metadata
         String url = (String) values.get(0);
-        Metadata metadata = (Metadata) values.get(1);
-        String partitionKey = partitioner.getPartition(url, metadata);
+        String partitionKey;
+        if (keyIndex != -1) {
+            partitionKey = (String) values.get(keyIndex);
+        } else {
+            Metadata metadata = (Metadata) values.get(metadataIndex);
+            partitionKey = partitioner.getPartition(url, metadata);
+        }
 
         if (StringUtils.isBlank(partitionKey)) {
             LOG.error("No partition key for {}", url);
             return ImmutableList.of();
         }
 
-        // hash on the key
-        int partition = Math.abs(partitionKey.hashCode() % targetTask.size());
+        int partition = choosePartition(partitionKey, targetTask.size());
         return ImmutableList.of(targetTask.get(partition));
     }
+
+    /**
+     * Returns the index of the target task for a partition key, hashes the key with the method set
+     * in the configuration by default
+     */
+    protected int choosePartition(String partitionKey, int numTasks) {
+        return hashing.partition(partitionKey, numTasks);
+    }
 }
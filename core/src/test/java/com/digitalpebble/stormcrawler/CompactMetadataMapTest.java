@@ -0,0 +1,115 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactMetadataMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        CompactMetadataMap map = new CompactMetadataMap();
+        map.put("c", new String[] {"3"});
+        map.put("a", new String[] {"1"});
+        map.put("b", new String[] {"2"});
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<>(map.keySet()));
+        Assert.assertEquals("2", map.get("b")[0]);
+        Assert.assertNull(map.get("d"));
+
+        String[] previous = map.put("b", new String[] {"4"});
+        Assert.assertEquals("2", previous[0]);
+        Assert.assertEquals("4", map.get("b")[0]);
+
+        Assert.assertEquals("1", map.remove("a")[0]);
+        Assert.assertFalse(map.containsKey("a"));
+        Assert.assertEquals(Arrays.asList("b", "c"), new ArrayList<>(map.keySet()));
+
+        Iterator<Entry<String, String[]>> iter = map.entrySet().iterator();
+        iter.next();
+        iter.remove();
+        Assert.assertEquals("c", iter.next().getKey());
+        Assert.assertFalse(iter.hasNext());
+        Assert.assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testCopyOnWrite() {
+        Metadata parent = new Metadata();
+        parent.setValue("key", "value");
+        parent.setValue("other", "value");
+
+        Metadata child = parent.copy();
+        child.setValue("key", "changed");
+        child.remove("other");
+        parent.addValue("new", "value");
+
+        Assert.assertEquals("value", parent.getFirstValue("key"));
+        Assert.assertEquals("value", parent.getFirstValue("other"));
+        Assert.assertEquals("changed", child.getFirstValue("key"));
+        Assert.assertNull(child.getFirstValue("other"));
+        Assert.assertNull(child.getFirstValue("new"));
+
+        // putAll into an empty instance shares the content
+        Metadata merged = new Metadata();
+        merged.putAll(parent);
+        merged.setValue("key", "merged");
+        Assert.assertEquals("value", parent.getFirstValue("key"));
+        Assert.assertEquals(3, merged.size());
+    }
+
+    @Test
+    public void testNumbers() {
+        Metadata md = new Metadata();
+        md.setLong("depth", 3);
+        Assert.assertEquals("3", md.getFirstValue("depth"));
+        Assert.assertEquals(3, md.getInt("depth", -1));
+
+        md.setValue("depth", "12");
+        Assert.assertEquals(12, md.getLong("depth", -1));
+
+        md.setValue("notanumber", "abc");
+        Assert.assertEquals(-1, md.getInt("notanumber", -1));
+        Assert.assertEquals(-1, md.getInt("missing", -1));
+
+        md.setValue("big", Long.toString(Long.MAX_VALUE));
+        Assert.assertEquals(-1, md.getInt("big", -1));
+
+        // the cached value is not shared with a copy which changes it
+        Metadata copy = md.copy();
+        copy.setLong("depth", 5);
+        Assert.assertEquals(12, md.getInt("depth", -1));
+        Assert.assertEquals(5, copy.getInt("depth", -1));
+    }
+
+    @Test
+    public void testWrappedMap() {
+        Metadata md = new Metadata(new HashMap<>());
+        md.setLong("depth", 3);
+        Assert.assertEquals(3, md.getInt("depth", -1));
+        Metadata copy = md.copy();
+        copy.setLong("depth", 4);
+        Assert.assertEquals(3, md.getInt("depth", -1));
+        List<String> keys = new ArrayList<>(copy.keySet());
+        Assert.assertEquals(Arrays.asList("depth"), keys);
+    }
+}
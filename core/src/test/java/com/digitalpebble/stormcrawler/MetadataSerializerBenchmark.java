@@ -0,0 +1,85 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.DefaultArraySerializers.StringArraySerializer;
+import com.esotericsoftware.kryo.serializers.DefaultSerializers.StringSerializer;
+import com.esotericsoftware.kryo.serializers.MapSerializer;
+import java.util.HashMap;
+
+/**
+ * Compares the size and speed of the {@link MetadataSerializer} with the serialization of a HashMap
+ * with the Kryo MapSerializer, which was used previously. Run with
+ *
+ * <pre>
+ * mvn exec:java -Dexec.mainClass=com.digitalpebble.stormcrawler.MetadataSerializerBenchmark -Dexec.classpathScope=test
+ * </pre>
+ */
+public class MetadataSerializerBenchmark {
+
+    private static final int ITERATIONS = 500_000;
+
+    public static void main(String[] args) {
+        Metadata md = new Metadata();
+        md.setValue("url.path", "https://www.example.com/news/index.html");
+        md.setLong("depth", 3);
+        md.setLong("fetch.statusCode", 200);
+        md.setLong("fetch.byteLength", 53412);
+        md.setLong("fetch.loadingTime", 412);
+        md.setValue("signature", "d41d8cd98f00b204e9800998ecf8427e");
+        md.setLong("fetchInterval", 1440);
+        md.setValue("protocol.content-type", "text/html; charset=UTF-8");
+        md.setValue("protocol.server", "nginx");
+        md.setValue("protocol.date", "Mon, 19 Oct 2026 10:00:00 GMT");
+        md.setValue("protocol.cache-control", "max-age=600");
+        md.setValue("protocol.x-request-id", "0f6c2a4e-1b2a-4bcb-9d8e-3a3b7c6f5e21");
+        md.setValue("parse.title", "Example news");
+        md.setValue("discoveryDate", "2026-10-18T09:12:45.123Z");
+
+        Kryo kryo = new Kryo();
+        kryo.register(Metadata.class, new MetadataSerializer());
+        MapSerializer mapSerializer = new MapSerializer();
+        mapSerializer.setKeyClass(String.class, new StringSerializer());
+        mapSerializer.setValueClass(String[].class, new StringArraySerializer());
+        mapSerializer.setKeysCanBeNull(false);
+        kryo.register(HashMap.class, mapSerializer);
+
+        HashMap<String, String[]> map = new HashMap<>(md.asMap());
+
+        run("MetadataSerializer", kryo, md, Metadata.class);
+        run("MapSerializer", kryo, map, HashMap.class);
+    }
+
+    private static void run(String name, Kryo kryo, Object object, Class<?> type) {
+        Output output = new Output(4096, -1);
+        kryo.writeObject(output, object);
+        int size = output.position();
+        byte[] bytes = output.toBytes();
+        Input input = new Input();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            output.clear();
+            kryo.writeObject(output, object);
+            input.setBuffer(bytes);
+            kryo.readObject(input, type);
+        }
+        long nsPerOp = (System.nanoTime() - start) / ITERATIONS;
+        System.out.println(name + ": " + size + " bytes, " + nsPerOp + " ns per round trip");
+    }
+}
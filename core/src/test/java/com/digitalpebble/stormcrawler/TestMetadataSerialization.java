@@ -55,4 +55,24 @@ public class TestMetadataSerialization {
         // compare md1 and md2
         assertEquals(md.toString(), md2.toString());
     }
+
+    @Test
+    public void testMultipleValues() throws IOException {
+        Map conf = Utils.readDefaultConfig();
+        Config.registerSerialization(conf, Metadata.class);
+
+        Metadata md = new Metadata();
+        md.addValue("multi", "one");
+        md.addValue("multi", "two");
+        md.setLong("depth", 2);
+        md.setValue("nullvalue", null);
+
+        byte[] content = new KryoValuesSerializer(conf).serializeObject(md);
+        Metadata md2 = (Metadata) new KryoValuesDeserializer(conf).deserializeObject(content);
+
+        assertEquals(md.toString(), md2.toString());
+        assertEquals(2, md2.getValues("multi").length);
+        assertEquals(2, md2.getInt("depth", -1));
+        assertTrue(md2.containsKey("nullvalue"));
+    }
 }
@@ -0,0 +1,128 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.lang.StringUtils;
+import org.apache.storm.Config;
+import org.apache.storm.serialization.KryoValuesDeserializer;
+import org.apache.storm.serialization.KryoValuesSerializer;
+import org.apache.storm.utils.Utils;
+import org.junit.Test;
+
+public class TestMetadataSerializer {
+
+    private static Map<String, Object> getConf(boolean explicit) {
+        Map<String, Object> conf = Utils.readDefaultConfig();
+        if (explicit) {
+            Config.registerSerialization(conf, Metadata.class, MetadataSerializer.class);
+        } else {
+            Config.registerSerialization(conf, Metadata.class);
+        }
+        return conf;
+    }
+
+    private static Metadata roundTrip(Map<String, Object> conf, Metadata md) {
+        byte[] content = new KryoValuesSerializer(conf).serializeObject(md);
+        return (Metadata) new KryoValuesDeserializer(conf).deserializeObject(content);
+    }
+
+    private static Metadata getTestMetadata() {
+        Metadata md = new Metadata();
+        md.setValue("url.path", "http://www.example.com/");
+        md.setLong("depth", 2);
+        md.setLong("fetch.statusCode", 200);
+        md.setValue("protocol.x-custom-header", "custom");
+        md.setValue("my.own.key", "mine");
+        md.addValue("multi", "one");
+        md.addValue("multi", "two");
+        md.setValue("nullvalue", null);
+        return md;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        for (boolean explicit : new boolean[] {false, true}) {
+            Map<String, Object> conf = getConf(explicit);
+            Metadata md = getTestMetadata();
+            Metadata md2 = roundTrip(conf, md);
+            assertEquals(md.toString(), md2.toString());
+            assertEquals(md.size(), md2.size());
+            assertEquals(2, md2.getInt("depth", -1));
+            assertArrayEquals(new String[] {"one", "two"}, md2.getValues("multi"));
+            assertTrue(md2.containsKey("nullvalue"));
+            assertNull(md2.getFirstValue("nullvalue"));
+
+            assertEquals(0, roundTrip(conf, new Metadata()).size());
+            assertEquals(0, roundTrip(conf, Metadata.empty).size());
+        }
+    }
+
+    @Test
+    public void testWrappedMap() {
+        Map<String, String[]> map = new HashMap<>();
+        map.put("z", new String[] {"last"});
+        map.put("a", new String[] {"first"});
+        map.put("empty", new String[0]);
+        Metadata md2 = roundTrip(getConf(false), new Metadata(map));
+        assertEquals(Arrays.asList("a", "empty", "z"), Arrays.asList(md2.keySet().toArray()));
+        assertEquals("last", md2.getFirstValue("z"));
+    }
+
+    @Test
+    public void testDictionaryAndCompression() {
+        Map<String, Object> conf = getConf(true);
+        Metadata md = getTestMetadata();
+        String longValue = StringUtils.repeat("abcdefgh", 1000);
+        md.setValue("protocol._response.headers_", longValue);
+        md.addValue("longvalues", longValue);
+        md.addValue("longvalues", "short");
+
+        int plainSize = new KryoValuesSerializer(conf).serializeObject(md).length;
+
+        conf.put(MetadataSerializer.KEYS_PARAM, Arrays.asList("my.own.key", "multi"));
+        conf.put(MetadataSerializer.COMPRESSION_THRESHOLD_PARAM, 1024);
+        byte[] content = new KryoValuesSerializer(conf).serializeObject(md);
+        assertTrue(content.length < plainSize / 10);
+
+        Metadata md2 = (Metadata) new KryoValuesDeserializer(conf).deserializeObject(content);
+        assertEquals(md.toString(), md2.toString());
+        assertEquals(longValue, md2.getFirstValue("protocol._response.headers_"));
+        assertEquals("short", md2.getValues("longvalues")[1]);
+    }
+
+    @Test
+    public void testSmallerThanMap() {
+        Map<String, Object> conf = getConf(true);
+        Metadata md = getTestMetadata();
+        // size of the keys and values with one byte per char
+        int raw = 0;
+        for (Map.Entry<String, String[]> e : md.asMap().entrySet()) {
+            raw += e.getKey().length();
+            for (String v : e.getValue()) {
+                raw += v == null ? 0 : v.length();
+            }
+        }
+        byte[] content = new KryoValuesSerializer(conf).serializeObject(md);
+        assertTrue(content.length < raw);
+    }
+}
@@ -150,4 +150,62 @@ public class AdaptiveSchedulerTest {
                         .toInstant();
         Assert.assertEquals(lastFetch, lastModifiedTime);
     }
+
+    @Test
+    public void testHostLearning() {
+        Map<String, Object> conf = getConf();
+        conf.put(AdaptiveScheduler.HOST_LEARNING, true);
+        conf.put(AdaptiveScheduler.HOST_MIN_SAMPLES, 2);
+        Scheduler scheduler = new AdaptiveScheduler();
+        scheduler.init(conf);
+
+        // a page which never changes
+        Metadata metadata = new Metadata();
+        metadata.addValue("fetch.statusCode", "200");
+        metadata.addValue(AdaptiveScheduler.SIGNATURE_KEY, md5sumEmptyContent);
+        scheduler.schedule("http://static.com/a", Status.FETCHED, metadata);
+        for (int i = 0; i < 3; i++) {
+            metadata.setValue(AdaptiveScheduler.SIGNATURE_OLD_KEY, md5sumEmptyContent);
+            scheduler.schedule("http://static.com/a", Status.FETCHED, metadata);
+        }
+
+        /* a new page of the same host starts with the max interval */
+        Metadata other = new Metadata();
+        other.addValue("fetch.statusCode", "200");
+        other.addValue(AdaptiveScheduler.SIGNATURE_KEY, md5sumEmptyContent);
+        scheduler.schedule("http://static.com/b", Status.FETCHED, other);
+        Assert.assertEquals("10", other.getFirstValue(AdaptiveScheduler.FETCH_INTERVAL_KEY));
+
+        /* whereas one of an unknown host starts with the default interval */
+        other = new Metadata();
+        other.addValue("fetch.statusCode", "200");
+        other.addValue(AdaptiveScheduler.SIGNATURE_KEY, md5sumEmptyContent);
+        scheduler.schedule("http://unknown.com/b", Status.FETCHED, other);
+        Assert.assertEquals("5", other.getFirstValue(AdaptiveScheduler.FETCH_INTERVAL_KEY));
+
+        // a page which changes every time
+        conf.put(AdaptiveScheduler.HOST_BOUND_FACTOR, 1.5f);
+        conf.put("scheduler.adaptive.fetchInterval.max", 100);
+        conf.put("fetchInterval.default", 100);
+        scheduler = new AdaptiveScheduler();
+        scheduler.init(conf);
+        for (int i = 0; i < 3; i++) {
+            metadata = new Metadata();
+            metadata.addValue("fetch.statusCode", "200");
+            metadata.addValue(AdaptiveScheduler.FETCH_INTERVAL_KEY, "4");
+            metadata.addValue(AdaptiveScheduler.SIGNATURE_KEY, md5sumSpaceContent);
+            metadata.addValue(AdaptiveScheduler.SIGNATURE_OLD_KEY, md5sumEmptyContent);
+            scheduler.schedule("http://news.com/" + i, Status.FETCHED, metadata);
+        }
+
+        /* the interval of a page of the host is bounded by the estimate */
+        metadata = new Metadata();
+        metadata.addValue("fetch.statusCode", "200");
+        metadata.addValue(AdaptiveScheduler.FETCH_INTERVAL_KEY, "80");
+        metadata.addValue(AdaptiveScheduler.SIGNATURE_KEY, md5sumEmptyContent);
+        metadata.addValue(AdaptiveScheduler.SIGNATURE_OLD_KEY, md5sumEmptyContent);
+        scheduler.schedule("http://news.com/static", Status.FETCHED, metadata);
+        /* estimate is now 7.8 / 0.95 minutes, upper bound 8 * 1.5 */
+        Assert.assertEquals("12", metadata.getFirstValue(AdaptiveScheduler.FETCH_INTERVAL_KEY));
+    }
 }
@@ -0,0 +1,45 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence;
+
+import com.digitalpebble.stormcrawler.persistence.AbstractQueryingSpout.FingerprintInProcessMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InProcessMapTest {
+
+    @Test
+    public void testFingerprintInProcessMap() throws InterruptedException {
+        FingerprintInProcessMap map = new FingerprintInProcessMap(1, TimeUnit.SECONDS);
+        map.put("http://a.net/", null);
+        map.put("http://b.net/", "values");
+        Assert.assertEquals(2, map.size());
+        Assert.assertTrue(map.containsKey("http://a.net/"));
+        Assert.assertFalse(map.containsKey("http://c.net/"));
+
+        Assert.assertNull(map.remove("http://a.net/"));
+        Assert.assertEquals("values", map.remove("http://b.net/"));
+        Assert.assertEquals(0, map.size());
+
+        // still in purgatory
+        Assert.assertTrue(map.containsKey("http://a.net/"));
+        Assert.assertEquals(2, map.inCache());
+
+        Thread.sleep(1500);
+        Assert.assertFalse(map.containsKey("http://a.net/"));
+        Assert.assertEquals(0, map.inCache());
+    }
+}
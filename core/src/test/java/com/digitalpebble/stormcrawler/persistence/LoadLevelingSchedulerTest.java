@@ -0,0 +1,99 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence;
+
+import com.digitalpebble.stormcrawler.Metadata;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoadLevelingSchedulerTest {
+
+    private static final long MINUTE = 60_000L;
+
+    private static Map<String, Object> getConf() {
+        Map<String, Object> stormConf = new HashMap<>();
+        stormConf.put(Scheduler.schedulerClassParamName, LoadLevelingScheduler.class.getName());
+        stormConf.put("fetchInterval.default", 1440);
+        return stormConf;
+    }
+
+    @Test
+    public void testJitter() {
+        Scheduler scheduler = Scheduler.getInstance(getConf());
+
+        long before = System.currentTimeMillis();
+        Date first = scheduler.schedule("http://a.com/1", Status.FETCHED, new Metadata()).get();
+        Date second = scheduler.schedule("http://a.com/1", Status.FETCHED, new Metadata()).get();
+        long after = System.currentTimeMillis();
+
+        // same URL same delay
+        Assert.assertTrue(Math.abs(first.getTime() - second.getTime()) <= after - before);
+
+        // within the window
+        long min = before + 1440 * MINUTE;
+        long max = after + 1440 * MINUTE + 120 * MINUTE;
+        boolean delayed = false;
+        for (int i = 0; i < 20; i++) {
+            long next =
+                    scheduler
+                            .schedule("http://a.com/" + i, Status.FETCHED, new Metadata())
+                            .get()
+                            .getTime();
+            Assert.assertTrue(next >= min && next <= max);
+            delayed |= next > after + 1440 * MINUTE;
+        }
+        Assert.assertTrue(delayed);
+
+        // never refetched
+        Map<String, Object> conf = getConf();
+        conf.put("fetchInterval.error", -1);
+        scheduler = Scheduler.getInstance(conf);
+        Optional<Date> never = scheduler.schedule("http://a.com/", Status.ERROR, new Metadata());
+        Assert.assertFalse(never.isPresent());
+    }
+
+    @Test
+    public void testHistogram() {
+        Map<String, Object> conf = getConf();
+        conf.put(LoadLevelingScheduler.HISTOGRAM_PARAM, true);
+        conf.put(LoadLevelingScheduler.SLOT_PARAM, 30);
+        Scheduler scheduler = Scheduler.getInstance(conf);
+
+        int[] counts = new int[10];
+        long start = System.currentTimeMillis() + 1440 * MINUTE;
+        long firstSlot = start / (30 * MINUTE);
+        for (int i = 0; i < 100; i++) {
+            long next =
+                    scheduler
+                            .schedule("http://a.com/" + i, Status.FETCHED, new Metadata())
+                            .get()
+                            .getTime();
+            counts[(int) (next / (30 * MINUTE) - firstSlot)]++;
+        }
+        // the 100 URLs are spread evenly over the slots of the window
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int c : counts) {
+            if (c == 0) continue;
+            min = Math.min(min, c);
+            max = Math.max(max, c);
+        }
+        Assert.assertTrue(max - min <= 1);
+    }
+}
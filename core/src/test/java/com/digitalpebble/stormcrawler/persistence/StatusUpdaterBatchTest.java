@@ -0,0 +1,157 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence;
+
+import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.TestOutputCollector;
+import com.digitalpebble.stormcrawler.TestUtil;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.tuple.Tuple;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatusUpdaterBatchTest {
+
+    private final List<List<StatusUpdate>> batches = new ArrayList<>();
+
+    private TestOutputCollector output;
+
+    private AbstractStatusUpdaterBolt bolt;
+
+    @Before
+    public void setUp() {
+        bolt =
+                new AbstractStatusUpdaterBolt() {
+                    @Override
+                    protected void store(
+                            String url,
+                            Status status,
+                            Metadata metadata,
+                            Optional<Date> nextFetch,
+                            Tuple t) {
+                        throw new IllegalStateException("should not be called");
+                    }
+
+                    @Override
+                    protected void storeBatch(List<StatusUpdate> updates) {
+                        batches.add(updates);
+                        updates.forEach(this::ack);
+                    }
+                };
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(Scheduler.schedulerClassParamName, DefaultScheduler.class.getName());
+        conf.put(AbstractStatusUpdaterBolt.useCacheParamName, false);
+        conf.put(AbstractStatusUpdaterBolt.batchSizeParamName, 3);
+        conf.put(AbstractStatusUpdaterBolt.batchMaxDelayParamName, 60000);
+        output = new TestOutputCollector();
+        bolt.prepare(conf, TestUtil.getMockedTopologyContext(), new OutputCollector(output));
+    }
+
+    private Tuple tuple(String url, Status status) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("url", url);
+        values.put("status", status);
+        values.put("metadata", new Metadata());
+        return TestUtil.getMockedTestTuple(values);
+    }
+
+    @Test
+    public void testDuplicatesCollapsed() {
+        Tuple t1 = tuple("http://a.com/", Status.DISCOVERED);
+        Tuple t2 = tuple("http://a.com/", Status.FETCHED);
+        Tuple t3 = tuple("http://a.com/", Status.DISCOVERED);
+        Tuple t4 = tuple("http://b.com/", Status.DISCOVERED);
+        bolt.execute(t1);
+        bolt.execute(t2);
+        bolt.execute(t3);
+        Assert.assertTrue(batches.isEmpty());
+        bolt.execute(t4);
+        Assert.assertTrue(batches.isEmpty());
+        Tuple t5 = tuple("http://c.com/", Status.DISCOVERED);
+        bolt.execute(t5);
+
+        Assert.assertEquals(1, batches.size());
+        List<StatusUpdate> batch = batches.get(0);
+        Assert.assertEquals(3, batch.size());
+        StatusUpdate a = batch.get(0);
+        Assert.assertEquals("http://a.com/", a.getUrl());
+        // a later DISCOVERED does not override the FETCHED status
+        Assert.assertEquals(Status.FETCHED, a.getStatus());
+        Assert.assertEquals(3, a.getTuples().size());
+        Assert.assertEquals(5, output.getAckedTuples().size());
+        Assert.assertTrue(output.getFailedTuples().isEmpty());
+    }
+
+    @Test
+    public void testDefaultStoreBatch() {
+        List<Tuple> stored = new ArrayList<>();
+        AbstractStatusUpdaterBolt defaultBolt =
+                new AbstractStatusUpdaterBolt() {
+                    @Override
+                    protected void store(
+                            String url,
+                            Status status,
+                            Metadata metadata,
+                            Optional<Date> nextFetch,
+                            Tuple t) {
+                        if (url.startsWith("http://error")) {
+                            throw new IllegalStateException("can't store " + url);
+                        }
+                        // acked later as if the backend was asynchronous
+                        stored.add(t);
+                    }
+                };
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(Scheduler.schedulerClassParamName, DefaultScheduler.class.getName());
+        conf.put(AbstractStatusUpdaterBolt.useCacheParamName, false);
+        conf.put(AbstractStatusUpdaterBolt.batchSizeParamName, 3);
+        conf.put(AbstractStatusUpdaterBolt.batchMaxDelayParamName, 60000);
+        TestOutputCollector collector = new TestOutputCollector();
+        defaultBolt.prepare(
+                conf, TestUtil.getMockedTopologyContext(), new OutputCollector(collector));
+
+        Tuple a1 = tuple("http://a.com/", Status.DISCOVERED);
+        Tuple a2 = tuple("http://a.com/", Status.FETCHED);
+        Tuple e1 = tuple("http://error.com/", Status.DISCOVERED);
+        Tuple e2 = tuple("http://error.com/", Status.FETCHED);
+        Tuple b1 = tuple("http://b.com/", Status.DISCOVERED);
+        defaultBolt.execute(a1);
+        defaultBolt.execute(e1);
+        defaultBolt.execute(a2);
+        defaultBolt.execute(e2);
+        defaultBolt.execute(b1);
+
+        // only the tuples of the update which could not be stored are failed
+        Assert.assertEquals(2, collector.getFailedTuples().size());
+        Assert.assertTrue(collector.getFailedTuples().contains(e1));
+        Assert.assertTrue(collector.getFailedTuples().contains(e2));
+
+        // the superseded tuple is not acked before the update is stored
+        Assert.assertEquals(2, stored.size());
+        Assert.assertTrue(collector.getAckedTuples().isEmpty());
+        defaultBolt._collector.ack(a2);
+        Assert.assertEquals(2, collector.getAckedTuples().size());
+        Assert.assertTrue(collector.getAckedTuples().contains(a1));
+        defaultBolt._collector.fail(b1);
+        Assert.assertEquals(3, collector.getFailedTuples().size());
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence;
+
+import com.digitalpebble.stormcrawler.Constants;
+import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.TestOutputCollector;
+import com.digitalpebble.stormcrawler.TestUtil;
+import com.digitalpebble.stormcrawler.util.MetadataTransfer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.tuple.Tuple;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatusUpdaterDigestTest {
+
+    private Metadata stored;
+    private int stores;
+    private int unchanged;
+    private Boolean nextFetchChanged;
+
+    private AbstractStatusUpdaterBolt bolt;
+
+    @Before
+    public void setUp() {
+        bolt =
+                new AbstractStatusUpdaterBolt() {
+                    @Override
+                    protected void store(
+                            String url,
+                            Status status,
+                            Metadata metadata,
+                            Optional<Date> nextFetch,
+                            Tuple t) {
+                        stores++;
+                        stored = metadata;
+                        ack(t, url);
+                    }
+
+                    @Override
+                    protected void storeUnchanged(
+                            String url,
+                            Status status,
+                            Metadata metadata,
+                            Optional<Date> nextFetch,
+                            boolean changed,
+                            Tuple t) {
+                        unchanged++;
+                        nextFetchChanged = changed;
+                        stored = metadata;
+                        ack(t, url);
+                    }
+                };
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(Scheduler.schedulerClassParamName, DefaultScheduler.class.getName());
+        conf.put(Constants.errorFetchIntervalParamName, -1);
+        conf.put(AbstractStatusUpdaterBolt.useCacheParamName, false);
+        conf.put(AbstractStatusUpdaterBolt.digestParamName, true);
+        conf.put(
+                MetadataTransfer.metadataPersistParamName, Arrays.asList("a", "lastProcessedDate"));
+        bolt.prepare(
+                conf,
+                TestUtil.getMockedTopologyContext(),
+                new OutputCollector(new TestOutputCollector()));
+    }
+
+    private Tuple tuple(Status status, Metadata metadata) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("url", "http://a.com/");
+        values.put("status", status);
+        values.put("metadata", metadata);
+        return TestUtil.getMockedTestTuple(values);
+    }
+
+    /** Metadata as read back by a spout */
+    private Metadata roundTrip() {
+        Metadata md = new Metadata();
+        md.putAll(stored);
+        return md;
+    }
+
+    @Test
+    public void testUnchanged() throws InterruptedException {
+        Metadata md = new Metadata();
+        md.setValue("a", "1");
+        bolt.execute(tuple(Status.ERROR, md));
+        Assert.assertEquals(1, stores);
+        String digest = stored.getFirstValue(Constants.STATUS_DIGEST_KEY);
+        Assert.assertNotNull(digest);
+        Assert.assertTrue(digest.endsWith(":never"));
+
+        // only the lastProcessedDate differs
+        Thread.sleep(2);
+        bolt.execute(tuple(Status.ERROR, roundTrip()));
+        Assert.assertEquals(1, stores);
+        Assert.assertEquals(1, unchanged);
+        Assert.assertFalse(nextFetchChanged);
+        Assert.assertEquals(digest, stored.getFirstValue(Constants.STATUS_DIGEST_KEY));
+    }
+
+    @Test
+    public void testChanged() {
+        Metadata md = new Metadata();
+        md.setValue("a", "1");
+        bolt.execute(tuple(Status.FETCHED, md));
+        Assert.assertEquals(1, stores);
+
+        // same content, the nextFetchDate is passed on
+        bolt.execute(tuple(Status.FETCHED, roundTrip()));
+        Assert.assertEquals(1, stores);
+        Assert.assertEquals(1, unchanged);
+
+        // different metadata
+        md = roundTrip();
+        md.setValue("a", "2");
+        bolt.execute(tuple(Status.FETCHED, md));
+        Assert.assertEquals(2, stores);
+
+        // different status
+        bolt.execute(tuple(Status.ERROR, roundTrip()));
+        Assert.assertEquals(3, stores);
+        Assert.assertEquals(1, unchanged);
+    }
+}
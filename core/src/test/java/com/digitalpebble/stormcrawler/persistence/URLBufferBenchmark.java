@@ -0,0 +1,85 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence;
+
+import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.persistence.urlbuffer.URLBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compares the throughput of URLBuffer implementations when a thread adds URLs, like the callbacks
+ * of an asynchronous spout, while another one pulls them, like nextTuple. Not run as part of the
+ * tests; call with the fully qualified class names of the buffers to compare as arguments.
+ */
+public class URLBufferBenchmark {
+
+    private static final int NUM_HOSTS = 1000;
+    private static final int NUM_URLS = 2_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length == 0) {
+            args =
+                    new String[] {
+                        "com.digitalpebble.stormcrawler.persistence.urlbuffer.SimpleURLBuffer",
+                        "com.digitalpebble.stormcrawler.persistence.urlbuffer.ConcurrentURLBuffer"
+                    };
+        }
+        // warm up
+        for (String className : args) {
+            run(className);
+        }
+        for (String className : args) {
+            long time = run(className);
+            System.out.printf(
+                    "%s: %d msec, %.0f URLs/sec%n",
+                    className, time, NUM_URLS * 1000d / Math.max(1, time));
+        }
+    }
+
+    private static long run(String className) throws InterruptedException {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(URLBuffer.bufferClassParamName, className);
+        final URLBuffer buffer = URLBuffer.createInstance(conf);
+        final Metadata md = new Metadata();
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        long start = System.currentTimeMillis();
+        Thread producer =
+                new Thread(
+                        () -> {
+                            for (int i = 0; i < NUM_URLS; i++) {
+                                buffer.add(
+                                        "http://host" + (i % NUM_HOSTS) + ".com/page/" + i,
+                                        md,
+                                        "host" + (i % NUM_HOSTS));
+                            }
+                            done.set(true);
+                        });
+        producer.start();
+
+        int pulled = 0;
+        while (pulled < NUM_URLS) {
+            if (buffer.next() != null) {
+                pulled++;
+            } else if (done.get() && !buffer.hasNext()) {
+                break;
+            }
+        }
+        producer.join();
+        return System.currentTimeMillis() - start;
+    }
+}
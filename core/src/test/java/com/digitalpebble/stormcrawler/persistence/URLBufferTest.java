@@ -15,10 +15,18 @@
 package com.digitalpebble.stormcrawler.persistence;
 
 import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.persistence.urlbuffer.ConcurrentURLBuffer;
 import com.digitalpebble.stormcrawler.persistence.urlbuffer.PriorityURLBuffer;
+import com.digitalpebble.stormcrawler.persistence.urlbuffer.SchedulingURLBuffer;
 import com.digitalpebble.stormcrawler.persistence.urlbuffer.SimpleURLBuffer;
 import com.digitalpebble.stormcrawler.persistence.urlbuffer.URLBuffer;
 import java.net.MalformedURLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.storm.tuple.Values;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -75,4 +83,94 @@ public class URLBufferTest {
 
         Assert.assertFalse(buffer.hasNext());
     }
+
+    @Test
+    public void testConcurrentURLBuffer() {
+        URLBuffer buffer = new ConcurrentURLBuffer();
+        Assert.assertFalse(buffer.hasNext());
+        buffer.add("http://a.net/test.html", new Metadata());
+        buffer.add("http://a.net/test2.html", new Metadata());
+        buffer.add("http://b.net/test.html", new Metadata());
+        buffer.add("http://c.net/test.html", new Metadata());
+        Assert.assertEquals(3, buffer.numQueues());
+        Assert.assertEquals("http://a.net/test.html", buffer.next().get(0));
+        Assert.assertEquals("http://b.net/test.html", buffer.next().get(0));
+        // should return false if already there
+        boolean added = buffer.add("http://c.net/test.html", new Metadata());
+        Assert.assertFalse(added);
+        added = buffer.add("http://d.net/test.html", new Metadata());
+        Assert.assertTrue(added);
+        Assert.assertEquals("http://c.net/test.html", buffer.next().get(0));
+        Assert.assertEquals("http://a.net/test2.html", buffer.next().get(0));
+        Assert.assertEquals("http://d.net/test.html", buffer.next().get(0));
+        Assert.assertFalse(buffer.hasNext());
+        Assert.assertNull(buffer.next());
+        Assert.assertEquals(0, buffer.numQueues());
+    }
+
+    @Test
+    public void testConcurrentURLBufferThreads() throws InterruptedException {
+        final URLBuffer buffer = new ConcurrentURLBuffer();
+        final int numThreads = 4;
+        final int perThread = 5000;
+        final AtomicInteger emptied = new AtomicInteger();
+        buffer.setEmptyQueueListener(q -> emptied.incrementAndGet());
+        Thread[] producers = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int id = t;
+            producers[t] =
+                    new Thread(
+                            () -> {
+                                for (int i = 0; i < perThread; i++) {
+                                    buffer.add(
+                                            "http://host" + (i % 50) + ".net/" + id + "/" + i,
+                                            new Metadata());
+                                }
+                            });
+            producers[t].start();
+        }
+        Set<String> seen = new HashSet<>();
+        int alive = numThreads;
+        while (alive > 0 || buffer.hasNext()) {
+            Values v = buffer.next();
+            if (v != null) {
+                Assert.assertTrue(seen.add(v.get(0).toString()));
+            }
+            alive = 0;
+            for (Thread p : producers) {
+                if (p.isAlive()) alive++;
+            }
+        }
+        Assert.assertEquals(numThreads * perThread, seen.size());
+        Assert.assertEquals(0, buffer.size());
+        Assert.assertTrue(emptied.get() > 0);
+    }
+
+    @Test
+    public void testSchedulingURLBuffer() throws InterruptedException {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(SchedulingURLBuffer.HISTORYSIZEPARAM, 1);
+        SchedulingURLBuffer buffer = new SchedulingURLBuffer();
+        buffer.configure(conf);
+        buffer.add("http://a.net/test.html", new Metadata());
+        buffer.add("http://a.net/test2.html", new Metadata());
+        buffer.add("http://a.net/test3.html", new Metadata());
+        buffer.add("http://b.net/test.html", new Metadata());
+        Assert.assertEquals("http://a.net/test.html", buffer.next().get(0));
+
+        // a.net takes a while to ack its URLs
+        Thread.sleep(500);
+        buffer.acked("http://a.net/test.html");
+
+        Assert.assertEquals("http://b.net/test.html", buffer.next().get(0));
+        // enough time has elapsed since the previous release
+        Assert.assertEquals("http://a.net/test2.html", buffer.next().get(0));
+        // but not for the next one
+        Assert.assertTrue(buffer.hasNext());
+        Assert.assertNull(buffer.next());
+
+        Thread.sleep(600);
+        Assert.assertEquals("http://a.net/test3.html", buffer.next().get(0));
+        Assert.assertFalse(buffer.hasNext());
+    }
 }
@@ -0,0 +1,155 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence.embedded;
+
+import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.persistence.Status;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EmbeddedStatusStoreTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private Map<String, Object> conf;
+
+    private EmbeddedStatusStore open() throws IOException {
+        conf = new HashMap<>();
+        conf.put(EmbeddedStatusStore.DIR_PARAM, folder.getRoot().getAbsolutePath());
+        conf.put(EmbeddedStatusStore.COMMIT_INTERVAL_PARAM, 10);
+        return EmbeddedStatusStore.acquire(conf);
+    }
+
+    private static void put(
+            EmbeddedStatusStore store, String url, Status status, long nextFetch, String partition)
+            throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        Metadata md = new Metadata();
+        md.addValue("status", status.name());
+        store.put(
+                url,
+                status,
+                md,
+                nextFetch < 0 ? Optional.empty() : Optional.of(new Date(nextFetch)),
+                partition,
+                e -> latch.countDown());
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+
+    private static List<EmbeddedStatusStore.DueURL> query(EmbeddedStatusStore store, long now)
+            throws IOException {
+        return store.query(now, 10, 10, p -> true, u -> false);
+    }
+
+    @Test
+    public void testQueryAndReopen() throws Exception {
+        EmbeddedStatusStore store = open();
+        put(store, "http://a.com/1", Status.DISCOVERED, 1000, "a.com");
+        put(store, "http://a.com/2", Status.DISCOVERED, 3000, "a.com");
+        put(store, "http://b.com/1", Status.DISCOVERED, 2000, "b.com");
+        // ignored as already known
+        put(store, "http://a.com/1", Status.DISCOVERED, 0, "a.com");
+
+        List<EmbeddedStatusStore.DueURL> due = query(store, 2500);
+        Assert.assertEquals(2, due.size());
+        Assert.assertEquals("http://a.com/1", due.get(0).url);
+        Assert.assertEquals("b.com", due.get(1).partition);
+        Assert.assertEquals("DISCOVERED", due.get(0).metadata.getFirstValue("status"));
+
+        // fetched and never to be refetched
+        put(store, "http://a.com/1", Status.FETCHED, -1, "a.com");
+        put(store, "http://b.com/1", Status.FETCHED, 5000, "b.com");
+        due = query(store, 3000);
+        Assert.assertEquals(1, due.size());
+        Assert.assertEquals("http://a.com/2", due.get(0).url);
+        store.release();
+
+        store = open();
+        Assert.assertEquals(3, store.size());
+        due = query(store, 10000);
+        Assert.assertEquals(2, due.size());
+        Assert.assertEquals("http://a.com/2", due.get(0).url);
+        Assert.assertEquals("http://b.com/1", due.get(1).url);
+        Assert.assertEquals("FETCHED", due.get(1).metadata.getFirstValue("status"));
+        store.release();
+    }
+
+    @Test
+    public void testCompactionWhileRunning() throws Exception {
+        conf = new HashMap<>();
+        conf.put(EmbeddedStatusStore.DIR_PARAM, folder.getRoot().getAbsolutePath());
+        conf.put(EmbeddedStatusStore.COMMIT_INTERVAL_PARAM, 10);
+        conf.put(EmbeddedStatusStore.COMPACTION_MIN_BYTES_PARAM, 0);
+        EmbeddedStatusStore store = EmbeddedStatusStore.acquire(conf);
+        Path log = folder.getRoot().toPath().resolve("status.log");
+
+        put(store, "http://a.com/1", Status.DISCOVERED, 1000, "a.com");
+        put(store, "http://b.com/1", Status.DISCOVERED, 2000, "b.com");
+        long size = Files.size(log);
+        // the older records of a.com/1 become obsolete
+        for (int i = 0; i < 5; i++) {
+            put(store, "http://a.com/1", Status.FETCHED, 1000 + i, "a.com");
+        }
+        Assert.assertTrue(Files.size(log) <= size * 2);
+
+        List<EmbeddedStatusStore.DueURL> due = query(store, 10000);
+        Assert.assertEquals(2, due.size());
+        Assert.assertEquals("FETCHED", due.get(0).metadata.getFirstValue("status"));
+        Assert.assertEquals("DISCOVERED", due.get(1).metadata.getFirstValue("status"));
+
+        // still valid after reopening
+        put(store, "http://b.com/2", Status.DISCOVERED, 3000, "b.com");
+        store.release();
+        store = EmbeddedStatusStore.acquire(conf);
+        Assert.assertEquals(3, store.size());
+        Assert.assertEquals(3, query(store, 10000).size());
+        store.release();
+    }
+
+    @Test
+    public void testTruncatedLog() throws Exception {
+        EmbeddedStatusStore store = open();
+        put(store, "http://a.com/1", Status.DISCOVERED, 1000, "a.com");
+        put(store, "http://a.com/2", Status.DISCOVERED, 1000, "a.com");
+        store.release();
+
+        // simulate a write interrupted by a crash
+        Path log = folder.getRoot().toPath().resolve("status.log");
+        byte[] content = Files.readAllBytes(log);
+        Files.write(log, Arrays.copyOf(content, content.length - 3));
+
+        store = open();
+        Assert.assertEquals(1, store.size());
+        put(store, "http://a.com/3", Status.DISCOVERED, 1000, "a.com");
+        store.release();
+
+        store = open();
+        Assert.assertEquals(2, store.size());
+        store.release();
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence.seen;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScalableBloomFilterTest {
+
+    private static ScalableBloomFilter create(Map<String, Object> conf) {
+        ScalableBloomFilter filter = new ScalableBloomFilter();
+        filter.configure(conf, "test-0");
+        return filter;
+    }
+
+    @Test
+    public void testNoFalseNegatives() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(ScalableBloomFilter.INITIAL_CAPACITY_PARAM, 1000);
+        ScalableBloomFilter filter = create(conf);
+        Assert.assertFalse(filter.mightContain("http://a.net/"));
+        for (int i = 0; i < 10000; i++) {
+            filter.put("http://a.net/" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(filter.mightContain("http://a.net/" + i));
+        }
+        // has grown beyond the initial capacity
+        Assert.assertTrue(filter.numStages() > 1);
+        Assert.assertTrue(filter.size() <= 10000);
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(ScalableBloomFilter.FPP_PARAM, 0.01);
+        conf.put(ScalableBloomFilter.INITIAL_CAPACITY_PARAM, 5000);
+        ScalableBloomFilter filter = create(conf);
+        for (int i = 0; i < 50000; i++) {
+            filter.put("http://a.net/" + i);
+        }
+        int falsePositives = 0;
+        int tests = 100000;
+        for (int i = 0; i < tests; i++) {
+            if (filter.mightContain("http://b.net/" + i)) {
+                falsePositives++;
+            }
+        }
+        // allow for some variance
+        Assert.assertTrue(falsePositives < tests * 0.02);
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        Path dir = Files.createTempDirectory("seenfilter");
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(ScalableBloomFilter.INITIAL_CAPACITY_PARAM, 100);
+        conf.put(ScalableBloomFilter.SNAPSHOT_DIR_PARAM, dir.toString());
+        ScalableBloomFilter filter = create(conf);
+        for (int i = 0; i < 500; i++) {
+            filter.put("http://a.net/" + i);
+        }
+        filter.close();
+
+        ScalableBloomFilter reloaded = create(conf);
+        Assert.assertEquals(filter.size(), reloaded.size());
+        Assert.assertEquals(filter.numStages(), reloaded.numStages());
+        for (int i = 0; i < 500; i++) {
+            Assert.assertTrue(reloaded.mightContain("http://a.net/" + i));
+        }
+        reloaded.close();
+    }
+}
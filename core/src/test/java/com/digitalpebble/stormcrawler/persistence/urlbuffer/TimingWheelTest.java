@@ -0,0 +1,60 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.persistence.urlbuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testReleaseOrder() {
+        long start = 1_000_000;
+        TimingWheel<String> wheel = new TimingWheel<>(10, 8, start);
+        // already due
+        Assert.assertFalse(wheel.add("now", start));
+        Assert.assertTrue(wheel.add("soon", start + 25));
+        // goes to the overflow wheels
+        Assert.assertTrue(wheel.add("later", start + 500));
+        Assert.assertTrue(wheel.add("much.later", start + 10_000));
+        Assert.assertEquals(3, wheel.size());
+
+        List<String> due = new ArrayList<>();
+        wheel.advance(start + 10, due::add);
+        Assert.assertTrue(due.isEmpty());
+
+        wheel.advance(start + 30, due::add);
+        Assert.assertEquals(1, due.size());
+        Assert.assertEquals("soon", due.get(0));
+
+        wheel.advance(start + 480, due::add);
+        Assert.assertEquals(1, due.size());
+
+        wheel.advance(start + 500, due::add);
+        Assert.assertEquals(2, due.size());
+        Assert.assertEquals("later", due.get(1));
+
+        wheel.advance(start + 9_980, due::add);
+        Assert.assertEquals(2, due.size());
+
+        // big jump
+        wheel.advance(start + 100_000, due::add);
+        Assert.assertEquals(3, due.size());
+        Assert.assertEquals("much.later", due.get(2));
+        Assert.assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.digitalpebble.stormcrawler.Metadata;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.storm.generated.GlobalStreamId;
+import org.apache.storm.task.WorkerTopologyContext;
+import org.apache.storm.tuple.Fields;
+import org.junit.Test;
+
+public class BalancedURLStreamGroupingTest {
+
+    private static final List<Integer> TASKS = Arrays.asList(10, 11, 12, 13);
+
+    private static URLStreamGrouping prepare(URLStreamGrouping grouping, Fields fields) {
+        return prepare(grouping, fields, Collections.singletonList(1), new HashMap<>());
+    }
+
+    private static URLStreamGrouping prepare(
+            URLStreamGrouping grouping,
+            Fields fields,
+            List<Integer> sources,
+            Map<String, Object> conf) {
+        WorkerTopologyContext context = mock(WorkerTopologyContext.class);
+        when(context.getConf()).thenReturn(conf);
+        when(context.getComponentOutputFields(any(GlobalStreamId.class))).thenReturn(fields);
+        when(context.getComponentTasks("spout")).thenReturn(sources);
+        grouping.prepare(context, new GlobalStreamId("spout", "default"), TASKS);
+        return grouping;
+    }
+
+    private static int choose(URLStreamGrouping grouping, String url) {
+        List<Integer> tasks = grouping.chooseTasks(0, Arrays.asList(url, new Metadata()));
+        assertEquals(1, tasks.size());
+        return tasks.get(0);
+    }
+
+    @Test
+    public void testSameTaskPerHost() {
+        URLStreamGrouping grouping =
+                prepare(new BalancedURLStreamGrouping(), new Fields("url", "metadata"));
+        int task = choose(grouping, "http://www.example.com/");
+        for (int i = 0; i < 100; i++) {
+            assertEquals(task, choose(grouping, "http://www.example.com/page" + i));
+        }
+    }
+
+    @Test
+    public void testKeyField() {
+        URLStreamGrouping grouping =
+                prepare(new BalancedURLStreamGrouping(), new Fields("url", "key", "metadata"));
+        int first = -1;
+        for (int i = 0; i < 10; i++) {
+            // different hosts but same key
+            List<Object> values = Arrays.asList("http://host" + i + "/", "key", new Metadata());
+            int task = grouping.chooseTasks(0, values).get(0);
+            if (first == -1) {
+                first = task;
+            }
+            assertEquals(first, task);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSeveralSources() {
+        prepare(
+                new BalancedURLStreamGrouping(),
+                new Fields("url", "metadata"),
+                Arrays.asList(1, 2),
+                new HashMap<>());
+    }
+
+    @Test
+    public void testPartitionedSources() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(BalancedURLStreamGrouping.PARTITIONED_SOURCES_PARAM, true);
+        URLStreamGrouping grouping =
+                prepare(
+                        new BalancedURLStreamGrouping(),
+                        new Fields("url", "metadata"),
+                        Arrays.asList(1, 2),
+                        conf);
+        int task = choose(grouping, "http://www.example.com/");
+        assertEquals(task, choose(grouping, "http://www.example.com/page"));
+    }
+
+    @Test
+    public void testSkew() {
+        URLStreamGrouping grouping =
+                prepare(new BalancedURLStreamGrouping(), new Fields("url", "metadata"));
+        // a large host loads its task first
+        int large = choose(grouping, "http://www.large.com/");
+        for (int i = 0; i < 1000; i++) {
+            choose(grouping, "http://www.large.com/" + i);
+        }
+        // small hosts avoid that task when they have another choice
+        List<Integer> chosen = new ArrayList<>();
+        int onLarge = 0;
+        for (int i = 0; i < 200; i++) {
+            int task = choose(grouping, "http://small" + i + ".com/");
+            chosen.add(task);
+            if (task == large) {
+                onLarge++;
+            }
+        }
+        assertEquals(0, onLarge);
+        // the others are still used
+        assertNotEquals(1, chosen.stream().distinct().count());
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.storm.Config;
+import org.apache.storm.serialization.KryoValuesDeserializer;
+import org.apache.storm.serialization.KryoValuesSerializer;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.utils.Utils;
+import org.junit.Test;
+
+public class ContentStoreTest {
+
+    private static final byte[] CONTENT = "<html>content</html>".getBytes(StandardCharsets.UTF_8);
+
+    private static ContentStore getStore(boolean enabled, long maxBytes) {
+        return getStore(enabled, maxBytes, 600);
+    }
+
+    private static ContentStore getStore(boolean enabled, long maxBytes, long ttlSec) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(ContentStore.ENABLED_PARAM, enabled);
+        conf.put(ContentStore.MAX_BYTES_PARAM, maxBytes);
+        conf.put(ContentStore.TTL_PARAM, ttlSec);
+        return ContentStore.getInstance(conf);
+    }
+
+    private static Tuple getTuple(Object content) {
+        Tuple tuple = mock(Tuple.class);
+        when(tuple.contains("content")).thenReturn(true);
+        when(tuple.getValueByField("content")).thenReturn(content);
+        if (content instanceof byte[]) {
+            when(tuple.getBinaryByField("content")).thenReturn((byte[]) content);
+        }
+        return tuple;
+    }
+
+    @Test
+    public void testDisabled() {
+        ContentStore store = getStore(false, 1024);
+        assertSame(CONTENT, store.wrap(CONTENT));
+    }
+
+    @Test
+    public void testFull() {
+        ContentStore store = getStore(true, CONTENT.length - 1);
+        assertSame(CONTENT, store.wrap(CONTENT));
+    }
+
+    @Test
+    public void testReferences() {
+        ContentStore store = getStore(true, 1024);
+        int size = store.size();
+
+        Object content = store.wrap(CONTENT);
+        assertTrue(content instanceof ContentHandle);
+        assertEquals(size + 1, store.size());
+
+        // emitted to two tasks
+        ContentStore.emit(content, () -> Arrays.asList(1, 2));
+        ContentStore.release(content);
+
+        Tuple first = getTuple(content);
+        assertArrayEquals(CONTENT, ContentStore.getContent(first));
+        assertSame(content, ContentStore.valueOf(first, CONTENT));
+        ContentStore.release(first);
+        assertEquals(size + 1, store.size());
+
+        Tuple second = getTuple(content);
+        assertArrayEquals(CONTENT, ContentStore.getContent(second));
+        ContentStore.release(second);
+        assertEquals(size, store.size());
+
+        // no longer available
+        assertNull(ContentStore.getContent(second));
+    }
+
+    @Test
+    public void testReleasedWhileEmitting() {
+        ContentStore store = getStore(true, 1024);
+        int size = store.size();
+
+        Object content = store.wrap(CONTENT);
+        Tuple first = getTuple(content);
+        Tuple second = getTuple(content);
+
+        // the first task is done with the content before emit returns
+        ContentStore.emit(
+                content,
+                () -> {
+                    assertArrayEquals(CONTENT, ContentStore.getContent(first));
+                    ContentStore.release(first);
+                    return Arrays.asList(1, 2);
+                });
+        assertEquals(size + 1, store.size());
+        ContentStore.release(content);
+
+        // still available to the second task
+        assertArrayEquals(CONTENT, ContentStore.getContent(second));
+        ContentStore.release(second);
+        assertEquals(size, store.size());
+    }
+
+    @Test
+    public void testNotCopied() {
+        ContentStore store = getStore(true, 1024);
+        Object content = store.wrap(CONTENT);
+        Tuple tuple = getTuple(content);
+        assertSame(CONTENT, ContentStore.getContent(tuple));
+        ContentStore.release(content);
+    }
+
+    @Test
+    public void testExpired() throws InterruptedException {
+        ContentStore store = getStore(true, 1024, 0);
+
+        Object content = store.wrap(CONTENT);
+        Tuple tuple = getTuple(content);
+        Thread.sleep(10);
+        store.sweep();
+        assertEquals(0, store.size());
+        assertEquals(0, store.bytesHeld());
+        assertNull(ContentStore.getContent(tuple));
+        // no-op
+        ContentStore.release(tuple);
+    }
+
+    @Test
+    public void testBytes() {
+        Tuple tuple = getTuple(CONTENT);
+        assertSame(CONTENT, ContentStore.getContent(tuple));
+        assertSame(CONTENT, ContentStore.valueOf(tuple, CONTENT));
+        // no-op
+        ContentStore.release(tuple);
+    }
+
+    @Test
+    public void testSerialization() {
+        ContentStore store = getStore(true, 1024);
+        int size = store.size();
+
+        Map<String, Object> conf = Utils.readDefaultConfig();
+        Config.registerSerialization(conf, ContentHandle.class);
+
+        Object content = store.wrap(CONTENT);
+        byte[] serialized = new KryoValuesSerializer(conf).serializeObject(content);
+        // the reference has been passed on with the bytes
+        assertEquals(size, store.size());
+
+        ContentHandle remote =
+                (ContentHandle) new KryoValuesDeserializer(conf).deserializeObject(serialized);
+        assertEquals(CONTENT.length, remote.length());
+        assertArrayEquals(CONTENT, remote.getBytes());
+        ContentStore.release(remote);
+        assertEquals(size, store.size());
+    }
+}
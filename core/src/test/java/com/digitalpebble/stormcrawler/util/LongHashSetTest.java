@@ -0,0 +1,47 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.util;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongHashSetTest {
+
+    @Test
+    public void testAgainstHashSet() {
+        LongHashSet set = new LongHashSet();
+        Set<Long> reference = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            // small range so that there are plenty of removals and duplicates
+            long key = random.nextInt(5000) - 2500;
+            if (random.nextBoolean()) {
+                Assert.assertEquals(reference.add(key), set.add(key));
+            } else {
+                Assert.assertEquals(reference.remove(key), set.remove(key));
+            }
+            Assert.assertEquals(reference.size(), set.size());
+        }
+        for (long key = -2500; key < 2500; key++) {
+            Assert.assertEquals(reference.contains(key), set.contains(key));
+        }
+        set.clear();
+        Assert.assertTrue(set.isEmpty());
+        Assert.assertFalse(set.contains(0));
+    }
+}
@@ -14,6 +14,7 @@
  */
 package com.digitalpebble.stormcrawler.util;
 
+import com.digitalpebble.stormcrawler.Constants;
 import com.digitalpebble.stormcrawler.Metadata;
 import java.net.MalformedURLException;
 import java.util.HashMap;
@@ -37,6 +38,44 @@ public class MetadataTransferTest {
         Assert.assertEquals(1, urlpath.length);
     }
 
+    @Test
+    public void testSharedOutlinkMetadata() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(MetadataTransfer.metadataTransferParamName, "key");
+        MetadataTransfer mdt = MetadataTransfer.getInstance(conf);
+        Metadata parentMD = new Metadata();
+        parentMD.setValue("key", "value");
+        parentMD.setValue("other", "value");
+        parentMD.setLong(MetadataTransfer.depthKeyName, 2);
+
+        Metadata shared = mdt.getMetaForOutlinks("http://www.example.com", parentMD);
+        Metadata first = shared.copy();
+        Metadata second = shared.copy();
+        first.setValue("anchor", "first");
+
+        Assert.assertEquals(3, second.getInt(MetadataTransfer.depthKeyName, -1));
+        Assert.assertEquals("value", second.getFirstValue("key"));
+        Assert.assertNull(second.getFirstValue("other"));
+        Assert.assertEquals("first", first.getFirstValue("anchor"));
+        // modifying a copy does not change the others
+        Assert.assertNull(second.getFirstValue("anchor"));
+        Assert.assertNull(shared.getFirstValue("anchor"));
+    }
+
+    @Test
+    public void testDocumentIDNotTransferred() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(MetadataTransfer.metadataTransferParamName, Constants.DOCUMENT_ID_KEY);
+        MetadataTransfer mdt = MetadataTransfer.getInstance(conf);
+        Metadata parentMD = new Metadata();
+        parentMD.setValue(Constants.DOCUMENT_ID_KEY, "id");
+
+        Metadata outlinkMD = mdt.getMetaForOutlinks("http://www.example.com", parentMD);
+        Assert.assertNull(outlinkMD.getFirstValue(Constants.DOCUMENT_ID_KEY));
+        // still persisted for the source document
+        Assert.assertEquals("id", mdt.filter(parentMD).getFirstValue(Constants.DOCUMENT_ID_KEY));
+    }
+
     @Test
     public void testCustomTransferClass() throws MalformedURLException {
         Map<String, Object> conf = new HashMap<>();
@@ -0,0 +1,80 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class PartitionHashingTest {
+
+    private static final int KEYS = 10000;
+
+    private static int moved(PartitionHashing hashing, int before, int after) {
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "host" + i + ".example.com";
+            int b = hashing.partition(key, before);
+            int a = hashing.partition(key, after);
+            assertTrue(b >= 0 && b < before);
+            assertTrue(a >= 0 && a < after);
+            if (a != b) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    @Test
+    public void testConsistency() {
+        // about 1/10 of the keys move from 9 to 10 buckets
+        for (PartitionHashing hashing :
+                new PartitionHashing[] {PartitionHashing.JUMP, PartitionHashing.RENDEZVOUS}) {
+            int moved = moved(hashing, 9, 10);
+            assertTrue(hashing + " moved " + moved, moved > KEYS / 20 && moved < KEYS / 5);
+        }
+        // most of them move with the modulo
+        assertTrue(moved(PartitionHashing.MODULO, 9, 10) > KEYS / 2);
+    }
+
+    @Test
+    public void testBalance() {
+        for (PartitionHashing hashing : PartitionHashing.values()) {
+            int[] counts = new int[8];
+            for (int i = 0; i < KEYS; i++) {
+                counts[hashing.partition("host" + i + ".example.com", 8)]++;
+            }
+            for (int count : counts) {
+                assertTrue(hashing + " " + count, Math.abs(count - KEYS / 8) < KEYS / 40);
+            }
+        }
+    }
+
+    @Test
+    public void testConf() {
+        assertEquals(PartitionHashing.MODULO, PartitionHashing.fromConf(Collections.emptyMap()));
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(PartitionHashing.PARAM_NAME, "jump");
+        assertEquals(PartitionHashing.JUMP, PartitionHashing.fromConf(conf));
+        // same as before for the modulo
+        assertEquals(
+                Math.abs("www.example.com".hashCode() % 7),
+                PartitionHashing.MODULO.partition("www.example.com", 7));
+    }
+}
@@ -33,6 +33,7 @@ import com.digitalpebble.stormcrawler.Metadata;
 import com.digitalpebble.stormcrawler.indexing.AbstractIndexerBolt;
 import com.digitalpebble.stormcrawler.persistence.Status;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -167,6 +168,9 @@ public class CloudSearchIndexerBolt extends AbstractIndexerBolt {
     @Override
     public void execute(Tuple tuple) {
 
+        // the binary content is not indexed
+        ContentStore.release(tuple);
+
         if (TupleUtils.isTick(tuple)) {
             // check when we last sent a batch
             long now = System.currentTimeMillis();
@@ -19,6 +19,7 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectResult;
 import com.digitalpebble.stormcrawler.Metadata;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -64,12 +65,27 @@ public abstract class S3Cacher extends AbstractS3CacheBolt {
 
     @Override
     public void execute(Tuple tuple) {
+        try {
+            cache(tuple);
+        } finally {
+            // the bytes are emitted downstream
+            ContentStore.release(tuple);
+        }
+    }
+
+    private void cache(Tuple tuple) {
         // stores the binary content on S3
 
-        byte[] content = tuple.getBinaryByField("content");
+        byte[] content = ContentStore.getContent(tuple);
         String url = tuple.getStringByField("url");
         final Metadata metadata = (Metadata) tuple.getValueByField("metadata");
 
+        if (content == null) {
+            LOG.error("Content of {} no longer available", url);
+            _collector.fail(tuple);
+            return;
+        }
+
         // If there is no content
         byte[] contentToCache = getContentToCache(metadata, content, url);
         if (contentToCache == null) {
@@ -52,6 +52,26 @@ curl $ESCREDENTIALS -s -XPUT $ESHOST/status -H 'Content-Type: application/json'
 	}
 }'
 
+# with es.status.partition.days, the partitions are created from a template instead
+# curl $ESCREDENTIALS -s -XDELETE "$ESHOST/status-*/" >  /dev/null
+# curl $ESCREDENTIALS -s -XPUT $ESHOST/_index_template/status-partitions -H 'Content-Type: application/json' -d '
+# {
+# 	"index_patterns": ["status-*"],
+# 	"template": {
+# 		"settings": { "index": { "number_of_shards": 10, "number_of_replicas": 1, "refresh_interval": "5s" } },
+# 		"aliases": { "status": {} },
+# 		"mappings": {
+# 			"dynamic_templates": [{ "metadata": { "path_match": "metadata.*", "match_mapping_type": "string", "mapping": { "type": "keyword" } } }],
+# 			"properties": {
+# 				"key": { "type": "keyword" },
+# 				"nextFetchDate": { "type": "date", "format": "date_optional_time" },
+# 				"status": { "type": "keyword" },
+# 				"url": { "type": "keyword" }
+# 			}
+# 		}
+# 	}
+# }'
+
 # deletes and recreates a status index with a bespoke schema
 
 curl $ESCREDENTIALS -s -XDELETE "$ESHOST/metrics*/" >  /dev/null
@@ -74,7 +74,8 @@ public class ESCrawlTopology extends ConfigurableTopology {
 
 		builder.setSpout("spout", new AggregationSpout(), numShards);
 
-		builder.setBolt("status_metrics", new StatusMetricsBolt()).shuffleGrouping("spout");
+		builder.setBolt("status_metrics", new StatusMetricsBolt()).shuffleGrouping("spout")
+				.shuffleGrouping("status", StatusMetricsBolt.DELTAS_STREAM);
 
 		builder.setBolt("partitioner", new URLPartitionerBolt(), numWorkers).shuffleGrouping("spout");
 
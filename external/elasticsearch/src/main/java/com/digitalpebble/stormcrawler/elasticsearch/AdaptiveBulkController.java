@@ -0,0 +1,324 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch;
+
+import com.digitalpebble.stormcrawler.util.ConfUtils;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the number of actions per bulk and the number of concurrent bulk requests of an {@link
+ * ElasticSearchConnection} based on the latency of the bulks and the number of rejections returned
+ * by Elasticsearch. The size of the bulks grows additively as long as they are processed within the
+ * target latency and shrinks multiplicatively when they are slower or get rejected. Rejections
+ * (HTTP 429) also pause the sending of new bulks for an exponentially growing, jittered delay.
+ *
+ * <p>Activated with <i>es.[boltType].bulk.adaptive: true</i>, the values of
+ * <i>es.[boltType].bulkActions</i> and <i>es.[boltType].concurrentRequests</i> are then used as
+ * starting points. The bulks are also flushed when they reach
+ * <i>es.[boltType].bulk.adaptive.target.bytes</i>.
+ *
+ * @since 2.5
+ */
+public class AdaptiveBulkController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveBulkController.class);
+
+    public static final String ADAPTIVE_PARAM = "bulk.adaptive";
+
+    /** Flushes the bulks when their estimated size in bytes reaches this value */
+    public static final String TARGET_BYTES_PARAM = "bulk.adaptive.target.bytes";
+
+    /** Time in msec within which a bulk should be processed */
+    public static final String TARGET_LATENCY_PARAM = "bulk.adaptive.target.latency";
+
+    public static final String MIN_ACTIONS_PARAM = "bulk.adaptive.actions.min";
+
+    public static final String MAX_ACTIONS_PARAM = "bulk.adaptive.actions.max";
+
+    public static final String MAX_CONCURRENT_PARAM = "bulk.adaptive.concurrentRequests.max";
+
+    /** Initial delay in msec after a rejection, doubled with each consecutive one */
+    public static final String BACKOFF_PARAM = "bulk.adaptive.backoff";
+
+    private static final long MAX_BACKOFF_MSEC = 30_000;
+
+    private final long targetBytes;
+    private final long targetLatencyMsec;
+    private final int minActions;
+    private final int maxActions;
+    private final int maxConcurrent;
+    private final long backoffMsec;
+
+    private volatile int bulkActions;
+
+    private int concurrent;
+    private int inFlight;
+
+    private int consecutiveRejections;
+    private volatile long pauseUntil;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    AdaptiveBulkController(
+            int initialActions,
+            int initialConcurrent,
+            long targetBytes,
+            long targetLatencyMsec,
+            int minActions,
+            int maxActions,
+            int maxConcurrent,
+            long backoffMsec) {
+        this.targetBytes = targetBytes;
+        this.targetLatencyMsec = targetLatencyMsec;
+        this.minActions = Math.max(1, minActions);
+        this.maxActions = Math.max(this.minActions, maxActions);
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.backoffMsec = backoffMsec;
+        this.bulkActions = clamp(initialActions, this.minActions, this.maxActions);
+        this.concurrent = clamp(initialConcurrent, 1, this.maxConcurrent);
+    }
+
+    /** Returns an instance if the adaptive mode is activated for the bolt type, null otherwise */
+    static AdaptiveBulkController fromConf(
+            Map<String, Object> stormConf,
+            String boltType,
+            int initialActions,
+            int initialConcurrent) {
+        String prefix = "es." + boltType + ".";
+        if (!ConfUtils.getBoolean(stormConf, prefix + ADAPTIVE_PARAM, false)) {
+            return null;
+        }
+        return new AdaptiveBulkController(
+                initialActions,
+                initialConcurrent,
+                ConfUtils.getLong(stormConf, prefix + TARGET_BYTES_PARAM, 5L * 1024 * 1024),
+                ConfUtils.getLong(stormConf, prefix + TARGET_LATENCY_PARAM, 1000L),
+                ConfUtils.getInt(stormConf, prefix + MIN_ACTIONS_PARAM, 10),
+                ConfUtils.getInt(stormConf, prefix + MAX_ACTIONS_PARAM, 5000),
+                ConfUtils.getInt(
+                        stormConf, prefix + MAX_CONCURRENT_PARAM, Math.max(4, initialConcurrent)),
+                ConfUtils.getLong(stormConf, prefix + BACKOFF_PARAM, 100L));
+    }
+
+    public long getTargetBytes() {
+        return targetBytes;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrent;
+    }
+
+    public int getBulkActions() {
+        return bulkActions;
+    }
+
+    public synchronized int getConcurrentRequests() {
+        return concurrent;
+    }
+
+    /**
+     * Called when an action is added to the BulkProcessor, returns true if the pending actions
+     * should be flushed.
+     */
+    boolean added() {
+        return pending.incrementAndGet() >= bulkActions;
+    }
+
+    /** Called when the BulkProcessor is about to send a bulk */
+    void beforeBulk(BulkRequest request) {
+        pending.updateAndGet(p -> Math.max(0, p - request.numberOfActions()));
+    }
+
+    /**
+     * Sends the request once a slot is available and no backoff is in progress, and records the
+     * latency and rejections once it completes.
+     */
+    void send(
+            BulkRequest request,
+            ActionListener<BulkResponse> listener,
+            BiConsumer<BulkRequest, ActionListener<BulkResponse>> consumer) {
+        try {
+            acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            listener.onFailure(e);
+            return;
+        }
+        final long start = System.nanoTime();
+        consumer.accept(
+                request,
+                new ActionListener<BulkResponse>() {
+                    @Override
+                    public void onResponse(BulkResponse response) {
+                        int rejected = 0;
+                        for (BulkItemResponse item : response.getItems()) {
+                            if (item.isFailed()
+                                    && item.getFailure().getStatus()
+                                            == RestStatus.TOO_MANY_REQUESTS) {
+                                rejected++;
+                            }
+                        }
+                        completed(
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                                request.numberOfActions(),
+                                request.estimatedSizeInBytes(),
+                                rejected);
+                        listener.onResponse(response);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        boolean rejected =
+                                e instanceof ElasticsearchStatusException
+                                        && ((ElasticsearchStatusException) e).status()
+                                                == RestStatus.TOO_MANY_REQUESTS;
+                        completed(
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                                request.numberOfActions(),
+                                request.estimatedSizeInBytes(),
+                                rejected ? request.numberOfActions() : 0);
+                        listener.onFailure(e);
+                    }
+                });
+    }
+
+    private void acquire() throws InterruptedException {
+        synchronized (this) {
+            while (inFlight >= concurrent) {
+                wait();
+            }
+            inFlight++;
+        }
+        long pause = pauseUntil - System.currentTimeMillis();
+        if (pause > 0) {
+            LOG.debug("Backing off for {} msec before sending bulk", pause);
+            Thread.sleep(pause);
+        }
+    }
+
+    /** Updates the bulk size and concurrency given the outcome of a bulk */
+    synchronized void completed(long latencyMsec, int actions, long bytes, int rejected) {
+        inFlight = Math.max(0, inFlight - 1);
+
+        int newActions = bulkActions;
+        int newConcurrent = concurrent;
+
+        if (rejected > 0) {
+            consecutiveRejections++;
+            newActions = bulkActions / 2;
+            newConcurrent = concurrent - 1;
+            long delay =
+                    Math.min(
+                            MAX_BACKOFF_MSEC,
+                            backoffMsec << Math.min(consecutiveRejections - 1, 16));
+            // jitter between half and the whole delay
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            pauseUntil = System.currentTimeMillis() + delay;
+            LOG.info(
+                    "{} rejections in bulk of {} actions, backing off for {} msec",
+                    rejected,
+                    actions,
+                    delay);
+        } else {
+            consecutiveRejections = 0;
+            if (latencyMsec > targetLatencyMsec) {
+                newActions = bulkActions * 3 / 4;
+                if (latencyMsec > 2 * targetLatencyMsec) {
+                    newConcurrent = concurrent - 1;
+                }
+            } else if (actions >= bulkActions) {
+                // only grow if the bulk was full i.e. not flushed by the interval
+                newActions = bulkActions + Math.max(1, bulkActions / 10);
+                // bytes are the limiting factor
+                if (actions > 0 && bytes > 0) {
+                    long bytesPerAction = Math.max(1, bytes / actions);
+                    newActions = (int) Math.min(newActions, targetBytes / bytesPerAction + 1);
+                }
+                if (latencyMsec < targetLatencyMsec / 2 && newActions >= maxActions) {
+                    newConcurrent = concurrent + 1;
+                }
+            }
+        }
+
+        newActions = clamp(newActions, minActions, maxActions);
+        newConcurrent = clamp(newConcurrent, 1, maxConcurrent);
+
+        if (newActions != bulkActions || newConcurrent != concurrent) {
+            LOG.debug(
+                    "Bulk took {} msec, actions {} -> {}, concurrent requests {} -> {}",
+                    latencyMsec,
+                    bulkActions,
+                    newActions,
+                    concurrent,
+                    newConcurrent);
+        }
+
+        bulkActions = newActions;
+        concurrent = newConcurrent;
+        notifyAll();
+    }
+
+    /**
+     * Backoff policy used by the BulkProcessor when retrying the rejected items of a bulk:
+     * exponential with jitter so that the bolts do not retry in lockstep.
+     */
+    public BackoffPolicy backoffPolicy(int maxRetries) {
+        return new BackoffPolicy() {
+            @Override
+            public Iterator<TimeValue> iterator() {
+                return new Iterator<TimeValue>() {
+                    private int attempt = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return attempt < maxRetries;
+                    }
+
+                    @Override
+                    public TimeValue next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        long delay =
+                                Math.min(MAX_BACKOFF_MSEC, backoffMsec << Math.min(attempt, 16));
+                        attempt++;
+                        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+                        return TimeValue.timeValueMillis(delay);
+                    }
+                };
+            }
+        };
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
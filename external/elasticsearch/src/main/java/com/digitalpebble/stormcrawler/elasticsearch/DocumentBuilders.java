@@ -0,0 +1,101 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang.StringUtils;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+
+/**
+ * Helps building the documents sent to Elasticsearch: the escaped metadata keys are cached and the
+ * JSON is written into a buffer reused by each thread.
+ *
+ * @since 2.5
+ */
+public final class DocumentBuilders {
+
+    private static final int MAX_CACHED_KEYS = 10000;
+
+    /** buffers which grew beyond this are not kept */
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    private static final Map<String, String> ESCAPED_KEYS = new ConcurrentHashMap<>();
+
+    private static final Map<String, String> UNESCAPED_KEYS = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Buffer> BUFFERS = ThreadLocal.withInitial(Buffer::new);
+
+    private DocumentBuilders() {}
+
+    /** Periods are not allowed in field names, replaces them with %2E */
+    public static String escapeKey(String key) {
+        String escaped = ESCAPED_KEYS.get(key);
+        if (escaped != null) {
+            return escaped;
+        }
+        escaped = key.indexOf('.') == -1 ? key : StringUtils.replace(key, ".", "%2E");
+        if (ESCAPED_KEYS.size() < MAX_CACHED_KEYS) {
+            ESCAPED_KEYS.put(key, escaped);
+        }
+        return escaped;
+    }
+
+    /** Reverts {@link #escapeKey(String)} for the keys read from Elasticsearch */
+    public static String unescapeKey(String key) {
+        String unescaped = UNESCAPED_KEYS.get(key);
+        if (unescaped != null) {
+            return unescaped;
+        }
+        unescaped = key.indexOf('%') == -1 ? key : StringUtils.replace(key, "%2E", ".");
+        if (UNESCAPED_KEYS.size() < MAX_CACHED_KEYS) {
+            UNESCAPED_KEYS.put(key, unescaped);
+        }
+        return unescaped;
+    }
+
+    /**
+     * Returns a JSON builder writing into the buffer of the current thread, its content must be
+     * retrieved with {@link #toBytes(XContentBuilder)} before getting another one.
+     */
+    public static XContentBuilder jsonBuilder() throws IOException {
+        Buffer buffer = BUFFERS.get();
+        if (buffer.capacity() > MAX_BUFFER_SIZE) {
+            buffer = new Buffer();
+            BUFFERS.set(buffer);
+        }
+        buffer.reset();
+        return XContentFactory.jsonBuilder(buffer);
+    }
+
+    /** Closes the builder and returns a copy of what it wrote */
+    public static byte[] toBytes(XContentBuilder builder) {
+        builder.close();
+        return ((ByteArrayOutputStream) builder.getOutputStream()).toByteArray();
+    }
+
+    private static final class Buffer extends ByteArrayOutputStream {
+        private Buffer() {
+            super(1024);
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch;
+
+import com.digitalpebble.stormcrawler.Constants;
+import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.util.ConfUtils;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Computes the IDs of the documents sent to Elasticsearch from their URL. The ID can be stored in
+ * the metadata of the status documents so that it is computed only once per URL and reused by the
+ * StatusUpdaterBolt and the IndexerBolt. Only the StatusUpdaterBolt adds it to the documents, the
+ * key is never transferred to the outlinks.
+ *
+ * @since 2.5
+ */
+public class DocumentIDs {
+
+    /**
+     * Hash used for the IDs, "sha256" (default) or "murmur3_128" which is a lot faster. Changing it
+     * for an existing index will lead to duplicate documents.
+     */
+    public static final String HASH_PARAM = "es.doc.id.hash";
+
+    /** Whether the ID is stored in and read from the metadata, default false */
+    public static final String METADATA_PARAM = "es.doc.id.metadata";
+
+    /** Key used for storing the ID in the metadata */
+    public static final String METADATA_KEY = Constants.DOCUMENT_ID_KEY;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final boolean murmur;
+
+    private final boolean inMetadata;
+
+    DocumentIDs(boolean murmur, boolean inMetadata) {
+        this.murmur = murmur;
+        this.inMetadata = inMetadata;
+    }
+
+    public static DocumentIDs fromConf(Map<String, Object> conf) {
+        String hash = ConfUtils.getString(conf, HASH_PARAM, "sha256").toLowerCase(Locale.ROOT);
+        if (!hash.equals("sha256") && !hash.equals("murmur3_128")) {
+            throw new IllegalArgumentException("Unknown value for " + HASH_PARAM + ": " + hash);
+        }
+        boolean inMetadata = ConfUtils.getBoolean(conf, METADATA_PARAM, false);
+        return new DocumentIDs(hash.equals("murmur3_128"), inMetadata);
+    }
+
+    /** Whether the ID is kept in the metadata */
+    public boolean isInMetadata() {
+        return inMetadata;
+    }
+
+    /** Computes the ID for a URL */
+    public String compute(String url) {
+        if (!murmur) {
+            return DigestUtils.sha256Hex(url);
+        }
+        byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+        char[] hex = new char[32];
+        murmur3x64_128(bytes, hex);
+        return new String(hex);
+    }
+
+    /**
+     * Returns the ID of the URL, taken from the metadata if it is there or computed otherwise. The
+     * metadata are not modified.
+     */
+    public String get(String url, Metadata metadata) {
+        if (!inMetadata) {
+            return compute(url);
+        }
+        String id = metadata.getFirstValue(METADATA_KEY);
+        return id != null ? id : compute(url);
+    }
+
+    /** MurmurHash3 x64 128 bits with a seed of 0, written as hex into the array */
+    private static void murmur3x64_128(byte[] data, char[] hex) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        final int length = data.length;
+        final int blocks = length >> 4;
+        long h1 = 0;
+        long h2 = 0;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i << 4);
+            long k2 = getLong(data, (i << 4) + 8);
+
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        // tail
+        long k1 = 0;
+        long k2 = 0;
+        final int tail = blocks << 4;
+        for (int i = length - tail - 1; i >= 0; i--) {
+            long b = data[tail + i] & 0xffL;
+            if (i >= 8) {
+                k2 ^= b << ((i - 8) << 3);
+            } else {
+                k1 ^= b << (i << 3);
+            }
+        }
+        if (k2 != 0) {
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+        }
+        if (k1 != 0) {
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        toHex(h1, hex, 0);
+        toHex(h2, hex, 16);
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xffL);
+        }
+        return value;
+    }
+
+    private static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void toHex(long value, char[] hex, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            hex[offset + i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+}
@@ -30,10 +30,10 @@ import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.storm.shade.org.apache.commons.lang.StringUtils;
+import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Node;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestClient;
@@ -41,6 +41,7 @@ import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.RestHighLevelClientBuilder;
 import org.elasticsearch.client.sniff.Sniffer;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.core.TimeValue;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -58,23 +59,39 @@ public final class ElasticSearchConnection {
 
     @Nullable private final Sniffer sniffer;
 
+    @Nullable private final AdaptiveBulkController adaptive;
+
     private ElasticSearchConnection(@NotNull RestHighLevelClient c, @NotNull BulkProcessor p) {
-        this(c, p, null);
+        this(c, p, null, null);
     }
 
     private ElasticSearchConnection(
-            @NotNull RestHighLevelClient c, @NotNull BulkProcessor p, @Nullable Sniffer s) {
+            @NotNull RestHighLevelClient c,
+            @NotNull BulkProcessor p,
+            @Nullable Sniffer s,
+            @Nullable AdaptiveBulkController a) {
         processor = p;
         client = c;
         sniffer = s;
+        adaptive = a;
     }
 
     public RestHighLevelClient getClient() {
         return client;
     }
 
-    public void addToProcessor(final IndexRequest request) {
+    public void addToProcessor(final DocWriteRequest<?> request) {
         processor.add(request);
+        // the number of actions per bulk is set by the controller
+        if (adaptive != null && adaptive.added()) {
+            processor.flush();
+        }
+    }
+
+    /** Returns the controller adjusting the bulks or null if the adaptive mode is not activated */
+    @Nullable
+    public AdaptiveBulkController getAdaptiveBulkController() {
+        return adaptive;
     }
 
     public static RestHighLevelClient getClient(Map<String, Object> stormConf, String boltType) {
@@ -240,19 +257,69 @@ public final class ElasticSearchConnection {
             sniffer = Sniffer.builder(client.getLowLevelClient()).build();
         }
 
+        final AdaptiveBulkController adaptive =
+                AdaptiveBulkController.fromConf(
+                        stormConf, boltType, bulkActions, concurrentRequests);
+
+        if (adaptive == null) {
+            BulkProcessor bulkProcessor =
+                    BulkProcessor.builder(
+                                    (request, bulkListener) ->
+                                            client.bulkAsync(
+                                                    request, RequestOptions.DEFAULT, bulkListener),
+                                    listener,
+                                    boltType + "-bulk-processor")
+                            .setFlushInterval(flushInterval)
+                            .setBulkActions(bulkActions)
+                            .setConcurrentRequests(concurrentRequests)
+                            .build();
+
+            return new ElasticSearchConnection(client, bulkProcessor, sniffer, null);
+        }
+
+        // the number of actions is checked by the connection and the
+        // concurrency limited by the controller, the BulkProcessor
+        // only flushes on size and time
+        BulkProcessor.Listener adaptiveListener =
+                new BulkProcessor.Listener() {
+                    @Override
+                    public void beforeBulk(long executionId, BulkRequest request) {
+                        adaptive.beforeBulk(request);
+                        listener.beforeBulk(executionId, request);
+                    }
+
+                    @Override
+                    public void afterBulk(
+                            long executionId, BulkRequest request, BulkResponse response) {
+                        listener.afterBulk(executionId, request, response);
+                    }
+
+                    @Override
+                    public void afterBulk(
+                            long executionId, BulkRequest request, Throwable failure) {
+                        listener.afterBulk(executionId, request, failure);
+                    }
+                };
+
         BulkProcessor bulkProcessor =
                 BulkProcessor.builder(
                                 (request, bulkListener) ->
-                                        client.bulkAsync(
-                                                request, RequestOptions.DEFAULT, bulkListener),
-                                listener,
+                                        adaptive.send(
+                                                request,
+                                                bulkListener,
+                                                (r, l) ->
+                                                        client.bulkAsync(
+                                                                r, RequestOptions.DEFAULT, l)),
+                                adaptiveListener,
                                 boltType + "-bulk-processor")
                         .setFlushInterval(flushInterval)
-                        .setBulkActions(bulkActions)
-                        .setConcurrentRequests(concurrentRequests)
+                        .setBulkActions(-1)
+                        .setBulkSize(new ByteSizeValue(adaptive.getTargetBytes()))
+                        .setConcurrentRequests(adaptive.getMaxConcurrentRequests())
+                        .setBackoffPolicy(adaptive.backoffPolicy(8))
                         .build();
 
-        return new ElasticSearchConnection(client, bulkProcessor, sniffer);
+        return new ElasticSearchConnection(client, bulkProcessor, sniffer, adaptive);
     }
 
     private boolean isClosed = false;
@@ -0,0 +1,205 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.apache.storm.tuple.Tuple;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the tuples waiting for the response of a bulk request, by document ID. Backed by a
+ * ConcurrentHashMap so that the bolt threads and the callbacks of the BulkProcessor only contend on
+ * the same IDs. The tuples of an ID to which nothing has been added for longer than the timeout are
+ * passed to a callback, which typically fails them, the check is done at most once a second when
+ * tuples are added or responses processed.
+ *
+ * @since 2.5
+ */
+public class WaitAck {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WaitAck.class);
+
+    private static final long SWEEP_INTERVAL_MSEC = 1000;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final long timeoutMsec;
+
+    private final BiConsumer<String, List<Tuple>> onExpired;
+
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * @param timeoutMsec time after which the tuples are considered lost
+     * @param onExpired called with the ID and tuples which have timed out
+     */
+    public WaitAck(long timeoutMsec, BiConsumer<String, List<Tuple>> onExpired) {
+        this.timeoutMsec = timeoutMsec;
+        this.onExpired = onExpired;
+    }
+
+    /** Number of IDs waiting for a response */
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean contains(String id) {
+        return entries.containsKey(id);
+    }
+
+    /** Adds a tuple for the ID, to be called before the request is sent */
+    public void add(String id, Tuple tuple) {
+        sweep();
+        Entry entry =
+                entries.compute(
+                        id,
+                        (k, v) -> {
+                            if (v == null) {
+                                v = new Entry();
+                            }
+                            v.tuples.add(tuple);
+                            v.updated = System.currentTimeMillis();
+                            return v;
+                        });
+        LOG.debug("Added to waitAck ID {} total {}", id, entry.tuples.size());
+    }
+
+    /**
+     * Adds the tuples of several IDs at once, to be called before the requests are sent. Same as
+     * calling {@link #add(String, Tuple)} for each tuple.
+     */
+    public void addAll(Map<String, List<Tuple>> tuples) {
+        sweep();
+        for (Map.Entry<String, List<Tuple>> e : tuples.entrySet()) {
+            entries.compute(
+                    e.getKey(),
+                    (k, v) -> {
+                        if (v == null) {
+                            v = new Entry();
+                        }
+                        v.tuples.addAll(e.getValue());
+                        v.updated = System.currentTimeMillis();
+                        return v;
+                    });
+        }
+        LOG.debug("Added to waitAck {} IDs", tuples.size());
+    }
+
+    /** Removes and returns the tuples for the ID, null if there are none */
+    public List<Tuple> remove(String id) {
+        Entry entry = entries.remove(id);
+        return entry == null ? null : entry.tuples;
+    }
+
+    /**
+     * Passes the tuples of each item of the response to one of the callbacks. An item is successful
+     * if it has no failure or a conflict, i.e. the document already exists. If there are several
+     * items for the same ID and one of them is successful, the tuples are passed to onSuccess.
+     */
+    public void processResponse(
+            BulkResponse response,
+            BiConsumer<Tuple, BulkItemResponse> onSuccess,
+            BiConsumer<Tuple, BulkItemResponse> onFailure) {
+        sweep();
+        BulkItemResponse[] items = response.getItems();
+        // successes first so that they take precedence
+        for (BulkItemResponse item : items) {
+            if (isSuccess(item)) {
+                dispatch(item, onSuccess);
+            }
+        }
+        for (BulkItemResponse item : items) {
+            if (!isSuccess(item)) {
+                dispatch(item, onFailure);
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            for (String id : entries.keySet()) {
+                LOG.debug("Still in wait ack after bulk response => {}", id);
+            }
+        }
+    }
+
+    /** Passes the tuples of all the requests of the bulk to the callback */
+    public void failAll(BulkRequest request, Consumer<Tuple> onFailure) {
+        for (DocWriteRequest<?> r : request.requests()) {
+            List<Tuple> tuples = remove(r.id());
+            if (tuples == null) {
+                LOG.debug("Could not find unacked tuple for {}", r.id());
+                continue;
+            }
+            LOG.debug("Failed {} tuple(s) for ID {}", tuples.size(), r.id());
+            for (Tuple t : tuples) {
+                onFailure.accept(t);
+            }
+        }
+    }
+
+    private void dispatch(BulkItemResponse item, BiConsumer<Tuple, BulkItemResponse> callback) {
+        List<Tuple> tuples = remove(item.getId());
+        if (tuples == null) {
+            // already processed with another item for the same ID
+            LOG.debug("Could not find unacked tuple for {}", item.getId());
+            return;
+        }
+        for (int i = 0; i < tuples.size(); i++) {
+            callback.accept(tuples.get(i), item);
+        }
+    }
+
+    private static boolean isSuccess(BulkItemResponse item) {
+        BulkItemResponse.Failure f = item.getFailure();
+        return f == null || f.getStatus() == RestStatus.CONFLICT;
+    }
+
+    /** Removes the entries which have timed out */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_MSEC || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        expire(now);
+    }
+
+    /** Removes the entries which have timed out at the given time */
+    void expire(long now) {
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (now - entry.updated > timeoutMsec && entries.remove(e.getKey(), entry)) {
+                LOG.error("Purged from waitAck {} with {} values", e.getKey(), entry.tuples.size());
+                onExpired.accept(e.getKey(), entry.tuples);
+            }
+        }
+    }
+
+    private static final class Entry {
+        // time at which a tuple was last added
+        private volatile long updated = System.currentTimeMillis();
+        private final List<Tuple> tuples = new ArrayList<>(1);
+    }
+}
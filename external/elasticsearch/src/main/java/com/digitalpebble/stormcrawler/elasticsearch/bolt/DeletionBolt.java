@@ -1,6 +1,7 @@
 package com.digitalpebble.stormcrawler.elasticsearch.bolt;
 
 import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.elasticsearch.DocumentIDs;
 import com.digitalpebble.stormcrawler.elasticsearch.ElasticSearchConnection;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
 import java.io.IOException;
@@ -35,6 +36,8 @@ public class DeletionBolt extends BaseRichBolt {
 
     private RestHighLevelClient client;
 
+    private DocumentIDs documentIDs;
+
     public DeletionBolt() {}
 
     /** Sets the index name instead of taking it from the configuration. * */
@@ -50,6 +53,7 @@ public class DeletionBolt extends BaseRichBolt {
             indexName = ConfUtils.getString(conf, IndexerBolt.ESIndexNameParamName, "content");
         }
         client = ElasticSearchConnection.getClient(conf, ESBoltType);
+        documentIDs = DocumentIDs.fromConf(conf);
     }
 
     @Override
@@ -68,7 +72,7 @@ public class DeletionBolt extends BaseRichBolt {
 
         // keep it simple for now and ignore cases where the canonical URL was
         // used
-        String sha256hex = org.apache.commons.codec.digest.DigestUtils.sha256Hex(url);
+        String sha256hex = documentIDs.get(url, metadata);
         DeleteRequest dr = new DeleteRequest(getIndexName(metadata), sha256hex);
         try {
             client.delete(dr, RequestOptions.DEFAULT);
@@ -15,25 +15,21 @@
 package com.digitalpebble.stormcrawler.elasticsearch.bolt;
 
 import static com.digitalpebble.stormcrawler.Constants.StatusStreamName;
-import static org.elasticsearch.xcontent.XContentFactory.jsonBuilder;
 
 import com.digitalpebble.stormcrawler.Constants;
 import com.digitalpebble.stormcrawler.Metadata;
-import com.digitalpebble.stormcrawler.elasticsearch.BulkItemResponseToFailedFlag;
+import com.digitalpebble.stormcrawler.elasticsearch.DocumentBuilders;
+import com.digitalpebble.stormcrawler.elasticsearch.DocumentIDs;
 import com.digitalpebble.stormcrawler.elasticsearch.ElasticSearchConnection;
+import com.digitalpebble.stormcrawler.elasticsearch.WaitAck;
 import com.digitalpebble.stormcrawler.indexing.AbstractIndexerBolt;
 import com.digitalpebble.stormcrawler.persistence.Status;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import com.digitalpebble.stormcrawler.util.PerSecondReducer;
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.RemovalCause;
-import com.github.benmanes.caffeine.cache.RemovalListener;
 import java.io.IOException;
-import java.util.*;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 import org.apache.commons.lang.StringUtils;
 import org.apache.storm.metric.api.MultiCountMetric;
 import org.apache.storm.metric.api.MultiReducedMetric;
@@ -42,15 +38,13 @@ import org.apache.storm.task.TopologyContext;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
 import org.elasticsearch.action.DocWriteRequest;
-import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.xcontent.XContentBuilder;
-import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
+import org.elasticsearch.xcontent.XContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,8 +52,7 @@ import org.slf4j.LoggerFactory;
  * Sends documents to ElasticSearch. Indexes all the fields from the tuples or a Map
  * &lt;String,Object&gt; from a named field.
  */
-public class IndexerBolt extends AbstractIndexerBolt
-        implements RemovalListener<String, List<Tuple>>, BulkProcessor.Listener {
+public class IndexerBolt extends AbstractIndexerBolt implements BulkProcessor.Listener {
 
     private static final Logger LOG = LoggerFactory.getLogger(IndexerBolt.class);
 
@@ -83,12 +76,11 @@ public class IndexerBolt extends AbstractIndexerBolt
 
     private ElasticSearchConnection connection;
 
-    private MultiReducedMetric perSecMetrics;
+    private DocumentIDs documentIDs;
 
-    private Cache<String, List<Tuple>> waitAck;
+    private MultiReducedMetric perSecMetrics;
 
-    // Be fair due to cache timeout
-    private final ReentrantLock waitAckLock = new ReentrantLock(true);
+    private WaitAck waitAck;
 
     public IndexerBolt() {}
 
@@ -109,6 +101,8 @@ public class IndexerBolt extends AbstractIndexerBolt
         create = ConfUtils.getBoolean(conf, IndexerBolt.ESCreateParamName, false);
         pipeline = ConfUtils.getString(conf, IndexerBolt.ESIndexPipelineParamName);
 
+        documentIDs = DocumentIDs.fromConf(conf);
+
         try {
             connection = ElasticSearchConnection.getConnection(conf, ESBoltType, this);
         } catch (Exception e1) {
@@ -126,26 +120,15 @@ public class IndexerBolt extends AbstractIndexerBolt
                         10);
 
         waitAck =
-                Caffeine.newBuilder()
-                        .expireAfterWrite(60, TimeUnit.SECONDS)
-                        .removalListener(this)
-                        .build();
-
-        context.registerMetric("waitAck", () -> waitAck.estimatedSize(), 10);
-    }
+                new WaitAck(
+                        TimeUnit.SECONDS.toMillis(60),
+                        (id, tuples) -> {
+                            for (Tuple t : tuples) {
+                                _collector.fail(t);
+                            }
+                        });
 
-    public void onRemoval(
-            @Nullable String key, @Nullable List<Tuple> value, @NotNull RemovalCause cause) {
-        if (!cause.wasEvicted()) return;
-        if (value != null) {
-            LOG.error("Purged from waitAck {} with {} values", key, value.size());
-            for (Tuple t : value) {
-                _collector.fail(t);
-            }
-        } else {
-            // This should never happen, but log it anyway.
-            LOG.error("Purged from waitAck {} with no values", key);
-        }
+        context.registerMetric("waitAck", () -> waitAck.size(), 10);
     }
 
     @Override
@@ -156,6 +139,9 @@ public class IndexerBolt extends AbstractIndexerBolt
     @Override
     public void execute(Tuple tuple) {
 
+        // the binary content is not indexed
+        ContentStore.release(tuple);
+
         String url = tuple.getStringByField("url");
 
         // Distinguish the value used for indexing
@@ -177,10 +163,14 @@ public class IndexerBolt extends AbstractIndexerBolt
             return;
         }
 
-        String docID = org.apache.commons.codec.digest.DigestUtils.sha256Hex(normalisedurl);
+        // reuse the ID of the status document if it is for the same URL
+        String docID =
+                url.equals(normalisedurl)
+                        ? documentIDs.get(url, metadata)
+                        : documentIDs.compute(normalisedurl);
 
         try {
-            XContentBuilder builder = jsonBuilder().startObject();
+            XContentBuilder builder = DocumentBuilders.jsonBuilder().startObject();
 
             // display text of the document?
             if (StringUtils.isNotBlank(fieldNameForText())) {
@@ -208,7 +198,9 @@ public class IndexerBolt extends AbstractIndexerBolt
             builder.endObject();
 
             IndexRequest indexRequest =
-                    new IndexRequest(getIndexName(metadata)).source(builder).id(docID);
+                    new IndexRequest(getIndexName(metadata))
+                            .source(DocumentBuilders.toBytes(builder), XContentType.JSON)
+                            .id(docID);
 
             DocWriteRequest.OpType optype = DocWriteRequest.OpType.INDEX;
 
@@ -222,34 +214,18 @@ public class IndexerBolt extends AbstractIndexerBolt
                 indexRequest.setPipeline(pipeline);
             }
 
+            // track the tuple before sending it so that the response can't
+            // arrive before it is added
+            waitAck.add(docID, tuple);
+
             connection.addToProcessor(indexRequest);
 
             eventCounter.scope("Indexed").incrBy(1);
             perSecMetrics.scope("Indexed").update(1);
-
-            waitAckLock.lock();
-            try {
-                List<Tuple> tt = waitAck.getIfPresent(docID);
-                if (tt == null) {
-                    tt = new LinkedList<>();
-                    waitAck.put(docID, tt);
-                }
-                tt.add(tuple);
-                LOG.debug("Added to waitAck {} with ID {} total {}", url, docID, tt.size());
-            } finally {
-                waitAckLock.unlock();
-            }
         } catch (IOException e) {
             LOG.error("Error building document for ES", e);
             // do not send to status stream so that it gets replayed
             _collector.fail(tuple);
-
-            waitAckLock.lock();
-            try {
-                waitAck.invalidate(docID);
-            } finally {
-                waitAckLock.unlock();
-            }
         }
     }
 
@@ -271,144 +247,53 @@ public class IndexerBolt extends AbstractIndexerBolt
         eventCounter.scope("bulks_received").incrBy(1);
         eventCounter.scope("bulk_msec").incrBy(response.getTook().getMillis());
 
-        var idsToBulkItemsWithFailedFlag =
-                Arrays.stream(response.getItems())
-                        .map(
-                                bir -> {
-                                    String id = bir.getId();
-                                    BulkItemResponse.Failure f = bir.getFailure();
-                                    boolean failed = false;
-                                    if (f != null) {
-                                        if (f.getStatus().equals(RestStatus.CONFLICT)) {
-                                            eventCounter.scope("doc_conflicts").incrBy(1);
-                                            LOG.debug("Doc conflict ID {}", id);
-                                        } else {
-                                            failed = true;
-                                        }
-                                    }
-                                    return new BulkItemResponseToFailedFlag(bir, failed);
-                                })
-                        .collect(
-                                // https://github.com/DigitalPebble/storm-crawler/issues/832
-                                Collectors.groupingBy(
-                                        idWithFailedFlagTuple -> idWithFailedFlagTuple.id,
-                                        Collectors.toUnmodifiableList()));
-
-        Map<String, List<Tuple>> presentTuples;
-        long estimatedSize;
-        Set<String> debugInfo = null;
-        waitAckLock.lock();
-        try {
-            presentTuples = waitAck.getAllPresent(idsToBulkItemsWithFailedFlag.keySet());
-            if (!presentTuples.isEmpty()) {
-                waitAck.invalidateAll(presentTuples.keySet());
-            }
-            estimatedSize = waitAck.estimatedSize();
-            // Only if we have to.
-            if (LOG.isDebugEnabled() && estimatedSize > 0L) {
-                debugInfo = new HashSet<>(waitAck.asMap().keySet());
-            }
-        } finally {
-            waitAckLock.unlock();
-        }
+        final int[] counts = new int[2];
 
-        int ackCount = 0;
-        int failureCount = 0;
-
-        for (var entry : presentTuples.entrySet()) {
-            final var id = entry.getKey();
-            final var associatedTuple = entry.getValue();
-            final var bulkItemsWithFailedFlag = idsToBulkItemsWithFailedFlag.get(id);
-
-            BulkItemResponseToFailedFlag selected;
-
-            if (bulkItemsWithFailedFlag.size() == 1) {
-                selected = bulkItemsWithFailedFlag.get(0);
-            } else {
-                // Fallback if there are multiple responses for the same id
-                BulkItemResponseToFailedFlag tmp = null;
-                var ctFailed = 0;
-                for (var buwff : bulkItemsWithFailedFlag) {
-                    if (tmp == null) {
-                        tmp = buwff;
+        waitAck.processResponse(
+                response,
+                (t, item) -> {
+                    if (item.isFailed()) {
+                        eventCounter.scope("doc_conflicts").incrBy(1);
+                        LOG.debug("Doc conflict ID {}", item.getId());
                     }
-                    if (buwff.failed) ctFailed++;
-                    else tmp = buwff;
-                }
-                if (ctFailed != bulkItemsWithFailedFlag.size()) {
-                    LOG.warn(
-                            "The id {} would result in an ack and a failure. Using only the ack for processing.",
-                            id);
-                }
-                selected = Objects.requireNonNull(tmp);
-            }
-
-            if (associatedTuple != null) {
-                LOG.debug("Found {} tuple(s) for ID {}", associatedTuple.size(), id);
-                for (Tuple t : associatedTuple) {
-                    String url = (String) t.getValueByField("url");
-
+                    String url = t.getStringByField("url");
                     Metadata metadata = (Metadata) t.getValueByField("metadata");
-
-                    if (!selected.failed) {
-                        ackCount++;
+                    counts[0]++;
+                    _collector.emit(StatusStreamName, t, new Values(url, metadata, Status.FETCHED));
+                    _collector.ack(t);
+                },
+                (t, item) -> {
+                    String url = t.getStringByField("url");
+                    Metadata metadata = (Metadata) t.getValueByField("metadata");
+                    counts[1]++;
+                    LOG.error(
+                            "update ID {}, URL {}, failure: {}",
+                            item.getId(),
+                            url,
+                            item.getFailure());
+                    // there is something wrong with the content we should
+                    // treat it as an ERROR
+                    if (item.getFailure().getStatus().equals(RestStatus.BAD_REQUEST)) {
+                        metadata.setValue(Constants.STATUS_ERROR_SOURCE, "ES indexing");
+                        metadata.setValue(Constants.STATUS_ERROR_MESSAGE, "invalid content");
                         _collector.emit(
-                                StatusStreamName, t, new Values(url, metadata, Status.FETCHED));
+                                StatusStreamName, t, new Values(url, metadata, Status.ERROR));
                         _collector.ack(t);
-                    } else {
-                        failureCount++;
-                        var failure = selected.getFailure();
-                        LOG.error("update ID {}, URL {}, failure: {}", id, url, failure);
-                        // there is something wrong with the content we should
-                        // treat
-                        // it as an ERROR
-                        if (selected.getFailure().getStatus().equals(RestStatus.BAD_REQUEST)) {
-                            metadata.setValue(Constants.STATUS_ERROR_SOURCE, "ES indexing");
-                            metadata.setValue(Constants.STATUS_ERROR_MESSAGE, "invalid content");
-                            _collector.emit(
-                                    StatusStreamName, t, new Values(url, metadata, Status.ERROR));
-                            _collector.ack(t);
-                            LOG.debug("Acked {} with ID {}", url, id);
-                        } else {
-                            LOG.error("update ID {}, URL {}, failure: {}", id, url, failure);
-                            // there is something wrong with the content we
-                            // should
-                            // treat
-                            // it as an ERROR
-                            if (failure.getStatus().equals(RestStatus.BAD_REQUEST)) {
-                                metadata.setValue(Constants.STATUS_ERROR_SOURCE, "ES indexing");
-                                metadata.setValue(
-                                        Constants.STATUS_ERROR_MESSAGE, "invalid content");
-                                _collector.emit(
-                                        StatusStreamName,
-                                        t,
-                                        new Values(url, metadata, Status.ERROR));
-                                _collector.ack(t);
-                            }
-                            // otherwise just fail it
-                            else {
-                                _collector.fail(t);
-                            }
-                        }
+                        LOG.debug("Acked {} with ID {}", url, item.getId());
                     }
-                }
-            } else {
-                LOG.warn("Could not find unacked tuples for {}", entry.getKey());
-            }
-        }
+                    // otherwise just fail it
+                    else {
+                        _collector.fail(t);
+                    }
+                });
 
         LOG.info(
                 "Bulk response [{}] : items {}, waitAck {}, acked {}, failed {}",
                 executionId,
-                idsToBulkItemsWithFailedFlag.size(),
-                estimatedSize,
-                ackCount,
-                failureCount);
-        if (debugInfo != null) {
-            for (String kinaw : debugInfo) {
-                LOG.debug("Still in wait ack after bulk response [{}] => {}", executionId, kinaw);
-            }
-        }
+                response.getItems().length,
+                waitAck.size(),
+                counts[0],
+                counts[1]);
     }
 
     @Override
@@ -416,33 +301,11 @@ public class IndexerBolt extends AbstractIndexerBolt
         eventCounter.scope("bulks_received").incrBy(1);
         LOG.error("Exception with bulk {} - failing the whole lot ", executionId, failure);
 
-        final var failedIds =
-                request.requests().stream()
-                        .map(DocWriteRequest::id)
-                        .collect(Collectors.toUnmodifiableSet());
-        waitAckLock.lock();
-        Map<String, List<Tuple>> failedTupleLists;
-        try {
-            failedTupleLists = waitAck.getAllPresent(failedIds);
-            if (!failedTupleLists.isEmpty()) {
-                waitAck.invalidateAll(failedTupleLists.keySet());
-            }
-        } finally {
-            waitAckLock.unlock();
-        }
-
-        for (var id : failedIds) {
-            var failedTuples = failedTupleLists.get(id);
-            if (failedTuples != null) {
-                LOG.debug("Failed {} tuple(s) for ID {}", failedTuples.size(), id);
-                for (Tuple x : failedTuples) {
-                    // fail it
+        waitAck.failAll(
+                request,
+                t -> {
                     eventCounter.scope("failed").incrBy(1);
-                    _collector.fail(x);
-                }
-            } else {
-                LOG.warn("Could not find unacked tuple for {}", id);
-            }
-        }
+                    _collector.fail(t);
+                });
     }
 }
@@ -15,9 +15,11 @@
 package com.digitalpebble.stormcrawler.elasticsearch.metrics;
 
 import com.digitalpebble.stormcrawler.elasticsearch.ElasticSearchConnection;
+import com.digitalpebble.stormcrawler.elasticsearch.persistence.StatusPartitions;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.apache.storm.Config;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
@@ -37,6 +39,11 @@ import org.slf4j.LoggerFactory;
 /**
  * Queries the status index periodically to get the count of URLs per status. This bolt can be
  * connected to the output of any other bolt and will not produce anything as output.
+ *
+ * <p>With <i>es.status.metrics.incremental: true</i>, the counts are kept up to date with the
+ * changes sent by the StatusUpdaterBolt on the <i>status_deltas</i> stream and the index is only
+ * queried every <i>es.status.metrics.reconcile.interval</i> seconds to correct any drift. The same
+ * setting must be used for the spouts and the status updater.
  */
 public class StatusMetricsBolt extends BaseRichBolt {
 
@@ -45,23 +52,45 @@ public class StatusMetricsBolt extends BaseRichBolt {
     private static final String ESBoltType = "status";
     private static final String ESStatusIndexNameParamName = "es.status.index.name";
 
+    public static final String INCREMENTAL_PARAM = "es.status.metrics.incremental";
+
+    /** Interval in seconds between count queries in incremental mode, default 3600 */
+    public static final String RECONCILE_INTERVAL_PARAM = "es.status.metrics.reconcile.interval";
+
+    /** Stream on which the status updater sends the changes in the number of URLs per status */
+    public static final String DELTAS_STREAM = "status_deltas";
+
+    /** Key of the metadata in which the spouts put the status of a URL in the index */
+    public static final String PREVIOUS_STATUS_KEY = "es.status.previous";
+
+    public static final String TOTAL = "TOTAL";
+
     private String indexName;
 
+    /** Set if the status index is partitioned by nextFetchDate, null otherwise */
+    private StatusPartitions partitions;
+
     private ElasticSearchConnection connection;
 
     private Map<String, Long> latestStatusCounts = new HashMap<>(6);
 
+    private boolean incremental = false;
+
+    private long reconcileIntervalMsec;
+
+    private long lastReconcile = -1;
+
     private int freqStats = 60;
 
     private OutputCollector _collector;
 
     private transient StatusActionListener[] listeners;
 
-    private class StatusActionListener implements ActionListener<CountResponse> {
+    class StatusActionListener implements ActionListener<CountResponse> {
 
         private final String name;
 
-        private boolean ready = true;
+        private volatile boolean ready = true;
 
         public boolean isReady() {
             return ready;
@@ -69,22 +98,33 @@ public class StatusMetricsBolt extends BaseRichBolt {
 
         public void busy() {
             this.ready = false;
+            this.sinceRequest = 0;
         }
 
+        /** Changes received while the count query is running */
+        private long sinceRequest = 0;
+
         StatusActionListener(String statusName) {
             name = statusName;
         }
 
         @Override
         public void onResponse(CountResponse response) {
-            ready = true;
             LOG.debug("Got {} counts for status:{}", response.getCount(), name);
-            latestStatusCounts.put(name, response.getCount());
+            synchronized (latestStatusCounts) {
+                latestStatusCounts.put(name, response.getCount() + sinceRequest);
+                ready = true;
+            }
         }
 
         @Override
         public void onFailure(Exception e) {
-            ready = true;
+            synchronized (latestStatusCounts) {
+                // keep the changes received in the meantime
+                long delta = sinceRequest;
+                latestStatusCounts.computeIfPresent(name, (k, v) -> v + delta);
+                ready = true;
+            }
             LOG.error("Failure when getting counts for status:{}", name, e);
         }
     }
@@ -94,6 +134,10 @@ public class StatusMetricsBolt extends BaseRichBolt {
             Map<String, Object> stormConf, TopologyContext context, OutputCollector collector) {
         _collector = collector;
         indexName = ConfUtils.getString(stormConf, ESStatusIndexNameParamName, "status");
+        partitions = StatusPartitions.fromConf(stormConf, ESBoltType);
+        if (partitions != null) {
+            indexName = partitions.getAllPartitions(indexName);
+        }
         try {
             connection = ElasticSearchConnection.getConnection(stormConf, ESBoltType);
         } catch (Exception e1) {
@@ -101,13 +145,17 @@ public class StatusMetricsBolt extends BaseRichBolt {
             throw new RuntimeException(e1);
         }
 
-        context.registerMetric(
-                "status.count",
-                () -> {
-                    return latestStatusCounts;
-                },
-                freqStats);
+        incremental = ConfUtils.getBoolean(stormConf, INCREMENTAL_PARAM, false);
+        reconcileIntervalMsec =
+                TimeUnit.SECONDS.toMillis(
+                        ConfUtils.getLong(stormConf, RECONCILE_INTERVAL_PARAM, 3600L));
+
+        context.registerMetric("status.count", this::getCounts, freqStats);
 
+        createListeners();
+    }
+
+    void createListeners() {
         listeners = new StatusActionListener[6];
 
         listeners[0] = new StatusActionListener("DISCOVERED");
@@ -115,7 +163,7 @@ public class StatusMetricsBolt extends BaseRichBolt {
         listeners[2] = new StatusActionListener("FETCH_ERROR");
         listeners[3] = new StatusActionListener("REDIRECTION");
         listeners[4] = new StatusActionListener("ERROR");
-        listeners[5] = new StatusActionListener("TOTAL");
+        listeners[5] = new StatusActionListener(TOTAL);
     }
 
     @Override
@@ -129,12 +177,26 @@ public class StatusMetricsBolt extends BaseRichBolt {
     public void execute(Tuple input) {
         _collector.ack(input);
 
+        if (incremental && DELTAS_STREAM.equals(input.getSourceStreamId())) {
+            applyDeltas((Map<String, Long>) input.getValueByField("deltas"));
+            return;
+        }
+
         // this bolt can be connected to anything
         // we just want to trigger a new search when the input is a tick tuple
         if (!TupleUtils.isTick(input)) {
             return;
         }
 
+        if (incremental) {
+            long now = System.currentTimeMillis();
+            if (lastReconcile != -1 && now - lastReconcile < reconcileIntervalMsec) {
+                return;
+            }
+            LOG.info("Reconciling the counts of URLs per status with the index");
+            lastReconcile = now;
+        }
+
         for (StatusActionListener listener : listeners) {
             // still waiting for results from previous request
             if (!listener.isReady()) {
@@ -142,16 +204,59 @@ public class StatusMetricsBolt extends BaseRichBolt {
                 continue;
             }
             CountRequest request = new CountRequest(indexName);
-            if (!listener.name.equalsIgnoreCase("TOTAL")) {
+            if (!listener.name.equalsIgnoreCase(TOTAL)) {
                 SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
                 sourceBuilder.query(QueryBuilders.termQuery("status", listener.name));
                 request.source(sourceBuilder);
+            } else if (partitions != null) {
+                // leave out the stubs of the fetched URLs
+                SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
+                sourceBuilder.query(QueryBuilders.existsQuery("status"));
+                request.source(sourceBuilder);
+            }
+            synchronized (latestStatusCounts) {
+                listener.busy();
             }
-            listener.busy();
             connection.getClient().countAsync(request, RequestOptions.DEFAULT, listener);
         }
     }
 
+    /** Returns the listener for a status or TOTAL, null if there is none */
+    StatusActionListener getListener(String status) {
+        for (StatusActionListener listener : listeners) {
+            if (listener.name.equals(status)) {
+                return listener;
+            }
+        }
+        return null;
+    }
+
+    /** Returns a copy of the current counts */
+    Map<String, Long> getCounts() {
+        synchronized (latestStatusCounts) {
+            return new HashMap<>(latestStatusCounts);
+        }
+    }
+
+    /** Applies the changes to the counts obtained from the index */
+    void applyDeltas(Map<String, Long> deltas) {
+        synchronized (latestStatusCounts) {
+            for (StatusActionListener listener : listeners) {
+                Long delta = deltas.get(listener.name);
+                if (delta == null) {
+                    continue;
+                }
+                if (!listener.isReady()) {
+                    // will be added to the result of the query
+                    listener.sinceRequest += delta;
+                } else {
+                    // not counted until the first query returns
+                    latestStatusCounts.computeIfPresent(listener.name, (k, v) -> v + delta);
+                }
+            }
+        }
+    }
+
     @Override
     public void cleanup() {
         connection.close();
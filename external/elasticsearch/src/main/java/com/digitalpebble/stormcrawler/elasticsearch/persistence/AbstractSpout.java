@@ -15,10 +15,14 @@
 package com.digitalpebble.stormcrawler.elasticsearch.persistence;
 
 import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.elasticsearch.DocumentBuilders;
 import com.digitalpebble.stormcrawler.elasticsearch.ElasticSearchConnection;
+import com.digitalpebble.stormcrawler.elasticsearch.metrics.StatusMetricsBolt;
 import com.digitalpebble.stormcrawler.persistence.AbstractQueryingSpout;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -27,7 +31,11 @@ import java.util.Map;
 import java.util.Map.Entry;
 import org.apache.storm.spout.SpoutOutputCollector;
 import org.apache.storm.task.TopologyContext;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.GetIndexRequest;
 import org.elasticsearch.search.SearchHit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -86,6 +94,24 @@ public abstract class AbstractSpout extends AbstractQueryingSpout {
 
     protected int queryTimeout = -1;
 
+    /** Adjusts the query window at runtime if es.status.autotune is set, null otherwise */
+    protected QueryWindowTuner tuner;
+
+    /** Set if the status index is partitioned by nextFetchDate, null otherwise */
+    protected StatusPartitions partitions;
+
+    /**
+     * Whether to put the status of the URLs in their metadata so that the status updater can
+     * compute the changes in the number of URLs per status, set by es.status.metrics.incremental
+     */
+    protected boolean tagPreviousStatus = false;
+
+    private static final long PARTITIONS_REFRESH_MSEC = 60_000;
+
+    private List<String> knownPartitions = Collections.emptyList();
+
+    private long lastPartitionsRefresh = -1;
+
     @Override
     public void open(
             Map<String, Object> stormConf,
@@ -156,6 +182,75 @@ public abstract class AbstractSpout extends AbstractQueryingSpout {
         queryTimeout = ConfUtils.getInt(stormConf, ESStatusQueryTimeoutParamName, -1);
 
         filterQueries = ConfUtils.loadListFromConf(ESStatusFilterParamName, stormConf);
+
+        tuner =
+                QueryWindowTuner.fromConf(
+                        stormConf,
+                        maxBucketNum,
+                        maxURLsPerBucket,
+                        minDelayBetweenQueries,
+                        maxDelayBetweenQueries);
+
+        partitions = StatusPartitions.fromConf(stormConf, ESBoltType);
+
+        tagPreviousStatus =
+                ConfUtils.getBoolean(stormConf, StatusMetricsBolt.INCREMENTAL_PARAM, false);
+    }
+
+    /**
+     * Returns a request on the partitions which can contain URLs due by the date or on the status
+     * index if it is not partitioned.
+     */
+    protected SearchRequest newSearchRequest(Date date) {
+        if (partitions == null) {
+            return new SearchRequest(indexName);
+        }
+        SearchRequest request =
+                new SearchRequest(partitions.getHotPartitions(indexName, listPartitions(), date));
+        // a partition might not exist yet or have been deleted since it was listed
+        request.indicesOptions(IndicesOptions.lenientExpandOpen());
+        return request;
+    }
+
+    /** Returns the names of the partitions, refreshed at most once a minute */
+    private synchronized List<String> listPartitions() {
+        long now = System.currentTimeMillis();
+        if (now - lastPartitionsRefresh < PARTITIONS_REFRESH_MSEC) {
+            return knownPartitions;
+        }
+        lastPartitionsRefresh = now;
+        try {
+            GetIndexRequest request =
+                    new GetIndexRequest(partitions.getAllPartitions(indexName))
+                            .indicesOptions(IndicesOptions.lenientExpandOpen());
+            String[] indices = client.indices().get(request, RequestOptions.DEFAULT).getIndices();
+            knownPartitions = Arrays.asList(indices);
+            LOG.debug("{} Found {} status partitions", logIdprefix, indices.length);
+        } catch (IOException e) {
+            LOG.error("{} Can't list the status partitions", logIdprefix, e);
+        }
+        return knownPartitions;
+    }
+
+    /**
+     * Passes the outcome of a query to the tuner, if any, and applies the values it returns to the
+     * next queries.
+     */
+    protected void tuneQueryWindow(
+            int numDocs, int alreadyProcessed, int numBuckets, long timeTaken) {
+        if (tuner == null) {
+            return;
+        }
+        tuner.update(
+                System.currentTimeMillis(),
+                buffer.size(),
+                numDocs,
+                alreadyProcessed,
+                numBuckets,
+                timeTaken);
+        maxBucketNum = tuner.getBuckets();
+        maxURLsPerBucket = tuner.getURLsPerBucket();
+        minDelayBetweenQueries = tuner.getDelay();
     }
 
     /** Builds a query and use it retrieve the results from ES * */
@@ -168,7 +263,23 @@ public abstract class AbstractSpout extends AbstractQueryingSpout {
         if (beingProcessed.containsKey(url)) {
             return false;
         }
-        return buffer.add(url, fromKeyValues(keyValues));
+        return buffer.add(url, fromHit(hit, keyValues));
+    }
+
+    /**
+     * Returns the metadata of a hit, with the partition it was read from if the status index is
+     * partitioned and its current status if the status counts are incremental.
+     */
+    protected final Metadata fromHit(SearchHit hit, Map<String, Object> keyValues) {
+        Metadata metadata = fromKeyValues(keyValues);
+        if (partitions != null) {
+            metadata.setValue(StatusPartitions.INDEX_METADATA_KEY, hit.getIndex());
+        }
+        Object status = keyValues.get("status");
+        if (tagPreviousStatus && status != null) {
+            metadata.setValue(StatusMetricsBolt.PREVIOUS_STATUS_KEY, status.toString());
+        }
+        return metadata;
     }
 
     protected final Metadata fromKeyValues(Map<String, Object> keyValues) {
@@ -180,7 +291,7 @@ public abstract class AbstractSpout extends AbstractQueryingSpout {
                 Entry<String, List<String>> mdEntry = mdIter.next();
                 String key = mdEntry.getKey();
                 // periods are not allowed in ES2 - replace with %2E
-                key = key.replaceAll("%2E", "\\.");
+                key = DocumentBuilders.unescapeKey(key);
                 Object mdValObj = mdEntry.getValue();
                 // single value
                 if (mdValObj instanceof String) {
@@ -17,15 +17,21 @@ package com.digitalpebble.stormcrawler.elasticsearch.persistence;
 import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
 
 import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.elasticsearch.DocumentBuilders;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.storm.spout.SpoutOutputCollector;
 import org.apache.storm.task.TopologyContext;
@@ -59,6 +65,12 @@ import org.slf4j.LoggerFactory;
  * with the StatusUpdaterBolt, in which case you need to have exactly the same number of spout
  * instances as ES shards. Guarantees a good mix of URLs by aggregating them by an arbitrary field
  * e.g. key.
+ *
+ * <p>If <i>es.status.num.shards</i> is set to the number of shards of the status index, each
+ * instance queries the shards it is in charge of concurrently and merges the results into its
+ * buffer, which allows using fewer instances than shards. The top hits only fetch the fields needed
+ * to build the tuples and, with <i>es.status.docvalues</i>, the URL is read from the doc values so
+ * that the source of a document is parsed only if its URL gets added to the buffer.
  */
 public class AggregationSpout extends AbstractSpout implements ActionListener<SearchResponse> {
 
@@ -68,6 +80,15 @@ public class AggregationSpout extends AbstractSpout implements ActionListener<Se
     private static final String ESMostRecentDateIncreaseParamName = "es.status.recentDate.increase";
     private static final String ESMostRecentDateMinGapParamName = "es.status.recentDate.min.gap";
 
+    /** Number of shards of the status index, used for querying them concurrently */
+    private static final String ESStatusNumShardsParamName = "es.status.num.shards";
+
+    /** Read the URL from the doc values, requires the url field to be a keyword */
+    private static final String ESStatusDocValuesParamName = "es.status.docvalues";
+
+    /** Metadata fields to retrieve, all of them if not set */
+    private static final String ESStatusMetadataFieldsParamName = "es.status.metadata.fields";
+
     private boolean sample = false;
 
     private int recentDateIncrease = -1;
@@ -75,6 +96,22 @@ public class AggregationSpout extends AbstractSpout implements ActionListener<Se
 
     protected Set<String> currentBuckets;
 
+    /** Shards queried concurrently by this instance or null if a single query is sent */
+    private int[] shards;
+
+    private boolean useDocValues = false;
+
+    private String[] sourceIncludes;
+
+    /** Number of responses expected for the current query */
+    private final AtomicInteger pendingResponses = new AtomicInteger();
+
+    // merged over the responses of the current query
+    private int totalBuckets;
+    private int totalHits;
+    private int totalAlreadyProcessed;
+    private Instant mostRecentDateFound;
+
     @Override
     public void open(
             Map<String, Object> stormConf,
@@ -87,6 +124,43 @@ public class AggregationSpout extends AbstractSpout implements ActionListener<Se
                 ConfUtils.getInt(stormConf, ESMostRecentDateMinGapParamName, recentDateMinGap);
         super.open(stormConf, context, collector);
         currentBuckets = new HashSet<>();
+
+        int numShards = ConfUtils.getInt(stormConf, ESStatusNumShardsParamName, -1);
+        if (numShards > 0) {
+            // the shards are distributed between the instances
+            int totalTasks = context.getComponentTasks(context.getThisComponentId()).size();
+            int taskIndex = context.getThisTaskIndex();
+            shards =
+                    IntStream.range(0, numShards)
+                            .filter(s -> s % totalTasks == taskIndex)
+                            .toArray();
+            if (shards.length == 0) {
+                throw new RuntimeException(
+                        "More spout instances (" + totalTasks + ") than shards " + numShards);
+            }
+            LOG.info("{} assigned shards {}", logIdprefix, Arrays.toString(shards));
+        }
+
+        useDocValues = ConfUtils.getBoolean(stormConf, ESStatusDocValuesParamName, false);
+
+        List<String> includes = new ArrayList<>();
+        if (!useDocValues) {
+            includes.add("url");
+        }
+        includes.add("nextFetchDate");
+        if (tagPreviousStatus) {
+            includes.add("status");
+        }
+        List<String> mdFields =
+                ConfUtils.loadListFromConf(ESStatusMetadataFieldsParamName, stormConf);
+        if (mdFields.isEmpty()) {
+            includes.add("metadata");
+        } else {
+            for (String field : mdFields) {
+                includes.add("metadata." + DocumentBuilders.escapeKey(field));
+            }
+        }
+        sourceIncludes = includes.toArray(new String[0]);
     }
 
     @Override
@@ -111,7 +185,7 @@ public class AggregationSpout extends AbstractSpout implements ActionListener<Se
             }
         }
 
-        SearchRequest request = new SearchRequest(indexName);
+        SearchRequest request = newSearchRequest(queryDate);
 
         SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
         sourceBuilder.query(queryBuilder);
@@ -128,7 +202,14 @@ public class AggregationSpout extends AbstractSpout implements ActionListener<Se
                 AggregationBuilders.terms("partition").field(partitionField).size(maxBucketNum);
 
         org.elasticsearch.search.aggregations.metrics.TopHitsAggregationBuilder tophits =
-                AggregationBuilders.topHits("docs").size(maxURLsPerBucket).explain(false);
+                AggregationBuilders.topHits("docs")
+                        .size(maxURLsPerBucket)
+                        .explain(false)
+                        .fetchSource(sourceIncludes, null);
+
+        if (useDocValues) {
+            tophits.docValueField("url");
+        }
 
         // sort within a bucket
         for (String bsf : bucketSortField) {
@@ -161,7 +242,7 @@ public class AggregationSpout extends AbstractSpout implements ActionListener<Se
         // https://www.elastic.co/guide/en/elasticsearch/reference/current/search-request-preference.html
         // _shards:2,3
         // specific shard but ideally a local copy of it
-        if (shardID != -1) {
+        if (shardID != -1 && shards == null) {
             request.preference("_shards:" + shardID + "|_local");
         }
 
@@ -170,23 +251,59 @@ public class AggregationSpout extends AbstractSpout implements ActionListener<Se
 
         LOG.trace("{} isInquery set to true");
         isInQuery.set(true);
-        client.searchAsync(request, RequestOptions.DEFAULT, this);
+
+        synchronized (this) {
+            currentBuckets.clear();
+            totalBuckets = 0;
+            totalHits = 0;
+            totalAlreadyProcessed = 0;
+            mostRecentDateFound = null;
+        }
+
+        if (shards == null) {
+            pendingResponses.set(1);
+            client.searchAsync(request, RequestOptions.DEFAULT, this);
+            return;
+        }
+
+        // one request per shard, the responses are merged into the buffer
+        pendingResponses.set(shards.length);
+        for (int shard : shards) {
+            SearchRequest shardRequest =
+                    new SearchRequest(request.indices())
+                            .indicesOptions(request.indicesOptions())
+                            .source(sourceBuilder);
+            shardRequest.preference("_shards:" + shard + "|_local");
+            client.searchAsync(shardRequest, RequestOptions.DEFAULT, this);
+        }
     }
 
     @Override
     public void onFailure(Exception arg0) {
         LOG.error("{} Exception with ES query", logIdprefix, arg0);
-        markQueryReceivedNow();
+        if (pendingResponses.decrementAndGet() <= 0) {
+            synchronized (this) {
+                endQuery();
+            }
+        }
     }
 
     @Override
     public void onResponse(SearchResponse response) {
+        synchronized (this) {
+            processResponse(response);
+            if (pendingResponses.decrementAndGet() <= 0) {
+                endQuery();
+            }
+        }
+    }
+
+    private void processResponse(SearchResponse response) {
         long timeTaken = System.currentTimeMillis() - getTimeLastQuerySent();
 
         Aggregations aggregs = response.getAggregations();
 
         if (aggregs == null) {
-            markQueryReceivedNow();
             return;
         }
 
@@ -201,10 +318,6 @@ public class AggregationSpout extends AbstractSpout implements ActionListener<Se
         int numBuckets = 0;
         int alreadyprocessed = 0;
 
-        Instant mostRecentDateFound = null;
-
-        currentBuckets.clear();
-
         // For each entry
         Iterator<Terms.Bucket> iterator = (Iterator<Bucket>) agg.getBuckets().iterator();
         while (iterator.hasNext()) {
@@ -224,28 +337,39 @@ public class AggregationSpout extends AbstractSpout implements ActionListener<Se
             TopHits topHits = entry.getAggregations().get("docs");
             for (SearchHit hit : topHits.getHits().getHits()) {
 
-                LOG.debug(
-                        "{} -> id [{}], _source [{}]",
-                        logIdprefix,
-                        hit.getId(),
-                        hit.getSourceAsString());
+                LOG.trace("{} -> id [{}]", logIdprefix, hit.getId());
 
                 hitsForThisBucket++;
 
                 lastHit = hit;
 
-                Map<String, Object> keyValues = hit.getSourceAsMap();
-                String url = (String) keyValues.get("url");
+                // the source is parsed only if needed
+                Map<String, Object> keyValues = null;
+                String url;
+                if (useDocValues) {
+                    url = hit.field("url").getValue();
+                } else {
+                    keyValues = hit.getSourceAsMap();
+                    url = (String) keyValues.get("url");
+                }
 
                 // consider only the first document of the last bucket
                 // for optimising the nextFetchDate
                 if (hitsForThisBucket == 1 && !iterator.hasNext()) {
+                    if (keyValues == null) {
+                        keyValues = hit.getSourceAsMap();
+                    }
                     String strDate = (String) keyValues.get("nextFetchDate");
+                    Instant date;
                     try {
-                        mostRecentDateFound = Instant.parse(strDate);
+                        date = Instant.parse(strDate);
                     } catch (Exception e) {
                         throw new RuntimeException("can't parse date :" + strDate);
                     }
+                    // keep the most recent one over all the shards
+                    if (mostRecentDateFound == null || date.isAfter(mostRecentDateFound)) {
+                        mostRecentDateFound = date;
+                    }
                 }
 
                 // is already being processed or in buffer - skip it!
@@ -255,7 +379,10 @@ public class AggregationSpout extends AbstractSpout implements ActionListener<Se
                     continue;
                 }
 
-                Metadata metadata = fromKeyValues(keyValues);
+                if (keyValues == null) {
+                    keyValues = hit.getSourceAsMap();
+                }
+                Metadata metadata = fromHit(hit, keyValues);
                 boolean added = buffer.add(url, metadata);
                 if (!added) {
                     LOG.debug("{} -> already in buffer: {}", logIdprefix, url);
@@ -296,6 +423,14 @@ public class AggregationSpout extends AbstractSpout implements ActionListener<Se
         eventCounter.scope("ES_queries").incrBy(1);
         eventCounter.scope("ES_docs").incrBy(numhits);
 
+        totalBuckets += numBuckets;
+        totalHits += numhits;
+        totalAlreadyProcessed += alreadyprocessed;
+    }
+
+    /** Called once all the responses for the current query have been received */
+    private void endQuery() {
+
         // optimise the nextFetchDate by getting the most recent value
         // returned in the query and add to it, unless the previous value is
         // within n mins in which case we'll keep it
@@ -350,10 +485,16 @@ public class AggregationSpout extends AbstractSpout implements ActionListener<Se
         }
 
         // change the date if we don't get any results at all
-        if (numBuckets == 0) {
+        if (totalBuckets == 0) {
             queryDate = null;
         }
 
+        tuneQueryWindow(
+                totalHits,
+                totalAlreadyProcessed,
+                totalBuckets,
+                System.currentTimeMillis() - getTimeLastQuerySent());
+
         // remove lock
         markQueryReceivedNow();
     }
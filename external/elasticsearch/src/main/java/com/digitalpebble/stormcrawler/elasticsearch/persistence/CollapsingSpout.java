@@ -99,7 +99,7 @@ public class CollapsingSpout extends AbstractSpout implements ActionListener<Sea
             }
         }
 
-        SearchRequest request = new SearchRequest(indexName);
+        SearchRequest request = newSearchRequest(queryDate);
 
         SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
         sourceBuilder.query(queryBuilder);
@@ -230,6 +230,8 @@ public class CollapsingSpout extends AbstractSpout implements ActionListener<Sea
             lastStartOffset += numBuckets;
         }
 
+        tuneQueryWindow(numDocs, alreadyprocessed, numBuckets, timeTaken);
+
         // remove lock
         markQueryReceivedNow();
     }
@@ -123,7 +123,7 @@ public class HybridSpout extends AggregationSpout implements EmptyQueueListener
             sourceBuilder.searchAfter(searchAfterValues);
         }
 
-        SearchRequest request = new SearchRequest(indexName);
+        SearchRequest request = newSearchRequest(queryDate);
 
         request.source(sourceBuilder);
 
@@ -141,12 +141,11 @@ public class HybridSpout extends AggregationSpout implements EmptyQueueListener
     }
 
     @Override
-    /** Overrides the handling of responses for aggregations */
-    public void onResponse(SearchResponse response) {
-        // delete all entries from the searchAfterCache when
-        // we get the results from the aggregation spouts
+    protected void populateBuffer() {
+        // delete all entries from the searchAfterCache when querying
+        // the aggregations, the responses for each shard will set them
         searchAfterCache.invalidateAll();
-        super.onResponse(response);
+        super.populateBuffer();
     }
 
     @Override
@@ -0,0 +1,224 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch.persistence;
+
+import com.digitalpebble.stormcrawler.util.ConfUtils;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the number of buckets, the number of URLs per bucket and the minimum delay between
+ * queries of the ES spouts so that the buffer stays just ahead of the fetchers. After each query,
+ * it estimates the rate at which the buffer is drained and compares it with the number of new URLs
+ * the query brought in:
+ *
+ * <ul>
+ *   <li>if the buffer ran dry, the window is widened and the delay shortened
+ *   <li>if the buffer holds far more than what will be consumed until the next query, the window is
+ *       narrowed
+ *   <li>if most of the URLs returned were already being processed, the delay is lengthened as the
+ *       queries are wasted
+ *   <li>if a query is slower than <i>es.status.autotune.max.latency</i>, the number of buckets is
+ *       reduced
+ * </ul>
+ *
+ * Activated with <i>es.status.autotune: true</i>, the static values are then used as starting
+ * points.
+ *
+ * @since 2.5
+ */
+public class QueryWindowTuner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryWindowTuner.class);
+
+    public static final String AUTOTUNE_PARAM = "es.status.autotune";
+    public static final String MAX_BUCKETS_PARAM = "es.status.autotune.max.buckets";
+    public static final String MAX_URLS_PER_BUCKET_PARAM = "es.status.autotune.max.urls.per.bucket";
+    public static final String MIN_DELAY_PARAM = "es.status.autotune.min.delay";
+    public static final String MAX_LATENCY_PARAM = "es.status.autotune.max.latency";
+
+    /** Ratio of URLs already being processed above which the queries are considered wasted */
+    private static final float WASTE_RATIO = 0.5f;
+
+    /** Smoothing of the drain rate */
+    private static final double ALPHA = 0.3;
+
+    private final int minBuckets;
+    private final int maxBuckets;
+    private final int maxURLsPerBucket;
+    private final long minDelay;
+    private final long maxDelay;
+    private final long maxLatency;
+
+    private int buckets;
+    private int urlsPerBucket;
+    private long delay;
+
+    private long lastResponse = -1;
+    private int lastBufferSize;
+
+    /** URLs taken from the buffer per msec */
+    private double drainRate = -1;
+
+    QueryWindowTuner(
+            int buckets,
+            int urlsPerBucket,
+            long delay,
+            int maxBuckets,
+            int maxURLsPerBucket,
+            long minDelay,
+            long maxDelay,
+            long maxLatency) {
+        this.buckets = Math.max(1, buckets);
+        this.urlsPerBucket = Math.max(1, urlsPerBucket);
+        this.minBuckets = Math.max(1, Math.min(this.buckets, 10));
+        this.maxBuckets = Math.max(this.buckets, maxBuckets);
+        this.maxURLsPerBucket = Math.max(this.urlsPerBucket, maxURLsPerBucket);
+        this.minDelay = Math.max(0, Math.min(minDelay, delay));
+        this.maxDelay = Math.max(delay, maxDelay);
+        this.delay = delay;
+        this.maxLatency = maxLatency;
+    }
+
+    /** Returns an instance if activated in the configuration, null otherwise */
+    static QueryWindowTuner fromConf(
+            Map<String, Object> stormConf,
+            int buckets,
+            int urlsPerBucket,
+            long delay,
+            long maxDelay) {
+        if (!ConfUtils.getBoolean(stormConf, AUTOTUNE_PARAM, false)) {
+            return null;
+        }
+        return new QueryWindowTuner(
+                buckets,
+                urlsPerBucket,
+                delay,
+                ConfUtils.getInt(stormConf, MAX_BUCKETS_PARAM, buckets * 4),
+                ConfUtils.getInt(stormConf, MAX_URLS_PER_BUCKET_PARAM, urlsPerBucket * 4),
+                ConfUtils.getLong(stormConf, MIN_DELAY_PARAM, Math.min(500L, delay)),
+                maxDelay,
+                ConfUtils.getLong(stormConf, MAX_LATENCY_PARAM, 2000L));
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public int getURLsPerBucket() {
+        return urlsPerBucket;
+    }
+
+    public long getDelay() {
+        return delay;
+    }
+
+    public double getDrainRate() {
+        return drainRate;
+    }
+
+    /**
+     * Called once the results of a query have been added to the buffer.
+     *
+     * @param now current time in msec
+     * @param bufferSize size of the buffer after adding the results
+     * @param numDocs number of documents returned by the query
+     * @param alreadyProcessed number of them which were already being processed or in the buffer
+     * @param numBuckets number of buckets returned by the query
+     * @param latency time taken by the query in msec
+     */
+    public void update(
+            long now,
+            int bufferSize,
+            int numDocs,
+            int alreadyProcessed,
+            int numBuckets,
+            long latency) {
+        int added = Math.max(0, numDocs - alreadyProcessed);
+        // size of the buffer when the results came back
+        int before = Math.max(0, bufferSize - added);
+
+        if (lastResponse == -1) {
+            lastResponse = now;
+            lastBufferSize = bufferSize;
+            return;
+        }
+
+        long elapsed = Math.max(1, now - lastResponse);
+        int drained = Math.max(0, lastBufferSize - before);
+        double rate = (double) drained / elapsed;
+        drainRate = drainRate < 0 ? rate : ALPHA * rate + (1 - ALPHA) * drainRate;
+
+        lastResponse = now;
+        lastBufferSize = bufferSize;
+
+        int newBuckets = buckets;
+        int newURLsPerBucket = urlsPerBucket;
+        long newDelay = delay;
+
+        float wasted = numDocs == 0 ? 0f : (float) alreadyProcessed / numDocs;
+
+        // URLs needed until the results of the next query come back
+        double needed = drainRate * (delay + latency) * 1.5;
+
+        if (wasted > WASTE_RATIO) {
+            // most URLs are already being processed, query less often
+            newDelay = Math.max(delay * 3 / 2, delay + 100);
+        } else if (before == 0 && drained > 0) {
+            // ran dry: get more per query and query sooner
+            if (numBuckets >= buckets) {
+                newBuckets = buckets + Math.max(1, buckets / 4);
+            } else {
+                // not enough buckets to fill, get more URLs per bucket
+                newURLsPerBucket = urlsPerBucket + 1;
+            }
+            newDelay = delay * 3 / 4;
+        } else if (before > 2 * needed) {
+            // well ahead of the fetchers
+            if (urlsPerBucket > 1 && numBuckets < buckets) {
+                newURLsPerBucket = urlsPerBucket - 1;
+            } else {
+                newBuckets = buckets - Math.max(1, buckets / 5);
+            }
+        }
+
+        if (maxLatency > 0 && latency > maxLatency) {
+            newBuckets = Math.min(newBuckets, buckets - Math.max(1, buckets / 5));
+        }
+
+        newBuckets = Math.max(minBuckets, Math.min(maxBuckets, newBuckets));
+        newURLsPerBucket = Math.max(1, Math.min(maxURLsPerBucket, newURLsPerBucket));
+        newDelay = Math.max(minDelay, Math.min(maxDelay, newDelay));
+
+        if (newBuckets != buckets || newURLsPerBucket != urlsPerBucket || newDelay != delay) {
+            LOG.debug(
+                    "Drain rate {}/sec, buffer {}, wasted {} : buckets {} -> {}, URLs per bucket {} -> {}, delay {} -> {}",
+                    drainRate * 1000,
+                    before,
+                    wasted,
+                    buckets,
+                    newBuckets,
+                    urlsPerBucket,
+                    newURLsPerBucket,
+                    delay,
+                    newDelay);
+        }
+
+        buckets = newBuckets;
+        urlsPerBucket = newURLsPerBucket;
+        delay = newDelay;
+    }
+}
@@ -18,45 +18,128 @@ import com.digitalpebble.stormcrawler.Constants;
 import com.digitalpebble.stormcrawler.Metadata;
 import com.digitalpebble.stormcrawler.persistence.AbstractStatusUpdaterBolt;
 import com.digitalpebble.stormcrawler.persistence.Status;
+import com.digitalpebble.stormcrawler.util.ConfUtils;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.storm.spout.SpoutOutputCollector;
+import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Values;
 import org.apache.storm.utils.Utils;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchScrollRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Reads all the documents from a shard and emits them on the status stream. Used for copying an
  * index.
+ *
+ * <p>If <i>es.status.scroll.slices</i> is set, the index is read with a sliced scroll instead: the
+ * slices are distributed between the instances of the spout and each instance scrolls through its
+ * slices concurrently. If <i>es.status.scroll.checkpoint.index</i> is also set, the documents of a
+ * slice are sorted by URL and the last URL for which all the tuples have been acked is stored
+ * periodically in that index, so that a restarted topology resumes each slice from there.
  */
-public class ScrollSpout extends AbstractSpout implements ActionListener<SearchResponse> {
+public class ScrollSpout extends AbstractSpout {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScrollSpout.class);
 
-    private String scrollId = null;
-    private boolean hasFinished = false;
+    /** Total number of slices, not sliced if not set */
+    private static final String ESStatusScrollSlicesParamName = "es.status.scroll.slices";
 
-    private Queue<Values> queue = new LinkedList<>();
+    /** Index where the progress of the slices is stored, no checkpointing if not set */
+    private static final String ESStatusScrollCheckpointIndexParamName =
+            "es.status.scroll.checkpoint.index";
 
-    private static final Logger LOG = LoggerFactory.getLogger(ScrollSpout.class);
+    /** Interval in seconds between two checkpoints */
+    private static final String ESStatusScrollCheckpointIntervalParamName =
+            "es.status.scroll.checkpoint.interval";
+
+    private final Queue<Values> queue = new LinkedList<>();
+
+    private final List<Slice> slices = new ArrayList<>();
+
+    private int totalSlices = -1;
+
+    private String checkpointIndex;
+
+    private long checkpointIntervalMsec;
+
+    private long lastCheckpoint;
+
+    /** Batch of each URL emitted, used to track the progress of the slices */
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    @Override
+    public void open(
+            Map<String, Object> stormConf,
+            TopologyContext context,
+            SpoutOutputCollector collector) {
+        super.open(stormConf, context, collector);
+
+        totalSlices = ConfUtils.getInt(stormConf, ESStatusScrollSlicesParamName, -1);
+        checkpointIndex = ConfUtils.getString(stormConf, ESStatusScrollCheckpointIndexParamName);
+        checkpointIntervalMsec =
+                ConfUtils.getInt(stormConf, ESStatusScrollCheckpointIntervalParamName, 30) * 1000L;
+
+        if (totalSlices <= 0) {
+            // a single scroll over the shard
+            checkpointIndex = null;
+            slices.add(new Slice(-1));
+            return;
+        }
+
+        int totalTasks = context.getComponentTasks(context.getThisComponentId()).size();
+        int taskIndex = context.getThisTaskIndex();
+        for (int id = taskIndex; id < totalSlices; id += totalTasks) {
+            Slice slice = new Slice(id);
+            if (checkpointIndex != null) {
+                slice.restore();
+            }
+            slices.add(slice);
+        }
+        if (slices.isEmpty()) {
+            LOG.warn("{} no slice assigned, fewer slices than instances", logIdprefix);
+        }
+        LOG.info("{} assigned {} slice(s) out of {}", logIdprefix, slices.size(), totalSlices);
+    }
 
     @Override
     // simplified version of the super method so that we can store the fields in
     // the
     // map of things being processed
     public void nextTuple() {
+        if (checkpointIndex != null
+                && System.currentTimeMillis() - lastCheckpoint > checkpointIntervalMsec) {
+            lastCheckpoint = System.currentTimeMillis();
+            for (Slice slice : slices) {
+                slice.checkpoint(false);
+            }
+        }
+
         synchronized (queue) {
             if (!queue.isEmpty()) {
                 List<Object> fields = queue.remove();
@@ -69,91 +152,42 @@ public class ScrollSpout extends AbstractSpout implements ActionListener<SearchR
             }
         }
 
-        if (isInQuery.get()) {
-            LOG.trace("{} isInquery true", logIdprefix);
-            // sleep for a bit but not too much in order to give ack/fail a
-            // chance
-            Utils.sleep(10);
-            return;
-        }
-
         // re-populate the buffer
         populateBuffer();
     }
 
     @Override
     protected void populateBuffer() {
-        if (hasFinished) {
-            Utils.sleep(10);
-            return;
-        }
-
-        // initial request
-        if (scrollId == null) {
-            SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-            searchSourceBuilder.query(QueryBuilders.matchAllQuery());
-            searchSourceBuilder.size(maxURLsPerBucket * maxBucketNum);
-            SearchRequest searchRequest = new SearchRequest(indexName);
-            searchRequest.source(searchSourceBuilder);
-            searchRequest.scroll(TimeValue.timeValueMinutes(5L));
-
-            // specific shard but ideally a local copy of it
-            if (shardID != -1) {
-                searchRequest.preference("_shards:" + shardID + "|_local");
+        boolean querying = false;
+        for (Slice slice : slices) {
+            if (slice.inQuery.get()) {
+                querying = true;
+            } else if (!slice.finished) {
+                slice.query();
+                querying = true;
             }
-
-            isInQuery.set(true);
-            LOG.trace("{} isInquery set to true", logIdprefix);
-
-            client.searchAsync(searchRequest, RequestOptions.DEFAULT, this);
-
-            // dump query to log
-            LOG.debug("{} ES query {}", logIdprefix, searchRequest.toString());
-            return;
         }
-
-        SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId);
-        scrollRequest.scroll(TimeValue.timeValueMinutes(5L));
-
-        isInQuery.set(true);
-        client.scrollAsync(scrollRequest, RequestOptions.DEFAULT, this);
-        // dump query to log
-        LOG.debug("{} ES query {}", logIdprefix, scrollRequest.toString());
+        if (querying) {
+            LOG.trace("{} isInquery true", logIdprefix);
+        }
+        // sleep for a bit but not too much in order to give ack/fail a
+        // chance
+        Utils.sleep(10);
     }
 
     @Override
-    public void onResponse(SearchResponse response) {
-        SearchHits hits = response.getHits();
-        LOG.info(
-                "{} ES query returned {} hits in {} msec",
-                logIdprefix,
-                hits.getHits().length,
-                response.getTook().getMillis());
-        hasFinished = hits.getHits().length == 0;
-        synchronized (this.queue) {
-            // Unlike standard spouts, the scroll queries should never return
-            // the same
-            // document twice -> no need to look in the buffer or cache
-            for (SearchHit hit : hits) {
-                Map<String, Object> keyValues = hit.getSourceAsMap();
-                String url = (String) keyValues.get("url");
-                String status = (String) keyValues.get("status");
-                String nextFetchDate = (String) keyValues.get("nextFetchDate");
-                Metadata metadata = fromKeyValues(keyValues);
-                metadata.setValue(
-                        AbstractStatusUpdaterBolt.AS_IS_NEXTFETCHDATE_METADATA, nextFetchDate);
-                this.queue.add(new Values(url, metadata, Status.valueOf(status)));
+    public void ack(Object msgId) {
+        super.ack(msgId);
+        if (checkpointIndex == null) {
+            return;
+        }
+        synchronized (queue) {
+            Batch batch = batches.remove(msgId);
+            if (batch != null) {
+                batch.remaining--;
+                batch.slice.advance();
             }
         }
-        scrollId = response.getScrollId();
-        // remove lock
-        markQueryReceivedNow();
-    }
-
-    @Override
-    public void onFailure(Exception e) {
-        LOG.error("{} Exception with ES query", logIdprefix, e);
-        markQueryReceivedNow();
     }
 
     @Override
@@ -163,11 +197,255 @@ public class ScrollSpout extends AbstractSpout implements ActionListener<SearchR
         // retrieve the values from being processed and send them back to the
         // queue
         Values v = (Values) beingProcessed.remove(msgId);
-        queue.add(v);
+        synchronized (queue) {
+            queue.add(v);
+        }
+    }
+
+    @Override
+    public void close() {
+        // the client is closed afterwards
+        for (Slice slice : slices) {
+            slice.checkpoint(true);
+        }
+        super.close();
     }
 
     @Override
     public void declareOutputFields(OutputFieldsDeclarer declarer) {
         declarer.declareStream(Constants.StatusStreamName, new Fields("url", "metadata", "status"));
     }
+
+    /** URLs returned by a query for a slice, removed once they have all been acked */
+    private static final class Batch {
+        private final Slice slice;
+        private final String lastURL;
+        private int remaining;
+
+        private Batch(Slice slice, String lastURL, int remaining) {
+            this.slice = slice;
+            this.lastURL = lastURL;
+            this.remaining = remaining;
+        }
+    }
+
+    /** Scroll over a slice of the index or over the whole shard if the id is -1 */
+    private class Slice implements ActionListener<SearchResponse> {
+
+        private final int id;
+
+        private String scrollId;
+
+        private volatile boolean finished = false;
+
+        private final AtomicBoolean inQuery = new AtomicBoolean(false);
+
+        /** URL after which the scroll starts, restored from the checkpoint index */
+        private String resumeAfter;
+
+        /** Batches not fully acked yet, in the order in which they were received */
+        private final LinkedList<Batch> pending = new LinkedList<>();
+
+        /** Last URL for which all the URLs of the slice have been acked */
+        private String progress;
+
+        private String savedProgress;
+
+        private boolean savedFinished;
+
+        private Slice(int id) {
+            this.id = id;
+        }
+
+        private String checkpointID() {
+            return indexName + "_" + id + "_" + totalSlices;
+        }
+
+        /** Reads the progress of the slice from the checkpoint index */
+        private void restore() {
+            try {
+                GetResponse response =
+                        client.get(
+                                new GetRequest(checkpointIndex, checkpointID()),
+                                RequestOptions.DEFAULT);
+                if (!response.isExists()) {
+                    return;
+                }
+                Map<String, Object> source = response.getSourceAsMap();
+                resumeAfter = (String) source.get("url");
+                finished = Boolean.TRUE.equals(source.get("finished"));
+                progress = savedProgress = resumeAfter;
+                savedFinished = finished;
+                LOG.info(
+                        "{} slice {} resumes after {}, finished {}",
+                        logIdprefix,
+                        id,
+                        resumeAfter,
+                        finished);
+            } catch (Exception e) {
+                // e.g. the index does not exist yet
+                LOG.warn("{} can't read checkpoint for slice {}", logIdprefix, id, e);
+            }
+        }
+
+        private void query() {
+            inQuery.set(true);
+
+            // initial request
+            if (scrollId == null) {
+                SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+                QueryBuilder query;
+                if (resumeAfter != null) {
+                    query = QueryBuilders.rangeQuery("url").gt(resumeAfter);
+                } else {
+                    query = QueryBuilders.matchAllQuery();
+                }
+                // leave out the stubs of the fetched URLs
+                if (partitions != null) {
+                    query =
+                            QueryBuilders.boolQuery()
+                                    .filter(query)
+                                    .filter(QueryBuilders.existsQuery("status"));
+                }
+                searchSourceBuilder.query(query);
+                searchSourceBuilder.size(maxURLsPerBucket * maxBucketNum);
+                // a stable order is needed for resuming
+                if (checkpointIndex != null) {
+                    searchSourceBuilder.sort("url", SortOrder.ASC);
+                }
+                if (id != -1) {
+                    searchSourceBuilder.slice(new SliceBuilder(id, totalSlices));
+                }
+                SearchRequest searchRequest =
+                        new SearchRequest(
+                                partitions != null
+                                        ? partitions.getAllPartitions(indexName)
+                                        : indexName);
+                searchRequest.source(searchSourceBuilder);
+                searchRequest.scroll(TimeValue.timeValueMinutes(5L));
+
+                // specific shard but ideally a local copy of it
+                if (id == -1 && shardID != -1) {
+                    searchRequest.preference("_shards:" + shardID + "|_local");
+                }
+
+                client.searchAsync(searchRequest, RequestOptions.DEFAULT, this);
+
+                // dump query to log
+                LOG.debug("{} ES query {}", logIdprefix, searchRequest.toString());
+                return;
+            }
+
+            SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId);
+            scrollRequest.scroll(TimeValue.timeValueMinutes(5L));
+
+            client.scrollAsync(scrollRequest, RequestOptions.DEFAULT, this);
+            // dump query to log
+            LOG.debug("{} ES query {}", logIdprefix, scrollRequest.toString());
+        }
+
+        @Override
+        public void onResponse(SearchResponse response) {
+            SearchHits hits = response.getHits();
+            LOG.info(
+                    "{} ES query for slice {} returned {} hits in {} msec",
+                    logIdprefix,
+                    id,
+                    hits.getHits().length,
+                    response.getTook().getMillis());
+            finished = hits.getHits().length == 0;
+            synchronized (queue) {
+                // Unlike standard spouts, the scroll queries should never return
+                // the same
+                // document twice -> no need to look in the buffer or cache
+                Batch batch = null;
+                if (checkpointIndex != null && !finished) {
+                    SearchHit[] h = hits.getHits();
+                    String lastURL = (String) h[h.length - 1].getSortValues()[0];
+                    batch = new Batch(this, lastURL, h.length);
+                    pending.add(batch);
+                }
+                for (SearchHit hit : hits) {
+                    Map<String, Object> keyValues = hit.getSourceAsMap();
+                    String url = (String) keyValues.get("url");
+                    String status = (String) keyValues.get("status");
+                    String nextFetchDate = (String) keyValues.get("nextFetchDate");
+                    Metadata metadata = fromHit(hit, keyValues);
+                    metadata.setValue(
+                            AbstractStatusUpdaterBolt.AS_IS_NEXTFETCHDATE_METADATA, nextFetchDate);
+                    queue.add(new Values(url, metadata, Status.valueOf(status)));
+                    if (batch != null) {
+                        batches.put(url, batch);
+                    }
+                }
+            }
+            scrollId = response.getScrollId();
+            // remove lock
+            inQuery.set(false);
+            markQueryReceivedNow();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            LOG.error("{} Exception with ES query for slice {}", logIdprefix, id, e);
+            inQuery.set(false);
+            markQueryReceivedNow();
+        }
+
+        /** Moves the progress past the batches which have been fully acked */
+        private void advance() {
+            while (!pending.isEmpty() && pending.getFirst().remaining <= 0) {
+                progress = pending.removeFirst().lastURL;
+            }
+        }
+
+        /** Stores the progress of the slice if it has changed */
+        private void checkpoint(boolean sync) {
+            if (checkpointIndex == null) {
+                return;
+            }
+            final String url;
+            final boolean done;
+            synchronized (queue) {
+                url = progress;
+                done = finished && pending.isEmpty();
+            }
+            if ((url == null && !done)
+                    || (Objects.equals(url, savedProgress) && done == savedFinished)) {
+                return;
+            }
+            Map<String, Object> source = new HashMap<>();
+            source.put("url", url);
+            source.put("finished", done);
+            source.put("index", indexName);
+            source.put("slice", id);
+            source.put("slices", totalSlices);
+            IndexRequest request =
+                    new IndexRequest(checkpointIndex).id(checkpointID()).source(source);
+            savedProgress = url;
+            savedFinished = done;
+            if (sync) {
+                try {
+                    client.index(request, RequestOptions.DEFAULT);
+                } catch (Exception e) {
+                    LOG.error("{} can't checkpoint slice {}", logIdprefix, id, e);
+                }
+                return;
+            }
+            client.indexAsync(
+                    request,
+                    RequestOptions.DEFAULT,
+                    new ActionListener<IndexResponse>() {
+                        @Override
+                        public void onResponse(IndexResponse response) {
+                            LOG.debug("{} checkpoint for slice {} at {}", logIdprefix, id, url);
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            LOG.error("{} can't checkpoint slice {}", logIdprefix, id, e);
+                        }
+                    });
+        }
+    }
 }
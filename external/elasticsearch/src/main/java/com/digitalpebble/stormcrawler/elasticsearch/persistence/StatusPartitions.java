@@ -0,0 +1,123 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch.persistence;
+
+import com.digitalpebble.stormcrawler.persistence.Status;
+import com.digitalpebble.stormcrawler.util.ConfUtils;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Splits the status index into partitions by nextFetchDate so that the spouts only need to query
+ * the ones which can contain URLs due for fetching. With <i>es.status.partition.days: 7</i>, a URL
+ * with a nextFetchDate of 2022-06-10 goes into <i>status-2022.06.09</i>, the name being the first
+ * day of the period. The DISCOVERED URLs go into <i>status-discovered</i> and the ones which will
+ * never be refetched into <i>status-never</i>.
+ *
+ * <p>Once a URL has been fetched, its document in <i>status-discovered</i> is replaced by a stub
+ * with only the URL, so that the URL does not get created again when it is rediscovered. The stubs
+ * have no status or nextFetchDate and are never returned by the spouts. When the nextFetchDate of a
+ * URL moves it to a different partition, the copy in the previous one is deleted.
+ *
+ * <p>The partitions are created on the fly, an index template for <i>status-*</i> should be defined
+ * with the mapping of the status index and <i>status</i> as alias for the lookups.
+ *
+ * @since 2.5
+ */
+public class StatusPartitions {
+
+    public static final String PARTITION_DAYS_PARAM = "es.%s.partition.days";
+
+    /** Key of the metadata in which the spouts put the index a URL was read from */
+    public static final String INDEX_METADATA_KEY = "es.status.partition";
+
+    private static final String DISCOVERED = "discovered";
+
+    private static final String NEVER = "never";
+
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd");
+
+    private final int days;
+
+    StatusPartitions(int days) {
+        this.days = days;
+    }
+
+    /** Returns an instance if the partitioning is activated, null otherwise */
+    public static StatusPartitions fromConf(Map<String, Object> stormConf, String boltType) {
+        int days = ConfUtils.getInt(stormConf, String.format(PARTITION_DAYS_PARAM, boltType), 0);
+        if (days <= 0) {
+            return null;
+        }
+        return new StatusPartitions(days);
+    }
+
+    /** Returns the name of the partition in which to store a URL */
+    public String getPartition(String indexName, Status status, Optional<Date> nextFetch) {
+        if (status.equals(Status.DISCOVERED)) {
+            return getDiscoveredPartition(indexName);
+        }
+        if (!nextFetch.isPresent()) {
+            return indexName + "-" + NEVER;
+        }
+        long day = nextFetch.get().getTime() / 86_400_000L;
+        // floor for dates before the epoch
+        long start = Math.floorDiv(day, days) * days;
+        return indexName + "-" + LocalDate.ofEpochDay(start).format(FORMAT);
+    }
+
+    public String getDiscoveredPartition(String indexName) {
+        return indexName + "-" + DISCOVERED;
+    }
+
+    /** Returns the wildcard expression matching all the partitions */
+    public String getAllPartitions(String indexName) {
+        return indexName + "-*";
+    }
+
+    /**
+     * Returns the partitions which can contain URLs with a nextFetchDate lower or equal to the
+     * date, given the list of existing indices. The partition for DISCOVERED URLs is always
+     * included.
+     */
+    public String[] getHotPartitions(String indexName, Collection<String> indices, Date date) {
+        String prefix = indexName + "-";
+        LocalDate limit = date.toInstant().atOffset(ZoneOffset.UTC).toLocalDate();
+        List<String> hot = new ArrayList<>();
+        hot.add(getDiscoveredPartition(indexName));
+        for (String index : indices) {
+            if (!index.startsWith(prefix)) {
+                continue;
+            }
+            String suffix = index.substring(prefix.length());
+            try {
+                if (!LocalDate.parse(suffix, FORMAT).isAfter(limit)) {
+                    hot.add(index);
+                }
+            } catch (DateTimeParseException e) {
+                // discovered, never or some other index
+            }
+        }
+        return hot.toArray(new String[0]);
+    }
+}
@@ -14,37 +14,45 @@
  */
 package com.digitalpebble.stormcrawler.elasticsearch.persistence;
 
+import com.digitalpebble.stormcrawler.Constants;
 import com.digitalpebble.stormcrawler.Metadata;
-import com.digitalpebble.stormcrawler.elasticsearch.BulkItemResponseToFailedFlag;
+import com.digitalpebble.stormcrawler.elasticsearch.DocumentBuilders;
+import com.digitalpebble.stormcrawler.elasticsearch.DocumentIDs;
 import com.digitalpebble.stormcrawler.elasticsearch.ElasticSearchConnection;
+import com.digitalpebble.stormcrawler.elasticsearch.WaitAck;
+import com.digitalpebble.stormcrawler.elasticsearch.metrics.StatusMetricsBolt;
 import com.digitalpebble.stormcrawler.persistence.AbstractStatusUpdaterBolt;
 import com.digitalpebble.stormcrawler.persistence.Status;
+import com.digitalpebble.stormcrawler.persistence.StatusUpdate;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
 import com.digitalpebble.stormcrawler.util.URLPartitioner;
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.RemovalCause;
-import com.github.benmanes.caffeine.cache.RemovalListener;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 import org.apache.commons.lang.StringUtils;
+import org.apache.storm.Config;
 import org.apache.storm.metric.api.MultiCountMetric;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.tuple.Fields;
 import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.TupleUtils;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.DocWriteRequest;
-import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.DocWriteResponse;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.xcontent.XContentBuilder;
-import org.elasticsearch.xcontent.XContentFactory;
-import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
+import org.elasticsearch.xcontent.XContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,8 +60,7 @@ import org.slf4j.LoggerFactory;
  * Simple bolt which stores the status of URLs into ElasticSearch. Takes the tuples coming from the
  * 'status' stream. To be used in combination with a Spout to read from the index.
  */
-public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt
-        implements RemovalListener<String, List<Tuple>>, BulkProcessor.Listener {
+public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt implements BulkProcessor.Listener {
 
     private static final Logger LOG = LoggerFactory.getLogger(StatusUpdaterBolt.class);
 
@@ -77,13 +84,36 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt
 
     private ElasticSearchConnection connection;
 
-    private Cache<String, List<Tuple>> waitAck;
+    private DocumentIDs documentIDs;
 
-    // Be fair due to cache timeout
-    private final ReentrantLock waitAckLock = new ReentrantLock(true);
+    private WaitAck waitAck;
 
     private MultiCountMetric eventCounter;
 
+    /** Set if the status index is partitioned by nextFetchDate, null otherwise */
+    private StatusPartitions partitions;
+
+    /** Copies to remove once the write to the new partition has succeeded, by ID */
+    private final Map<String, DocWriteRequest<?>> pendingCleanups = new ConcurrentHashMap<>();
+
+    /** Removals of copies ready to be sent */
+    private final Queue<DocWriteRequest<?>> cleanups = new ConcurrentLinkedQueue<>();
+
+    private static final int CLEANUP_BATCH_SIZE = 100;
+
+    private static final long CLEANUP_MAX_DELAY_MSEC = 5000;
+
+    private long lastCleanup = System.currentTimeMillis();
+
+    /** Whether to send the changes in the number of URLs per status to the StatusMetricsBolt */
+    private boolean countStatus = false;
+
+    /** Status written for each ID waiting for a response */
+    private final Map<String, String> pendingStatus = new ConcurrentHashMap<>();
+
+    /** Changes in the number of URLs per status since they were last emitted */
+    private final Map<String, Long> statusDeltas = new HashMap<>();
+
     public StatusUpdaterBolt() {
         super();
     }
@@ -128,17 +158,29 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt
                 fieldNameForRoutingKey = fieldNameForRoutingKey.substring("metadata.".length());
             }
             // periods are not allowed in ES2 - replace with %2E
-            fieldNameForRoutingKey = fieldNameForRoutingKey.replaceAll("\\.", "%2E");
+            fieldNameForRoutingKey = DocumentBuilders.escapeKey(fieldNameForRoutingKey);
         }
 
+        documentIDs = DocumentIDs.fromConf(stormConf);
+
+        partitions = StatusPartitions.fromConf(stormConf, ESBoltType);
+
+        countStatus = ConfUtils.getBoolean(stormConf, StatusMetricsBolt.INCREMENTAL_PARAM, false);
+
         waitAck =
-                Caffeine.newBuilder()
-                        .expireAfterWrite(60, TimeUnit.SECONDS)
-                        .removalListener(this)
-                        .build();
+                new WaitAck(
+                        TimeUnit.SECONDS.toMillis(60),
+                        (id, tuples) -> {
+                            pendingCleanups.remove(id);
+                            pendingStatus.remove(id);
+                            for (Tuple t : tuples) {
+                                eventCounter.scope("failed").incrBy(1);
+                                _collector.fail(t);
+                            }
+                        });
 
         // create gauge for waitAck
-        context.registerMetric("waitAck", () -> waitAck.estimatedSize(), 10);
+        context.registerMetric("waitAck", () -> waitAck.size(), 10);
 
         try {
             connection = ElasticSearchConnection.getConnection(stormConf, ESBoltType, this);
@@ -150,11 +192,44 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt
         this.eventCounter = context.registerMetric("counters", new MultiCountMetric(), 30);
     }
 
+    @Override
+    public void execute(Tuple tuple) {
+        if (countStatus && TupleUtils.isTick(tuple)) {
+            emitStatusDeltas();
+        }
+        super.execute(tuple);
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        // ticks are used to emit the status deltas and to flush the batches
+        Map<String, Object> conf = super.getComponentConfiguration();
+        if (conf == null) {
+            conf = new HashMap<>();
+        }
+        conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, 1);
+        return conf;
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        super.declareOutputFields(declarer);
+        declarer.declareStream(StatusMetricsBolt.DELTAS_STREAM, new Fields("deltas"));
+    }
+
     @Override
     public void cleanup() {
+        super.cleanup();
         if (connection == null) {
             return;
         }
+        if (!cleanups.isEmpty()) {
+            try {
+                connection.getClient().bulk(nextCleanupBulk(), RequestOptions.DEFAULT);
+            } catch (Exception e) {
+                LOG.error("Exception while removing moved documents", e);
+            }
+        }
         connection.close();
         connection = null;
     }
@@ -164,19 +239,13 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt
             String url, Status status, Metadata metadata, Optional<Date> nextFetch, Tuple tuple)
             throws Exception {
 
-        String sha256hex = org.apache.commons.codec.digest.DigestUtils.sha256Hex(url);
+        sendCleanups();
 
-        boolean isAlreadySentAndDiscovered;
-        // need to synchronize: otherwise it might get added to the cache
-        // without having been sent to ES
-        waitAckLock.lock();
-        try {
-            // check that the same URL is not being sent to ES
-            final var alreadySent = waitAck.getIfPresent(sha256hex);
-            isAlreadySentAndDiscovered = status.equals(Status.DISCOVERED) && alreadySent != null;
-        } finally {
-            waitAckLock.unlock();
-        }
+        String sha256hex = getDocumentID(url, tuple);
+
+        // check that the same URL is not being sent to ES
+        boolean isAlreadySentAndDiscovered =
+                status.equals(Status.DISCOVERED) && waitAck.contains(sha256hex);
 
         if (isAlreadySentAndDiscovered) {
             // if this object is discovered - adding another version of it
@@ -189,7 +258,353 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt
             return;
         }
 
-        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        DocWriteRequest<?> request =
+                buildRequest(url, status, metadata, nextFetch, tuple, sha256hex);
+
+        waitAck.add(sha256hex, tuple);
+
+        LOG.debug("Sending to ES buffer {} with ID {}", url, sha256hex);
+
+        connection.addToProcessor(request);
+    }
+
+    /**
+     * Sends the requests of all the updates to the BulkProcessor, after registering their tuples in
+     * one go. All the tuples of an update are acked or failed with the response for its ID.
+     */
+    @Override
+    protected void storeBatch(List<StatusUpdate> updates) throws Exception {
+
+        sendCleanups();
+
+        Map<String, List<Tuple>> tuples = new HashMap<>();
+        List<DocWriteRequest<?>> requests = new ArrayList<>(updates.size());
+
+        for (StatusUpdate u : updates) {
+            String url = u.getUrl();
+            List<Tuple> updateTuples = u.getTuples();
+            Tuple last = updateTuples.get(updateTuples.size() - 1);
+            String sha256hex = getDocumentID(url, last);
+
+            if (u.getStatus().equals(Status.DISCOVERED)
+                    && (waitAck.contains(sha256hex) || tuples.containsKey(sha256hex))) {
+                LOG.debug("Already being sent to ES {} with ID {}", url, sha256hex);
+                eventCounter.scope("acked").incrBy(updateTuples.size());
+                super.ack(u);
+                continue;
+            }
+
+            requests.add(
+                    buildRequest(
+                            url,
+                            u.getStatus(),
+                            u.getMetadata(),
+                            u.getNextFetch(),
+                            last,
+                            sha256hex));
+            tuples.computeIfAbsent(sha256hex, k -> new ArrayList<>()).addAll(updateTuples);
+        }
+
+        waitAck.addAll(tuples);
+
+        LOG.debug("Sending batch of {} requests to ES buffer", requests.size());
+
+        for (DocWriteRequest<?> request : requests) {
+            connection.addToProcessor(request);
+        }
+    }
+
+    /**
+     * Returns the request writing the whole document for a URL and keeps track of the cleanup and
+     * status count to do once it is written.
+     */
+    private DocWriteRequest<?> buildRequest(
+            String url,
+            Status status,
+            Metadata metadata,
+            Optional<Date> nextFetch,
+            Tuple tuple,
+            String sha256hex)
+            throws IOException {
+        String partitionKey = getPartitionKey(url, metadata);
+        XContentBuilder builder = buildSource(url, status, metadata, nextFetch, sha256hex);
+
+        String index = getPartition(metadata, status, nextFetch);
+
+        IndexRequest request = new IndexRequest(index);
+
+        // check that we don't overwrite an existing entry
+        // When create is used, the index operation will fail if a document
+        // by that id already exists in the index.
+        final boolean create = status.equals(Status.DISCOVERED);
+        request.source(DocumentBuilders.toBytes(builder), XContentType.JSON)
+                .id(sha256hex)
+                .create(create);
+
+        if (doRouting) {
+            request.routing(partitionKey);
+        }
+
+        if (partitions != null && !status.equals(Status.DISCOVERED)) {
+            DocWriteRequest<?> cleanup =
+                    getCleanupRequest(url, tuple, metadata, index, sha256hex, partitionKey);
+            if (cleanup != null) {
+                pendingCleanups.put(sha256hex, cleanup);
+            }
+        }
+
+        if (countStatus) {
+            pendingStatus.put(sha256hex, status.name());
+        }
+
+        return request;
+    }
+
+    @Override
+    protected void storeUnchanged(
+            String url,
+            Status status,
+            Metadata metadata,
+            Optional<Date> nextFetch,
+            boolean nextFetchChanged,
+            Tuple tuple)
+            throws Exception {
+
+        if (!nextFetchChanged) {
+            // nothing to write
+            LOG.debug("Skipping unchanged status of {}", url);
+            eventCounter.scope("unchanged").incrBy(1);
+            eventCounter.scope("acked").incrBy(1);
+            super.ack(tuple, url);
+            return;
+        }
+
+        // the field can't be removed with a partial update
+        if (!nextFetch.isPresent()) {
+            store(url, status, metadata, nextFetch, tuple);
+            return;
+        }
+
+        String index = getPartition(metadata, status, nextFetch);
+
+        // moving to another partition
+        if (partitions != null && !index.equals(getSourcePartition(tuple))) {
+            store(url, status, metadata, nextFetch, tuple);
+            return;
+        }
+
+        sendCleanups();
+
+        String sha256hex = getDocumentID(url, tuple);
+        String partitionKey = getPartitionKey(url, metadata);
+
+        // only the nextFetchDate, the digest and the volatile metadata
+        XContentBuilder partial = DocumentBuilders.jsonBuilder().startObject();
+        partial.startObject("metadata");
+        partial.array(
+                DocumentBuilders.escapeKey(Constants.STATUS_DIGEST_KEY),
+                metadata.getValues(Constants.STATUS_DIGEST_KEY));
+        for (String mdKey : getVolatileKeys()) {
+            String[] values = metadata.getValues(mdKey);
+            if (values != null) {
+                partial.array(DocumentBuilders.escapeKey(mdKey), values);
+            }
+        }
+        partial.endObject();
+        partial.timeField("nextFetchDate", nextFetch.get());
+        partial.endObject();
+
+        // the whole document in case it is not in the index any more
+        IndexRequest upsert =
+                new IndexRequest(index)
+                        .source(
+                                DocumentBuilders.toBytes(
+                                        buildSource(url, status, metadata, nextFetch, sha256hex)),
+                                XContentType.JSON);
+
+        UpdateRequest request =
+                new UpdateRequest(index, sha256hex)
+                        .doc(DocumentBuilders.toBytes(partial), XContentType.JSON)
+                        .upsert(upsert)
+                        .retryOnConflict(3);
+
+        if (doRouting) {
+            request.routing(partitionKey);
+        }
+
+        if (countStatus) {
+            pendingStatus.put(sha256hex, status.name());
+        }
+
+        waitAck.add(sha256hex, tuple);
+
+        eventCounter.scope("partial_updates").incrBy(1);
+        LOG.debug("Sending partial update to ES buffer {} with ID {}", url, sha256hex);
+
+        connection.addToProcessor(request);
+    }
+
+    /** Returns the index or partition in which to store a URL */
+    private String getPartition(Metadata metadata, Status status, Optional<Date> nextFetch) {
+        if (partitions == null) {
+            return getIndexName(metadata);
+        }
+        return partitions.getPartition(getIndexName(metadata), status, nextFetch);
+    }
+
+    /** Returns the partition the spout read the URL from, if known */
+    private String getSourcePartition(Tuple tuple) {
+        Metadata original = (Metadata) tuple.getValueByField("metadata");
+        if (original == null) {
+            return null;
+        }
+        return original.getFirstValue(StatusPartitions.INDEX_METADATA_KEY);
+    }
+
+    /**
+     * Returns the request removing the previous copy of a URL which is being written to a partition
+     * or null if there is nothing to remove. The document for a DISCOVERED URL is replaced with a
+     * stub so that it does not get created again when the URL is rediscovered.
+     */
+    private DocWriteRequest<?> getCleanupRequest(
+            String url,
+            Tuple tuple,
+            Metadata metadata,
+            String target,
+            String id,
+            String partitionKey)
+            throws IOException {
+        String source = getSourcePartition(tuple);
+        String discovered = partitions.getDiscoveredPartition(getIndexName(metadata));
+        DocWriteRequest<?> request;
+        // the partition is not known if the URL did not come from a spout
+        if (source == null || source.equals(discovered)) {
+            XContentBuilder stub = DocumentBuilders.jsonBuilder().startObject();
+            stub.field("url", url);
+            stub.endObject();
+            request =
+                    new IndexRequest(discovered)
+                            .id(id)
+                            .source(DocumentBuilders.toBytes(stub), XContentType.JSON);
+        } else if (!source.equals(target)) {
+            request = new DeleteRequest(source, id);
+        } else {
+            return null;
+        }
+        if (doRouting) {
+            request.routing(partitionKey);
+        }
+        return request;
+    }
+
+    /** Sends the pending removals of moved documents if there are enough of them or they are old */
+    private void sendCleanups() {
+        if (cleanups.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (cleanups.size() < CLEANUP_BATCH_SIZE && now - lastCleanup < CLEANUP_MAX_DELAY_MSEC) {
+            return;
+        }
+        lastCleanup = now;
+        BulkRequest bulk = nextCleanupBulk();
+        final int size = bulk.numberOfActions();
+        connection
+                .getClient()
+                .bulkAsync(
+                        bulk,
+                        RequestOptions.DEFAULT,
+                        ActionListener.wrap(
+                                response -> {
+                                    eventCounter.scope("cleanups").incrBy(size);
+                                    if (response.hasFailures()) {
+                                        LOG.warn(
+                                                "Failures when removing moved documents: {}",
+                                                response.buildFailureMessage());
+                                    }
+                                },
+                                e -> LOG.error("Exception while removing moved documents", e)));
+    }
+
+    private BulkRequest nextCleanupBulk() {
+        BulkRequest bulk = new BulkRequest();
+        DocWriteRequest<?> request;
+        while (bulk.numberOfActions() < CLEANUP_BATCH_SIZE && (request = cleanups.poll()) != null) {
+            bulk.add(request);
+        }
+        return bulk;
+    }
+
+    /**
+     * Records the change in the number of URLs per status caused by a successful write. The
+     * previous status is put in the metadata by the spouts, if it is not known the URL is counted
+     * only if it was not in the index.
+     */
+    void countStatus(Tuple tuple, String written, DocWriteResponse.Result result) {
+        Metadata original = (Metadata) tuple.getValueByField("metadata");
+        String previous =
+                original != null
+                        ? original.getFirstValue(StatusMetricsBolt.PREVIOUS_STATUS_KEY)
+                        : null;
+        synchronized (statusDeltas) {
+            if (previous != null) {
+                if (!previous.equals(written)) {
+                    statusDeltas.merge(previous, -1L, Long::sum);
+                    statusDeltas.merge(written, 1L, Long::sum);
+                }
+            } else if (result == DocWriteResponse.Result.CREATED) {
+                statusDeltas.merge(written, 1L, Long::sum);
+                statusDeltas.merge(StatusMetricsBolt.TOTAL, 1L, Long::sum);
+            }
+        }
+    }
+
+    private void emitStatusDeltas() {
+        HashMap<String, Long> deltas = takeStatusDeltas();
+        if (deltas != null) {
+            _collector.emit(StatusMetricsBolt.DELTAS_STREAM, new Values(deltas));
+        }
+    }
+
+    /** Returns the non-zero changes recorded since the last call or null if there are none */
+    HashMap<String, Long> takeStatusDeltas() {
+        synchronized (statusDeltas) {
+            statusDeltas.values().removeIf(v -> v == 0);
+            if (statusDeltas.isEmpty()) {
+                return null;
+            }
+            HashMap<String, Long> deltas = new HashMap<>(statusDeltas);
+            statusDeltas.clear();
+            return deltas;
+        }
+    }
+
+    /** The ID can be in the metadata of the tuple, not in the filtered ones */
+    private String getDocumentID(String url, Tuple tuple) {
+        if (documentIDs.isInMetadata()) {
+            Metadata original = (Metadata) tuple.getValueByField("metadata");
+            if (original != null) {
+                String id = original.getFirstValue(DocumentIDs.METADATA_KEY);
+                if (id != null) {
+                    return id;
+                }
+            }
+        }
+        return documentIDs.compute(url);
+    }
+
+    private String getPartitionKey(String url, Metadata metadata) {
+        String partitionKey = partitioner.getPartition(url, metadata);
+        if (partitionKey == null) {
+            partitionKey = "_DEFAULT_";
+        }
+        return partitionKey;
+    }
+
+    private XContentBuilder buildSource(
+            String url, Status status, Metadata metadata, Optional<Date> nextFetch, String id)
+            throws IOException {
+        XContentBuilder builder = DocumentBuilders.jsonBuilder().startObject();
         builder.field("url", url);
         builder.field("status", status);
 
@@ -197,15 +612,16 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt
         for (String mdKey : metadata.keySet()) {
             String[] values = metadata.getValues(mdKey);
             // periods are not allowed in ES2 - replace with %2E
-            mdKey = mdKey.replaceAll("\\.", "%2E");
-            builder.array(mdKey, values);
+            builder.array(DocumentBuilders.escapeKey(mdKey), values);
         }
 
-        String partitionKey = partitioner.getPartition(url, metadata);
-        if (partitionKey == null) {
-            partitionKey = "_DEFAULT_";
+        // keep the ID so that it doesn't get computed again
+        if (documentIDs.isInMetadata() && !metadata.containsKey(DocumentIDs.METADATA_KEY)) {
+            builder.array(DocumentBuilders.escapeKey(DocumentIDs.METADATA_KEY), id);
         }
 
+        String partitionKey = getPartitionKey(url, metadata);
+
         // store routing key in metadata?
         if (StringUtils.isNotBlank(fieldNameForRoutingKey) && routingFieldNameInMetadata) {
             builder.field(fieldNameForRoutingKey, partitionKey);
@@ -223,42 +639,7 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt
         }
 
         builder.endObject();
-
-        IndexRequest request = new IndexRequest(getIndexName(metadata));
-
-        // check that we don't overwrite an existing entry
-        // When create is used, the index operation will fail if a document
-        // by that id already exists in the index.
-        final boolean create = status.equals(Status.DISCOVERED);
-        request.source(builder).id(sha256hex).create(create);
-
-        if (doRouting) {
-            request.routing(partitionKey);
-        }
-
-        waitAckLock.lock();
-        try {
-            final List<Tuple> tt = waitAck.get(sha256hex, k -> new LinkedList<>());
-            tt.add(tuple);
-            LOG.debug("Added to waitAck {} with ID {} total {}", url, sha256hex, tt.size());
-        } finally {
-            waitAckLock.unlock();
-        }
-
-        LOG.debug("Sending to ES buffer {} with ID {}", url, sha256hex);
-
-        connection.addToProcessor(request);
-    }
-
-    @Override
-    public void onRemoval(
-            @Nullable String key, @Nullable List<Tuple> value, @NotNull RemovalCause cause) {
-        if (!cause.wasEvicted()) return;
-        LOG.error("Purged from waitAck {} with {} values", key, value.size());
-        for (Tuple t : value) {
-            eventCounter.scope("failed").incrBy(1);
-            _collector.fail(t);
-        }
+        return builder;
     }
 
     @Override
@@ -267,112 +648,48 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt
         eventCounter.scope("bulks_received").incrBy(1);
         eventCounter.scope("bulk_msec").incrBy(response.getTook().getMillis());
 
-        var idsToBulkItemsWithFailedFlag =
-                Arrays.stream(response.getItems())
-                        .map(
-                                bir -> {
-                                    String id = bir.getId();
-                                    BulkItemResponse.Failure f = bir.getFailure();
-                                    boolean failed = false;
-                                    if (f != null) {
-                                        // already discovered
-                                        if (f.getStatus().equals(RestStatus.CONFLICT)) {
-                                            eventCounter.scope("doc_conflicts").incrBy(1);
-                                            LOG.debug("Doc conflict ID {}", id);
-                                        } else {
-                                            LOG.error("Update ID {}, failure: {}", id, f);
-                                            failed = true;
-                                        }
-                                    }
-                                    return new BulkItemResponseToFailedFlag(bir, failed);
-                                })
-                        .collect(
-                                // https://github.com/DigitalPebble/storm-crawler/issues/832
-                                Collectors.groupingBy(
-                                        idWithFailedFlagTuple -> idWithFailedFlagTuple.id,
-                                        Collectors.toUnmodifiableList()));
-
-        Map<String, List<Tuple>> presentTuples;
-        long estimatedSize;
-        Set<String> debugInfo = null;
-        waitAckLock.lock();
-        try {
-            presentTuples = waitAck.getAllPresent(idsToBulkItemsWithFailedFlag.keySet());
-            if (!presentTuples.isEmpty()) {
-                waitAck.invalidateAll(presentTuples.keySet());
-            }
-            estimatedSize = waitAck.estimatedSize();
-            // Only if we have to.
-            if (LOG.isDebugEnabled() && estimatedSize > 0L) {
-                debugInfo = new HashSet<>(waitAck.asMap().keySet());
-            }
-        } finally {
-            waitAckLock.unlock();
-        }
-
-        int ackCount = 0;
-        int failureCount = 0;
-
-        for (var entry : presentTuples.entrySet()) {
-            final var id = entry.getKey();
-            final var associatedTuple = entry.getValue();
-            final var bulkItemsWithFailedFlag = idsToBulkItemsWithFailedFlag.get(id);
-
-            BulkItemResponseToFailedFlag selected;
-            if (bulkItemsWithFailedFlag.size() == 1) {
-                selected = bulkItemsWithFailedFlag.get(0);
-            } else {
-                // Fallback if there are multiple responses for the same id
-                BulkItemResponseToFailedFlag tmp = null;
-                var ctFailed = 0;
-                for (var buwff : bulkItemsWithFailedFlag) {
-                    if (tmp == null) {
-                        tmp = buwff;
-                    }
-                    if (buwff.failed) ctFailed++;
-                    else tmp = buwff;
-                }
-                if (ctFailed != bulkItemsWithFailedFlag.size()) {
-                    LOG.warn(
-                            "The id {} would result in an ack and a failure. Using only the ack for processing.",
-                            id);
-                }
-                selected = Objects.requireNonNull(tmp);
-            }
+        final int[] counts = new int[2];
 
-            if (associatedTuple != null) {
-                LOG.debug("Acked {} tuple(s) for ID {}", associatedTuple.size(), id);
-                for (Tuple tuple : associatedTuple) {
-                    if (!selected.failed) {
-                        String url = tuple.getStringByField("url");
-                        ackCount++;
-                        // ack and put in cache
-                        LOG.debug("Acked {} with ID {}", url, id);
-                        eventCounter.scope("acked").incrBy(1);
-                        super.ack(tuple, url);
-                    } else {
-                        failureCount++;
-                        eventCounter.scope("failed").incrBy(1);
-                        _collector.fail(tuple);
+        waitAck.processResponse(
+                response,
+                (tuple, item) -> {
+                    if (item.isFailed()) {
+                        // already discovered
+                        eventCounter.scope("doc_conflicts").incrBy(1);
+                        LOG.debug("Doc conflict ID {}", item.getId());
                     }
-                }
-            } else {
-                LOG.warn("Could not find unacked tuple for {}", id);
-            }
-        }
+                    String url = tuple.getStringByField("url");
+                    // the copy in the previous partition can go
+                    DocWriteRequest<?> cleanup = pendingCleanups.remove(item.getId());
+                    if (cleanup != null && !item.isFailed()) {
+                        cleanups.add(cleanup);
+                    }
+                    String written = pendingStatus.remove(item.getId());
+                    if (written != null && !item.isFailed()) {
+                        countStatus(tuple, written, item.getResponse().getResult());
+                    }
+                    counts[0]++;
+                    // ack and put in cache
+                    LOG.debug("Acked {} with ID {}", url, item.getId());
+                    eventCounter.scope("acked").incrBy(1);
+                    super.ack(tuple, url);
+                },
+                (tuple, item) -> {
+                    pendingCleanups.remove(item.getId());
+                    pendingStatus.remove(item.getId());
+                    LOG.error("Update ID {}, failure: {}", item.getId(), item.getFailure());
+                    counts[1]++;
+                    eventCounter.scope("failed").incrBy(1);
+                    _collector.fail(tuple);
+                });
 
         LOG.info(
                 "Bulk response [{}] : items {}, waitAck {}, acked {}, failed {}",
                 executionId,
-                idsToBulkItemsWithFailedFlag.size(),
-                estimatedSize,
-                ackCount,
-                failureCount);
-        if (debugInfo != null) {
-            for (String kinaw : debugInfo) {
-                LOG.debug("Still in wait ack after bulk response [{}] => {}", executionId, kinaw);
-            }
-        }
+                response.getItems().length,
+                waitAck.size(),
+                counts[0],
+                counts[1]);
     }
 
     @Override
@@ -380,34 +697,17 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt
         eventCounter.scope("bulks_received").incrBy(1);
         LOG.error("Exception with bulk {} - failing the whole lot ", executionId, throwable);
 
-        final var failedIds =
-                request.requests().stream()
-                        .map(DocWriteRequest::id)
-                        .collect(Collectors.toUnmodifiableSet());
-        waitAckLock.lock();
-        Map<String, List<Tuple>> failedTupleLists;
-        try {
-            failedTupleLists = waitAck.getAllPresent(failedIds);
-            if (!failedTupleLists.isEmpty()) {
-                waitAck.invalidateAll(failedTupleLists.keySet());
-            }
-        } finally {
-            waitAckLock.unlock();
+        for (DocWriteRequest<?> r : request.requests()) {
+            pendingCleanups.remove(r.id());
+            pendingStatus.remove(r.id());
         }
 
-        for (var id : failedIds) {
-            var failedTuples = failedTupleLists.get(id);
-            if (failedTuples != null) {
-                LOG.debug("Failed {} tuple(s) for ID {}", failedTuples.size(), id);
-                for (Tuple x : failedTuples) {
-                    // fail it
+        waitAck.failAll(
+                request,
+                t -> {
                     eventCounter.scope("failed").incrBy(1);
-                    _collector.fail(x);
-                }
-            } else {
-                LOG.warn("Could not find unacked tuple for {}", id);
-            }
-        }
+                    _collector.fail(t);
+                });
     }
 
     @Override
@@ -0,0 +1,80 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.elasticsearch.core.TimeValue;
+import org.junit.Test;
+
+public class AdaptiveBulkControllerTest {
+
+    private static AdaptiveBulkController controller() {
+        return new AdaptiveBulkController(100, 1, 1_000_000, 1000, 10, 1000, 4, 100);
+    }
+
+    @Test
+    public void testGrowAndShrink() {
+        AdaptiveBulkController c = controller();
+
+        // full and fast bulks grow the size
+        c.completed(100, 100, 1000, 0);
+        assertEquals(110, c.getBulkActions());
+
+        // bulks flushed before being full do not
+        c.completed(100, 50, 1000, 0);
+        assertEquals(110, c.getBulkActions());
+
+        // slow ones shrink it
+        c.completed(1500, 110, 1000, 0);
+        assertEquals(82, c.getBulkActions());
+        assertEquals(1, c.getConcurrentRequests());
+    }
+
+    @Test
+    public void testTargetBytes() {
+        AdaptiveBulkController c = controller();
+        // 20KB per action, can't go over 50 actions
+        c.completed(100, 100, 2_000_000, 0);
+        assertEquals(51, c.getBulkActions());
+    }
+
+    @Test
+    public void testConcurrency() {
+        AdaptiveBulkController c = controller();
+        for (int i = 0; i < 50; i++) {
+            c.completed(100, c.getBulkActions(), 1000, 0);
+        }
+        assertEquals(1000, c.getBulkActions());
+        assertEquals(4, c.getConcurrentRequests());
+
+        // rejections halve the size and reduce the concurrency
+        c.completed(100, 1000, 1000, 10);
+        assertEquals(500, c.getBulkActions());
+        assertEquals(3, c.getConcurrentRequests());
+    }
+
+    @Test
+    public void testBackoffPolicy() {
+        int count = 0;
+        for (TimeValue delay : controller().backoffPolicy(5)) {
+            long max = 100L << count;
+            assertTrue(delay.millis() >= max / 2 && delay.millis() <= max);
+            count++;
+        }
+        assertEquals(5, count);
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.digitalpebble.stormcrawler.Metadata;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+public class DocumentIDsTest {
+
+    @Test
+    public void testHashes() {
+        String url = "https://www.example.com/";
+        assertEquals(DigestUtils.sha256Hex(url), new DocumentIDs(false, false).compute(url));
+
+        // reference value for MurmurHash3_x64_128 with seed 0
+        DocumentIDs murmur = new DocumentIDs(true, false);
+        assertEquals(
+                "e34bbc7bbc071b6c7a433ca9c49a9347",
+                murmur.compute("The quick brown fox jumps over the lazy dog"));
+        assertEquals("00000000000000000000000000000000", murmur.compute(""));
+    }
+
+    @Test
+    public void testMetadata() {
+        String url = "https://www.example.com/";
+        Metadata metadata = new Metadata();
+
+        new DocumentIDs(false, false).get(url, metadata);
+        assertNull(metadata.getFirstValue(DocumentIDs.METADATA_KEY));
+
+        DocumentIDs ids = new DocumentIDs(true, true);
+        assertEquals(ids.compute(url), ids.get(url, metadata));
+        // not added to the metadata
+        assertNull(metadata.getFirstValue(DocumentIDs.METADATA_KEY));
+
+        // not computed again
+        metadata.setValue(DocumentIDs.METADATA_KEY, "precomputed");
+        assertEquals("precomputed", ids.get(url, metadata));
+    }
+
+    @Test
+    public void testEscapeKeys() {
+        assertEquals("fetch%2EstatusCode", DocumentBuilders.escapeKey("fetch.statusCode"));
+        assertEquals("depth", DocumentBuilders.escapeKey("depth"));
+        assertEquals("fetch.statusCode", DocumentBuilders.unescapeKey("fetch%2EstatusCode"));
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.storm.tuple.Tuple;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Test;
+
+public class WaitAckTest {
+
+    private static BulkItemResponse success(int position, String id) {
+        IndexResponse response =
+                new IndexResponse(new ShardId("status", "_na_", 0), "_doc", id, 1, 1, 1, true);
+        return BulkItemResponse.success(position, DocWriteRequest.OpType.INDEX, response);
+    }
+
+    private static BulkItemResponse failure(int position, String id, RestStatus status) {
+        BulkItemResponse.Failure failure =
+                new BulkItemResponse.Failure("status", "_doc", id, new Exception(), status);
+        return BulkItemResponse.failure(position, DocWriteRequest.OpType.INDEX, failure);
+    }
+
+    @Test
+    public void testSuccessTakesPrecedence() {
+        WaitAck waitAck = new WaitAck(60000, (id, tuples) -> {});
+        Tuple first = mock(Tuple.class);
+        Tuple second = mock(Tuple.class);
+        Tuple conflict = mock(Tuple.class);
+        Tuple failed = mock(Tuple.class);
+        waitAck.add("a", first);
+        waitAck.add("a", second);
+        waitAck.add("b", conflict);
+        waitAck.add("c", failed);
+        assertEquals(3, waitAck.size());
+
+        // the failure for "a" comes before its success
+        BulkResponse response =
+                new BulkResponse(
+                        new BulkItemResponse[] {
+                            failure(0, "a", RestStatus.INTERNAL_SERVER_ERROR),
+                            success(1, "a"),
+                            failure(2, "b", RestStatus.CONFLICT),
+                            failure(3, "c", RestStatus.INTERNAL_SERVER_ERROR)
+                        },
+                        10);
+
+        List<Tuple> acked = new ArrayList<>();
+        List<Tuple> failedTuples = new ArrayList<>();
+        waitAck.processResponse(
+                response, (t, item) -> acked.add(t), (t, item) -> failedTuples.add(t));
+
+        assertEquals(Arrays.asList(first, second, conflict), acked);
+        assertEquals(Arrays.asList(failed), failedTuples);
+        assertEquals(0, waitAck.size());
+    }
+
+    @Test
+    public void testFailAll() {
+        WaitAck waitAck = new WaitAck(60000, (id, tuples) -> {});
+        Tuple first = mock(Tuple.class);
+        Tuple second = mock(Tuple.class);
+        Tuple other = mock(Tuple.class);
+        waitAck.add("a", first);
+        waitAck.add("a", second);
+        waitAck.add("b", other);
+
+        BulkRequest request = new BulkRequest();
+        request.add(new IndexRequest("status").id("a"));
+        request.add(new IndexRequest("status").id("b"));
+        // no tuples for that one
+        request.add(new IndexRequest("status").id("c"));
+
+        List<Tuple> failed = new ArrayList<>();
+        waitAck.failAll(request, failed::add);
+
+        assertEquals(3, failed.size());
+        assertTrue(failed.containsAll(Arrays.asList(first, second, other)));
+        assertEquals(0, waitAck.size());
+    }
+
+    @Test
+    public void testTimeoutRefreshedOnAdd() throws InterruptedException {
+        List<Tuple> expired = new ArrayList<>();
+        WaitAck waitAck = new WaitAck(1000, (id, tuples) -> expired.addAll(tuples));
+        Tuple first = mock(Tuple.class);
+        Tuple second = mock(Tuple.class);
+        waitAck.add("a", first);
+        Thread.sleep(50);
+        long secondAdded = System.currentTimeMillis();
+        waitAck.add("a", second);
+
+        // the first tuple is older than the timeout but not the second one
+        waitAck.expire(secondAdded + 1000);
+        assertEquals(1, waitAck.size());
+        assertTrue(expired.isEmpty());
+
+        waitAck.expire(System.currentTimeMillis() + 1001);
+        assertEquals(0, waitAck.size());
+        assertEquals(Arrays.asList(first, second), expired);
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.core.CountResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatusMetricsBoltTest {
+
+    private StatusMetricsBolt bolt;
+
+    @Before
+    public void setUp() {
+        bolt = new StatusMetricsBolt();
+        bolt.createListeners();
+    }
+
+    private static Map<String, Long> deltas(Object... keyValues) {
+        Map<String, Long> deltas = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            deltas.put((String) keyValues[i], ((Number) keyValues[i + 1]).longValue());
+        }
+        return deltas;
+    }
+
+    private static CountResponse count(long count) {
+        return new CountResponse(
+                count, false, new CountResponse.ShardStats(1, 1, 0, new ShardSearchFailure[0]));
+    }
+
+    /** Sends a count request for the status and returns the listener waiting for it */
+    private StatusMetricsBolt.StatusActionListener request(String status) {
+        StatusMetricsBolt.StatusActionListener listener = bolt.getListener(status);
+        listener.busy();
+        assertFalse(listener.isReady());
+        return listener;
+    }
+
+    @Test
+    public void testDeltasBeforeFirstCount() {
+        bolt.applyDeltas(deltas("FETCHED", 5));
+        // not counted until the index has been queried
+        assertNull(bolt.getCounts().get("FETCHED"));
+
+        request("FETCHED").onResponse(count(10));
+        assertEquals(10L, (long) bolt.getCounts().get("FETCHED"));
+    }
+
+    @Test
+    public void testDeltasAfterFirstCount() {
+        request("FETCHED").onResponse(count(10));
+        request("DISCOVERED").onResponse(count(100));
+
+        bolt.applyDeltas(deltas("FETCHED", 1, "DISCOVERED", -1, "ERROR", 1));
+        Map<String, Long> counts = bolt.getCounts();
+        assertEquals(11L, (long) counts.get("FETCHED"));
+        assertEquals(99L, (long) counts.get("DISCOVERED"));
+        assertNull(counts.get("ERROR"));
+    }
+
+    @Test
+    public void testDeltasDuringCount() {
+        request("FETCHED").onResponse(count(10));
+
+        StatusMetricsBolt.StatusActionListener listener = request("FETCHED");
+        bolt.applyDeltas(deltas("FETCHED", 3));
+        // kept until the count returns
+        assertEquals(10L, (long) bolt.getCounts().get("FETCHED"));
+        // the count does not include them
+        listener.onResponse(count(20));
+        assertEquals(23L, (long) bolt.getCounts().get("FETCHED"));
+
+        // the changes of a previous request are not added to the next one
+        request("FETCHED").onResponse(count(30));
+        assertEquals(30L, (long) bolt.getCounts().get("FETCHED"));
+    }
+
+    @Test
+    public void testDeltasDuringFailedCount() {
+        request("FETCHED").onResponse(count(10));
+
+        StatusMetricsBolt.StatusActionListener listener = request("FETCHED");
+        bolt.applyDeltas(deltas("FETCHED", 2));
+        listener.onFailure(new Exception());
+        assertEquals(12L, (long) bolt.getCounts().get("FETCHED"));
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class QueryWindowTunerTest {
+
+    private static QueryWindowTuner tuner() {
+        return new QueryWindowTuner(20, 2, 2000, 80, 8, 500, 20000, 2000);
+    }
+
+    @Test
+    public void testRanDry() {
+        QueryWindowTuner t = tuner();
+        // first response only sets the reference
+        t.update(0, 40, 40, 0, 20, 100);
+        // buffer fully drained, all buckets full
+        t.update(2000, 40, 40, 0, 20, 100);
+        assertEquals(25, t.getBuckets());
+        assertEquals(1500, t.getDelay());
+        assertEquals(0.02, t.getDrainRate(), 0.0001);
+
+        // drained again but fewer buckets than asked for
+        t.update(4000, 30, 30, 0, 15, 100);
+        assertEquals(25, t.getBuckets());
+        assertEquals(3, t.getURLsPerBucket());
+    }
+
+    @Test
+    public void testWasted() {
+        QueryWindowTuner t = tuner();
+        t.update(0, 40, 40, 0, 20, 100);
+        t.update(2000, 50, 40, 30, 20, 100);
+        assertEquals(20, t.getBuckets());
+        assertEquals(3000, t.getDelay());
+    }
+
+    @Test
+    public void testWellAhead() {
+        QueryWindowTuner t = tuner();
+        t.update(0, 1000, 40, 0, 20, 100);
+        // 10 URLs consumed in 2 secs, 990 left
+        t.update(2000, 1030, 40, 0, 20, 100);
+        assertEquals(16, t.getBuckets());
+        assertEquals(2000, t.getDelay());
+    }
+
+    @Test
+    public void testBounds() {
+        QueryWindowTuner t = tuner();
+        t.update(0, 40, 40, 0, 20, 100);
+        for (int i = 1; i < 50; i++) {
+            t.update(i * 2000, 40, 40, 0, t.getBuckets(), 100);
+        }
+        assertEquals(80, t.getBuckets());
+        assertEquals(500, t.getDelay());
+
+        // slow queries reduce the number of buckets
+        t.update(200000, 1000, 40, 0, 20, 5000);
+        assertTrue(t.getBuckets() < 80);
+    }
+}
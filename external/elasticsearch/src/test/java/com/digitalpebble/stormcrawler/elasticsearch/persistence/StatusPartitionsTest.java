@@ -0,0 +1,78 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch.persistence;
+
+import com.digitalpebble.stormcrawler.persistence.Status;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StatusPartitionsTest {
+
+    private static Optional<Date> date(String iso) {
+        return Optional.of(Date.from(Instant.parse(iso)));
+    }
+
+    @Test
+    public void testNotActivated() {
+        Map<String, Object> conf = new HashMap<>();
+        Assert.assertNull(StatusPartitions.fromConf(conf, "status"));
+        conf.put("es.status.partition.days", 7);
+        Assert.assertNotNull(StatusPartitions.fromConf(conf, "status"));
+    }
+
+    @Test
+    public void testPartition() {
+        StatusPartitions partitions = new StatusPartitions(7);
+        // 1970-01-01 is the first day of the periods
+        Assert.assertEquals(
+                "status-2022.06.09",
+                partitions.getPartition("status", Status.FETCHED, date("2022-06-10T12:00:00Z")));
+        Assert.assertEquals(
+                "status-2022.06.09",
+                partitions.getPartition("status", Status.ERROR, date("2022-06-15T23:59:59Z")));
+        Assert.assertEquals(
+                "status-2022.06.16",
+                partitions.getPartition("status", Status.FETCHED, date("2022-06-16T00:00:00Z")));
+        Assert.assertEquals(
+                "status-discovered",
+                partitions.getPartition("status", Status.DISCOVERED, date("2022-06-10T12:00:00Z")));
+        Assert.assertEquals(
+                "status-never", partitions.getPartition("status", Status.ERROR, Optional.empty()));
+    }
+
+    @Test
+    public void testHotPartitions() {
+        StatusPartitions partitions = new StatusPartitions(7);
+        String[] hot =
+                partitions.getHotPartitions(
+                        "status",
+                        Arrays.asList(
+                                "status-discovered",
+                                "status-never",
+                                "status-2022.06.02",
+                                "status-2022.06.09",
+                                "status-2022.06.16",
+                                "other-2022.06.02"),
+                        date("2022-06-10T12:00:00Z").get());
+        Assert.assertArrayEquals(
+                new String[] {"status-discovered", "status-2022.06.02", "status-2022.06.09"}, hot);
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.elasticsearch.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.elasticsearch.metrics.StatusMetricsBolt;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.storm.tuple.Tuple;
+import org.elasticsearch.action.DocWriteResponse;
+import org.junit.Test;
+
+public class StatusUpdaterBoltTest {
+
+    private static Tuple tuple(String previousStatus) {
+        Metadata metadata = new Metadata();
+        if (previousStatus != null) {
+            metadata.setValue(StatusMetricsBolt.PREVIOUS_STATUS_KEY, previousStatus);
+        }
+        Tuple tuple = mock(Tuple.class);
+        when(tuple.getValueByField("metadata")).thenReturn(metadata);
+        return tuple;
+    }
+
+    @Test
+    public void testStatusChange() {
+        StatusUpdaterBolt bolt = new StatusUpdaterBolt();
+        bolt.countStatus(tuple("DISCOVERED"), "FETCHED", DocWriteResponse.Result.UPDATED);
+        bolt.countStatus(tuple("DISCOVERED"), "FETCHED", DocWriteResponse.Result.UPDATED);
+        bolt.countStatus(tuple("FETCHED"), "ERROR", DocWriteResponse.Result.UPDATED);
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("DISCOVERED", -2L);
+        expected.put("FETCHED", 1L);
+        expected.put("ERROR", 1L);
+        assertEquals(expected, bolt.takeStatusDeltas());
+        // nothing left
+        assertNull(bolt.takeStatusDeltas());
+    }
+
+    @Test
+    public void testSameStatus() {
+        StatusUpdaterBolt bolt = new StatusUpdaterBolt();
+        bolt.countStatus(tuple("FETCHED"), "FETCHED", DocWriteResponse.Result.UPDATED);
+        // changes cancelling each other out
+        bolt.countStatus(tuple("DISCOVERED"), "FETCHED", DocWriteResponse.Result.UPDATED);
+        bolt.countStatus(tuple("FETCHED"), "DISCOVERED", DocWriteResponse.Result.UPDATED);
+        assertNull(bolt.takeStatusDeltas());
+    }
+
+    @Test
+    public void testNoPreviousStatus() {
+        StatusUpdaterBolt bolt = new StatusUpdaterBolt();
+        // counted only if the document did not exist
+        bolt.countStatus(tuple(null), "DISCOVERED", DocWriteResponse.Result.CREATED);
+        bolt.countStatus(tuple(null), "FETCHED", DocWriteResponse.Result.UPDATED);
+        bolt.countStatus(tuple(null), "FETCHED", DocWriteResponse.Result.NOOP);
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("DISCOVERED", 1L);
+        expected.put(StatusMetricsBolt.TOTAL, 1L);
+        assertEquals(expected, bolt.takeStatusDeltas());
+    }
+}
@@ -20,6 +20,7 @@ import com.digitalpebble.stormcrawler.Metadata;
 import com.digitalpebble.stormcrawler.indexing.AbstractIndexerBolt;
 import com.digitalpebble.stormcrawler.persistence.Status;
 import com.digitalpebble.stormcrawler.solr.SolrConnection;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import java.util.Iterator;
 import java.util.Map;
 import org.apache.commons.lang.StringUtils;
@@ -74,6 +75,9 @@ public class IndexerBolt extends AbstractIndexerBolt {
     @Override
     public void execute(Tuple tuple) {
 
+        // the binary content is not indexed
+        ContentStore.release(tuple);
+
         String url = tuple.getStringByField("url");
 
         Metadata metadata = (Metadata) tuple.getValueByField("metadata");
@@ -17,11 +17,14 @@ package com.digitalpebble.stormcrawler.solr.persistence;
 import com.digitalpebble.stormcrawler.Metadata;
 import com.digitalpebble.stormcrawler.persistence.AbstractStatusUpdaterBolt;
 import com.digitalpebble.stormcrawler.persistence.Status;
+import com.digitalpebble.stormcrawler.persistence.StatusUpdate;
 import com.digitalpebble.stormcrawler.solr.SolrConnection;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
 import com.digitalpebble.stormcrawler.util.URLUtil;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import org.apache.solr.common.SolrInputDocument;
@@ -68,6 +71,29 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt {
             String url, Status status, Metadata metadata, Optional<Date> nextFetch, Tuple t)
             throws Exception {
 
+        connection.getClient().add(toDocument(url, status, metadata, nextFetch));
+
+        super.ack(t, url);
+    }
+
+    /** Sends the documents of all the updates in a single request */
+    @Override
+    protected void storeBatch(List<StatusUpdate> updates) throws Exception {
+        List<SolrInputDocument> docs = new ArrayList<>(updates.size());
+        for (StatusUpdate u : updates) {
+            docs.add(toDocument(u.getUrl(), u.getStatus(), u.getMetadata(), u.getNextFetch()));
+        }
+
+        connection.getClient().add(docs);
+
+        for (StatusUpdate u : updates) {
+            super.ack(u);
+        }
+    }
+
+    private SolrInputDocument toDocument(
+            String url, Status status, Metadata metadata, Optional<Date> nextFetch) {
+
         SolrInputDocument doc = new SolrInputDocument();
 
         doc.setField("url", url);
@@ -87,13 +113,29 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt {
             doc.setField("nextFetchDate", nextFetch.get());
         }
 
-        connection.getClient().add(doc);
+        return doc;
+    }
 
+    @Override
+    protected void storeUnchanged(
+            String url,
+            Status status,
+            Metadata metadata,
+            Optional<Date> nextFetch,
+            boolean nextFetchChanged,
+            Tuple t)
+            throws Exception {
+        // atomic updates require all the fields to be stored, rewrite the whole document instead
+        if (nextFetchChanged) {
+            store(url, status, metadata, nextFetch, t);
+            return;
+        }
         super.ack(t, url);
     }
 
     @Override
     public void cleanup() {
+        super.cleanup();
         if (connection != null) {
             try {
                 connection.close();
@@ -20,8 +20,24 @@ public class Constants {
     public static final String SQL_MAX_DOCS_BUCKET_PARAM_NAME = "sql.max.urls.per.bucket";
     public static final String SQL_MAXRESULTS_PARAM_NAME = "sql.spout.max.results";
 
+    /** "rank" (default) or "keyset" */
+    public static final String SQL_QUERY_STRATEGY_PARAM_NAME = "sql.spout.query.strategy";
+
+    /** Number of buckets used by the status updater, for the keyset strategy */
+    public static final String SQL_BUCKET_NUM_PARAM_NAME = "sql.bucket.num";
+
+    /** Number of buckets queried concurrently by a spout, for the keyset strategy */
+    public static final String SQL_SPOUT_THREADS_PARAM_NAME = "sql.spout.bucket.threads";
+
     public static final String SQL_UPDATE_BATCH_SIZE_PARAM_NAME = "sql.update.batch.size";
 
+    /** Max time in msec a batch of updates can wait before being executed */
+    public static final String SQL_UPDATE_BATCH_MAX_DELAY_PARAM_NAME =
+            "sql.update.batch.max.delay.msec";
+
+    /** Number of threads and connections used by the status updater */
+    public static final String SQL_STATUS_WRITERS_PARAM_NAME = "sql.status.writers";
+
     public static final String SQL_METRICS_TABLE_PARAM_NAME = "sql.metrics.table";
 
     private Constants() {}
@@ -20,6 +20,7 @@ import com.digitalpebble.stormcrawler.Metadata;
 import com.digitalpebble.stormcrawler.indexing.AbstractIndexerBolt;
 import com.digitalpebble.stormcrawler.persistence.Status;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
@@ -65,6 +66,9 @@ public class IndexerBolt extends AbstractIndexerBolt {
 
     @Override
     public void execute(Tuple tuple) {
+        // the binary content is not indexed
+        ContentStore.release(tuple);
+
         String url = tuple.getStringByField("url");
 
         // Distinguish the value used for indexing
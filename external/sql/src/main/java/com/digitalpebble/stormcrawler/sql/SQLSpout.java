@@ -20,13 +20,18 @@ import com.digitalpebble.stormcrawler.util.ConfUtils;
 import com.digitalpebble.stormcrawler.util.StringTabScheme;
 import java.nio.ByteBuffer;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.storm.spout.Scheme;
 import org.apache.storm.spout.SpoutOutputCollector;
 import org.apache.storm.task.TopologyContext;
@@ -34,6 +39,15 @@ import org.apache.storm.topology.OutputFieldsDeclarer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Spout for the SQL backend. By default, it ranks the URLs per host over the whole table with a
+ * window function, which gets slower as the table grows. With <i>sql.spout.query.strategy:
+ * keyset</i>, it instead lists the hosts with URLs due for fetching in the order of their names,
+ * resuming from where the previous query stopped, and gets the URLs of each host with a range
+ * query. The keyset queries rely on an index on (bucket, host, nextfetchdate) so that the time they
+ * take does not depend on the size of the table. The buckets assigned to a spout instance can be
+ * queried concurrently.
+ */
 public class SQLSpout extends AbstractQueryingSpout {
 
     public static final Logger LOG = LoggerFactory.getLogger(SQLSpout.class);
@@ -59,6 +73,13 @@ public class SQLSpout extends AbstractQueryingSpout {
 
     private Instant lastNextFetchDate = null;
 
+    private PreparedStatement rankStatement;
+
+    /** One per bucket assigned to this instance with the keyset strategy, null otherwise */
+    private List<KeysetQuery> keysetQueries;
+
+    private ExecutorService executor;
+
     @Override
     public void open(
             Map<String, Object> conf, TopologyContext context, SpoutOutputCollector collector) {
@@ -71,13 +92,6 @@ public class SQLSpout extends AbstractQueryingSpout {
 
         maxNumResults = ConfUtils.getInt(conf, Constants.SQL_MAXRESULTS_PARAM_NAME, 100);
 
-        try {
-            connection = SQLUtil.getConnection(conf);
-        } catch (SQLException ex) {
-            LOG.error(ex.getMessage(), ex);
-            throw new RuntimeException(ex);
-        }
-
         // determine bucket this spout instance will be in charge of
         int totalTasks = context.getComponentTasks(context.getThisComponentId()).size();
         if (totalTasks > 1) {
@@ -85,6 +99,100 @@ public class SQLSpout extends AbstractQueryingSpout {
                     "[" + context.getThisComponentId() + " #" + context.getThisTaskIndex() + "] ";
             bucketNum = context.getThisTaskIndex();
         }
+
+        String strategy =
+                ConfUtils.getString(conf, Constants.SQL_QUERY_STRATEGY_PARAM_NAME, "rank");
+
+        try {
+            if ("keyset".equalsIgnoreCase(strategy)) {
+                openKeysetQueries(conf, context.getThisTaskIndex(), totalTasks);
+            } else {
+                connection = SQLUtil.getConnection(conf);
+                rankStatement = connection.prepareStatement(rankQuery());
+            }
+        } catch (SQLException ex) {
+            LOG.error(ex.getMessage(), ex);
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /** Assigns the buckets to this instance, with a connection for each */
+    private void openKeysetQueries(Map<String, Object> conf, int taskIndex, int totalTasks)
+            throws SQLException {
+        List<Integer> buckets = new ArrayList<>();
+        int numBuckets = ConfUtils.getInt(conf, Constants.SQL_BUCKET_NUM_PARAM_NAME, -1);
+        if (numBuckets > 0) {
+            for (int b = taskIndex; b < numBuckets; b += totalTasks) {
+                buckets.add(b);
+            }
+            if (buckets.isEmpty()) {
+                throw new RuntimeException(
+                        "More spout instances (" + totalTasks + ") than buckets " + numBuckets);
+            }
+        } else {
+            // same as the rank strategy
+            buckets.add(bucketNum);
+        }
+
+        // URLs returned by each bucket
+        int maxResults = maxNumResults;
+        if (maxResults == -1) {
+            maxResults = 100 * maxDocsPerBucket;
+        }
+        int maxHosts =
+                Math.max(
+                        1,
+                        (int)
+                                Math.ceil(
+                                        (double) maxResults
+                                                / Math.max(1, maxDocsPerBucket)
+                                                / buckets.size()));
+
+        keysetQueries = new ArrayList<>(buckets.size());
+        for (int bucket : buckets) {
+            keysetQueries.add(
+                    new KeysetQuery(
+                            SQLUtil.getConnection(conf),
+                            tableName,
+                            bucket,
+                            maxHosts,
+                            maxDocsPerBucket,
+                            logIdprefix));
+        }
+
+        int threads = ConfUtils.getInt(conf, Constants.SQL_SPOUT_THREADS_PARAM_NAME, 1);
+        threads = Math.min(threads, buckets.size());
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads);
+        }
+
+        LOG.info(
+                "{} assigned buckets {} with up to {} hosts per query",
+                logIdprefix,
+                buckets,
+                maxHosts);
+    }
+
+    /** Query used by the default strategy */
+    private String rankQuery() {
+        // https://mariadb.com/kb/en/library/window-functions-overview/
+        // http://www.mysqltutorial.org/mysql-window-functions/mysql-rank-function/
+        String query =
+                "SELECT * from (select rank() over (partition by host order by nextfetchdate desc, url) as ranking, url, metadata, nextfetchdate from "
+                        + tableName
+                        + " WHERE nextfetchdate <= ?";
+
+        // constraint on bucket num
+        if (bucketNum >= 0) {
+            query += " AND bucket = ?";
+        }
+
+        query += ") as urls_ranks where (urls_ranks.ranking <= ?) order by ranking";
+
+        if (maxNumResults != -1) {
+            query += " LIMIT ?";
+        }
+        return query;
     }
 
     @Override
@@ -110,61 +218,28 @@ public class SQLSpout extends AbstractQueryingSpout {
             }
         }
 
-        // select entries from mysql
-        // https://mariadb.com/kb/en/library/window-functions-overview/
-        // http://www.mysqltutorial.org/mysql-window-functions/mysql-rank-function/
-
-        String query =
-                "SELECT * from (select rank() over (partition by host order by nextfetchdate desc, url) as ranking, url, metadata, nextfetchdate from "
-                        + tableName;
-
-        query +=
-                " WHERE nextfetchdate <= '" + new Timestamp(lastNextFetchDate.toEpochMilli()) + "'";
-
-        // constraint on bucket num
-        if (bucketNum >= 0) {
-            query += " AND bucket = '" + bucketNum + "'";
-        }
-
-        query +=
-                ") as urls_ranks where (urls_ranks.ranking <= "
-                        + maxDocsPerBucket
-                        + ") order by ranking";
-
-        if (maxNumResults != -1) {
-            query += " LIMIT " + this.maxNumResults;
-        }
+        Timestamp date = new Timestamp(lastNextFetchDate.toEpochMilli());
 
         int alreadyprocessed = 0;
         int numhits = 0;
 
         long timeStartQuery = System.currentTimeMillis();
 
-        // create the java statement
-        Statement st = null;
-        ResultSet rs = null;
         try {
-            st = this.connection.createStatement();
-
-            // dump query to log
-            LOG.debug("{} SQL query {}", logIdprefix, query);
-
-            // execute the query, and get a java resultset
-            rs = st.executeQuery(query);
+            List<String[]> rows = keysetQueries != null ? queryKeyset(date) : queryRank(date);
 
             long timeTaken = System.currentTimeMillis() - timeStartQuery;
             queryTimes.addMeasurement(timeTaken);
 
-            // iterate through the java resultset
-            while (rs.next()) {
-                String url = rs.getString("url");
+            for (String[] row : rows) {
+                String url = row[0];
                 numhits++;
                 // already processed? skip
                 if (beingProcessed.containsKey(url)) {
                     alreadyprocessed++;
                     continue;
                 }
-                String metadata = rs.getString("metadata");
+                String metadata = row[1];
                 if (metadata == null) {
                     metadata = "";
                 } else if (!metadata.startsWith("\t")) {
@@ -193,16 +268,165 @@ public class SQLSpout extends AbstractQueryingSpout {
 
         } catch (SQLException e) {
             LOG.error("Exception while querying table", e);
-        } finally {
+        }
+    }
+
+    private List<String[]> queryRank(Timestamp date) throws SQLException {
+        int i = 1;
+        rankStatement.setTimestamp(i++, date);
+        if (bucketNum >= 0) {
+            rankStatement.setInt(i++, bucketNum);
+        }
+        rankStatement.setInt(i++, maxDocsPerBucket);
+        if (maxNumResults != -1) {
+            rankStatement.setInt(i++, maxNumResults);
+        }
+
+        // dump query to log
+        LOG.debug("{} SQL query {}", logIdprefix, rankStatement);
+
+        List<String[]> rows = new ArrayList<>();
+        try (ResultSet rs = rankStatement.executeQuery()) {
+            while (rs.next()) {
+                rows.add(new String[] {rs.getString("url"), rs.getString("metadata")});
+            }
+        }
+        return rows;
+    }
+
+    /** Queries the buckets, concurrently if an executor is set, and merges the results */
+    private List<String[]> queryKeyset(Timestamp date) throws SQLException {
+        List<String[]> rows = new ArrayList<>();
+        if (executor == null) {
+            for (KeysetQuery query : keysetQueries) {
+                rows.addAll(query.execute(date));
+            }
+            return rows;
+        }
+        List<Future<List<String[]>>> futures = new ArrayList<>(keysetQueries.size());
+        for (KeysetQuery query : keysetQueries) {
+            futures.add(executor.submit(() -> query.execute(date)));
+        }
+        SQLException exception = null;
+        for (Future<List<String[]>> future : futures) {
             try {
-                if (rs != null) rs.close();
-            } catch (SQLException e) {
-                LOG.error("Exception closing resultset", e);
+                rows.addAll(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SQLException) {
+                    exception = (SQLException) e.getCause();
+                } else {
+                    exception = new SQLException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exception = new SQLException(e);
+            }
+        }
+        // keep the results of the other buckets
+        if (exception != null) {
+            LOG.error("{} Exception while querying a bucket", logIdprefix, exception);
+        }
+        return rows;
+    }
+
+    /**
+     * Gets the next hosts of a bucket with URLs due for fetching and up to maxDocsPerBucket URLs
+     * for each of them. The hosts are taken in the order of their names, starting after the last
+     * one returned by the previous query, so that all of them get their turn.
+     */
+    static class KeysetQuery {
+
+        private final Connection connection;
+        private final int bucket;
+        private final int maxHosts;
+        private final int maxDocsPerHost;
+        private final String logIdprefix;
+
+        private final PreparedStatement hostsStatement;
+        private final PreparedStatement urlsStatement;
+
+        private String lastHost = "";
+
+        KeysetQuery(
+                Connection connection,
+                String tableName,
+                int bucket,
+                int maxHosts,
+                int maxDocsPerHost,
+                String logIdprefix)
+                throws SQLException {
+            this.connection = connection;
+            this.bucket = bucket;
+            this.maxHosts = maxHosts;
+            this.maxDocsPerHost = maxDocsPerHost;
+            this.logIdprefix = logIdprefix;
+            String bucketClause = bucket >= 0 ? "bucket = ? AND " : "";
+            hostsStatement =
+                    connection.prepareStatement(
+                            "SELECT host FROM "
+                                    + tableName
+                                    + " WHERE "
+                                    + bucketClause
+                                    + "host > ? GROUP BY host HAVING MIN(nextfetchdate) <= ?"
+                                    + " ORDER BY host LIMIT ?");
+            urlsStatement =
+                    connection.prepareStatement(
+                            "SELECT url, metadata FROM "
+                                    + tableName
+                                    + " WHERE "
+                                    + bucketClause
+                                    + "host = ? AND nextfetchdate <= ?"
+                                    + " ORDER BY nextfetchdate LIMIT ?");
+        }
+
+        List<String[]> execute(Timestamp date) throws SQLException {
+            List<String> hosts = new ArrayList<>(maxHosts);
+            int i = 1;
+            if (bucket >= 0) {
+                hostsStatement.setInt(i++, bucket);
+            }
+            hostsStatement.setString(i++, lastHost);
+            hostsStatement.setTimestamp(i++, date);
+            hostsStatement.setInt(i++, maxHosts);
+            try (ResultSet rs = hostsStatement.executeQuery()) {
+                while (rs.next()) {
+                    hosts.add(rs.getString(1));
+                }
             }
+
+            // start from the beginning next time if the end was reached
+            lastHost = hosts.size() < maxHosts ? "" : hosts.get(hosts.size() - 1);
+
+            List<String[]> rows = new ArrayList<>();
+            for (String host : hosts) {
+                i = 1;
+                if (bucket >= 0) {
+                    urlsStatement.setInt(i++, bucket);
+                }
+                urlsStatement.setString(i++, host);
+                urlsStatement.setTimestamp(i++, date);
+                urlsStatement.setInt(i++, maxDocsPerHost);
+                try (ResultSet rs = urlsStatement.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(new String[] {rs.getString("url"), rs.getString("metadata")});
+                    }
+                }
+            }
+
+            LOG.debug(
+                    "{} bucket {} returned {} URLs for {} hosts",
+                    logIdprefix,
+                    bucket,
+                    rows.size(),
+                    hosts.size());
+            return rows;
+        }
+
+        void close() {
             try {
-                if (st != null) st.close();
+                connection.close();
             } catch (SQLException e) {
-                LOG.error("Exception closing statement", e);
+                LOG.error("Exception caught while closing SQL connection", e);
             }
         }
     }
@@ -222,6 +446,17 @@ public class SQLSpout extends AbstractQueryingSpout {
     @Override
     public void close() {
         super.close();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (keysetQueries != null) {
+            for (KeysetQuery query : keysetQueries) {
+                query.close();
+            }
+        }
+        if (connection == null) {
+            return;
+        }
         try {
             connection.close();
         } catch (SQLException e) {
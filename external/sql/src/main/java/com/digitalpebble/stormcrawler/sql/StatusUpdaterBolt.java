@@ -18,19 +18,16 @@ import com.digitalpebble.stormcrawler.Metadata;
 import com.digitalpebble.stormcrawler.persistence.AbstractStatusUpdaterBolt;
 import com.digitalpebble.stormcrawler.persistence.Status;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.PartitionHashing;
 import com.digitalpebble.stormcrawler.util.URLPartitioner;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import org.apache.storm.Config;
 import org.apache.storm.metric.api.MultiCountMetric;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
@@ -39,7 +36,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Status updater for SQL backend. Discovered URLs are sent as a batch, whereas updates are atomic.
+ * Status updater for SQL backend. The updates are passed to one or more writer threads, set with
+ * <i>sql.status.writers</i>, each with its own connection and in charge of a subset of the buckets.
+ * They write the updates in batches of up to <i>sql.update.batch.size</i> and the tuples are acked
+ * once their batch has been executed.
  */
 public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt {
 
@@ -47,25 +47,19 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt {
 
     private MultiCountMetric eventCounter;
 
-    private Connection connection;
     private String tableName;
 
     private URLPartitioner partitioner;
     private int maxNumBuckets = -1;
+    private PartitionHashing hashing;
 
-    private int batchMaxSize = 1000;
-    private float batchMaxIdleMsec = 2000;
+    private StatusWriter[] writers;
+    private Thread[] writerThreads;
 
-    private int currentBatchSize = 0;
+    /** Tuples of the batches executed by the writers */
+    private final Queue<Tuple> acked = new ConcurrentLinkedQueue<>();
 
-    private PreparedStatement insertPreparedStmt = null;
-
-    private long lastInsertBatchTime = -1;
-
-    private String updateQuery;
-    private String insertQuery;
-
-    private final Map<String, List<Tuple>> waitingAck = new HashMap<>();
+    private final Queue<Tuple> failed = new ConcurrentLinkedQueue<>();
 
     public StatusUpdaterBolt(int maxNumBuckets) {
         this.maxNumBuckets = maxNumBuckets;
@@ -82,175 +76,165 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt {
         partitioner = new URLPartitioner();
         partitioner.configure(stormConf);
 
+        hashing = PartitionHashing.fromConf(stormConf);
+
         this.eventCounter = context.registerMetric("counter", new MultiCountMetric(), 10);
 
         tableName = ConfUtils.getString(stormConf, Constants.SQL_STATUS_TABLE_PARAM_NAME, "urls");
 
-        batchMaxSize =
+        int batchMaxSize =
                 ConfUtils.getInt(stormConf, Constants.SQL_UPDATE_BATCH_SIZE_PARAM_NAME, 1000);
-
-        try {
-            connection = SQLUtil.getConnection(stormConf);
-        } catch (SQLException ex) {
-            LOG.error(ex.getMessage(), ex);
-            throw new RuntimeException(ex);
+        long batchMaxDelay =
+                ConfUtils.getLong(
+                        stormConf, Constants.SQL_UPDATE_BATCH_MAX_DELAY_PARAM_NAME, 2000L);
+
+        int numWriters =
+                Math.max(
+                        1, ConfUtils.getInt(stormConf, Constants.SQL_STATUS_WRITERS_PARAM_NAME, 1));
+
+        writers = new StatusWriter[numWriters];
+        writerThreads = new Thread[numWriters];
+        for (int i = 0; i < numWriters; i++) {
+            String name = "[" + context.getThisComponentId() + " #" + context.getThisTaskIndex();
+            name += " writer " + i + "]";
+            writers[i] =
+                    new StatusWriter(
+                            name,
+                            stormConf,
+                            tableName,
+                            batchMaxSize,
+                            batchMaxDelay,
+                            acked,
+                            failed,
+                            eventCounter);
+            writerThreads[i] = new Thread(writers[i], name);
+            writerThreads[i].setDaemon(true);
+            writerThreads[i].start();
         }
+    }
 
-        String query =
-                tableName
-                        + " (url, status, nextfetchdate, metadata, bucket, host)"
-                        + " values (?, ?, ?, ?, ?, ?)";
-
-        updateQuery = "REPLACE INTO " + query;
-        insertQuery = "INSERT IGNORE INTO " + query;
+    @Override
+    public void execute(Tuple tuple) {
+        // ack the tuples of the batches executed since the last call
+        processResults();
+        super.execute(tuple);
+    }
 
-        try {
-            insertPreparedStmt = connection.prepareStatement(insertQuery);
-        } catch (SQLException e) {
-            LOG.error(e.getMessage(), e);
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        // the tuples are acked on ticks if no new ones arrive
+        Map<String, Object> conf = super.getComponentConfiguration();
+        if (conf == null) {
+            conf = new HashMap<>();
         }
+        conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, 1);
+        return conf;
+    }
 
-        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-        executor.scheduleAtFixedRate(
-                () -> {
-                    try {
-                        checkExecuteBatch();
-                    } catch (SQLException ex) {
-                        LOG.error(ex.getMessage(), ex);
-                        throw new RuntimeException(ex);
-                    }
-                },
-                0,
-                1,
-                TimeUnit.SECONDS);
+    private void processResults() {
+        Tuple t;
+        while ((t = acked.poll()) != null) {
+            super.ack(t, t.getStringByField("url"));
+        }
+        while ((t = failed.poll()) != null) {
+            _collector.fail(t);
+        }
     }
 
     @Override
-    public synchronized void store(
+    public void store(
             String url, Status status, Metadata metadata, Optional<Date> nextFetch, Tuple t)
             throws Exception {
-        // check whether the batch needs sending
-        checkExecuteBatch();
-
-        boolean isUpdate = !status.equals(Status.DISCOVERED);
+        StatusWriter.Kind kind =
+                status.equals(Status.DISCOVERED)
+                        ? StatusWriter.Kind.INSERT
+                        : StatusWriter.Kind.REPLACE;
+        send(kind, url, status, metadata, nextFetch, t);
+    }
 
-        // already have an entry for this DISCOVERED URL
-        if (!isUpdate && waitingAck.containsKey(url)) {
-            List<Tuple> list = waitingAck.get(url);
-            // add the tuple to the list for that url
-            list.add(t);
+    @Override
+    protected void storeUnchanged(
+            String url,
+            Status status,
+            Metadata metadata,
+            Optional<Date> nextFetch,
+            boolean nextFetchChanged,
+            Tuple t)
+            throws Exception {
+        if (!nextFetchChanged) {
+            eventCounter.scope("sql_unchanged_number").incrBy(1);
+            super.ack(t, url);
             return;
         }
+        // leaves the status, bucket and host untouched
+        send(StatusWriter.Kind.PARTIAL, url, status, metadata, nextFetch, t);
+    }
 
-        StringBuilder mdAsString = new StringBuilder();
-        for (String mdKey : metadata.keySet()) {
-            String[] vals = metadata.getValues(mdKey);
-            for (String v : vals) {
-                mdAsString.append("\t").append(mdKey).append("=").append(v);
-            }
-        }
-
+    private void send(
+            StatusWriter.Kind kind,
+            String url,
+            Status status,
+            Metadata metadata,
+            Optional<Date> nextFetch,
+            Tuple t)
+            throws InterruptedException {
         int partition = 0;
         String partitionKey = partitioner.getPartition(url, metadata);
         if (maxNumBuckets > 1) {
             // determine which shard to send to based on the host / domain /
             // IP
-            partition = Math.abs(partitionKey.hashCode() % maxNumBuckets);
+            partition = hashing.partition(partitionKey, maxNumBuckets);
         }
 
-        PreparedStatement preparedStmt = this.insertPreparedStmt;
-
-        // create in table if does not already exist
-        if (isUpdate) {
-            preparedStmt = connection.prepareStatement(updateQuery);
-        }
-
-        preparedStmt.setString(1, url);
-        preparedStmt.setString(2, status.toString());
-        if (nextFetch.isPresent()) preparedStmt.setObject(3, nextFetch.get());
-        preparedStmt.setString(4, mdAsString.toString());
-        preparedStmt.setInt(5, partition);
-        preparedStmt.setString(6, partitionKey);
-
-        // updates are not batched
-        if (isUpdate) {
-            preparedStmt.executeUpdate();
-            preparedStmt.close();
-            eventCounter.scope("sql_updates_number").incrBy(1);
-            super.ack(t, url);
-            return;
-        }
-
-        // code below is for inserts i.e. DISCOVERED URLs
-        preparedStmt.addBatch();
-
-        if (lastInsertBatchTime == -1) {
-            lastInsertBatchTime = System.currentTimeMillis();
+        // the updates for a URL always go to the same writer
+        int writer = 0;
+        if (maxNumBuckets > 1) {
+            writer = partition % writers.length;
+        } else if (writers.length > 1 && partitionKey != null) {
+            writer = hashing.partition(partitionKey, writers.length);
         }
 
-        // URL gets added to the cache in method ack
-        // once this method has returned
-        waitingAck.put(url, new LinkedList<Tuple>());
-
-        currentBatchSize++;
-
-        eventCounter.scope("sql_inserts_number").incrBy(1);
+        writers[writer].add(
+                new StatusWriter.Update(
+                        kind,
+                        url,
+                        status.toString(),
+                        nextFetch.orElse(null),
+                        metadataAsString(metadata),
+                        partition,
+                        partitionKey,
+                        t));
     }
 
-    private synchronized void checkExecuteBatch() throws SQLException {
-        if (currentBatchSize == 0) {
-            return;
-        }
-        long now = System.currentTimeMillis();
-        // check whether the insert batches need executing
-        if ((currentBatchSize == batchMaxSize)) {
-            LOG.info("About to execute batch - triggered by size");
-        } else if (lastInsertBatchTime + (long) batchMaxIdleMsec < System.currentTimeMillis()) {
-            LOG.info(
-                    "About to execute batch - triggered by time. Due {}, now {}",
-                    lastInsertBatchTime + (long) batchMaxIdleMsec,
-                    now);
-        } else {
-            return;
-        }
-
-        try {
-            long start = System.currentTimeMillis();
-            insertPreparedStmt.executeBatch();
-            long end = System.currentTimeMillis();
-
-            LOG.info("Batched {} inserts executed in {} msec", currentBatchSize, end - start);
-            waitingAck.forEach(
-                    (k, v) -> {
-                        for (Tuple t : v) {
-                            super.ack(t, k);
-                        }
-                    });
-        } catch (SQLException e) {
-            LOG.error(e.getMessage(), e);
-            // fail the entire batch
-            waitingAck.forEach(
-                    (k, v) -> {
-                        for (Tuple t : v) {
-                            super._collector.fail(t);
-                        }
-                    });
+    private static String metadataAsString(Metadata metadata) {
+        StringBuilder mdAsString = new StringBuilder();
+        for (String mdKey : metadata.keySet()) {
+            String[] vals = metadata.getValues(mdKey);
+            for (String v : vals) {
+                mdAsString.append("\t").append(mdKey).append("=").append(v);
+            }
         }
-
-        lastInsertBatchTime = System.currentTimeMillis();
-        currentBatchSize = 0;
-        waitingAck.clear();
-
-        insertPreparedStmt.close();
-        insertPreparedStmt = connection.prepareStatement(insertQuery);
+        return mdAsString.toString();
     }
 
     @Override
     public void cleanup() {
-        if (connection != null)
+        super.cleanup();
+        if (writers == null) {
+            return;
+        }
+        // write what is left
+        for (StatusWriter writer : writers) {
+            writer.stop();
+        }
+        for (Thread thread : writerThreads) {
             try {
-                connection.close();
-            } catch (SQLException e) {
+                thread.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
+        }
+        processResults();
     }
 }
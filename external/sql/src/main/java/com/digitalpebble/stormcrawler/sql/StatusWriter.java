@@ -0,0 +1,364 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.storm.metric.api.MultiCountMetric;
+import org.apache.storm.tuple.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the status updates of a subset of the buckets with its own connection. The updates are
+ * added to reusable prepared statements and executed as batches when there are enough of them or
+ * the oldest one has waited long enough. Only the last update of a URL is kept in a batch so that
+ * the order in which the statements are executed does not matter. The tuples are passed to the
+ * queues of acked or failed tuples once their batch has been executed, the bolt thread takes care
+ * of acking them.
+ */
+class StatusWriter implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StatusWriter.class);
+
+    enum Kind {
+        /** DISCOVERED URL, ignored if already in the table */
+        INSERT,
+        /** full update */
+        REPLACE,
+        /** nextFetchDate and metadata only, replaced if not in the table */
+        PARTIAL
+    }
+
+    static class Update {
+        final Kind kind;
+        final String url;
+        final String status;
+        final Date nextFetch;
+        final String metadata;
+        final int bucket;
+        final String host;
+        final Tuple tuple;
+
+        Update(
+                Kind kind,
+                String url,
+                String status,
+                Date nextFetch,
+                String metadata,
+                int bucket,
+                String host,
+                Tuple tuple) {
+            this.kind = kind;
+            this.url = url;
+            this.status = status;
+            this.nextFetch = nextFetch;
+            this.metadata = metadata;
+            this.bucket = bucket;
+            this.host = host;
+            this.tuple = tuple;
+        }
+
+        Update withKind(Kind newKind) {
+            return new Update(newKind, url, status, nextFetch, metadata, bucket, host, tuple);
+        }
+    }
+
+    private final String name;
+
+    private final Map<String, Object> conf;
+
+    private final String insertQuery;
+    private final String replaceQuery;
+    private final String partialQuery;
+
+    private final int batchMaxSize;
+    private final long batchMaxDelay;
+
+    private final BlockingQueue<Update> queue;
+
+    private final Queue<Tuple> acked;
+    private final Queue<Tuple> failed;
+
+    private final MultiCountMetric eventCounter;
+
+    private Connection connection;
+    private PreparedStatement insertStmt;
+    private PreparedStatement replaceStmt;
+    private PreparedStatement partialStmt;
+
+    private final List<Update> inserts = new ArrayList<>();
+
+    /** last REPLACE or PARTIAL update of each URL */
+    private final Map<String, Update> updates = new LinkedHashMap<>();
+
+    /** DISCOVERED URLs already in the batch */
+    private final Set<String> insertedURLs = new HashSet<>();
+
+    /** all the tuples of the batch, including the ones for the same DISCOVERED URLs */
+    private final List<Tuple> tuples = new ArrayList<>();
+
+    private long batchStart = -1;
+
+    private volatile boolean running = true;
+
+    StatusWriter(
+            String name,
+            Map<String, Object> conf,
+            String tableName,
+            int batchMaxSize,
+            long batchMaxDelay,
+            Queue<Tuple> acked,
+            Queue<Tuple> failed,
+            MultiCountMetric eventCounter) {
+        this.name = name;
+        this.conf = conf;
+        String query =
+                tableName
+                        + " (url, status, nextfetchdate, metadata, bucket, host)"
+                        + " values (?, ?, ?, ?, ?, ?)";
+        this.insertQuery = "INSERT IGNORE INTO " + query;
+        this.replaceQuery = "REPLACE INTO " + query;
+        this.partialQuery =
+                "UPDATE " + tableName + " SET nextfetchdate = ?, metadata = ? WHERE url = ?";
+        this.batchMaxSize = Math.max(1, batchMaxSize);
+        this.batchMaxDelay = batchMaxDelay;
+        // blocks the bolt if the writer can't keep up
+        this.queue = new LinkedBlockingQueue<>(this.batchMaxSize * 2);
+        this.acked = acked;
+        this.failed = failed;
+        this.eventCounter = eventCounter;
+    }
+
+    /** Adds an update to the queue of the writer, waits if it is full */
+    void add(Update update) throws InterruptedException {
+        queue.put(update);
+    }
+
+    /** Stops the writer once the updates in its queue have been written */
+    void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        while (running || !queue.isEmpty()) {
+            try {
+                long wait = batchMaxDelay;
+                if (batchStart != -1) {
+                    wait = batchStart + batchMaxDelay - System.currentTimeMillis();
+                }
+                Update update = queue.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                // take what is already there without waiting
+                while (update != null) {
+                    addToBatch(update);
+                    if (batchSize() >= batchMaxSize) {
+                        break;
+                    }
+                    update = queue.poll();
+                }
+                if (batchSize() >= batchMaxSize
+                        || (batchStart != -1
+                                && System.currentTimeMillis() - batchStart >= batchMaxDelay)) {
+                    executeBatch();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                // keep going so that the bolt does not block on a full queue
+                LOG.error("{} unexpected exception", name, e);
+                failBatch();
+            }
+        }
+        // last batch
+        if (batchStart != -1) {
+            executeBatch();
+        }
+        closeConnection();
+    }
+
+    private int batchSize() {
+        return inserts.size() + updates.size();
+    }
+
+    void addToBatch(Update update) {
+        if (batchStart == -1) {
+            batchStart = System.currentTimeMillis();
+        }
+        tuples.add(update.tuple);
+        if (update.kind == Kind.INSERT) {
+            // the tuple gets acked with the first one
+            if (insertedURLs.add(update.url)) {
+                inserts.add(update);
+            }
+        } else {
+            Update previous = updates.get(update.url);
+            // a partial update would leave out the changes of the previous full one
+            if (previous != null && previous.kind == Kind.REPLACE && update.kind == Kind.PARTIAL) {
+                update = update.withKind(Kind.REPLACE);
+            }
+            updates.put(update.url, update);
+        }
+    }
+
+    void executeBatch() {
+        long start = System.currentTimeMillis();
+        List<Update> partials = new ArrayList<>();
+        int numReplaces = 0;
+        try {
+            prepare();
+
+            // inserts first so that the updates of the same batch override them
+            if (!inserts.isEmpty()) {
+                for (Update u : inserts) {
+                    setValues(insertStmt, u);
+                    insertStmt.addBatch();
+                }
+                insertStmt.executeBatch();
+            }
+
+            for (Update u : updates.values()) {
+                // the insert of the same batch would be kept as is by a partial update
+                if (u.kind == Kind.PARTIAL && !insertedURLs.contains(u.url)) {
+                    partials.add(u);
+                } else {
+                    setValues(replaceStmt, u);
+                    replaceStmt.addBatch();
+                    numReplaces++;
+                }
+            }
+
+            if (!partials.isEmpty()) {
+                for (Update u : partials) {
+                    partialStmt.setObject(1, u.nextFetch);
+                    partialStmt.setString(2, u.metadata);
+                    partialStmt.setString(3, u.url);
+                    partialStmt.addBatch();
+                }
+                int[] counts = partialStmt.executeBatch();
+                // not in the table any more
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0) {
+                        setValues(replaceStmt, partials.get(i));
+                        replaceStmt.addBatch();
+                        numReplaces++;
+                    }
+                }
+            }
+
+            if (numReplaces > 0) {
+                replaceStmt.executeBatch();
+            }
+
+            acked.addAll(tuples);
+
+            eventCounter.scope("sql_inserts_number").incrBy(inserts.size());
+            eventCounter.scope("sql_updates_number").incrBy(numReplaces);
+            eventCounter.scope("sql_partial_updates_number").incrBy(partials.size());
+
+            LOG.info(
+                    "{} executed {} inserts, {} updates and {} partial updates in {} msec",
+                    name,
+                    inserts.size(),
+                    numReplaces,
+                    partials.size(),
+                    System.currentTimeMillis() - start);
+        } catch (SQLException | RuntimeException e) {
+            LOG.error("{} exception while executing batch", name, e);
+            // the statements are idempotent, the tuples can be replayed
+            failed.addAll(tuples);
+            // start again with a new connection
+            closeConnection();
+        } finally {
+            clearBatch();
+        }
+    }
+
+    /** Fails the tuples of the current batch */
+    private void failBatch() {
+        failed.addAll(tuples);
+        clearBatch();
+    }
+
+    private void clearBatch() {
+        inserts.clear();
+        updates.clear();
+        insertedURLs.clear();
+        tuples.clear();
+        batchStart = -1;
+    }
+
+    private static void setValues(PreparedStatement stmt, Update u) throws SQLException {
+        stmt.setString(1, u.url);
+        stmt.setString(2, u.status);
+        stmt.setObject(3, u.nextFetch);
+        stmt.setString(4, u.metadata);
+        stmt.setInt(5, u.bucket);
+        stmt.setString(6, u.host);
+    }
+
+    /** Opens the connection and prepares the statements if needed */
+    private void prepare() throws SQLException {
+        if (connection != null) {
+            return;
+        }
+        connection = openConnection();
+        insertStmt = connection.prepareStatement(insertQuery);
+        replaceStmt = connection.prepareStatement(replaceQuery);
+        partialStmt = connection.prepareStatement(partialQuery);
+    }
+
+    Connection openConnection() throws SQLException {
+        return SQLUtil.getConnection(conf);
+    }
+
+    private void closeConnection() {
+        if (connection == null) {
+            return;
+        }
+        for (Statement stmt : new Statement[] {insertStmt, replaceStmt, partialStmt}) {
+            try {
+                if (stmt != null) {
+                    stmt.close();
+                }
+            } catch (SQLException e) {
+                LOG.debug("{} exception while closing statement", name, e);
+            }
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.debug("{} exception while closing connection", name, e);
+        }
+        connection = null;
+        insertStmt = null;
+        replaceStmt = null;
+        partialStmt = null;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.digitalpebble.stormcrawler.sql.SQLSpout.KeysetQuery;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+public class KeysetQueryTest {
+
+    /** Returns a result set with one row per value, in the first column */
+    private static ResultSet resultSet(String... hosts) throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        Iterator<String> iter = Arrays.asList(hosts).iterator();
+        String[] current = new String[1];
+        when(rs.next())
+                .thenAnswer(
+                        invocation -> {
+                            if (!iter.hasNext()) {
+                                return false;
+                            }
+                            current[0] = iter.next();
+                            return true;
+                        });
+        when(rs.getString(1)).thenAnswer(invocation -> current[0]);
+        when(rs.getString("url")).thenAnswer(invocation -> "http://" + current[0] + "/");
+        when(rs.getString("metadata")).thenReturn("");
+        return rs;
+    }
+
+    @Test
+    public void testWrapAround() throws SQLException {
+        Connection connection = mock(Connection.class);
+        PreparedStatement hosts = mock(PreparedStatement.class);
+        PreparedStatement urls = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString()))
+                .thenAnswer(
+                        invocation ->
+                                ((String) invocation.getArgument(0)).startsWith("SELECT host")
+                                        ? hosts
+                                        : urls);
+        ResultSet first = resultSet("a", "b");
+        ResultSet second = resultSet("c");
+        ResultSet third = resultSet("a", "b");
+        when(hosts.executeQuery()).thenReturn(first, second, third);
+        when(urls.executeQuery()).thenAnswer(invocation -> resultSet("url"));
+
+        KeysetQuery query = new KeysetQuery(connection, "urls", 0, 2, 5, "");
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+
+        // a URL per host
+        List<String[]> rows = query.execute(now);
+        assertEquals(2, rows.size());
+        // fewer hosts than the max, the end has been reached
+        assertEquals(1, query.execute(now).size());
+        assertEquals(2, query.execute(now).size());
+
+        // the bucket is the first parameter, then the host to start after
+        InOrder order = inOrder(hosts);
+        order.verify(hosts).setString(2, "");
+        order.verify(hosts).setString(2, "b");
+        order.verify(hosts).setString(2, "");
+    }
+}
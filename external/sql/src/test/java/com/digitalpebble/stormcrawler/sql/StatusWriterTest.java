@@ -0,0 +1,185 @@
+/**
+ * Licensed to DigitalPebble Ltd under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership.
+ * DigitalPebble licenses this file to You under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalpebble.stormcrawler.sql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.digitalpebble.stormcrawler.sql.StatusWriter.Kind;
+import com.digitalpebble.stormcrawler.sql.StatusWriter.Update;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.storm.metric.api.MultiCountMetric;
+import org.apache.storm.tuple.Tuple;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatusWriterTest {
+
+    private static final String URL = "http://www.example.com/";
+
+    private Connection connection;
+    private PreparedStatement insertStmt;
+    private PreparedStatement replaceStmt;
+    private PreparedStatement partialStmt;
+
+    private final Queue<Tuple> acked = new ConcurrentLinkedQueue<>();
+    private final Queue<Tuple> failed = new ConcurrentLinkedQueue<>();
+
+    private StatusWriter writer;
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = mock(Connection.class);
+        insertStmt = mock(PreparedStatement.class);
+        replaceStmt = mock(PreparedStatement.class);
+        partialStmt = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString()))
+                .thenAnswer(
+                        invocation -> {
+                            String query = invocation.getArgument(0);
+                            if (query.startsWith("INSERT")) {
+                                return insertStmt;
+                            }
+                            if (query.startsWith("REPLACE")) {
+                                return replaceStmt;
+                            }
+                            return partialStmt;
+                        });
+        when(partialStmt.executeBatch()).thenReturn(new int[] {1});
+
+        writer =
+                new StatusWriter(
+                        "writer",
+                        new HashMap<>(),
+                        "urls",
+                        100,
+                        1000,
+                        acked,
+                        failed,
+                        new MultiCountMetric()) {
+                    @Override
+                    Connection openConnection() {
+                        return connection;
+                    }
+                };
+    }
+
+    private static Update update(Kind kind, String status, String metadata) {
+        return new Update(
+                kind, URL, status, new Date(), metadata, 0, "www.example.com", mock(Tuple.class));
+    }
+
+    @Test
+    public void testInsertThenReplace() throws SQLException {
+        Update insert = update(Kind.INSERT, "DISCOVERED", "");
+        Update replace = update(Kind.REPLACE, "FETCHED", "");
+        writer.addToBatch(insert);
+        writer.addToBatch(replace);
+        writer.executeBatch();
+
+        // the insert is done first and overridden by the replace
+        verify(insertStmt).setString(1, URL);
+        verify(insertStmt).executeBatch();
+        verify(replaceStmt).setString(2, "FETCHED");
+        verify(replaceStmt).executeBatch();
+        verify(partialStmt, never()).executeBatch();
+        assertEquals(Arrays.asList(insert.tuple, replace.tuple), Arrays.asList(acked.toArray()));
+        assertTrue(failed.isEmpty());
+    }
+
+    @Test
+    public void testReplaceThenPartial() throws SQLException {
+        Update replace = update(Kind.REPLACE, "FETCHED", "first");
+        Update partial = update(Kind.PARTIAL, "FETCHED", "second");
+        writer.addToBatch(replace);
+        writer.addToBatch(partial);
+        writer.executeBatch();
+
+        // turned into a full update with the values of the last one
+        verify(replaceStmt, times(1)).addBatch();
+        verify(replaceStmt).setString(4, "second");
+        verify(replaceStmt, never()).setString(4, "first");
+        verify(replaceStmt).executeBatch();
+        verify(partialStmt, never()).executeBatch();
+        assertEquals(2, acked.size());
+    }
+
+    @Test
+    public void testInsertAndPartial() throws SQLException {
+        writer.addToBatch(update(Kind.INSERT, "DISCOVERED", ""));
+        writer.addToBatch(update(Kind.PARTIAL, "FETCHED", "partial"));
+        writer.executeBatch();
+
+        // a partial update would not change the row just inserted
+        verify(insertStmt).executeBatch();
+        verify(replaceStmt).setString(4, "partial");
+        verify(replaceStmt).executeBatch();
+        verify(partialStmt, never()).executeBatch();
+        assertEquals(2, acked.size());
+    }
+
+    @Test
+    public void testPartialNotInTable() throws SQLException {
+        when(partialStmt.executeBatch()).thenReturn(new int[] {0});
+        writer.addToBatch(update(Kind.PARTIAL, "FETCHED", "partial"));
+        writer.executeBatch();
+
+        verify(partialStmt).setString(3, URL);
+        verify(partialStmt).executeBatch();
+        // replaced as the row was not found
+        verify(replaceStmt).setString(1, URL);
+        verify(replaceStmt).executeBatch();
+        assertEquals(1, acked.size());
+    }
+
+    @Test
+    public void testPartialInTable() throws SQLException {
+        writer.addToBatch(update(Kind.PARTIAL, "FETCHED", "partial"));
+        writer.executeBatch();
+
+        verify(partialStmt).executeBatch();
+        verify(replaceStmt, never()).executeBatch();
+        assertEquals(1, acked.size());
+    }
+
+    @Test
+    public void testRuntimeException() throws SQLException {
+        when(replaceStmt.executeBatch()).thenThrow(new IllegalStateException());
+        Update update = update(Kind.REPLACE, "FETCHED", "");
+        writer.addToBatch(update);
+        writer.executeBatch();
+
+        assertTrue(acked.isEmpty());
+        assertEquals(update.tuple, failed.peek());
+        // a new connection is used for the next batch
+        verify(connection).close();
+        writer.addToBatch(update(Kind.INSERT, "DISCOVERED", ""));
+        writer.executeBatch();
+        assertEquals(1, acked.size());
+    }
+}
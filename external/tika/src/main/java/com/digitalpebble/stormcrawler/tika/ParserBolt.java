@@ -28,6 +28,7 @@ import com.digitalpebble.stormcrawler.persistence.Status;
 import com.digitalpebble.stormcrawler.protocol.HttpHeaders;
 import com.digitalpebble.stormcrawler.protocol.ProtocolResponse;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import com.digitalpebble.stormcrawler.util.InitialisationUtil;
 import com.digitalpebble.stormcrawler.util.MetadataTransfer;
 import com.digitalpebble.stormcrawler.util.URLUtil;
@@ -135,13 +136,28 @@ public class ParserBolt extends BaseRichBolt {
 
     @Override
     public void execute(Tuple tuple) {
+        try {
+            parse(tuple);
+        } finally {
+            ContentStore.release(tuple);
+        }
+    }
+
+    private void parse(Tuple tuple) {
         eventCounter.scope("tuple_in").incrBy(1);
 
-        byte[] content = tuple.getBinaryByField("content");
+        byte[] content = ContentStore.getContent(tuple);
 
         String url = tuple.getStringByField("url");
         Metadata metadata = (Metadata) tuple.getValueByField("metadata");
 
+        if (content == null) {
+            LOG.error("Content of {} no longer available", url);
+            eventCounter.scope("content_expired").incrBy(1);
+            collector.fail(tuple);
+            return;
+        }
+
         // check that the mimetype is in the whitelist
         if (mimeTypeWhiteList.size() > 0) {
             boolean mt_match = false;
@@ -284,13 +300,21 @@ public class ParserBolt extends BaseRichBolt {
         for (Map.Entry<String, ParseData> doc : parse) {
             ParseData parseDoc = doc.getValue();
 
-            collector.emit(
-                    tuple,
-                    new Values(
-                            doc.getKey(),
-                            parseDoc.getContent(),
-                            parseDoc.getMetadata(),
-                            parseDoc.getText()));
+            // pass the handle on if the content is unchanged
+            Object value =
+                    parseDoc.getContent() == content
+                            ? ContentStore.valueOf(tuple, content)
+                            : parseDoc.getContent();
+            ContentStore.emit(
+                    value,
+                    () ->
+                            collector.emit(
+                                    tuple,
+                                    new Values(
+                                            doc.getKey(),
+                                            value,
+                                            parseDoc.getMetadata(),
+                                            parseDoc.getText())));
         }
 
         collector.ack(tuple);
@@ -366,6 +390,9 @@ public class ParserBolt extends BaseRichBolt {
             return new ArrayList<>();
         }
 
+        // the same for all the outlinks
+        Metadata outlinksMD = metadataTransfer.getMetaForOutlinks(parentURL, parentMetadata);
+
         for (Link l : links) {
             if (StringUtils.isBlank(l.getUri())) {
                 continue;
@@ -400,7 +427,7 @@ public class ParserBolt extends BaseRichBolt {
             ol.setAnchor(l.getText());
 
             // get the metadata for the outlink from the parent ones
-            ol.setMetadata(metadataTransfer.getMetaForOutlink(urlOL, parentURL, parentMetadata));
+            ol.setMetadata(outlinksMD.copy());
 
             // keep only one instance of outlink per URL
             outlinks.putIfAbsent(urlOL, ol);
@@ -15,6 +15,7 @@
 package com.digitalpebble.stormcrawler.tika;
 
 import com.digitalpebble.stormcrawler.Metadata;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import java.util.Map;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
@@ -60,17 +61,19 @@ public class RedirectionBolt extends BaseRichBolt {
     @Override
     public void execute(Tuple tuple) {
         String url = tuple.getStringByField("url");
-        byte[] content = tuple.getBinaryByField("content");
+        // bytes or handle, passed on as is
+        Object content = tuple.getValueByField("content");
         Metadata metadata = (Metadata) tuple.getValueByField("metadata");
         String text = tuple.getStringByField("text");
 
         Values v = new Values(url, content, metadata, text);
 
         if (metadata.getFirstValue("parsed.by") != null) {
-            collector.emit(tuple, v);
+            ContentStore.emit(content, () -> collector.emit(tuple, v));
         } else {
-            collector.emit("tika", tuple, v);
+            ContentStore.emit(content, () -> collector.emit("tika", tuple, v));
         }
+        ContentStore.release(content);
 
         collector.ack(tuple);
     }
@@ -420,6 +420,7 @@ public class StatusUpdaterBolt extends AbstractStatusUpdaterBolt
 
     @Override
     public void cleanup() {
+        super.cleanup();
         requestObserver.onCompleted();
         if (!channel.isShutdown()) {
             LOG.info("Shutting down connection to URLFrontier service.");
@@ -2,6 +2,7 @@ package com.digitalpebble.stormcrawler.warc;
 
 import com.digitalpebble.stormcrawler.protocol.ProtocolResponse;
 import com.digitalpebble.stormcrawler.util.ConfUtils;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.HashMap;
@@ -11,6 +12,7 @@ import org.apache.storm.hdfs.bolt.rotation.FileSizeRotationPolicy;
 import org.apache.storm.hdfs.bolt.rotation.FileSizeRotationPolicy.Units;
 import org.apache.storm.hdfs.bolt.sync.CountSyncPolicy;
 import org.apache.storm.hdfs.common.AbstractHDFSWriter;
+import org.apache.storm.task.IOutputCollector;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.tuple.Tuple;
@@ -49,6 +51,8 @@ public class WARCHdfsBolt extends GzipHdfsBolt {
     public void doPrepare(Map conf, TopologyContext topologyContext, OutputCollector collector)
             throws IOException {
         super.doPrepare(conf, topologyContext, collector);
+        // the content is held in the store until the record has been written
+        this.collector = new ContentReleasingCollector(collector);
         protocolMDprefix = ConfUtils.getString(conf, ProtocolResponse.PROTOCOL_MD_PREFIX_PARAM, "");
         withRecordFormat(new WARCRecordFormat(protocolMDprefix));
         if (withRequestRecords) {
@@ -75,4 +79,24 @@ public class WARCHdfsBolt extends GzipHdfsBolt {
 
         return writer;
     }
+
+    /** Releases the content of the tuples once they have been written or have failed */
+    private static class ContentReleasingCollector extends OutputCollector {
+
+        private ContentReleasingCollector(IOutputCollector delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void ack(Tuple input) {
+            ContentStore.release(input);
+            super.ack(input);
+        }
+
+        @Override
+        public void fail(Tuple input) {
+            ContentStore.release(input);
+            super.fail(input);
+        }
+    }
 }
@@ -7,6 +7,7 @@ import static com.digitalpebble.stormcrawler.protocol.ProtocolResponse.RESPONSE_
 import com.digitalpebble.stormcrawler.Metadata;
 import com.digitalpebble.stormcrawler.protocol.HttpHeaders;
 import com.digitalpebble.stormcrawler.protocol.ProtocolResponse;
+import com.digitalpebble.stormcrawler.util.ContentStore;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
@@ -261,10 +262,15 @@ public class WARCRecordFormat implements RecordFormat {
     @Override
     public byte[] format(Tuple tuple) {
 
-        byte[] content = tuple.getBinaryByField("content");
+        byte[] content = ContentStore.getContent(tuple);
         String url = tuple.getStringByField("url");
         Metadata metadata = (Metadata) tuple.getValueByField("metadata");
 
+        if (content == null) {
+            LOG.error("Content of {} no longer available", url);
+            content = new byte[0];
+        }
+
         // were the headers stored as is? Can write a response element then
         String headersVerbatim =
                 metadata.getFirstValue(RESPONSE_HEADERS_KEY, this.protocolMDprefix);